@@ -0,0 +1,138 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.zimbra.common.soap.Element;
+
+/**
+ * Unit test for {@link Utf8Appendable}.
+ */
+public final class Utf8AppendableTest {
+
+    private static final String MIXED = "a\u00e9\u20ac\ud83d\ude00z";
+
+    @Test
+    public void surrogatePair() throws Exception {
+        check(MIXED, 16);
+        check("\ud83d\ude00\ud83d\ude01\ud83d\ude02", 16);
+    }
+
+    @Test
+    public void surrogatePairAcrossAppends() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Appendable utf8 = new Utf8Appendable(out, 16);
+        utf8.append("x\ud83d");
+        utf8.append('\ude00');
+        utf8.append("\ud83d").append("\ude01y", 0, 2);
+        utf8.finish();
+        Assert.assertArrayEquals("x\ud83d\ude00\ud83d\ude01y".getBytes(Charsets.UTF_8), out.toByteArray());
+    }
+
+    @Test
+    public void unpairedSurrogates() throws Exception {
+        check("a\ud83db", 16);
+        check("a\ude00b", 16);
+        check("\ude00\ud83d", 16);
+        check("\ud83d\ud83d\ude00", 16);
+        check("trailing\ud83d", 16);
+    }
+
+    @Test
+    public void bufferBoundary() throws Exception {
+        // every alignment of multi-byte sequences against the end of the buffer
+        for (int prefix = 0; prefix < 20; prefix++) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < prefix; i++) {
+                sb.append('-');
+            }
+            for (int i = 0; i < 10; i++) {
+                sb.append(MIXED);
+            }
+            check(sb.toString(), 16);
+        }
+        // an unpaired high surrogate ending a full buffer
+        check("0123456789abcde\ud83d", 16);
+        check("0123456789abc\ud83d\u20ac", 16);
+    }
+
+    @Test
+    public void random() throws Exception {
+        Random random = new Random(42);
+        char[] alphabet = "ab<&\"\u00e9\u0800\uffff\ud83d\ude00\udbff\udfff".toCharArray();
+        for (int round = 0; round < 200; round++) {
+            char[] chars = new char[random.nextInt(100)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            check(new String(chars), 16 + random.nextInt(16));
+        }
+    }
+
+    @Test
+    public void element() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append(MIXED).append("<&>\"\n");
+        }
+        for (Element elt : new Element[] { new Element.XMLElement("test"), new Element.JSONElement("test") }) {
+            elt.addAttribute("attr", MIXED);
+            elt.addElement("child").setText(text.toString());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            elt.output(out);
+            Assert.assertArrayEquals(elt.toString().getBytes(Charsets.UTF_8), out.toByteArray());
+            Assert.assertArrayEquals(elt.toString().getBytes(Charsets.UTF_8), elt.toUTF8());
+        }
+    }
+
+    /**
+     * Encodes {@code str} one char at a time, in one piece and in uneven pieces, and compares each with
+     * {@code String.getBytes(UTF_8)}.
+     */
+    private static void check(String str, int bufferSize) throws IOException {
+        byte[] expected = str.getBytes(Charsets.UTF_8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8Appendable utf8 = new Utf8Appendable(out, bufferSize);
+        utf8.append(str);
+        utf8.finish();
+        Assert.assertArrayEquals(str, expected, out.toByteArray());
+
+        out = new ByteArrayOutputStream();
+        utf8 = new Utf8Appendable(out, bufferSize);
+        for (int i = 0; i < str.length(); i++) {
+            utf8.append(str.charAt(i));
+        }
+        utf8.finish();
+        Assert.assertArrayEquals(str, expected, out.toByteArray());
+
+        out = new ByteArrayOutputStream();
+        utf8 = new Utf8Appendable(out, bufferSize);
+        for (int i = 0; i < str.length(); i += 3) {
+            utf8.append(str, i, Math.min(i + 3, str.length()));
+        }
+        utf8.finish();
+        Assert.assertArrayEquals(str, expected, out.toByteArray());
+    }
+}
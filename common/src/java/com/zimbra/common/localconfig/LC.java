@@ -179,6 +179,16 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    // compress blobs as independently inflatable blocks so range reads don't inflate the whole blob; the result is
+    // still a valid gzip file, which older servers read by inflating all of it, as they do any compressed blob
+    public static final KnownKey zimbra_blob_block_compression = KnownKey.newKey(false);
+    public static final KnownKey zimbra_blob_compression_block_size_kb = KnownKey.newKey(64); // KB
+
+    // deflate redo log records between the min and max sizes; larger records are streamed as is on replay
+    public static final KnownKey zimbra_redolog_compression = KnownKey.newKey(false);
+    public static final KnownKey zimbra_redolog_compression_min_bytes = KnownKey.newKey(256);
+    public static final KnownKey zimbra_redolog_compression_max_kb = KnownKey.newKey(1024); // KB
+    public static final KnownKey zimbra_redolog_compression_level = KnownKey.newKey(1);
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -203,6 +213,17 @@ public final class LC {
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
 
+    // deliver session/listener notifications on a worker pool instead of the committing thread
+    public static final KnownKey zimbra_mailbox_async_notifications = KnownKey.newKey(false);
+    public static final KnownKey zimbra_mailbox_notification_threads = KnownKey.newKey(4);
+
+    // write mail_item metadata in the compact binary format; leave off until every server (and any
+    // restore target) understands it, since older builds can only read BEncoded metadata
+    public static final KnownKey zimbra_metadata_binary_encoding = KnownKey.newKey(false);
+
+    // in always-on mode, keep recently used items on the heap in front of memcached
+    public static final KnownKey zimbra_mailbox_memcached_near_cache = KnownKey.newKey(false);
+
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
 
@@ -265,6 +286,14 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_elasticsearch_url_base = KnownKey.newKey("http://localhost:9200/");
 
+    // documents are sent to ElasticSearch in _bulk requests of up to this many documents, bytes or milliseconds
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_docs = KnownKey.newKey(500);
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_bytes = KnownKey.newKey(5000000);
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_delay_ms = KnownKey.newKey(1000);
+    // delay before an index with unrefreshed writes is refreshed in the background; 0 only refreshes on search
+    public static final KnownKey zimbra_index_elasticsearch_refresh_delay_ms = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_index_elasticsearch_refresh_threads = KnownKey.newKey(2);
+
     @Supported
     public static final KnownKey zimbra_index_wildcard_max_terms_expanded = KnownKey.newKey(20000);
 
@@ -328,6 +357,9 @@ public final class LC {
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
+    public static final KnownKey soap_response_gzip_enabled = KnownKey.newKey(false);
+    public static final KnownKey soap_batch_parallel_threads = KnownKey.newKey(8);
+    public static final KnownKey soap_batch_parallel_queue_size = KnownKey.newKey(256);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
 
@@ -450,6 +482,9 @@ public final class LC {
 
     public static final KnownKey empty_folder_batch_sleep_ms = KnownKey.newKey(1L);
 
+    // serve typed attribute getters from a compiled, pre-parsed snapshot of each cached entry
+    public static final KnownKey ldap_entry_attr_snapshot_enabled = KnownKey.newKey(true);
+
     @Supported
     public static final KnownKey ldap_cache_account_maxsize = KnownKey.newKey(20000);
 
@@ -496,6 +531,10 @@ public final class LC {
     public static final KnownKey ldap_cache_xmppcomponent_maxsize = KnownKey.newKey(100);
     public static final KnownKey ldap_cache_xmppcomponent_maxage = KnownKey.newKey(15);
 
+    // serve stale LDAP cache entries while a single background reload runs
+    public static final KnownKey ldap_cache_refresh_ahead = KnownKey.newKey(false);
+    public static final KnownKey ldap_cache_refresh_threads = KnownKey.newKey(2);
+
     @Supported
     public static final KnownKey ldap_cache_zimlet_maxsize = KnownKey.newKey(100);
 
@@ -726,6 +765,10 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    // number of messages loaded per multi-row query ahead of FETCH responses; 0 disables prefetch
+    public static final KnownKey imap_fetch_prefetch_batch_size = KnownKey.newKey(100);
+    // max combined bytes of precomputed BODYSTRUCTURE and ENVELOPE kept in message metadata; 0 disables
+    public static final KnownKey imap_structure_cache_max_size = KnownKey.newKey(8192);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -839,6 +882,16 @@ public final class LC {
     public static final KnownKey search_disable_database_hints = KnownKey.newKey(false);
     public static final KnownKey search_dbfirst_term_percentage_cutoff = KnownKey.newKey(0.8F);
     public static final KnownKey search_tagged_item_count_join_query_cutoff = KnownKey.newKey(1000); //beyond this limit server will not use join in the query while fetching unread items
+    // page through DB search results by seeking past the last (sort value, item id) instead of using LIMIT offsets
+    public static final KnownKey search_keyset_pagination_enabled = KnownKey.newKey(true);
+    // Lucene hits kept across searches so that the next page of the same query only fetches the hits after them; 0 disables
+    public static final KnownKey search_lucene_cursor_cache_hits = KnownKey.newKey(200000);
+    // folder/tag membership bitsets kept per mailbox to prefilter Lucene hits before the DB join; 0 disables
+    public static final KnownKey search_membership_filter_cache_size = KnownKey.newKey(8);
+    // search results kept per mailbox and reused until a change can affect them; 0 disables
+    public static final KnownKey search_result_cache_size = KnownKey.newKey(16);
+    // larger result windows are not cached
+    public static final KnownKey search_result_cache_max_hits = KnownKey.newKey(1000);
 
     public static final KnownKey zmstat_interval = KnownKey.newKey(30);
     public static final KnownKey zmstat_disk_interval = KnownKey.newKey(600);
@@ -936,6 +989,14 @@ public final class LC {
     public static final KnownKey yauth_baseuri = KnownKey.newKey("https://login.yahoo.com/WSLogin/V1");
 
     public static final KnownKey purge_initial_sleep_ms = KnownKey.newKey(30 * Constants.MILLIS_PER_MINUTE);
+    // concurrent mailbox purges; each one holds a DB connection for most of its run
+    public static final KnownKey purge_threads = KnownKey.newKey(2);
+    public static final KnownKey purge_max_db_connections = KnownKey.newKey(2);
+    // hold off starting purges while this fraction of the DB pool is in use
+    public static final KnownKey purge_db_pool_busy_ratio = KnownKey.newKey(0.75F);
+    // put a mailbox back in the queue when this many threads are waiting for its lock
+    public static final KnownKey purge_lock_waiters_threshold = KnownKey.newKey(1);
+    public static final KnownKey purge_backoff_ms = KnownKey.newKey(5 * Constants.MILLIS_PER_SECOND);
 
     public static final KnownKey conversation_max_age_ms = KnownKey.newKey(31 * Constants.MILLIS_PER_DAY);
     public static final KnownKey tombstone_max_age_ms = KnownKey.newKey(3 * Constants.MILLIS_PER_MONTH);
@@ -1094,6 +1155,9 @@ public final class LC {
 
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
+    // threads delivering a multi-recipient message to distinct local mailboxes concurrently; 0 delivers sequentially
+    public static final KnownKey zimbra_lmtp_parallel_delivery_threads = KnownKey.newKey(0);
+    public static final KnownKey zimbra_lmtp_parallel_delivery_min_recipients = KnownKey.newKey(8);
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
@@ -0,0 +1,138 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * An <tt>Appendable</tt> that encodes characters as UTF-8 into a fixed-size buffer and
+ * writes the buffer to an <tt>OutputStream</tt> whenever it fills up, so serializing a large
+ * document never holds more than one buffer of it in memory.
+ * <p>
+ * This never flushes the underlying stream, so that a servlet container can still decide between
+ * a Content-Length and chunked transfer encoding; callers must call {@link #finish()} to write out
+ * the last partial buffer.  Unpaired surrogates are
+ * encoded as <tt>'?'</tt>, as <tt>String.getBytes("utf-8")</tt> does.
+ */
+public class Utf8Appendable implements Appendable {
+
+    private static final int BUFFER_SIZE = LC.zimbra_servlet_output_stream_buffer_size.intValueWithinRange(512, 20480);
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int count = 0;
+    private char pendingHighSurrogate = 0;
+
+    public Utf8Appendable(OutputStream out) {
+        this(out, BUFFER_SIZE);
+    }
+
+    public Utf8Appendable(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buf = new byte[Math.max(bufferSize, 16)];
+    }
+
+    @Override
+    public Appendable append(CharSequence csq) throws IOException {
+        if (csq == null) {
+            csq = "null";
+        }
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+        if (csq == null) {
+            csq = "null";
+        }
+        for (int i = start; i < end; i++) {
+            char c = csq.charAt(i);
+            if (c < 0x80 && count < buf.length && pendingHighSurrogate == 0) {
+                buf[count++] = (byte) c;
+            } else {
+                encode(c);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public Appendable append(char c) throws IOException {
+        encode(c);
+        return this;
+    }
+
+    private void encode(char c) throws IOException {
+        if (count + 4 > buf.length) {
+            drain();
+        }
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(high, c);
+                buf[count++] = (byte) (0xf0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (cp & 0x3f));
+                return;
+            }
+            buf[count++] = '?';
+            if (count + 3 > buf.length) {
+                drain();
+            }
+        }
+        if (c < 0x80) {
+            buf[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buf[count++] = (byte) (0xc0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buf[count++] = '?';
+        } else {
+            buf[count++] = (byte) (0xe0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Writes any buffered bytes to the underlying stream, without flushing or closing it.
+     */
+    public void finish() throws IOException {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            if (count == buf.length) {
+                drain();
+            }
+            buf[count++] = '?';
+        }
+        drain();
+    }
+}
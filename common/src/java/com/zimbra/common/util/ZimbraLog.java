@@ -773,6 +773,18 @@ public final class ZimbraLog {
         ZimbraLog.addToContext(C_OPROTO, protocol);
     }
 
+    /**
+     * Returns a copy of the current thread's logging context, e.g. for handing off to a worker thread
+     * with {@link #addToContext(String, String)}.
+     */
+    public static Map<String, String> getContextMap() {
+        Map<String, String> contextMap = sContextMap.get();
+        if (contextMap == null) {
+            return Collections.emptyMap();
+        }
+        return new LinkedHashMap<String, String>(contextMap);
+    }
+
     /**
      * Clears the current thread's logging context.
      *
@@ -57,8 +57,11 @@ import com.zimbra.common.localconfig.LC;
  * This wrapper implements the append methods by converting data to UTF-8 and 
  * write to the ServletOutputStream.  This way IOexception won't be eaten(problem of doing 1), 
  * and we don't interfere with jetty's process in deciding on the transfer encoding(problem of doing 2).
+ *
+ * @deprecated Element now streams UTF-8 straight to an OutputStream through {@link Utf8Appendable},
+ *     which avoids the per-flush <tt>toString().getBytes()</tt> copy; kept for extensions that still use it.
  */
-
+@Deprecated
 public class ZimbraServletOutputStream implements Appendable {
 
     private static final int BUFFER_SIZE = LC.zimbra_servlet_output_stream_buffer_size.intValueWithinRange(512, 20480);
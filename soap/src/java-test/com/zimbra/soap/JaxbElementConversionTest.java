@@ -0,0 +1,173 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.soap.AccountConstants;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.Element.JSONElement;
+import com.zimbra.common.soap.Element.XMLElement;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.soap.account.JaxbToElementTest;
+import com.zimbra.soap.account.message.GetInfoResponse;
+import com.zimbra.soap.account.message.ModifyPrefsRequest;
+import com.zimbra.soap.account.type.Pref;
+import com.zimbra.soap.admin.message.CreateAccountRequest;
+import com.zimbra.soap.mail.message.SendMsgRequest;
+
+/**
+ * Checks that the direct JAXB <-> {@link Element} conversions in {@link JaxbUtil} produce the same results as the
+ * original dom4j / W3C DOM based ones for the request and response classes.
+ */
+public class JaxbElementConversionTest {
+
+    private static final Logger LOG = Logger.getLogger(JaxbElementConversionTest.class);
+
+    private static List<Object> samples = Lists.newArrayList();
+
+    static {
+        BasicConfigurator.configure();
+        Logger.getRootLogger().setLevel(Level.INFO);
+        LOG.setLevel(Level.INFO);
+    }
+
+    @BeforeClass
+    public static void init() throws Exception {
+        for (Class<?> klass : JaxbUtil.getJaxbRequestAndResponseClasses()) {
+            if (Modifier.isAbstract(klass.getModifiers())) {
+                continue;
+            }
+            try {
+                Constructor<?> ctor = klass.getDeclaredConstructor();
+                ctor.setAccessible(true);
+                samples.add(ctor.newInstance());
+            } catch (Exception e) {
+                LOG.debug("skipping " + klass.getName(), e);
+            }
+        }
+        samples.add(JaxbToElementTest.getInfoResponsefromXml());
+    }
+
+    /** Only these packages can be found from an Element's namespace by {@link JaxbUtil#elementToJaxb(Element)} */
+    private static boolean isTopLevelMapped(Class<?> klass) {
+        String pkg = klass.getPackage().getName();
+        return pkg.equals("com.zimbra.soap.account.message") || pkg.equals("com.zimbra.soap.admin.message") ||
+                pkg.equals("com.zimbra.soap.mail.message") || pkg.equals("com.zimbra.soap.adminext.message");
+    }
+
+    @Test
+    public void jaxbToElement() throws Exception {
+        for (Object o : samples) {
+            Element viaDom4j = JaxbUtil.jaxbToElementUsingDom4j(o, XMLElement.mFactory, true);
+            Element direct = JaxbUtil.jaxbToElement(o, XMLElement.mFactory, true);
+            Assert.assertEquals(o.getClass().getName(), viaDom4j.toString(), direct.toString());
+        }
+    }
+
+    /** Unmarshals {@code elem} both ways and checks that the results marshal back to the same XML. */
+    private static <T> T assertSameJaxb(Element elem) throws Exception {
+        Object viaDom = JaxbUtil.elementToJaxbUsingW3cDom(elem);
+        T direct = JaxbUtil.elementToJaxb(elem);
+        Assert.assertNotNull(elem.getName(), direct);
+        Assert.assertEquals(elem.getName(), JaxbUtil.jaxbToElement(viaDom).toString(),
+                JaxbUtil.jaxbToElement(direct).toString());
+        return direct;
+    }
+
+    @Test
+    public void elementToJaxb() throws Exception {
+        for (Object o : samples) {
+            if (isTopLevelMapped(o.getClass())) {
+                assertSameJaxb(JaxbUtil.jaxbToElement(o, XMLElement.mFactory, true));
+            }
+        }
+    }
+
+    @Test
+    public void elementToJaxbFromJson() throws Exception {
+        Element json = Element.parseJSON(JaxbToElementTest.getTestInfoResponseJson(),
+                AccountConstants.GET_INFO_RESPONSE, JSONElement.mFactory);
+        GetInfoResponse info = assertSameJaxb(json);
+        Assert.assertEquals("user1@tarka.local", info.getAccountName());
+        Assert.assertEquals("FALSE", info.getPrefsMultimap().get("zimbraPrefMailFlashTitle").iterator().next());
+        Assert.assertFalse(info.getAttrsMultimap().isEmpty());
+
+        // "_attrs" comes back from JSON as <a n="..."> elements, which have to become <pref name="...">
+        json = Element.parseJSON("{\"_attrs\":{\"zimbraPrefSkin\":\"carbon\",\"zimbraPrefLocale\":\"fr\"}," +
+                "\"_jsns\":\"urn:zimbraAccount\"}", AccountConstants.MODIFY_PREFS_REQUEST, JSONElement.mFactory);
+        ModifyPrefsRequest prefs = assertSameJaxb(json);
+        Assert.assertEquals(2, prefs.getPrefs().size());
+        Assert.assertEquals("carbon", Pref.toMultimap(prefs.getPrefs()).get("zimbraPrefSkin").iterator().next());
+
+        // JSON has no way to tell elements with text content from attributes
+        json = Element.parseJSON("{\"suid\":\"1234\",\"m\":{\"su\":\"Hello\",\"content\":\"Body text\"," +
+                "\"fr\":\"Body\",\"e\":[{\"t\":\"t\",\"a\":\"bob@example.com\"}]," +
+                "\"mp\":{\"ct\":\"text/plain\",\"content\":\"body\"}},\"_jsns\":\"urn:zimbraMail\"}",
+                MailConstants.SEND_MSG_REQUEST, JSONElement.mFactory);
+        SendMsgRequest send = assertSameJaxb(json);
+        Assert.assertEquals("1234", send.getSendUid());
+        Assert.assertEquals("Hello", send.getMsg().getSubject());
+        Assert.assertEquals("Body text", send.getMsg().getContent());
+        Assert.assertEquals("Body", send.getMsg().getFragment());
+        Assert.assertEquals("bob@example.com", send.getMsg().getEmailAddresses().get(0).getAddress());
+        Assert.assertEquals("body", send.getMsg().getMimePart().getContent());
+    }
+
+    @Test
+    public void elementToJaxbFromXml() throws Exception {
+        GetInfoResponse info = assertSameJaxb(Element.parseXML(JaxbToElementTest.getTestInfoResponseXml()));
+        Assert.assertFalse(info.getPrefsMultimap().isEmpty());
+
+        // attributes written as elements, and the admin key/value pairs
+        Element xml = Element.parseXML("<CreateAccountRequest xmlns=\"urn:zimbraAdmin\">" +
+                "<name>user@example.com</name><password>secret</password>" +
+                "<a n=\"displayName\">Bob</a><a n=\"zimbraMailAlias\">bob@example.com</a>" +
+                "<a n=\"zimbraMailAlias\">robert@example.com</a></CreateAccountRequest>");
+        CreateAccountRequest create = assertSameJaxb(xml);
+        Assert.assertEquals("user@example.com", create.getName());
+        Assert.assertEquals("secret", create.getPassword());
+        Assert.assertEquals(3, create.getAttrs().size());
+
+        // key/value pairs with the default names rather than <pref name="...">
+        xml = Element.parseXML("<ModifyPrefsRequest xmlns=\"urn:zimbraAccount\">" +
+                "<a n=\"zimbraPrefSkin\">carbon</a><pref name=\"zimbraPrefLocale\">fr</pref></ModifyPrefsRequest>");
+        ModifyPrefsRequest prefs = assertSameJaxb(xml);
+        Assert.assertEquals(2, prefs.getPrefs().size());
+        Assert.assertEquals("carbon", Pref.toMultimap(prefs.getPrefs()).get("zimbraPrefSkin").iterator().next());
+
+        xml = Element.parseXML("<SendMsgRequest xmlns=\"urn:zimbraMail\"><suid>1234</suid>" +
+                "<m><su>Hello</su><e t=\"t\" a=\"bob@example.com\"/><fr>Body</fr>" +
+                "<mp ct=\"text/plain\"><content>body</content></mp></m></SendMsgRequest>");
+        SendMsgRequest send = assertSameJaxb(xml);
+        Assert.assertEquals("1234", send.getSendUid());
+        Assert.assertEquals("Hello", send.getMsg().getSubject());
+        Assert.assertEquals("Body", send.getMsg().getFragment());
+        Assert.assertEquals("body", send.getMsg().getMimePart().getContent());
+    }
+}
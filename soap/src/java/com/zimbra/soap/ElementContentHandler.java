@@ -0,0 +1,151 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.zimbra.common.soap.Element;
+
+/**
+ * SAX <tt>ContentHandler</tt> which a JAXB <tt>Marshaller</tt> can write to in order to build an {@link Element}
+ * directly, without marshalling into a dom4j document and converting that with {@link Element#convertDOM}.
+ * <p>
+ * The resulting tree is the same as <tt>convertDOM</tt> would produce.  The one exception is content which
+ * <tt>convertDOM</tt> flattens to text (mixed content, nested XHTML); in that case {@link #getElement()}
+ * returns <tt>null</tt> and the caller must fall back to the dom4j route.
+ */
+final class ElementContentHandler extends DefaultHandler {
+
+    private static final class Frame {
+        final Element elt;
+        final StringBuilder text = new StringBuilder();
+        boolean hasChildren = false;
+
+        Frame(Element elt) {
+            this.elt = elt;
+        }
+    }
+
+    private final Element.ElementFactory factory;
+    private final boolean removePrefixes;
+    private final Map<String, String> uriToPrefix = new HashMap<String, String>();
+    private final Deque<Frame> stack = new ArrayDeque<Frame>();
+    private Element root;
+    private boolean needsFlattening = false;
+
+    /**
+     * @param factory - e.g. XmlElement.mFactory
+     * @param removePrefixes - If true then namespace prefixes are dropped from element names.
+     */
+    ElementContentHandler(Element.ElementFactory factory, boolean removePrefixes) {
+        this.factory = factory;
+        this.removePrefixes = removePrefixes;
+    }
+
+    /**
+     * @return the marshalled tree, or <tt>null</tt> if it contained content that has to be flattened to text
+     */
+    Element getElement() {
+        return needsFlattening ? null : root;
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+        uriToPrefix.put(uri, prefix);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attrs) {
+        if (needsFlattening) {
+            return;
+        }
+        if (Element.XHTML_NS_URI.equalsIgnoreCase(uri)) {
+            needsFlattening = true;
+            return;
+        }
+        Frame parent = stack.peek();
+        if (parent != null) {
+            parent.hasChildren = true;
+        }
+
+        QName qn;
+        if (uri == null || uri.isEmpty()) {
+            qn = QName.get(localName);
+        } else if (removePrefixes) {
+            qn = QName.get(localName, Namespace.get(uri));
+        } else {
+            int colon = qName == null ? -1 : qName.indexOf(':');
+            qn = QName.get(localName, Namespace.get(colon > 0 ? qName.substring(0, colon) : "", uri));
+        }
+        Element elt = factory.createElement(qn);
+        for (int i = 0; i < attrs.getLength(); i++) {
+            String name = attributeName(attrs, i);
+            if (!name.startsWith("xmlns")) {
+                elt.addAttribute(name, attrs.getValue(i));
+            }
+        }
+        stack.push(new Frame(elt));
+    }
+
+    private String attributeName(Attributes attrs, int i) {
+        String name = attrs.getQName(i);
+        if (name != null && !name.isEmpty()) {
+            return name;
+        }
+        String uri = attrs.getURI(i);
+        String prefix = uri == null || uri.isEmpty() ? null : uriToPrefix.get(uri);
+        return prefix == null || prefix.isEmpty() ? attrs.getLocalName(i) : prefix + ':' + attrs.getLocalName(i);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (!needsFlattening) {
+            stack.peek().text.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (needsFlattening) {
+            return;
+        }
+        Frame frame = stack.pop();
+        String content = frame.text.toString();
+        if (!content.trim().isEmpty()) {
+            if (frame.hasChildren) {
+                // can't hold both children and text on a single node
+                needsFlattening = true;
+                return;
+            }
+            frame.elt.setText(content);
+        }
+        Frame parent = stack.peek();
+        if (parent == null) {
+            root = frame.elt;
+        } else {
+            parent.elt.addNonUniqueElement(frame.elt);
+        }
+    }
+}
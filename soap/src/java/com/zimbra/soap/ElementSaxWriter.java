@@ -0,0 +1,181 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.util.List;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import com.google.common.collect.Lists;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.util.Pair;
+import com.zimbra.soap.util.JaxbInfo;
+
+/**
+ * Writes an {@link Element} tree as SAX events, e.g. to a JAXB <tt>UnmarshallerHandler</tt>, so that it can be
+ * unmarshalled without first copying it into a W3C DOM document.
+ * <p>
+ * Applies the same structure fixups as <tt>JaxbUtil.fixupStructureForJaxb</tt> on the fly: attributes which the
+ * JAXB class expects as elements (and vice versa) are moved, and key/value pairs are renamed to what the JAXB
+ * class expects.
+ */
+final class ElementSaxWriter {
+
+    private static final String CDATA = "CDATA";
+
+    private final ContentHandler handler;
+
+    private ElementSaxWriter(ContentHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @param klass is the JAXB class for {@code elem}
+     */
+    static void write(Element elem, Class<?> klass, ContentHandler handler) throws SAXException {
+        ElementSaxWriter writer = new ElementSaxWriter(handler);
+        handler.startDocument();
+        writer.writeElement(elem, jaxbInfoFor(klass));
+        handler.endDocument();
+    }
+
+    private static JaxbInfo jaxbInfoFor(Class<?> klass) {
+        return klass != null && JaxbUtil.isJaxbType(klass) ? JaxbInfo.getFromCache(klass) : null;
+    }
+
+    private static String namespaceOf(Element elem) {
+        String uri = elem.getQName().getNamespaceURI();
+        return uri == null || uri.equals("urn:zimbraSoap") ? "" : uri;
+    }
+
+    /**
+     * @param jaxbInfo describes the JAXB class for {@code elem}, or null if the subtree should be written as is
+     */
+    private void writeElement(Element elem, JaxbInfo jaxbInfo) throws SAXException {
+        String uri = namespaceOf(elem);
+        AttributesImpl attrs = new AttributesImpl();
+        List<Pair<String, String>> appended = null;
+
+        for (Element.Attribute attr : elem.listAttributes()) {
+            String name = attr.getKey();
+            if (jaxbInfo != null && !jaxbInfo.hasAttribute(name) && jaxbInfo.hasElement(name)) {
+                // Zimbra allows elements to be specified as attributes
+                if (appended == null) {
+                    appended = Lists.newArrayList();
+                }
+                appended.add(new Pair<String, String>(name, attr.getValue()));
+            } else {
+                attrs.addAttribute("", name, name, CDATA, attr.getValue());
+            }
+        }
+
+        List<Element> children = elem.listElements();
+        JaxbInfo.KeyValuePairXmlRepresentationInfo kvpXmlRep = null;
+        if (jaxbInfo != null) {
+            for (Element child : children) {
+                String childName = child.getName();
+                if (!jaxbInfo.hasWrapperElement(childName) && !jaxbInfo.hasElement(childName) &&
+                        jaxbInfo.hasAttribute(childName)) {
+                    // Zimbra allows attributes to be specified as elements
+                    setAttribute(attrs, childName, child.getText());
+                }
+            }
+            kvpXmlRep = jaxbInfo.getKeyValuePairElementInfo();
+        }
+
+        handler.startElement(uri, elem.getName(), elem.getQualifiedName(), attrs);
+        String text = elem.getText();
+        if (!text.isEmpty()) {
+            handler.characters(text.toCharArray(), 0, text.length());
+        }
+
+        List<Element> kvps = null;
+        for (Element child : children) {
+            String childName = child.getName();
+            if (jaxbInfo == null) {
+                writeElement(child, null);
+            } else if (jaxbInfo.hasWrapperElement(childName)) {
+                writeWrapper(child, jaxbInfo);
+            } else if (jaxbInfo.hasElement(childName)) {
+                writeElement(child, jaxbInfoFor(jaxbInfo.getClassForElement(childName)));
+            } else if (jaxbInfo.hasAttribute(childName)) {
+                continue; // promoted to an attribute above
+            } else if (Element.XMLElement.E_ATTRIBUTE.equals(childName) && kvpXmlRep != null) {
+                if (kvps == null) {
+                    kvps = Lists.newArrayList();
+                }
+                kvps.add(child);
+            } else {
+                writeElement(child, null);
+            }
+        }
+
+        if (appended != null) {
+            for (Pair<String, String> pair : appended) {
+                writeTextElement(uri, pair.getFirst(), new AttributesImpl(), pair.getSecond());
+            }
+        }
+        if (kvps != null) {
+            // the Element code doesn't have access to JAXB info, so defaults the element name to "a" and its
+            // attribute to "n"; use the names the JAXB object expects instead
+            for (Element kvp : kvps) {
+                AttributesImpl kvpAttrs = new AttributesImpl();
+                kvpAttrs.addAttribute("", kvpXmlRep.getXmlAttributeName(), kvpXmlRep.getXmlAttributeName(), CDATA,
+                        kvp.getAttribute(Element.XMLElement.A_ATTR_NAME, ""));
+                writeTextElement(uri, kvpXmlRep.getXmlElementName(), kvpAttrs, kvp.getText());
+            }
+        }
+        handler.endElement(uri, elem.getName(), elem.getQualifiedName());
+    }
+
+    private void writeWrapper(Element wrapper, JaxbInfo jaxbInfo) throws SAXException {
+        String uri = namespaceOf(wrapper);
+        AttributesImpl attrs = new AttributesImpl();
+        for (Element.Attribute attr : wrapper.listAttributes()) {
+            attrs.addAttribute("", attr.getKey(), attr.getKey(), CDATA, attr.getValue());
+        }
+        handler.startElement(uri, wrapper.getName(), wrapper.getQualifiedName(), attrs);
+        String text = wrapper.getText();
+        if (!text.isEmpty()) {
+            handler.characters(text.toCharArray(), 0, text.length());
+        }
+        for (Element child : wrapper.listElements()) {
+            writeElement(child,
+                    jaxbInfoFor(jaxbInfo.getClassForWrappedElement(wrapper.getName(), child.getName())));
+        }
+        handler.endElement(uri, wrapper.getName(), wrapper.getQualifiedName());
+    }
+
+    private void writeTextElement(String uri, String name, AttributesImpl attrs, String text) throws SAXException {
+        handler.startElement(uri, name, name, attrs);
+        if (text != null && !text.isEmpty()) {
+            handler.characters(text.toCharArray(), 0, text.length());
+        }
+        handler.endElement(uri, name, name);
+    }
+
+    private static void setAttribute(AttributesImpl attrs, String name, String value) {
+        int index = attrs.getIndex(name);
+        if (index >= 0) {
+            attrs.setValue(index, value);
+        } else {
+            attrs.addAttribute("", name, name, CDATA, value);
+        }
+    }
+}
@@ -28,6 +28,7 @@ import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.UnmarshallerHandler;
 import javax.xml.namespace.QName;
 
 import org.dom4j.Document;
@@ -38,6 +39,7 @@ import org.w3c.dom.Attr;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
@@ -1175,20 +1177,47 @@ public final class JaxbUtil {
                 marshaller = createMarshaller(o.getClass());
             }
             // marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            DocumentResult dr = new DocumentResult();
-            marshaller.marshal(o, dr);
-            Document theDoc = dr.getDocument();
-            org.dom4j.Element rootElem = theDoc.getRootElement();
-            if (removePrefixes) {
-                    JaxbUtil.removeNamespacePrefixes(rootElem);
+            ElementContentHandler handler = new ElementContentHandler(factory, removePrefixes);
+            marshaller.marshal(o, handler);
+            Element elem = handler.getElement();
+            if (elem != null) {
+                return elem;
             }
-            return Element.convertDOM(rootElem, factory);
+            // content which has to be flattened to text, which only convertDOM knows how to do
+            return marshalUsingDom4j(marshaller, o, factory, removePrefixes);
         } catch (Exception e) {
             throw ServiceException.FAILURE("Unable to convert " +
                     o.getClass().getName() + " to Element", e);
         }
     }
 
+    /**
+     * The original implementation of {@link #jaxbToElement(Object, Element.ElementFactory, boolean)} for XML, which
+     * marshals to a dom4j document and then converts that.  Still used for content that has to be flattened to text.
+     */
+    static Element jaxbToElementUsingDom4j(Object o, Element.ElementFactory factory, boolean removePrefixes)
+    throws ServiceException {
+        try {
+            return marshalUsingDom4j(getContext().createMarshaller(), o, factory, removePrefixes);
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("Unable to convert " +
+                    o.getClass().getName() + " to Element", e);
+        }
+    }
+
+    private static Element marshalUsingDom4j(Marshaller marshaller, Object o, Element.ElementFactory factory,
+            boolean removePrefixes)
+    throws JAXBException {
+        DocumentResult dr = new DocumentResult();
+        marshaller.marshal(o, dr);
+        Document theDoc = dr.getDocument();
+        org.dom4j.Element rootElem = theDoc.getRootElement();
+        if (removePrefixes) {
+            JaxbUtil.removeNamespacePrefixes(rootElem);
+        }
+        return Element.convertDOM(rootElem, factory);
+    }
+
     /**
      * @param o - associated JAXB class must have an @XmlRootElement annotation
      * @param factory - e.g. XmlElement.mFactory or JSONElement.mFactory
@@ -1247,12 +1276,11 @@ public final class JaxbUtil {
         try {
             Marshaller marshaller = createMarshaller(o.getClass());
             // marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            DocumentResult dr = new DocumentResult();
-            marshaller.marshal(new JAXBElement(new QName(namespace, name),
-                    o.getClass(), o) , dr);
-            Document theDoc = dr.getDocument();
-            org.dom4j.Element rootElem = theDoc.getRootElement();
-            return Element.convertDOM(rootElem, factory);
+            JAXBElement jaxbElem = new JAXBElement(new QName(namespace, name), o.getClass(), o);
+            ElementContentHandler handler = new ElementContentHandler(factory, false);
+            marshaller.marshal(jaxbElem, handler);
+            Element elem = handler.getElement();
+            return elem != null ? elem : marshalUsingDom4j(marshaller, jaxbElem, factory, false);
         } catch (Exception e) {
             throw ServiceException.FAILURE("Unable to convert " +
                     o.getClass().getName() + " to Element", e);
@@ -1555,7 +1583,8 @@ public final class JaxbUtil {
 
     /**
      * Return a JAXB object corresponding to {@link e} which is the Xml for
-     * a Request or Response.
+     * a Request or Response.  The Element is fed straight to the unmarshaller
+     * as SAX events rather than being copied into a W3C DOM document first.
      * @param e MUST be a top level Request or Response element whose
      * corresponding JAXB object is in {@link JaxbUtil.MESSAGE_CLASSES}
      */
@@ -1567,7 +1596,24 @@ public final class JaxbUtil {
                     "]  Is it a Request or Response node?");
             return null;
         }
-        return (T) w3cDomDocToJaxb(e.toW3cDom(), klass, true);
+        try {
+            UnmarshallerHandler handler = getContext().createUnmarshaller().getUnmarshallerHandler();
+            ElementSaxWriter.write(e, klass, handler);
+            return (T) handler.getResult();
+        } catch (JAXBException ex) {
+            throw ServiceException.FAILURE("Unable to unmarshal response for " + e.getName(), ex);
+        } catch (SAXException ex) {
+            throw ServiceException.FAILURE("Unable to unmarshal response for " + e.getName(), ex);
+        }
+    }
+
+    /**
+     * The original implementation of {@link #elementToJaxb(Element)}, which copies the Element into a W3C DOM
+     * document, fixes that up and unmarshals it.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T elementToJaxbUsingW3cDom(Element e) throws ServiceException {
+        return (T) w3cDomDocToJaxb(e.toW3cDom(), classForTopLevelElem(e), true);
     }
 
     /**
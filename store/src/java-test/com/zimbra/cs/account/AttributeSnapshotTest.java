@@ -0,0 +1,143 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link AttributeSnapshot}.
+ */
+public final class AttributeSnapshotTest {
+
+    private static final String A_INT = "testIntAttr";
+    private static final String A_LONG = "testLongAttr";
+    private static final String A_BOOL = "testBoolAttr";
+    private static final String A_DURATION = "testDurationAttr";
+    private static final String A_STRING = "testStringAttr";
+
+    private AttributeManager am;
+
+    private static AttributeInfo info(String name, int id, AttributeType type) {
+        return new AttributeInfo(name, id, null, 0, null, type, null, "", false, null, null,
+                AttributeCardinality.single, null, null, null, null, null, null, null, null, name, null, null, null);
+    }
+
+    @Before
+    public void setUp() {
+        am = new AttributeManager();
+        am.addAttribute(info(A_INT, 99990, AttributeType.TYPE_INTEGER));
+        am.addAttribute(info(A_LONG, 99991, AttributeType.TYPE_LONG));
+        am.addAttribute(info(A_BOOL, 99992, AttributeType.TYPE_BOOLEAN));
+        am.addAttribute(info(A_DURATION, 99993, AttributeType.TYPE_DURATION));
+        am.addAttribute(info(A_STRING, 99994, AttributeType.TYPE_STRING));
+    }
+
+    private static Map<String, Object> attrs(Object... keyValues) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            attrs.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return attrs;
+    }
+
+    @Test
+    public void ordinals() {
+        int ordinal = am.getOrdinal(A_INT);
+        Assert.assertTrue(ordinal >= 0);
+        Assert.assertEquals(ordinal, am.getOrdinal(A_INT.toLowerCase()));
+        Assert.assertEquals(ordinal, am.getOrdinal(A_INT.toUpperCase()));
+        Assert.assertFalse(ordinal == am.getOrdinal(A_LONG));
+        Assert.assertEquals(-1, am.getOrdinal("objectClass"));
+    }
+
+    @Test
+    public void typedValues() {
+        AttributeSnapshot snapshot = am.compileSnapshot(attrs(A_INT, "42", A_LONG, "2MB", A_BOOL, "TRUE",
+                A_DURATION, "90s", A_STRING, new String[] {"first", "second"}), null, null, null);
+        Assert.assertEquals(42, snapshot.getInt(am.getOrdinal(A_INT), -1));
+        Assert.assertEquals(42L, snapshot.getLong(am.getOrdinal(A_INT), -1));
+        Assert.assertEquals(2 * 1024 * 1024L, snapshot.getLong(am.getOrdinal(A_LONG), -1));
+        Assert.assertTrue(snapshot.getBoolean(am.getOrdinal(A_BOOL), false));
+        Assert.assertEquals(90000L, snapshot.getTimeInterval(am.getOrdinal(A_DURATION), -1));
+        Assert.assertEquals(-1L, snapshot.getLong(am.getOrdinal(A_DURATION), -1)); // not a number
+        Assert.assertEquals("first", snapshot.getString(am.getOrdinal(A_STRING)));
+    }
+
+    @Test
+    public void unparseableValues() {
+        AttributeSnapshot snapshot = am.compileSnapshot(attrs(A_INT, "4294967296", A_DURATION, "soon"),
+                null, null, null);
+        Assert.assertEquals(-1, snapshot.getInt(am.getOrdinal(A_INT), -1));
+        Assert.assertEquals(4294967296L, snapshot.getLong(am.getOrdinal(A_INT), -1));
+        Assert.assertEquals(-1L, snapshot.getTimeInterval(am.getOrdinal(A_DURATION), -1));
+        Assert.assertFalse(snapshot.getBoolean(am.getOrdinal(A_BOOL), false));
+    }
+
+    @Test
+    public void inheritance() {
+        Map<String, Object> cos = attrs(A_INT, "1", A_LONG, "10", A_STRING, "cos");
+        Map<String, Object> domain = attrs(A_INT, "2", A_BOOL, "TRUE", A_DURATION, "1s");
+        AttributeSnapshot snapshot = am.compileSnapshot(attrs(A_INT, "3", A_STRING, new String[0]),
+                null, cos, domain);
+        Assert.assertEquals(3, snapshot.getInt(am.getOrdinal(A_INT), -1));
+        Assert.assertEquals(10L, snapshot.getLong(am.getOrdinal(A_LONG), -1));
+        Assert.assertTrue(snapshot.getBoolean(am.getOrdinal(A_BOOL), false));
+        Assert.assertEquals(1000L, snapshot.getTimeInterval(am.getOrdinal(A_DURATION), -1));
+        // an empty value on the entry hides the inherited one, as in Entry.getAttr()
+        Assert.assertNull(snapshot.getString(am.getOrdinal(A_STRING)));
+
+        AttributeSnapshot override = am.compileSnapshot(Collections.<String, Object>emptyMap(),
+                attrs(A_LONG, "20"), cos, domain);
+        Assert.assertEquals(20L, override.getLong(am.getOrdinal(A_LONG), -1));
+        Assert.assertEquals(1, override.getInt(am.getOrdinal(A_INT), -1));
+    }
+
+    @Test
+    public void invalidateInherited() {
+        Map<String, Object> cos = attrs(A_INT, "1");
+        Map<String, Object> domain = attrs(A_LONG, "10");
+        Map<String, Object> otherCos = attrs(A_INT, "2");
+        AttributeSnapshot snapshot = am.compileSnapshot(attrs(), null, cos, domain);
+        AttributeSnapshot other = am.compileSnapshot(attrs(), null, otherCos, domain);
+        Assert.assertTrue(snapshot.isCurrent());
+        Assert.assertEquals(1, snapshot.getInt(am.getOrdinal(A_INT), -1));
+
+        cos.put(A_INT, "5"); // what Cos.resetData() does to its account defaults
+        AttributeSnapshot.invalidateInherited(cos);
+        Assert.assertFalse(snapshot.isCurrent());
+        Assert.assertTrue(other.isCurrent());
+        snapshot = am.compileSnapshot(attrs(), null, cos, domain);
+        Assert.assertTrue(snapshot.isCurrent());
+        Assert.assertEquals(5, snapshot.getInt(am.getOrdinal(A_INT), -1));
+
+        // a map shared by both chains
+        AttributeSnapshot.invalidateInherited(domain);
+        Assert.assertFalse(snapshot.isCurrent());
+        Assert.assertFalse(other.isCurrent());
+
+        // a map nothing was compiled from
+        snapshot = am.compileSnapshot(attrs(), null, cos, domain);
+        AttributeSnapshot.invalidateInherited(attrs(A_INT, "1"));
+        Assert.assertTrue(snapshot.isCurrent());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for the attribute getters of {@link Entry} once they are served from an {@link AttributeSnapshot}.
+ */
+public final class EntryTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void modifyAfterSnapshot() throws Exception {
+        Account acct = Provisioning.getInstance().createAccount("test@zimbra.com", "secret",
+                new HashMap<String, Object>());
+        Assert.assertEquals(0L, acct.getPrefInboxUnreadLifetime());
+
+        acct.setPrefInboxUnreadLifetime("1d");
+        Assert.assertEquals(Constants.MILLIS_PER_DAY, acct.getPrefInboxUnreadLifetime());
+        acct.unsetPrefInboxUnreadLifetime();
+        Assert.assertEquals(0L, acct.getPrefInboxUnreadLifetime());
+    }
+
+    @Test
+    public void modifyCosAfterSnapshot() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Cos cos = prov.createCos("snapshot", cosAttrs("1h"));
+        Account acct = new Account("user@zimbra.com", UUID.randomUUID().toString(), new HashMap<String, Object>(),
+                cos.getAccountDefaults(), prov);
+        Assert.assertEquals(Constants.MILLIS_PER_HOUR, acct.getPrefInboxUnreadLifetime());
+
+        // unrelated COS objects being built must not matter, a change to the account's own COS must
+        prov.createCos("other", cosAttrs("2h"));
+        Assert.assertEquals(Constants.MILLIS_PER_HOUR, acct.getPrefInboxUnreadLifetime());
+        cos.setAttrs(cosAttrs("1d"));
+        Assert.assertEquals(Constants.MILLIS_PER_DAY, acct.getPrefInboxUnreadLifetime());
+    }
+
+    private static Map<String, Object> cosAttrs(String inboxUnreadLifetime) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraPrefInboxUnreadLifetime, inboxUnreadLifetime);
+        return attrs;
+    }
+}
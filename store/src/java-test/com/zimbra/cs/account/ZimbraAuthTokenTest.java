@@ -65,4 +65,17 @@ public class ZimbraAuthTokenTest {
         Assert.assertFalse(at.getEncoded().equals(clonedAuthToken.getEncoded()));
     }
 
+    @Test
+    public void uncacheOnTokenIDResetOfClone() throws Exception {
+        Account a = Provisioning.getInstance().get(AccountBy.name, "user1@example.zimbra.com");
+        String encoded = new ZimbraAuthToken(a).getEncoded();
+        AuthToken cached = ZimbraAuthToken.getAuthToken(encoded);
+        Assert.assertSame(cached, ZimbraAuthToken.getAuthToken(encoded));
+
+        // a copy shares the encoded string, so re-encoding it evicts the cached token too
+        ZimbraAuthToken clonedAuthToken = ((ZimbraAuthToken) cached).clone();
+        clonedAuthToken.resetTokenId();
+        Assert.assertNotSame(cached, ZimbraAuthToken.getAuthToken(encoded));
+    }
+
 }
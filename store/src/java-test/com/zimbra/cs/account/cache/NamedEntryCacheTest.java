@@ -0,0 +1,146 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.MockServer;
+import com.zimbra.cs.account.Server;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link NamedEntryCache} loader-based lookups.
+ */
+public final class NamedEntryCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initProvisioning();
+    }
+
+    private static final class CountingLoader implements EntryLoader<Server> {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        CountingLoader(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public Server load(String key) throws ServiceException {
+            loads.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new MockServer(key, "id-" + key + "-" + loads.get());
+        }
+    }
+
+    private static Callable<Server> getByName(final NamedEntryCache<Server> cache, final String name,
+            final EntryLoader<Server> loader) {
+        return new Callable<Server>() {
+            @Override
+            public Server call() throws ServiceException {
+                return cache.getByName(name, loader);
+            }
+        };
+    }
+
+    @Test
+    public void collapseConcurrentMisses() throws Exception {
+        NamedEntryCache<Server> cache = new NamedEntryCache<Server>(10, 60000);
+        CountDownLatch release = new CountDownLatch(1);
+        CountingLoader loader = new CountingLoader(release);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] results = new Future<?>[4];
+            results[0] = pool.submit(getByName(cache, "mbs.example.com", loader));
+            Assert.assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+            // the first load is now in flight and can't finish until released, so these all join it
+            for (int i = 1; i < results.length; i++) {
+                results[i] = pool.submit(getByName(cache, "mbs.example.com", loader));
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cache.getCollapsedLoadCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            release.countDown();
+            for (Future<?> result : results) {
+                Assert.assertNotNull(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Assert.assertEquals(1, loader.loads.get());
+        Assert.assertEquals(3, cache.getCollapsedLoadCount());
+        Assert.assertNotNull(cache.getByName("mbs.example.com"));
+    }
+
+    @Test
+    public void refreshAheadServesStale() throws Exception {
+        // a negative TTL makes every entry stale as soon as it is put
+        NamedEntryCache<Server> cache = new NamedEntryCache<Server>(10, -1, true);
+        CountDownLatch release = new CountDownLatch(1);
+        CountingLoader loader = new CountingLoader(release);
+        Server stale = new MockServer("mbs.example.com", "stale");
+        cache.put(stale);
+
+        Assert.assertSame(stale, cache.getById("stale", loader));
+        Assert.assertSame(stale, cache.getById("stale", loader));
+        Assert.assertEquals(1, cache.getRefreshCount());
+        release.countDown();
+    }
+
+    @Test
+    public void loadDoesNotOverwriteNewerPut() throws Exception {
+        NamedEntryCache<Server> cache = new NamedEntryCache<Server>(10, 60000);
+        CountDownLatch release = new CountDownLatch(1);
+        CountingLoader loader = new CountingLoader(release);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Server> result = pool.submit(getByName(cache, "mbs.example.com", loader));
+            Assert.assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+
+            // e.g. a read from the master right after a write, while a replica load was in flight
+            Server newer = new MockServer("mbs.example.com", "newer");
+            cache.put(newer);
+            release.countDown();
+
+            // the caller still gets what it loaded, but the cache keeps the newer copy
+            Assert.assertEquals("id-mbs.example.com-1", result.get(10, TimeUnit.SECONDS).getId());
+            Assert.assertSame(newer, cache.getByName("mbs.example.com"));
+            Assert.assertNull(cache.getById("id-mbs.example.com-1"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
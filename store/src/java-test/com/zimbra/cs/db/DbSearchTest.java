@@ -393,4 +393,63 @@ public final class DbSearchTest {
         Assert.assertEquals(103, result.get(1).getId());
         Assert.assertEquals(102, result.get(2).getId());
     }
+
+    @Test
+    public void seekByDate() throws Exception {
+        for (int id = 100; id <= 104; id++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, flags, date, size, tags, mod_metadata, mod_content) " +
+                    "VALUES(?, ?, ?, 0, ?, 0, 0, 0, 0)", mbox.getId(), id, MailItem.Type.MESSAGE.toByte(),
+                    id < 103 ? 1000 : 2000);
+        }
+
+        // ties on date are broken by ID, in the same direction
+        DbSearchConstraints.Leaf constraints = new DbSearchConstraints.Leaf();
+        List<DbSearch.Result> result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_DESC, 0, 2,
+                DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(104, result.get(0).getId());
+        Assert.assertEquals(103, result.get(1).getId());
+
+        DbSearch.Result last = result.get(1);
+        constraints = new DbSearchConstraints.Leaf();
+        constraints.seek = new DbSearchConstraints.Seek(SortBy.DATE_DESC, last.getSortValue(), last.getId());
+        result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_DESC, 0, 2, DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(102, result.get(0).getId());
+        Assert.assertEquals(101, result.get(1).getId());
+
+        // seek into the middle of a run of equal dates
+        constraints = new DbSearchConstraints.Leaf();
+        constraints.seek = new DbSearchConstraints.Seek(SortBy.DATE_ASC, 1000000L, 100);
+        result = new DbSearch(mbox).search(conn, constraints, SortBy.DATE_ASC, 0, 100, DbSearch.FetchMode.ID);
+        Assert.assertEquals(4, result.size());
+        Assert.assertEquals(101, result.get(0).getId());
+        Assert.assertEquals(104, result.get(3).getId());
+    }
+
+    @Test
+    public void seekBySubject() throws Exception {
+        String[] subjects = { "b", "a", "c", "b" };
+        for (int i = 0; i < subjects.length; i++) {
+            DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                    "(mailbox_id, id, type, flags, date, size, tags, mod_metadata, mod_content, subject) " +
+                    "VALUES(?, ?, ?, 0, 0, 0, 0, 0, 0, ?)", mbox.getId(), 100 + i, MailItem.Type.MESSAGE.toByte(),
+                    subjects[i]);
+        }
+
+        List<DbSearch.Result> result = new DbSearch(mbox).search(conn, new DbSearchConstraints.Leaf(),
+                SortBy.SUBJ_ASC, 0, 2, DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(101, result.get(0).getId());
+        Assert.assertEquals(100, result.get(1).getId());
+
+        DbSearch.Result last = result.get(1);
+        DbSearchConstraints.Leaf constraints = new DbSearchConstraints.Leaf();
+        constraints.seek = new DbSearchConstraints.Seek(SortBy.SUBJ_ASC, last.getSortValue(), last.getId());
+        result = new DbSearch(mbox).search(conn, constraints, SortBy.SUBJ_ASC, 0, 100, DbSearch.FetchMode.ID);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(103, result.get(0).getId());
+        Assert.assertEquals(102, result.get(1).getId());
+    }
 }
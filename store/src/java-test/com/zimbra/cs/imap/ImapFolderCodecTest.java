@@ -0,0 +1,137 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.EnumSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Unit test for {@link ImapFolderCodec}.
+ */
+public final class ImapFolderCodecTest {
+    private static final String ACCOUNT_ID = "12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f";
+
+    private static ImapFolder newFolder(int size) {
+        ImapFlagCache tags = new ImapFlagCache();
+        tags.cache(new ImapFlag("work", "work", 64, 0, true, true, true));
+        ImapFolder i4folder = new ImapFolder(new ItemIdentifier(ACCOUNT_ID, 2), 257, null,
+                EnumSet.of(MailItem.Type.MESSAGE), tags);
+        for (int i = 1; i <= size; i++) {
+            // a few gaps in the UIDs and a few item IDs that differ from the UID
+            int uid = i * 2 + (i % 7 == 0 ? 5 : 0);
+            int flags = i % 3 == 0 ? Flag.BITMASK_UNREAD : Flag.BITMASK_FLAGGED;
+            String[] itemTags = i % 10 == 0 ? new String[] { "work" } : null;
+            ImapMessage i4msg = new ImapMessage(i % 11 == 0 ? uid - 1 : uid,
+                    i % 13 == 0 ? MailItem.Type.CONTACT : MailItem.Type.MESSAGE, uid, flags, itemTags);
+            i4folder.restoreMessage(i4msg);
+        }
+        return i4folder;
+    }
+
+    private static void assertSameFolder(ImapFolder expected, ImapFolder actual) {
+        Assert.assertEquals(expected.getItemIdentifier().accountId, actual.getItemIdentifier().accountId);
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getUIDValidity(), actual.getUIDValidity());
+        Assert.assertEquals(expected.isVirtual(), actual.isVirtual());
+        Assert.assertEquals(expected.getTypeConstraint(), actual.getTypeConstraint());
+        Assert.assertEquals(expected.getTagset().listNames(false), actual.getTagset().listNames(false));
+        Assert.assertEquals(expected.getSize(), actual.getSize());
+        for (int seq = 1; seq <= expected.getSize(); seq++) {
+            ImapMessage e = expected.getBySequence(seq, true), a = actual.getBySequence(seq, true);
+            Assert.assertEquals(seq, a.sequence);
+            Assert.assertEquals(e.msgId, a.msgId);
+            Assert.assertEquals(e.imapUid, a.imapUid);
+            Assert.assertEquals(e.flags, a.flags);
+            Assert.assertEquals(e.sflags, a.sflags);
+            Assert.assertArrayEquals(e.tags, a.tags);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImapFolder i4folder = newFolder(1000);
+        ImapMessage i4msg = i4folder.getBySequence(5);
+        i4msg.restoreSessionFlags((short) (i4msg.sflags | ImapMessage.FLAG_RECENT));
+        assertSameFolder(i4folder, ImapFolderCodec.read(ImapFolderCodec.encode(i4folder)));
+    }
+
+    @Test
+    public void virtualFolder() throws Exception {
+        ImapFolder i4folder = new ImapFolder(new ItemIdentifier(ACCOUNT_ID, 300), 1, "in:inbox is:unread",
+                EnumSet.of(MailItem.Type.MESSAGE, MailItem.Type.CONTACT), new ImapFlagCache());
+        ImapFolder copy = ImapFolderCodec.read(ImapFolderCodec.encode(i4folder));
+        Assert.assertEquals("in:inbox is:unread", copy.getQuery());
+        assertSameFolder(i4folder, copy);
+    }
+
+    @Test
+    public void javaSerialization() throws Exception {
+        // what the Ehcache-backed cache stores; writeReplace() hands it to the codec
+        ImapFolder i4folder = newFolder(100);
+        byte[] serialized = javaSerialize(i4folder);
+        assertSameFolder(i4folder, (ImapFolder) javaDeserialize(serialized));
+        assertSameFolder(i4folder, ImapFolderCodec.read(serialized));
+    }
+
+    /**
+     * Reads a folder serialized by the ImapFolder that predated the codec, as still found in
+     * memcached and on disk: its messages come back through readObject() rather than the codec.
+     */
+    @Test
+    public void legacySerialization() throws Exception {
+        byte[] legacy = ByteStreams.toByteArray(getClass().getResourceAsStream("legacy-imap-folder.ser"));
+        ImapFolder expected = newFolder(30);
+        ImapMessage i4msg = expected.getBySequence(5);
+        i4msg.restoreSessionFlags((short) (i4msg.sflags | ImapMessage.FLAG_RECENT));
+
+        ImapFolder i4folder = (ImapFolder) javaDeserialize(legacy);
+        assertSameFolder(expected, i4folder);
+        Assert.assertEquals(43, i4folder.getByImapId(44).msgId);
+        Assert.assertEquals(44, i4folder.getById(43).imapUid);
+        assertSameFolder(expected, ImapFolderCodec.read(legacy));
+        Assert.assertTrue(ImapFolderCodec.encode(i4folder).length < legacy.length / 2);
+    }
+
+    private static byte[] javaSerialize(Object obj) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(obj);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    private static Object javaDeserialize(byte[] data) throws Exception {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+}
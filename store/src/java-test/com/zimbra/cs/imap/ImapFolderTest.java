@@ -1,5 +1,6 @@
 package com.zimbra.cs.imap;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -61,4 +62,76 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCollapseExpunged() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapPath path = new ImapPath("trash", creds);
+
+        ImapFolder i4folder = new ImapFolder(path, (byte) 0, null);
+        for (int i = 1; i <= 6; i++) {
+            i4folder.cache(new ImapMessage(i, Type.of((byte) 5), 10 + i, 0, null), false);
+        }
+        i4folder.markMessageExpunged(i4folder.getBySequence(2));
+        i4folder.markMessageExpunged(i4folder.getBySequence(3));
+        i4folder.markMessageExpunged(i4folder.getBySequence(5));
+
+        // sequence numbers are reported as they shift down during the expunge
+        Assert.assertEquals(Arrays.asList(2, 2, 3), i4folder.collapseExpunged(false));
+        Assert.assertEquals(3, i4folder.getSize());
+        for (int seq = 1; seq <= 3; seq++) {
+            Assert.assertEquals(seq, i4folder.getBySequence(seq).sequence);
+        }
+        Assert.assertEquals(14, i4folder.getBySequence(2).imapUid);
+        Assert.assertEquals(16, i4folder.getByImapId(16).imapUid);
+        Assert.assertNull(i4folder.getByImapId(15));
+        Assert.assertEquals(4, i4folder.getById(4).msgId);
+    }
+
+    @Test
+    public void testMessageViews() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapPath path = new ImapPath("trash", creds);
+
+        ImapFolder i4folder = new ImapFolder(path, (byte) 0, null);
+        i4folder.cache(new ImapMessage(1, Type.of((byte) 5), 11, 0, null), false);
+        i4folder.cache(new ImapMessage(2, Type.of((byte) 5), 12, 0, null), false);
+        i4folder.cache(new ImapMessage(4, Type.of((byte) 5), 14, 0, null), false);
+
+        // the same message is handed out as the same object for as long as it is held
+        ImapMessage i4msg = i4folder.getBySequence(2);
+        Assert.assertSame(i4msg, i4folder.getByImapId(12));
+        Assert.assertSame(i4msg, i4folder.getById(2));
+        Assert.assertTrue(i4folder.getAllMessages().contains(i4msg));
+
+        // changes made through it are seen by the folder
+        i4msg.setExpunged(true);
+        Assert.assertNull(i4folder.getBySequence(2));
+        Assert.assertSame(i4msg, i4folder.getBySequence(2, true));
+        i4msg.setExpunged(false);
+
+        // and it follows its row when messages are inserted ahead of it
+        ImapMessage last = i4folder.getBySequence(3);
+        last.setAdded(true);
+        Assert.assertTrue(i4folder.cache(new ImapMessage(3, Type.of((byte) 5), 13, 0, null), false));
+        Assert.assertEquals(4, i4folder.getSize());
+        Assert.assertEquals(4, last.sequence);
+        Assert.assertEquals(13, i4folder.getBySequence(3).imapUid);
+        Assert.assertSame(last, i4folder.getBySequence(4));
+
+        // and when expunged messages are removed ahead of it
+        i4folder.markMessageExpunged(i4folder.getBySequence(1));
+        i4folder.collapseExpunged(false);
+        Assert.assertEquals(1, i4msg.sequence);
+        Assert.assertEquals(3, last.sequence);
+        Assert.assertSame(last, i4folder.getByImapId(14));
+    }
+
+    @Test
+    public void testTagsInterned() throws Exception {
+        ImapMessage i4msg1 = new ImapMessage(1, Type.of((byte) 5), 11, 0, new String[] { "a", "b" });
+        ImapMessage i4msg2 = new ImapMessage(2, Type.of((byte) 5), 12, 0, new String[] { "a", "b" });
+        Assert.assertSame(i4msg1.tags, i4msg2.tags);
+        Assert.assertNull(new ImapMessage(3, Type.of((byte) 5), 13, 0, null).tags);
+    }
+}
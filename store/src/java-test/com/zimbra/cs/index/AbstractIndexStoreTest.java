@@ -240,6 +240,44 @@ public abstract class AbstractIndexStoreTest {
         srchr.close();
     }
 
+    @Test
+    public void searchAfter() throws Exception {
+        ZimbraLog.test.debug("--->TEST searchAfter");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        createContact(mbox, "a", "bc", "abc@zimbra.com");
+        createContact(mbox, "abcd@zimbra.com");
+        createContact(mbox, "xy@zimbra.com");
+        Thread.sleep(1001);  // To ensure different sort date
+        createContact(mbox, "xyz@zimbra.com");
+        createContact(mbox, "xyz2@zimbra.com");
+        mbox.index.indexDeferredItems();
+
+        IndexStore index = mbox.index.getIndexStore();
+        ZimbraIndexSearcher srchr = index.openSearcher();
+        Query query = new TermQuery(new Term(LuceneFields.L_CONTACT_DATA, "zimbra.com"));
+        for (Sort sort : new Sort[] { null, new Sort(new SortField(LuceneFields.L_SORT_DATE, SortField.STRING, true)),
+                new Sort(new SortField(LuceneFields.L_SORT_DATE, SortField.STRING, false)) }) {
+            ZimbraTopDocs all = sort == null ? srchr.search(query, null, 100) : srchr.search(query, null, 100, sort);
+            Assert.assertEquals("Number of hits", 5, all.getTotalHits());
+            List<String> expecteds = Lists.newArrayList();
+            for (int i = 0; i < all.getScoreDocs().size(); i++) {
+                expecteds.add(getBlobIdForResultDoc(srchr, all, i));
+            }
+            // page through two hits at a time
+            ZimbraTopDocs page = sort == null ? srchr.search(query, null, 2) : srchr.search(query, null, 2, sort);
+            List<String> matches = Lists.newArrayList();
+            while (!page.getScoreDocs().isEmpty()) {
+                for (int i = 0; i < page.getScoreDocs().size(); i++) {
+                    matches.add(getBlobIdForResultDoc(srchr, page, i));
+                }
+                ZimbraScoreDoc last = page.getScoreDoc(page.getScoreDocs().size() - 1);
+                page = srchr.searchAfter(last, matches.size(), query, null, 2, sort);
+            }
+            Assert.assertEquals("Hits paged with searchAfter, sort=" + sort, expecteds, matches);
+        }
+        srchr.close();
+    }
+
     @Test
     public void leadingWildcardQuery() throws Exception {
         ZimbraLog.test.debug("--->TEST leadingWildcardQuery");
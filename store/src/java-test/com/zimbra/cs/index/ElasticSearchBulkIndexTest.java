@@ -0,0 +1,195 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.elasticsearch.ElasticSearchIndex;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+
+/**
+ * Unit test for the _bulk indexing and refresh tracking of {@link ElasticSearchIndex}, against a local HTTP server
+ * standing in for ElasticSearch.
+ */
+public final class ElasticSearchBulkIndexTest {
+    private static HttpServer server;
+    private static String originalUrlBase;
+    private static String originalRefreshDelay;
+    private static final List<String> requests = Collections.synchronizedList(Lists.<String>newArrayList());
+    private static final List<String> bulkBodies = Collections.synchronizedList(Lists.<String>newArrayList());
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new StandInHandler());
+        server.start();
+        originalUrlBase = LC.zimbra_index_elasticsearch_url_base.value();
+        originalRefreshDelay = LC.zimbra_index_elasticsearch_refresh_delay_ms.value();
+        LC.zimbra_index_elasticsearch_url_base.setDefault(
+                String.format("http://localhost:%d/", server.getAddress().getPort()));
+        LC.zimbra_index_elasticsearch_refresh_delay_ms.setDefault(0); // no background refresh
+    }
+
+    @AfterClass
+    public static void destroy() {
+        LC.zimbra_index_elasticsearch_url_base.setDefault(originalUrlBase);
+        LC.zimbra_index_elasticsearch_refresh_delay_ms.setDefault(originalRefreshDelay);
+        server.stop(0);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        requests.clear();
+        bulkBodies.clear();
+    }
+
+    @Test
+    public void bulk() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("test"),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+        ElasticSearchIndex index = new ElasticSearchIndex.Factory().getIndexStore(mbox);
+
+        IndexDocument doc = msg.generateIndexData().get(0);
+        Indexer indexer = index.openIndexer();
+        indexer.addDocument(msg.getFolder(), msg, ImmutableList.of(doc, doc, doc));
+        Assert.assertEquals(0, bulkBodies.size());
+        indexer.close();
+        Assert.assertEquals(1, bulkBodies.size());
+        Assert.assertEquals(6, bulkBodies.get(0).split("\n").length);
+
+        // only the first search after the write waits for a refresh
+        search(index);
+        search(index);
+        Assert.assertEquals(ImmutableList.of("GET _refresh", "POST _bulk", "GET _refresh", "POST _search",
+                "POST _search"), withoutDeletes());
+    }
+
+    @Test
+    public void bulkMaxDocs() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message msg = mbox.addMessage(null, MailboxTestUtil.generateMessage("test"),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+        ElasticSearchIndex index = new ElasticSearchIndex.Factory().getIndexStore(mbox);
+
+        String originalMaxDocs = LC.zimbra_index_elasticsearch_bulk_max_docs.value();
+        LC.zimbra_index_elasticsearch_bulk_max_docs.setDefault(2);
+        try {
+            IndexDocument doc = msg.generateIndexData().get(0);
+            Indexer indexer = index.openIndexer();
+            indexer.addDocument(msg.getFolder(), msg, ImmutableList.of(doc, doc, doc));
+            Assert.assertEquals(1, bulkBodies.size());
+            indexer.close();
+        } finally {
+            LC.zimbra_index_elasticsearch_bulk_max_docs.setDefault(originalMaxDocs);
+        }
+        Assert.assertEquals(2, bulkBodies.size());
+        Assert.assertEquals(4, bulkBodies.get(0).split("\n").length);
+        Assert.assertEquals(2, bulkBodies.get(1).split("\n").length);
+    }
+
+    @Test
+    public void noWrites() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        ElasticSearchIndex index = new ElasticSearchIndex.Factory().getIndexStore(mbox);
+
+        search(index);
+        index.openIndexer().deleteDocument(ImmutableList.of(100));
+        search(index);
+        Assert.assertEquals(ImmutableList.of("POST _search", "DELETE _query", "GET _refresh", "POST _search"),
+                requests);
+    }
+
+    private static void search(ElasticSearchIndex index) throws IOException {
+        ZimbraIndexSearcher searcher = index.openSearcher();
+        try {
+            searcher.search(new TermQuery(new Term(LuceneFields.L_CONTENT, "test")), 10);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    /**
+     * Returns the requests made so far, leaving out the delete that precedes re-indexing an already indexed item.
+     */
+    private static List<String> withoutDeletes() {
+        List<String> result = Lists.newArrayList(requests);
+        result.remove("DELETE _query");
+        return result;
+    }
+
+    private static final class StandInHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String action = path.substring(path.lastIndexOf('/') + 1);
+            InputStream in = exchange.getRequestBody();
+            String body = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+            in.close();
+            requests.add(exchange.getRequestMethod() + " " + action);
+
+            String response;
+            if (action.equals("_bulk")) {
+                bulkBodies.add(body);
+                response = "{\"took\":1,\"errors\":false,\"items\":[]}";
+            } else if (action.equals("_search")) {
+                response = "{\"took\":1,\"hits\":{\"total\":0,\"hits\":[]}}";
+            } else {
+                response = "{\"ok\":true,\"acknowledged\":true}";
+            }
+            byte[] bytes = response.getBytes(Charsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
@@ -16,14 +16,21 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableSet;
 import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
@@ -85,4 +92,274 @@ public final class IntersectionQueryOperationTest {
         Assert.assertEquals("", query.toQueryString());
     }
 
+    @Test
+    public void intersectSorted() throws Exception {
+        MockQueryResults results = new MockQueryResults(EnumSet.of(MailItem.Type.MESSAGE), SortBy.DATE_DESC);
+        List<ZimbraHit> hits = newHits(results, 30, 10);
+        List<ZimbraHit> even = new ArrayList<ZimbraHit>();
+        List<ZimbraHit> triple = new ArrayList<ZimbraHit>();
+        for (ZimbraHit hit : hits) {
+            if (hit.getItemId() % 2 == 0) {
+                even.add(hit);
+            }
+            if (hit.getItemId() % 3 == 0) {
+                triple.add(hit);
+            }
+        }
+        // 12 and 18 share a date, and so do 24 and 30
+        Assert.assertEquals(ids(6, 12, 18, 24, 30), ids(intersect(results, hits, even, triple)));
+        Assert.assertEquals(ids(6, 12, 18, 24, 30), ids(intersect(results, triple, hits, even)));
+        Assert.assertEquals(ids(), ids(intersect(results, even, triple, new ArrayList<ZimbraHit>())));
+    }
+
+    @Test
+    public void intersectUnsorted() throws Exception {
+        MockQueryResults results = new MockQueryResults(EnumSet.of(MailItem.Type.MESSAGE), SortBy.NONE);
+        List<ZimbraHit> hits = newHits(results, 100, 1);
+        List<ZimbraHit> shuffled = new ArrayList<ZimbraHit>(hits);
+        Collections.shuffle(shuffled, new Random(42));
+        List<ZimbraHit> odd = new ArrayList<ZimbraHit>();
+        for (ZimbraHit hit : shuffled) {
+            if (hit.getItemId() % 2 == 1) {
+                odd.add(hit);
+            }
+        }
+        List<ZimbraHit> range = new ArrayList<ZimbraHit>(hits.subList(10, 20));
+        Collections.reverse(range);
+        // hits come out in the order of the most selective sub-operation
+        Assert.assertEquals(ids(19, 17, 15, 13, 11), ids(intersect(results, hits, odd, range)));
+    }
+
+    /**
+     * Intersects random subsets of small mailboxes, with random numbers of messages sharing each date, and compares
+     * with a nested loop intersection.
+     */
+    @Test
+    public void compareWithNestedLoopIntersection() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            MockQueryResults results = new MockQueryResults(EnumSet.of(MailItem.Type.MESSAGE), SortBy.DATE_DESC);
+            List<ZimbraHit> hits = newHits(results, 1 + random.nextInt(200), 1 + random.nextInt(10));
+            List<ZimbraHit> first = new ArrayList<ZimbraHit>();
+            List<ZimbraHit> second = new ArrayList<ZimbraHit>();
+            List<ZimbraHit> third = new ArrayList<ZimbraHit>();
+            for (ZimbraHit hit : hits) {
+                if (random.nextInt(4) != 0) {
+                    first.add(hit);
+                }
+                if (random.nextInt(2) == 0) {
+                    second.add(hit);
+                }
+                if (random.nextInt(3) == 0) {
+                    third.add(hit);
+                }
+            }
+            List<ZimbraHit> intersection = intersect(results, first, second, third);
+            List<ZimbraHit> expected = nestedLoopIntersect(SortBy.DATE_DESC, first, second, third);
+            Assert.assertEquals(expected.size(), intersection.size());
+            Assert.assertEquals(new HashSet<Integer>(ids(expected)), new HashSet<Integer>(ids(intersection)));
+        }
+    }
+
+    /**
+     * Creates hits for item ids 1 to {@code count} sorted by descending date, {@code perDate} hits sharing each date.
+     */
+    private static List<ZimbraHit> newHits(MockQueryResults results, int count, int perDate) {
+        List<ZimbraHit> hits = new ArrayList<ZimbraHit>(count);
+        for (int id = 1; id <= count; id++) {
+            hits.add(new MockHit(results, id, (long) ((count - id) / perDate)));
+        }
+        return hits;
+    }
+
+    private static List<ZimbraHit> intersect(MockQueryResults results, List<ZimbraHit>... subResults)
+            throws Exception {
+        IntersectionQueryOperation op = new IntersectionQueryOperation();
+        for (List<ZimbraHit> hits : subResults) {
+            op.addQueryOp(new MockQueryOperation(hits));
+        }
+        op.begin(new QueryOperation.QueryContext(null, results, new SearchParams(), 100));
+        List<ZimbraHit> result = new ArrayList<ZimbraHit>();
+        while (op.hasNext()) {
+            result.add(op.getNext());
+        }
+        op.close();
+        return result;
+    }
+
+    /**
+     * Reference intersection: for every hit of a group sharing the same sort value, the groups of the other
+     * sub-operations are scanned for the same item.
+     */
+    private static List<ZimbraHit> nestedLoopIntersect(SortBy sort, List<ZimbraHit>... subResults) throws Exception {
+        List<ZimbraHit> result = new ArrayList<ZimbraHit>();
+        int[] next = new int[subResults.length];
+        List<List<ZimbraHit>> groups = new ArrayList<List<ZimbraHit>>();
+        for (int i = 0; i < subResults.length; i++) {
+            groups.add(new ArrayList<ZimbraHit>());
+        }
+        TryAgain: while (next[0] < subResults[0].size()) {
+            ZimbraHit groupHit = subResults[0].get(next[0]);
+            for (int i = 0; i < subResults.length; i++) {
+                List<ZimbraHit> group = groups.get(i);
+                group.clear();
+                while (next[i] < subResults[i].size()) {
+                    int cmp = subResults[i].get(next[i]).compareTo(sort, groupHit);
+                    if (cmp > 0) {
+                        break;
+                    } else if (cmp == 0) {
+                        group.add(subResults[i].get(next[i]));
+                    }
+                    next[i]++;
+                }
+                if (group.isEmpty()) {
+                    continue TryAgain;
+                }
+            }
+            List<ZimbraHit> buffered = new ArrayList<ZimbraHit>();
+            for (int i = 0; i < groups.size(); i++) {
+                for (ZimbraHit hit : groups.get(i)) {
+                    boolean ok = !buffered.contains(hit);
+                    for (int j = 0; ok && j < groups.size(); j++) {
+                        if (j != i) {
+                            ok = false;
+                            for (ZimbraHit other : groups.get(j)) {
+                                if (other.getItemId() == hit.getItemId()) {
+                                    ok = true;
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    if (ok) {
+                        buffered.add(hit);
+                    }
+                }
+            }
+            result.addAll(buffered);
+        }
+        return result;
+    }
+
+    private static List<Integer> ids(List<ZimbraHit> hits) {
+        List<Integer> result = new ArrayList<Integer>(hits.size());
+        for (ZimbraHit hit : hits) {
+            result.add(hit.getItemId());
+        }
+        return result;
+    }
+
+    private static List<Integer> ids(Integer... ids) {
+        List<Integer> result = new ArrayList<Integer>(ids.length);
+        Collections.addAll(result, ids);
+        return result;
+    }
+
+    private static final class MockQueryOperation extends QueryOperation {
+        private final List<ZimbraHit> hits;
+        private int next = 0;
+
+        MockQueryOperation(List<ZimbraHit> hits) {
+            this.hits = hits;
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return -1;
+        }
+
+        @Override
+        public void resetIterator() {
+            next = 0;
+        }
+
+        @Override
+        public ZimbraHit getNext() {
+            return next < hits.size() ? hits.get(next++) : null;
+        }
+
+        @Override
+        public ZimbraHit peekNext() {
+            return next < hits.size() ? hits.get(next) : null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        String toQueryString() {
+            return "MOCK";
+        }
+
+        @Override
+        protected void begin(QueryContext ctx) {
+            context = ctx;
+        }
+
+        @Override
+        Set<QueryTarget> getQueryTargets() {
+            return ImmutableSet.of(QueryTarget.LOCAL);
+        }
+
+        @Override
+        QueryOperation ensureSpamTrashSetting(Mailbox mbox, boolean includeTrash, boolean includeSpam) {
+            return this;
+        }
+
+        @Override
+        boolean hasSpamTrashSetting() {
+            return true;
+        }
+
+        @Override
+        void forceHasSpamTrashSetting() {
+        }
+
+        @Override
+        boolean hasNoResults() {
+            return hits.isEmpty();
+        }
+
+        @Override
+        boolean hasAllResults() {
+            return false;
+        }
+
+        @Override
+        int estimateSelectivity() {
+            return hits.size();
+        }
+
+        @Override
+        QueryOperation expandLocalRemotePart(Mailbox mbox) {
+            return this;
+        }
+
+        @Override
+        QueryOperation optimize(Mailbox mbox) {
+            return this;
+        }
+
+        @Override
+        protected QueryOperation combineOps(QueryOperation other, boolean union) {
+            return null;
+        }
+
+        @Override
+        protected void depthFirstRecurse(RecurseCallback cb) {
+            cb.recurseCallback(this);
+        }
+
+        @Override
+        public String toString() {
+            return "MOCK[" + hits.size() + "]";
+        }
+    }
+
 }
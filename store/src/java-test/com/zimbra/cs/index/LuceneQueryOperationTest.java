@@ -16,11 +16,15 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -169,5 +173,109 @@ public final class LuceneQueryOperationTest {
         Assert.assertFalse(results.hasNext());
         results.close();
     }
+    private static Mailbox addMessages(int count) throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        for (int i = 0; i < count; i++) {
+            addMessage(mbox, i);
+        }
+        MailboxTestUtil.index(mbox);
+        return mbox;
+    }
+
+    private static void addMessage(Mailbox mbox, int i) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        mbox.addMessage(null, new ParsedMessage(("From: test" + i + "@zimbra.com\r\n\r\nhello").getBytes(), false),
+                dopt, null);
+    }
+
+    private static TermQuery helloQuery() {
+        return new TermQuery(new Term(LuceneFields.L_CONTENT, "hello"));
+    }
+
+    private static LuceneQueryOperation search(Mailbox mbox) throws Exception {
+        LuceneQueryOperation op = new LuceneQueryOperation();
+        op.addClause("hello", helloQuery(), true);
+        op.setDBOperation(new DBQueryOperation());
+        op.begin(new QueryOperation.QueryContext(mbox,
+                new MockQueryResults(EnumSet.of(MailItem.Type.MESSAGE), SortBy.NONE), new SearchParams(), 100));
+        return op;
+    }
+
+    /**
+     * Pages through all the hits, {@code max} at a time, and returns their index IDs in order.
+     */
+    private static List<Integer> fetchAll(LuceneQueryOperation op, int max) {
+        List<Integer> ids = new ArrayList<Integer>();
+        while (true) {
+            LuceneQueryOperation.LuceneResultsChunk chunk = op.getNextResultsChunk(max);
+            if (chunk.size() == 0) {
+                return ids;
+            }
+            for (int id : chunk.getIndexIds()) {
+                for (int i = chunk.getHit(id).size(); i > 0; i--) {
+                    ids.add(id);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reuseCursor() throws Exception {
+        Mailbox mbox = addMessages(5);
+
+        LuceneQueryOperation first = search(mbox);
+        List<Integer> expected = fetchAll(first, 100);
+        Assert.assertEquals(5, expected.size());
+
+        // same query on the same searcher picks up the hits fetched by the first run
+        LuceneQueryOperation second = search(mbox);
+        Assert.assertEquals(expected, fetchAll(second, 100));
+        Assert.assertNotNull(first.getCursor());
+        Assert.assertSame(first.getCursor(), second.getCursor());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void newSearcher() throws Exception {
+        Mailbox mbox = addMessages(5);
+
+        LuceneQueryOperation first = search(mbox);
+        Assert.assertEquals(5, fetchAll(first, 100).size());
+        first.close();
+
+        // the index changed, so the cached hits are stale
+        addMessage(mbox, 5);
+        MailboxTestUtil.index(mbox);
+        LuceneQueryOperation second = search(mbox);
+        Assert.assertEquals(6, fetchAll(second, 100).size());
+        Assert.assertNotSame(first.getCursor(), second.getCursor());
+        Assert.assertEquals(6, second.getCursor().getTotalHits());
+        second.close();
+    }
+
+    @Test
+    public void fetchMoreResults() throws Exception {
+        Mailbox mbox = addMessages(20);
+
+        // the first search fetches 3 * 2 hits; the rest are fetched after the last hit of the cursor
+        LuceneQueryOperation op = search(mbox);
+        List<Integer> actual = fetchAll(op, 2);
+        Assert.assertEquals(20, op.getCursor().size());
+        op.close();
+
+        List<Integer> expected = new ArrayList<Integer>();
+        ZimbraIndexSearcher searcher = mbox.index.getIndexStore().openSearcher();
+        try {
+            for (ZimbraScoreDoc scoreDoc : searcher.search(helloQuery(), 100).getScoreDocs()) {
+                Document doc = searcher.doc(scoreDoc.getDocumentID());
+                expected.add(Integer.parseInt(doc.get(LuceneFields.L_MAILBOX_BLOB_ID)));
+            }
+        } finally {
+            searcher.close();
+        }
+        Assert.assertEquals(20, expected.size());
+        Assert.assertEquals(expected, actual);
+    }
 
 }
@@ -0,0 +1,118 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.Tag;
+
+/**
+ * Unit test for {@link MembershipFilterCache}.
+ */
+public final class MembershipFilterCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void folders() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test1"), dopt, null);
+        Message msg2 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test2"), dopt, null);
+        MailboxTestUtil.index(mbox);
+        Folder inbox = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        Folder folder = mbox.createFolder(null, "test", Mailbox.ID_FOLDER_USER_ROOT, new Folder.FolderOptions());
+        MembershipFilterCache cache = mbox.index.getMembershipFilterCache();
+
+        Assert.assertEquals(ImmutableSet.of(msg1.getId(), msg2.getId()),
+                retain(cache, ImmutableSet.of(msg1.getId(), msg2.getId(), 9999), inbox, null));
+        Assert.assertEquals(Collections.emptySet(), retain(cache, ImmutableSet.of(msg1.getId()), folder, null));
+
+        // both folders are cached now, so these only show up through committed changes
+        mbox.move(null, msg1.getId(), MailItem.Type.MESSAGE, folder.getId());
+        Message msg3 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test3"), dopt, null);
+        MailboxTestUtil.index(mbox);
+        Assert.assertEquals(ImmutableSet.of(msg1.getId()),
+                retain(cache, ImmutableSet.of(msg1.getId(), msg2.getId(), msg3.getId()), folder, null));
+        Assert.assertEquals(ImmutableSet.of(msg2.getId(), msg3.getId()),
+                retain(cache, ImmutableSet.of(msg2.getId(), msg3.getId()), inbox, null));
+    }
+
+    @Test
+    public void tags() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test1"), dopt, null);
+        Message msg2 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test2"), dopt, null);
+        MailboxTestUtil.index(mbox);
+        Folder inbox = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        Flag flagged = mbox.getFlagById(Flag.ID_FLAGGED);
+        Tag tag = mbox.createTag(null, "foo", (byte) 0);
+        MembershipFilterCache cache = mbox.index.getMembershipFilterCache();
+        Set<Integer> ids = ImmutableSet.of(msg1.getId(), msg2.getId());
+
+        Assert.assertEquals(Collections.emptySet(), retain(cache, ids, null, flagged));
+        Assert.assertEquals(Collections.emptySet(), retain(cache, ids, null, tag));
+
+        mbox.alterTag(null, msg1.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, true, null);
+        mbox.alterTag(null, msg2.getId(), MailItem.Type.MESSAGE, "foo", true, null);
+        Assert.assertEquals(ImmutableSet.of(msg1.getId()), retain(cache, ids, null, flagged));
+        Assert.assertEquals(ImmutableSet.of(msg2.getId()), retain(cache, ids, null, tag));
+        Assert.assertEquals(ImmutableSet.of(msg2.getId()), retain(cache, ids, inbox, tag));
+
+        // a rename drops the bitset, which is then reloaded from the DB
+        mbox.rename(null, tag.getId(), MailItem.Type.TAG, "bar");
+        Assert.assertEquals(ImmutableSet.of(msg2.getId()), retain(cache, ids, null, mbox.getTagByName(null, "bar")));
+    }
+
+    private static Set<Integer> retain(MembershipFilterCache cache, Set<Integer> ids, Folder folder, Tag tag)
+            throws Exception {
+        Set<Integer> result = Sets.newHashSet(ids);
+        cache.retainCandidates(result, folder == null ? Collections.<Folder>emptySet() : Collections.singleton(folder),
+                tag == null ? Collections.<Tag>emptySet() : Collections.singleton(tag));
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+
+/**
+ * Unit test for {@link SearchResultCache}.
+ */
+public final class SearchResultCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void folder() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions inbox = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        DeliveryOptions sent = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_SENT);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test1"), inbox, null);
+        Message msg2 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test2"), inbox, null);
+
+        Assert.assertEquals(ImmutableList.of(msg2.getId(), msg1.getId()), search(mbox, "in:inbox", false));
+        Assert.assertEquals(ImmutableList.of(msg2.getId(), msg1.getId()), search(mbox, "in:inbox", true));
+
+        // a change in another folder doesn't matter
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("test3"), sent, null);
+        Assert.assertEquals(ImmutableList.of(msg2.getId(), msg1.getId()), search(mbox, "in:inbox", true));
+
+        Message msg4 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test4"), inbox, null);
+        Assert.assertEquals(ImmutableList.of(msg4.getId(), msg2.getId(), msg1.getId()),
+                search(mbox, "in:inbox", false));
+        Assert.assertEquals(ImmutableList.of(msg4.getId(), msg2.getId(), msg1.getId()),
+                search(mbox, "in:inbox", true));
+
+        mbox.move(null, msg2.getId(), MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_SENT);
+        Assert.assertEquals(ImmutableList.of(msg4.getId(), msg1.getId()), search(mbox, "in:inbox", false));
+    }
+
+    @Test
+    public void anyFolder() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test1"), dopt, null);
+
+        Assert.assertEquals(ImmutableList.of(msg1.getId()), search(mbox, "is:unread", false));
+        Assert.assertEquals(ImmutableList.of(msg1.getId()), search(mbox, "is:unread", true));
+
+        mbox.alterTag(null, msg1.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, false, null);
+        Assert.assertEquals(ImmutableList.of(), search(mbox, "is:unread", false));
+    }
+
+    @Test
+    public void notCached() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg1 = mbox.addMessage(null, MailboxTestUtil.generateMessage("test1"), dopt, null);
+        MailboxTestUtil.index(mbox);
+
+        Assert.assertEquals(ImmutableList.of(msg1.getId()), search(mbox, "in:inbox test1", false));
+        Assert.assertEquals(ImmutableList.of(msg1.getId()), search(mbox, "in:inbox test1", false));
+        Assert.assertEquals(ImmutableList.of(msg1.getId()), search(mbox, "in:inbox after:-1year", false));
+        Assert.assertEquals(ImmutableList.of(msg1.getId()), search(mbox, "in:inbox after:-1year", false));
+    }
+
+    private static List<Integer> search(Mailbox mbox, String query, boolean cached) throws Exception {
+        SearchParams params = new SearchParams();
+        params.setQueryString(query);
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setLimit(10);
+        ZimbraQueryResults results = mbox.index.search(SoapProtocol.Soap12, new OperationContext(mbox), params);
+        try {
+            Assert.assertEquals(cached, "CachedQueryResults".equals(results.getClass().getSimpleName()));
+            List<Integer> ids = Lists.newArrayList();
+            while (results.hasNext()) {
+                ids.add(results.getNext().getItemId());
+            }
+            return ids;
+        } finally {
+            results.close();
+        }
+    }
+}
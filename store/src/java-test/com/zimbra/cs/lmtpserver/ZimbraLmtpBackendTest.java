@@ -0,0 +1,239 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for the parallel local delivery of {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+
+    private static final String[] RECIPIENTS = {
+        "test1@zimbra.com", "test2@zimbra.com", "test1@zimbra.com",
+        "test3@zimbra.com", "test2@zimbra.com", "test1@zimbra.com"
+    };
+    // no Message-ID, so that repeated recipients aren't deduped
+    private static final byte[] MESSAGE = ("From: sender@example.com\r\n" +
+            "To: test1@zimbra.com, test2@zimbra.com, test3@zimbra.com\r\n" +
+            "Subject: parallel\r\n" +
+            "\r\n" +
+            "test\r\n").getBytes();
+
+    private static final List<String> deliveryIps = Collections.synchronizedList(new ArrayList<String>());
+
+    private ZimbraLmtpBackend backend;
+    private TestExecutor executor;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        ZimbraLmtpBackend.addCallback(new LmtpCallback() {
+            @Override
+            public void afterDelivery(Account account, Mailbox mbox, String envelopeSender, String recipientEmail,
+                    Message newMessage) {
+                deliveryIps.add(String.valueOf(ZimbraLog.getContextMap().get("ip")));
+            }
+
+            @Override
+            public void forwardWithoutDelivery(Account account, Mailbox mbox, String envelopeSender,
+                    String recipientEmail, ParsedMessage pm) {
+            }
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test1@zimbra.com", "secret", new HashMap<String, Object>());
+        prov.createAccount("test2@zimbra.com", "secret", new HashMap<String, Object>());
+        prov.createAccount("test3@zimbra.com", "secret", new HashMap<String, Object>());
+        LC.zimbra_lmtp_parallel_delivery_threads.setDefault(2);
+        LC.zimbra_lmtp_parallel_delivery_min_recipients.setDefault(2);
+        deliveryIps.clear();
+        backend = new ZimbraLmtpBackend(LmtpConfig.getInstance());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.zimbra_lmtp_parallel_delivery_threads.setDefault(0);
+        LC.zimbra_lmtp_parallel_delivery_min_recipients.setDefault(8);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private LmtpEnvelope deliver() throws Exception {
+        return deliver(RECIPIENTS);
+    }
+
+    private LmtpEnvelope deliver(String[] recipients) throws Exception {
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", new String[] { "BODY", "SIZE" }, null));
+        for (int i = 0; i < recipients.length; i++) {
+            LmtpAddress recipient = new LmtpAddress("<" + recipients[i] + ">", null, null);
+            // file each recipient's copy in its own folder so we can tell them apart
+            recipient.setSkipFilters(true);
+            recipient.setFolder("/rcpt" + i);
+            env.addLocalRecipient(recipient);
+        }
+        ZimbraLog.addIpToContext("10.1.2.3");
+        try {
+            backend.deliver(env, new ByteArrayInputStream(MESSAGE), MESSAGE.length);
+        } finally {
+            ZimbraLog.clearContext();
+        }
+        return env;
+    }
+
+    private static Mailbox getMailbox(String name) throws Exception {
+        Account account = Provisioning.getInstance().getAccountByName(name);
+        return MailboxManager.getInstance().getMailboxByAccount(account);
+    }
+
+    @Test
+    public void deliver() throws Exception {
+        backend.setDeliveryExecutor(executor = new TestExecutor(-1));
+        LmtpEnvelope env = deliver();
+
+        // the first recipient is delivered to up front; the rest go out as one task per mailbox
+        Assert.assertEquals(3, executor.submitted.get());
+        int[] messageIds = new int[RECIPIENTS.length];
+        for (int i = 0; i < RECIPIENTS.length; i++) {
+            Assert.assertEquals(RECIPIENTS[i], LmtpReply.DELIVERY_OK, env.getLocalRecipients().get(i).getDeliveryStatus());
+
+            Mailbox mbox = getMailbox(RECIPIENTS[i]);
+            int folderId = mbox.getFolderByPath(null, "/rcpt" + i).getId();
+            List<Integer> ids = mbox.listItemIds(null, MailItem.Type.MESSAGE, folderId);
+            Assert.assertEquals("rcpt" + i, 1, ids.size());
+
+            // recipients sharing a mailbox are delivered to in envelope order
+            messageIds[i] = ids.get(0);
+            for (int j = 0; j < i; j++) {
+                if (RECIPIENTS[j].equals(RECIPIENTS[i])) {
+                    Assert.assertTrue("rcpt" + i, messageIds[j] < messageIds[i]);
+                }
+            }
+        }
+        // and nothing else was delivered
+        Assert.assertEquals(3, getMailbox("test1@zimbra.com").getItemList(null, MailItem.Type.MESSAGE).size());
+        Assert.assertEquals(2, getMailbox("test2@zimbra.com").getItemList(null, MailItem.Type.MESSAGE).size());
+        Assert.assertEquals(1, getMailbox("test3@zimbra.com").getItemList(null, MailItem.Type.MESSAGE).size());
+
+        // the workers log under the LMTP session's context
+        Assert.assertEquals(RECIPIENTS.length, deliveryIps.size());
+        for (String ip : deliveryIps) {
+            Assert.assertEquals("10.1.2.3", ip);
+        }
+    }
+
+    @Test
+    public void failedTask() throws Exception {
+        // the first task carries test2's recipients
+        backend.setDeliveryExecutor(executor = new TestExecutor(0));
+        LmtpEnvelope env = deliver();
+
+        for (int i = 0; i < RECIPIENTS.length; i++) {
+            LmtpReply expected = RECIPIENTS[i].equals("test2@zimbra.com") ?
+                    LmtpReply.TEMPORARY_FAILURE : LmtpReply.DELIVERY_OK;
+            Assert.assertEquals(RECIPIENTS[i], expected, env.getLocalRecipients().get(i).getDeliveryStatus());
+        }
+        Assert.assertEquals(0, getMailbox("test2@zimbra.com").getItemList(null, MailItem.Type.MESSAGE).size());
+    }
+
+    @Test
+    public void missingAccount() throws Exception {
+        // the unknown address comes after the first delivery, so it goes through the parallel path
+        String[] recipients = { "test1@zimbra.com", "nobody@zimbra.com", "test2@zimbra.com", "test3@zimbra.com" };
+        backend.setDeliveryExecutor(executor = new TestExecutor(-1));
+        LmtpEnvelope env = deliver(recipients);
+
+        Assert.assertEquals(2, executor.submitted.get());
+        for (int i = 0; i < recipients.length; i++) {
+            LmtpReply expected = recipients[i].equals("nobody@zimbra.com") ?
+                    LmtpReply.TEMPORARY_FAILURE : LmtpReply.DELIVERY_OK;
+            Assert.assertEquals(recipients[i], expected, env.getLocalRecipients().get(i).getDeliveryStatus());
+        }
+        Assert.assertEquals(1, getMailbox("test2@zimbra.com").getItemList(null, MailItem.Type.MESSAGE).size());
+        Assert.assertEquals(1, getMailbox("test3@zimbra.com").getItemList(null, MailItem.Type.MESSAGE).size());
+    }
+
+    @Test
+    public void serial() throws Exception {
+        LC.zimbra_lmtp_parallel_delivery_threads.setDefault(0);
+        backend.setDeliveryExecutor(executor = new TestExecutor(-1));
+        LmtpEnvelope env = deliver();
+
+        Assert.assertEquals(0, executor.submitted.get());
+        for (LmtpAddress recipient : env.getLocalRecipients()) {
+            Assert.assertEquals(LmtpReply.DELIVERY_OK, recipient.getDeliveryStatus());
+        }
+    }
+
+    /**
+     * Counts the tasks it is handed, and fails the given one without running it.
+     */
+    private static final class TestExecutor extends ThreadPoolExecutor {
+        final AtomicInteger submitted = new AtomicInteger();
+        private final int failing;
+
+        TestExecutor(int failing) {
+            super(2, 2, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            this.failing = failing;
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+            if (submitted.getAndIncrement() == failing) {
+                runnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        throw new IllegalStateException("test failure");
+                    }
+                };
+            }
+            return super.newTaskFor(runnable, value);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Unit test for {@link BinaryMetadata} and the lazy {@link Metadata} view over it.
+ */
+public final class BinaryMetadataTest {
+
+    private static Metadata sample() {
+        Metadata nested = new Metadata();
+        nested.put("name", "caf\u00e9 \ud83d\ude00");
+        nested.put("neg", -42L);
+        MetadataList list = new MetadataList();
+        list.add(1L);
+        list.add("two");
+        Metadata md = new Metadata();
+        md.put("id", 257L);
+        md.put("min", Long.MIN_VALUE);
+        md.put("flag", true);
+        md.put("ratio", 0.5);
+        md.put("sub", nested);
+        md.put("list", list);
+        return md;
+    }
+
+    private static Metadata roundTrip(Metadata md) throws ServiceException {
+        String encoded = BinaryMetadata.encodeToString(md.map());
+        Assert.assertTrue(BinaryMetadata.isEncoded(encoded));
+        return new Metadata(encoded);
+    }
+
+    @Test
+    public void lazyRead() throws Exception {
+        Metadata md = roundTrip(sample());
+        Assert.assertEquals(6, md.size());
+        Assert.assertTrue(md.containsKey("sub"));
+        Assert.assertFalse(md.containsKey("missing"));
+        Assert.assertEquals(257L, md.getLong("id"));
+        Assert.assertEquals(Long.MIN_VALUE, md.getLong("min"));
+        Assert.assertTrue(md.getBool("flag"));
+        Assert.assertEquals(0.5, md.getDouble("ratio"), 0.0);
+        Assert.assertEquals("dflt", md.get("missing", "dflt"));
+
+        Metadata sub = md.getMap("sub");
+        Assert.assertEquals("caf\u00e9 \ud83d\ude00", sub.get("name"));
+        Assert.assertEquals(-42L, sub.getLong("neg"));
+        Assert.assertNull(md.getMap("missing", true));
+
+        MetadataList list = md.getList("list");
+        Assert.assertEquals(2, list.size());
+        Assert.assertEquals(1L, list.getLong(0));
+        Assert.assertEquals("two", list.get(1));
+    }
+
+    @Test
+    public void equivalentToBEncoding() throws Exception {
+        Metadata md = sample();
+        Metadata legacy = new Metadata(md.toString());
+        Metadata binary = roundTrip(md);
+        Assert.assertEquals(legacy.map(), binary.map());
+    }
+
+    @Test
+    public void mutateAfterLazyRead() throws Exception {
+        Metadata md = roundTrip(sample());
+        Assert.assertEquals(257L, md.getLong("id"));
+        md.put("id", 258L);
+        md.remove("list");
+        Assert.assertEquals(258L, md.getLong("id"));
+        Assert.assertFalse(md.containsKey("list"));
+        Assert.assertEquals(5, roundTrip(md).size());
+    }
+
+    @Test
+    public void binaryForm() throws Exception {
+        Metadata md = roundTrip(sample());
+        byte[] bytes = md.toBinary();
+        Assert.assertTrue(BinaryMetadata.isEncoded(bytes));
+        Metadata copy = Metadata.fromBinary(bytes);
+        Assert.assertEquals(md.map(), copy.map());
+    }
+
+    @Test
+    public void legacyStillReadable() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("a", 1L);
+        map.put("b", Arrays.asList("x", "y"));
+        Metadata md = new Metadata(new Metadata(map).toString());
+        Assert.assertEquals(1L, md.getLong("a"));
+        Assert.assertEquals(2, md.getList("b").size());
+    }
+
+    @Test(expected = MailServiceException.class)
+    public void corrupt() throws Exception {
+        new Metadata(BinaryMetadata.STRING_PREFIX + "AAAA");
+    }
+}
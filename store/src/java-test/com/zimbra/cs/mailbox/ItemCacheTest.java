@@ -0,0 +1,137 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Unit test for the near-cache mode of {@link Mailbox.ItemCache}.  memcached is not running here, so the near-cache
+ * is the only place an item can be found.
+ */
+public final class ItemCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void hit() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.createFolder(null, "/hit", new Folder.FolderOptions());
+        Mailbox.ItemCache cache = new Mailbox.ItemCache(mbox, true, true);
+
+        cache.put(folder);
+        Assert.assertSame(folder, cache.get(folder.getId()));
+        Assert.assertSame(folder, cache.get(folder.getUuid()));
+        Assert.assertTrue(cache.contains(folder));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void remoteChange() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.createFolder(null, "/remoteChange", new Folder.FolderOptions());
+        Mailbox.ItemCache cache = new Mailbox.ItemCache(mbox, true, true);
+        cache.put(folder);
+
+        // a change this cache did not take part in, as if committed on another node
+        mbox.createFolder(null, "/other", new Folder.FolderOptions());
+        Assert.assertNull(cache.get(folder.getId()));
+        Assert.assertNull(cache.get(folder.getUuid()));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void localChange() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.createFolder(null, "/localChange", new Folder.FolderOptions());
+        Mailbox.ItemCache cache = new Mailbox.ItemCache(mbox, true, true);
+        cache.put(folder);
+
+        // a change committed through this cache moves its stamp along
+        int priorChangeId = mbox.getLastChangeID();
+        mbox.createFolder(null, "/other", new Folder.FolderOptions());
+        cache.advanceNearCache(priorChangeId, mbox.getLastChangeID());
+        Assert.assertSame(folder, cache.get(folder.getId()));
+    }
+
+    @Test
+    public void checkpoint() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.createFolder(null, "/checkpoint", new Folder.FolderOptions());
+        Mailbox.ItemCache cache = new Mailbox.ItemCache(mbox, true, true);
+        cache.put(folder);
+
+        // another node cleared its item cache, which bumps the checkpoint it reloads from the database
+        Field data = Mailbox.class.getDeclaredField("mData");
+        data.setAccessible(true);
+        ((Mailbox.MailboxData) data.get(mbox)).itemcacheCheckpoint++;
+        Assert.assertNull(cache.get(folder.getId()));
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.createFolder(null, "/invalidate", new Folder.FolderOptions());
+        Mailbox.ItemCache cache = new Mailbox.ItemCache(mbox, true, true);
+        cache.put(folder);
+
+        cache.invalidateNearCache();
+        Assert.assertNull(cache.get(folder.getId()));
+    }
+
+    @Test
+    public void trim() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder f1 = mbox.createFolder(null, "/trim1", new Folder.FolderOptions());
+        Folder f2 = mbox.createFolder(null, "/trim2", new Folder.FolderOptions());
+        Folder f3 = mbox.createFolder(null, "/trim3", new Folder.FolderOptions());
+        Mailbox.ItemCache cache = new Mailbox.ItemCache(mbox, true, true);
+        cache.put(f1);
+        cache.put(f2);
+        cache.put(f3);
+        Assert.assertEquals(3, cache.size());
+
+        cache.trimNearCache(1);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertNull(cache.get(f1.getUuid()));
+        Assert.assertNull(cache.get(f2.getUuid()));
+        Assert.assertSame(f3, cache.get(f3.getUuid()));
+        // evicted items take their uuid mapping with them
+        Field uuid2id = Mailbox.ItemCache.class.getDeclaredField("uuid2id");
+        uuid2id.setAccessible(true);
+        Assert.assertEquals(1, ((Map<?, ?>) uuid2id.get(cache)).size());
+    }
+}
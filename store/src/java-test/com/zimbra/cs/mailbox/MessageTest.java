@@ -20,6 +20,8 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 
+import javax.mail.internet.MimeMessage;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -36,6 +38,7 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.db.DbUtil;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.SearchParams;
@@ -87,6 +90,49 @@ public final class MessageTest {
         Assert.assertEquals("\u65e5\u672c\u8a9e", body.trim());
     }
 
+    @Test
+    public void precomputedImapStructure() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions opt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg = mbox.addMessage(null, new ParsedMessage(("From: from1@zimbra.com\r\nTo: to1@zimbra.com\r\n" +
+                "Subject: \u00e9t\u00e9\r\nContent-Type: text/plain\r\n\r\nhello\r\n").getBytes("UTF-8"), false), opt, null);
+
+        MimeMessage mm = msg.getMimeMessage(false);
+        Assert.assertEquals(ImapMessage.serializeStructure(mm, true), msg.getImapBodyStructure());
+        Assert.assertEquals(ImapMessage.serializeStructure(mm, false),
+                ImapMessage.bodyStructureToBody(msg.getImapBodyStructure()));
+        Assert.assertEquals(ImapMessage.serializeEnvelope(mm), msg.getImapEnvelope());
+
+        // the values survive a round trip through the metadata
+        Message copy = new Message(mbox, msg.getUnderlyingData(), true);
+        Assert.assertEquals(msg.getImapBodyStructure(), copy.getImapBodyStructure());
+        Assert.assertEquals(msg.getImapEnvelope(), copy.getImapEnvelope());
+    }
+
+    @Test
+    public void imapBodyFromBodyStructure() throws Exception {
+        String[] raw = {
+            "Subject: empty\r\n\r\n",
+            "Content-Type: text/plain; charset=utf-8\r\nContent-Language: en, fr\r\n\r\nline1\r\nline2\r\n",
+            "Content-Type: multipart/mixed; boundary=\"b1\"\r\n\r\n" +
+                "--b1\r\nContent-Type: multipart/alternative; boundary=\"b2\"\r\n\r\n" +
+                "--b2\r\nContent-Type: text/plain\r\n\r\nplain\r\n" +
+                "--b2\r\nContent-Type: text/html\r\n\r\n<b>html</b>\r\n--b2--\r\n" +
+                "--b1\r\nContent-Type: application/octet-stream; name=\"\u00e9t\u00e9.bin\"\r\n" +
+                "Content-Disposition: attachment; filename=\"\u00e9t\u00e9.bin\"\r\n" +
+                "Content-Transfer-Encoding: base64\r\n\r\nAAAA\r\n" +
+                "--b1\r\nContent-Type: message/rfc822\r\n\r\n" +
+                "From: nested@zimbra.com\r\nSubject: (nested) \"quoted\"\r\n" +
+                "Content-Type: text/plain\r\n\r\nnested\r\n--b1--\r\n",
+            "Content-Type: multipart/mixed; boundary=\"b1\"\r\n\r\n--b1--\r\n",
+        };
+        for (String message : raw) {
+            MimeMessage mm = new ParsedMessage(message.getBytes("UTF-8"), false).getMimeMessage();
+            Assert.assertEquals(message, ImapMessage.serializeStructure(mm, false),
+                    ImapMessage.bodyStructureToBody(ImapMessage.serializeStructure(mm, true)));
+        }
+    }
+
     @Test
     public void getSortRecipients() throws Exception {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
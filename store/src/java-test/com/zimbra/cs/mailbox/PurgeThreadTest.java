@@ -0,0 +1,63 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.PriorityQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.mailbox.PurgeThread.PurgeCandidate;
+
+/**
+ * Unit test for the {@link PurgeThread} queue order.
+ */
+public final class PurgeThreadTest {
+
+    private static final long NOW = 1000L * Constants.MILLIS_PER_DAY;
+    private static final long MB = 1024L * 1024L;
+
+    @Test
+    public void order() {
+        PriorityQueue<PurgeCandidate> queue = new PriorityQueue<PurgeCandidate>();
+        queue.add(new PurgeCandidate(1, 10 * MB, NOW - Constants.MILLIS_PER_HOUR, NOW));
+        queue.add(new PurgeCandidate(2, 10 * MB, NOW - Constants.MILLIS_PER_DAY, NOW));
+        queue.add(new PurgeCandidate(3, 10000 * MB, NOW - Constants.MILLIS_PER_DAY, NOW));
+        queue.add(new PurgeCandidate(4, 0, 0, NOW)); // never purged
+        queue.add(new PurgeCandidate(5, 0, 0, NOW));
+
+        Assert.assertEquals(4, queue.poll().mailboxId);
+        Assert.assertEquals(5, queue.poll().mailboxId);
+        Assert.assertEquals(3, queue.poll().mailboxId);
+        Assert.assertEquals(2, queue.poll().mailboxId);
+        Assert.assertEquals(1, queue.poll().mailboxId);
+    }
+
+    @Test
+    public void requeue() {
+        PriorityQueue<PurgeCandidate> queue = new PriorityQueue<PurgeCandidate>();
+        PurgeCandidate big = new PurgeCandidate(1, 10000 * MB, NOW - Constants.MILLIS_PER_DAY, NOW);
+        queue.add(new PurgeCandidate(2, 0, NOW - Constants.MILLIS_PER_MINUTE, NOW));
+        queue.add(big.requeue(NOW));
+
+        Assert.assertEquals(2, queue.poll().mailboxId);
+        PurgeCandidate requeued = queue.poll();
+        Assert.assertEquals(1, requeued.mailboxId);
+        Assert.assertEquals(big.size, requeued.size);
+    }
+}
@@ -1,10 +1,26 @@
 package com.zimbra.cs.redolog.logger;
 
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mime.ParsedContact;
 import com.zimbra.cs.redolog.RedoLogManager;
 import com.zimbra.cs.redolog.TransactionId;
+import com.zimbra.cs.redolog.Version;
 import com.zimbra.cs.redolog.op.CopyItem;
+import com.zimbra.cs.redolog.op.CreateContact;
+import com.zimbra.cs.redolog.op.CreateMessage;
+import com.zimbra.cs.redolog.op.ModifyContact;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.RenameItem;
+import com.zimbra.cs.redolog.op.StoreIncomingBlob;
+import com.zimbra.cs.store.StoreManager;
 import junit.framework.Assert;
 import org.easymock.EasyMock;
 import org.junit.Before;
@@ -14,9 +30,11 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.Arrays;
+import java.util.Collections;
 
 public class FileLogReaderTest {
     private FileLogReader logReader;
@@ -108,6 +126,176 @@ public class FileLogReaderTest {
         Assert.assertNull("More ops in file.", logReader.getNextOp());
     }
 
+    @Test
+    public void readCompressedRecords() throws Exception {
+        LC.zimbra_redolog_compression.setDefault("true");
+        try {
+            logWriter = new FileLogWriter(EasyMock.createNiceMock(RedoLogManager.class), logfile, 0);
+            logWriter.open();
+            String name = Strings.repeat("compressible folder name ", 100);
+            RedoableOp op = EasyMock.createMockBuilder(RenameItem.class)
+                                .withConstructor(1, 257, MailItem.Type.FOLDER, name, 2)
+                                .addMockedMethod("getTransactionId")
+                                .createMock();
+            EasyMock.expect(op.getTransactionId()).andStubReturn(new TransactionId(7, 3));
+            EasyMock.replay(op);
+            logWriter.log(op, op.getInputStream(), true);
+            logWriter.close();
+            Assert.assertTrue("record should be compressed", logfile.length() < FileHeader.HEADER_LEN + name.length());
+
+            // ops under the minimum size are logged uncompressed
+            logWriter = new FileLogWriter(EasyMock.createNiceMock(RedoLogManager.class), logfile, 0);
+            writeOp(new TransactionId(8, 4));
+        } finally {
+            LC.zimbra_redolog_compression.setDefault("false");
+        }
+
+        logReader.open();
+        Assert.assertTrue(logReader.getHeader().hasFlag(FileHeader.FLAG_COMPRESSED_RECORDS));
+        RedoableOp op = logReader.getNextOp();
+        Assert.assertEquals(new TransactionId(7, 3), op.getTransactionId());
+        Assert.assertTrue(op.toString().contains("compressible folder name compressible"));
+        op = logReader.getNextOp();
+        Assert.assertEquals(new TransactionId(8, 4), op.getTransactionId());
+        Assert.assertNull("More ops in file.", logReader.getNextOp());
+        logReader.close();
+    }
+
+    private RedoableOp renameOp(TransactionId id) {
+        String name = Strings.repeat("compressible folder name ", 100);
+        RedoableOp op = EasyMock.createMockBuilder(RenameItem.class)
+                            .withConstructor(1, 257, MailItem.Type.FOLDER, name, 2)
+                            .addMockedMethod("getTransactionId")
+                            .createMock();
+        EasyMock.expect(op.getTransactionId()).andStubReturn(id);
+        EasyMock.replay(op);
+        return op;
+    }
+
+    private void logCompressed(RedoableOp... ops) throws Exception {
+        LC.zimbra_redolog_compression.setDefault("true");
+        try {
+            logWriter = new FileLogWriter(EasyMock.createNiceMock(RedoLogManager.class), logfile, 0);
+            logWriter.open();
+            for (RedoableOp op : ops) {
+                if (op.getTransactionId() == null) {
+                    op.start(System.currentTimeMillis());
+                }
+                logWriter.log(op, op.getInputStream(), true);
+            }
+            logWriter.close();
+        } finally {
+            LC.zimbra_redolog_compression.setDefault("false");
+        }
+    }
+
+    private File newDataFile(String name, byte[] data) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void assertData(byte[] expected, RedoableOp op) throws IOException {
+        Assert.assertTrue("data mismatch for " + op, Arrays.equals(expected, ByteUtil.getContent(op.getAdditionalDataStream(), -1)));
+    }
+
+    @Test
+    public void readCompressedOpData() throws Exception {
+        // below the disk streaming threshold, CreateMessage would read its data into memory anyway
+        Server server = Provisioning.getInstance().getLocalServer();
+        int threshold = server.getMailDiskStreamingThreshold();
+        server.setMailDiskStreamingThreshold(1);
+        StoreManager.loadSettings();
+        try {
+            byte[] body = ("Subject: test\r\n\r\n" + Strings.repeat("compressible message body\r\n", 100)).getBytes();
+            CreateMessage createMessage = new CreateMessage(1, "test@zimbra.com", System.currentTimeMillis(), false,
+                    "digest", body.length, 2, true, 0, null, null);
+            createMessage.setMessageBodyInfo(newDataFile("message", body));
+
+            byte[] blob = Strings.repeat("compressible blob ", 100).getBytes();
+            StoreIncomingBlob storeBlob = new StoreIncomingBlob("digest", blob.length, Collections.singletonList(1));
+            storeBlob.setBlobBodyInfo(newDataFile("blob", blob));
+
+            byte[] note = Strings.repeat("compressible attachment ", 100).getBytes();
+            ParsedContact pc = new ParsedContact(ImmutableMap.of("firstName", "Bob"), Collections.singletonList(
+                    new Contact.Attachment(note, "text/plain", "note", "note.txt")));
+            byte[] content = ByteUtil.getContent(pc.getContentStream(), -1);
+            CreateContact createContact = new CreateContact(1, 7, pc, null);
+            ModifyContact modifyContact = new ModifyContact(1, 257, pc);
+
+            logCompressed(createMessage, storeBlob, createContact, modifyContact);
+            Assert.assertTrue("records should be compressed", logfile.length() < body.length + blob.length + 2 * content.length);
+
+            // the data comes from the inflated record, not from an offset into the log file
+            logReader.open();
+            RedoableOp op = logReader.getNextOp();
+            Assert.assertTrue(op instanceof CreateMessage);
+            assertData(body, op);
+            op = logReader.getNextOp();
+            Assert.assertTrue(op instanceof StoreIncomingBlob);
+            assertData(blob, op);
+            op = logReader.getNextOp();
+            Assert.assertTrue(op instanceof CreateContact);
+            assertData(content, op);
+            op = logReader.getNextOp();
+            Assert.assertTrue(op instanceof ModifyContact);
+            assertData(content, op);
+            Assert.assertNull("More ops in file.", logReader.getNextOp());
+            logReader.close();
+        } finally {
+            server.setMailDiskStreamingThreshold(threshold);
+            StoreManager.loadSettings();
+        }
+    }
+
+    @Test
+    public void skipsCorruptCompressedRecord() throws Exception {
+        logCompressed(renameOp(new TransactionId(7, 3)), renameOp(new TransactionId(8, 4)));
+        long third = logfile.length();
+        logCompressed(renameOp(new TransactionId(9, 5)));
+        logWriter = new FileLogWriter(EasyMock.createNiceMock(RedoLogManager.class), logfile, 0);
+        writeOp(new TransactionId(10, 6));
+
+        // damage the deflated data of the first record, leaving its envelope intact
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        raf.seek(FileHeader.HEADER_LEN + CompressedRecord.ENVELOPE_LEN + 4);
+        byte[] junk = new byte[16];
+        Arrays.fill(junk, (byte) 0xff);
+        raf.write(junk);
+        raf.close();
+
+        logReader.open();
+        RedoableOp op = logReader.getNextOp();
+        Assert.assertEquals("resume at the next compressed record", new TransactionId(8, 4), op.getTransactionId());
+        op = logReader.getNextOp();
+        Assert.assertEquals(third, logReader.getLastOpStartOffset());
+        Assert.assertEquals(new TransactionId(9, 5), op.getTransactionId());
+        op = logReader.getNextOp();
+        Assert.assertEquals(new TransactionId(10, 6), op.getTransactionId());
+        Assert.assertNull("More ops in file.", logReader.getNextOp());
+        logReader.close();
+    }
+
+    @Test
+    public void versionWithoutCompression() throws Exception {
+        writeOp(new TransactionId(7, 3));
+        logReader.open();
+        Assert.assertEquals("older servers must still read uncompressed logs",
+                            Version.uncompressed(), logReader.getHeader().getVersion());
+        logReader.close();
+
+        logCompressed(renameOp(new TransactionId(8, 4)));
+        logReader = new FileLogReader(logfile);
+        logReader.open();
+        Assert.assertEquals(Version.latest(), logReader.getHeader().getVersion());
+        logReader.close();
+    }
+
     @Test(expected = IOException.class)
     public void readBeforeOpen() throws Exception {
         logReader.getNextOp();
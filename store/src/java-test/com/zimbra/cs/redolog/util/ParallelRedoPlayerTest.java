@@ -0,0 +1,125 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxOperation;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.RedoLogOutput;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.StoreIncomingBlob;
+
+public class ParallelRedoPlayerTest {
+
+    private final List<String> played = Collections.synchronizedList(new ArrayList<String>());
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Test
+    public void mailboxOrder() throws Exception {
+        ParallelRedoPlayer player = new ParallelRedoPlayer(false, true, false, false, 4, 2, false);
+        for (int seq = 0; seq < 50; seq++) {
+            for (int mboxId = 1; mboxId <= 6; mboxId++) {
+                player.playOp(new TestOp(mboxId, Integer.toString(seq)));
+            }
+        }
+        player.shutdown();
+
+        Assert.assertEquals(300, played.size());
+        for (int mboxId = 1; mboxId <= 6; mboxId++) {
+            int expected = 0;
+            for (String entry : played) {
+                if (entry.startsWith(mboxId + ":")) {
+                    Assert.assertEquals(mboxId + ":" + expected++, entry);
+                }
+            }
+            Assert.assertEquals(50, expected);
+        }
+    }
+
+    @Test
+    public void barrier() throws Exception {
+        ParallelRedoPlayer player = new ParallelRedoPlayer(false, true, false, false, 3, 10, false);
+        for (int mboxId = 1; mboxId <= 3; mboxId++) {
+            player.playOp(new TestOp(mboxId, "before"));
+        }
+        player.playOp(new TestBlobOp(Arrays.asList(1, 2)));
+        for (int mboxId = 1; mboxId <= 3; mboxId++) {
+            player.playOp(new TestOp(mboxId, "after"));
+        }
+        player.shutdown();
+
+        Assert.assertEquals(7, played.size());
+        int barrier = played.indexOf("blob");
+        Assert.assertTrue(barrier > played.indexOf("1:before"));
+        Assert.assertTrue(barrier > played.indexOf("2:before"));
+        Assert.assertTrue(barrier < played.indexOf("1:after"));
+        Assert.assertTrue(barrier < played.indexOf("2:after"));
+    }
+
+    private class TestOp extends RedoableOp {
+        private final String name;
+
+        TestOp(int mboxId, String name) {
+            super(MailboxOperation.CopyItem, null);
+            setMailboxId(mboxId);
+            this.name = name;
+        }
+
+        @Override
+        public void redo() throws Exception {
+            played.add(getMailboxId() + ":" + name);
+        }
+
+        @Override
+        protected String getPrintableData() {
+            return name;
+        }
+
+        @Override
+        protected void serializeData(RedoLogOutput out) throws IOException {
+        }
+
+        @Override
+        protected void deserializeData(RedoLogInput in) throws IOException {
+        }
+    }
+
+    private class TestBlobOp extends StoreIncomingBlob {
+        TestBlobOp(List<Integer> mboxIds) {
+            super("digest", 0, mboxIds);
+        }
+
+        @Override
+        public void redo() throws Exception {
+            played.add("blob");
+        }
+    }
+}
@@ -17,15 +17,21 @@
 
 package com.zimbra.cs.store;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -37,6 +43,7 @@ import com.google.common.io.Files;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.zmime.ZSharedFileInputStream;
 
 public class FileDescriptorCacheTest {
 
@@ -122,6 +129,47 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void testBlockCompressed()
+    throws Exception {
+        FileCache<String> uc = FileCache.Builder.createWithStringKey(uncompressedDir, false).build();
+        FileDescriptorCache fdc = new FileDescriptorCache(uc);
+
+        byte[] content = new byte[10000];
+        Random random = new Random(42);
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + random.nextInt(4));
+        }
+        File file = File.createTempFile(NAME_PREFIX, ".tmp.gz");
+        tempFiles.add(file);
+        OutputStream out = new BlockGzipOutputStream(new FileOutputStream(file), 1024);
+        out.write(content);
+        out.close();
+
+        // still readable as plain gzip, the way servers without the block index read compressed blobs
+        assertTrue(FileUtil.isGzipped(file));
+        assertArrayEquals(content, ByteUtil.getContent(new GZIPInputStream(new FileInputStream(file)), -1));
+        assertArrayEquals(content, ByteUtil.getContent(new GZIPInputStream(new ZSharedFileInputStream(file)), -1));
+        assertEquals(content.length, ByteUtil.getDataLength(new GZIPInputStream(new FileInputStream(file))));
+        assertEquals(content.length, new Blob(file).getRawSize());
+
+        // range reads go straight to the containing block
+        byte[] buf = new byte[100];
+        int numRead = fdc.read(file.getPath(), content.length, 5000, buf, 0, buf.length);
+        assertEquals(100, numRead);
+        assertArrayEquals(Arrays.copyOfRange(content, 5000, 5100), buf);
+        numRead = fdc.read(file.getPath(), content.length, 2000, buf, 0, buf.length);
+        assertEquals(48, numRead); // stops at the end of the block
+        assertArrayEquals(Arrays.copyOfRange(content, 2000, 2048), Arrays.copyOf(buf, numRead));
+        assertFalse(uc.containsDigest(ByteUtil.getDigest(content)));
+
+        BlobInputStream.setFileDescriptorCache(fdc);
+        BlobInputStream in = new BlobInputStream(file, content.length);
+        InputStream range = in.newStream(9000, 10000);
+        assertArrayEquals(Arrays.copyOfRange(content, 9000, 10000), ByteUtil.getContent(range, -1));
+        assertArrayEquals(content, ByteUtil.getContent(in, -1));
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
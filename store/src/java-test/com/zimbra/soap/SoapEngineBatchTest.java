@@ -0,0 +1,291 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.account.Key;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.common.soap.ZimbraNamespace;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.ACL;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Mountpoint;
+import com.zimbra.cs.service.AuthProvider;
+import com.zimbra.cs.service.mail.GetFolder;
+
+/**
+ * Unit test for the BatchRequest handling of {@link SoapEngine}, in particular <tt>concurrency="parallel"</tt>.
+ */
+public final class SoapEngineBatchTest {
+
+    private static final Namespace NAMESPACE = Namespace.get("urn:zimbraTest");
+    private static final QName ECHO = QName.get("EchoRequest", NAMESPACE);
+    private static final QName UNSAFE = QName.get("UnsafeRequest", NAMESPACE);
+    private static final QName FAIL = QName.get("FailRequest", NAMESPACE);
+    private static final QName BLOCK = QName.get("BlockRequest", NAMESPACE);
+    private static final QName RELEASE = QName.get("ReleaseRequest", NAMESPACE);
+
+    private static CountDownLatch latch;
+
+    private SoapEngine engine;
+    private ZimbraSoapContext zsc;
+    private Map<String, Object> context;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+        Provisioning.getInstance().createAccount("test2@zimbra.com", "secret", attrs);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        latch = new CountDownLatch(1);
+        engine = new MockSoapEngine(new DocumentService() {
+            @Override
+            public void registerHandlers(DocumentDispatcher dispatcher) {
+                dispatcher.registerHandler(ECHO, new TestHandler(true));
+                dispatcher.registerHandler(UNSAFE, new TestHandler(false));
+                dispatcher.registerHandler(FAIL, new TestHandler(true));
+                dispatcher.registerHandler(BLOCK, new TestHandler(true));
+                dispatcher.registerHandler(RELEASE, new TestHandler(true));
+                dispatcher.registerHandler(MailConstants.GET_FOLDER_REQUEST, new GetFolder());
+            }
+        });
+        Account acct = Provisioning.getInstance().get(Key.AccountBy.name, "test@zimbra.com");
+        zsc = new ZimbraSoapContext(AuthProvider.getAuthToken(acct), acct.getId(), SoapProtocol.Soap12,
+                SoapProtocol.Soap12);
+        context = new HashMap<String, Object>();
+        context.put(SoapEngine.ZIMBRA_CONTEXT, zsc);
+        context.put(SoapEngine.ZIMBRA_ENGINE, engine);
+    }
+
+    private static Element batch(boolean parallel, boolean stopOnError) {
+        Element batch = new Element.XMLElement(ZimbraNamespace.E_BATCH_REQUEST);
+        if (parallel) {
+            batch.addAttribute(ZimbraNamespace.A_CONCURRENCY, ZimbraNamespace.CONCURRENCY_PARALLEL);
+        }
+        batch.addAttribute(ZimbraNamespace.A_ONERROR, stopOnError ? "stop" : "continue");
+        return batch;
+    }
+
+    private static void add(Element batch, QName qname, String id, long sleep) {
+        batch.addElement(qname).addAttribute(SoapEngine.A_REQUEST_CORRELATOR, id).addAttribute("sleep", sleep);
+    }
+
+    private List<Element> dispatch(Element batch) {
+        Element responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
+        engine.dispatchBatch(batch, responseBody, context, zsc, false, null);
+        return responseBody.listElements();
+    }
+
+    @Test
+    public void order() throws Exception {
+        Element batch = batch(true, true);
+        add(batch, ECHO, "0", 300);
+        add(batch, ECHO, "1", 100);
+        add(batch, ECHO, "2", 0);
+        List<Element> responses = dispatch(batch);
+
+        Assert.assertEquals(3, responses.size());
+        for (int i = 0; i < responses.size(); i++) {
+            Assert.assertEquals("EchoResponse", responses.get(i).getName());
+            Assert.assertEquals(String.valueOf(i), responses.get(i).getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+            Assert.assertFalse(Thread.currentThread().getName().equals(responses.get(i).getAttribute("thread")));
+        }
+    }
+
+    @Test
+    public void stopOnError() throws Exception {
+        Element batch = batch(true, true);
+        add(batch, ECHO, "0", 100);
+        add(batch, FAIL, "1", 0);
+        add(batch, ECHO, "2", 0);
+        List<Element> responses = dispatch(batch);
+
+        Assert.assertEquals(2, responses.size());
+        Assert.assertEquals("0", responses.get(0).getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+        Assert.assertTrue(zsc.getResponseProtocol().isFault(responses.get(1)));
+        Assert.assertEquals("1", responses.get(1).getAttribute(SoapEngine.A_REQUEST_CORRELATOR));
+    }
+
+    @Test
+    public void continueOnError() throws Exception {
+        Element batch = batch(true, false);
+        add(batch, FAIL, "0", 0);
+        add(batch, ECHO, "1", 0);
+        List<Element> responses = dispatch(batch);
+
+        Assert.assertEquals(2, responses.size());
+        Assert.assertTrue(zsc.getResponseProtocol().isFault(responses.get(0)));
+        Assert.assertEquals("EchoResponse", responses.get(1).getName());
+    }
+
+    @Test
+    public void serialFallback() throws Exception {
+        String caller = Thread.currentThread().getName();
+
+        // one sub-request that isn't parallel-safe keeps the whole batch on the calling thread
+        Element batch = batch(true, true);
+        add(batch, ECHO, "0", 0);
+        add(batch, UNSAFE, "1", 0);
+        add(batch, ECHO, "2", 0);
+        for (Element response : dispatch(batch)) {
+            Assert.assertEquals(caller, response.getAttribute("thread"));
+        }
+
+        // as does not asking for it
+        batch = batch(false, true);
+        add(batch, ECHO, "0", 0);
+        add(batch, ECHO, "1", 0);
+        for (Element response : dispatch(batch)) {
+            Assert.assertEquals(caller, response.getAttribute("thread"));
+        }
+    }
+
+    @Test
+    public void callerRuns() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.CallerRunsPolicy());
+        engine.setBatchExecutor(executor);
+        try {
+            // the first sub-request occupies the only thread until the second one, which can't be queued and so
+            // runs on the caller, releases it
+            Element batch = batch(true, true);
+            add(batch, BLOCK, "0", 0);
+            add(batch, RELEASE, "1", 0);
+            List<Element> responses = dispatch(batch);
+
+            Assert.assertEquals(2, responses.size());
+            Assert.assertEquals("BlockResponse", responses.get(0).getName());
+            Assert.assertFalse(zsc.getResponseProtocol().isFault(responses.get(0)));
+            Assert.assertEquals("ReleaseResponse", responses.get(1).getName());
+            Assert.assertEquals(Thread.currentThread().getName(), responses.get(1).getAttribute("thread"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void mountpoint() throws Exception {
+        Account acct = Provisioning.getInstance().get(Key.AccountBy.name, "test@zimbra.com");
+        Account acct2 = Provisioning.getInstance().get(Key.AccountBy.name, "test2@zimbra.com");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Mailbox mbox2 = MailboxManager.getInstance().getMailboxByAccount(acct2);
+
+        Folder.FolderOptions fopt = new Folder.FolderOptions().setDefaultView(MailItem.Type.DOCUMENT);
+        Folder shared = mbox2.createFolder(null, "shared", fopt);
+        mbox2.createFolder(null, "child", shared.getId(), fopt);
+        mbox2.grantAccess(null, shared.getId(), acct.getId(), ACL.GRANTEE_USER, ACL.RIGHT_READ, null);
+        Mountpoint mpt = mbox.createMountpoint(null, Mailbox.ID_FOLDER_USER_ROOT, "remote", acct2.getId(),
+                shared.getId(), shared.getUuid(), MailItem.Type.DOCUMENT, 0, (byte) 2, false);
+        String caller = Thread.currentThread().getName();
+
+        // a GetFolder on a local folder doesn't hold up the batch
+        Element batch = batch(true, true);
+        batch.addElement(MailConstants.GET_FOLDER_REQUEST).addElement(MailConstants.E_FOLDER)
+                .addAttribute(MailConstants.A_FOLDER, Mailbox.ID_FOLDER_INBOX);
+        add(batch, ECHO, "1", 0);
+        List<Element> responses = dispatch(batch);
+        Assert.assertEquals("GetFolderResponse", responses.get(0).getName());
+        Assert.assertFalse(caller.equals(responses.get(1).getAttribute("thread")));
+
+        // but one whose path crosses a mountpoint is proxied, so the batch runs on the calling thread
+        batch = batch(true, true);
+        batch.addElement(MailConstants.GET_FOLDER_REQUEST).addElement(MailConstants.E_FOLDER)
+                .addAttribute(MailConstants.A_PATH, "/remote/child");
+        add(batch, ECHO, "1", 0);
+        responses = dispatch(batch);
+        Assert.assertEquals(2, responses.size());
+        Assert.assertEquals("GetFolderResponse", responses.get(0).getName());
+        Assert.assertEquals("child", responses.get(0).getElement(MailConstants.E_FOLDER).getAttribute(MailConstants.A_NAME));
+        Assert.assertEquals(caller, responses.get(1).getAttribute("thread"));
+
+        // as does one on the mountpoint itself
+        batch = batch(true, true);
+        batch.addElement(MailConstants.GET_FOLDER_REQUEST).addElement(MailConstants.E_FOLDER)
+                .addAttribute(MailConstants.A_FOLDER, mpt.getId());
+        add(batch, ECHO, "1", 0);
+        responses = dispatch(batch);
+        Assert.assertEquals(MailConstants.E_MOUNT, responses.get(0).listElements().get(0).getName());
+        Assert.assertEquals(caller, responses.get(1).getAttribute("thread"));
+    }
+
+    private static final class TestHandler extends DocumentHandler {
+        private final boolean parallelSafe;
+
+        TestHandler(boolean parallelSafe) {
+            this.parallelSafe = parallelSafe;
+        }
+
+        @Override
+        public boolean needsAuth(Map<String, Object> context) {
+            return false;
+        }
+
+        @Override
+        public boolean isParallelBatchSafe(Element request, Map<String, Object> context) {
+            return parallelSafe;
+        }
+
+        @Override
+        public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+            QName qname = request.getQName();
+            try {
+                Thread.sleep(request.getAttributeLong("sleep", 0));
+                if (qname.equals(BLOCK) && !latch.await(10, TimeUnit.SECONDS)) {
+                    throw ServiceException.FAILURE("never released", null);
+                }
+            } catch (InterruptedException e) {
+                throw ServiceException.INTERRUPTED(qname.getName());
+            }
+            if (qname.equals(RELEASE)) {
+                latch.countDown();
+            } else if (qname.equals(FAIL)) {
+                throw ServiceException.FAILURE("test failure", null);
+            }
+            Element response = getResponseElement(getZimbraSoapContext(context));
+            response.addAttribute("thread", Thread.currentThread().getName());
+            return response;
+        }
+    }
+}
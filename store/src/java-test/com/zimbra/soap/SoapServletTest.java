@@ -0,0 +1,46 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.soap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link SoapServlet}.
+ */
+public final class SoapServletTest {
+
+    @Test
+    public void gzipAccepted() {
+        Assert.assertTrue(SoapServlet.isGzipAccepted("gzip"));
+        Assert.assertTrue(SoapServlet.isGzipAccepted("deflate, GZIP"));
+        Assert.assertTrue(SoapServlet.isGzipAccepted("x-gzip;q=0.5"));
+        Assert.assertTrue(SoapServlet.isGzipAccepted("gzip ; q=0.001, identity"));
+        Assert.assertTrue(SoapServlet.isGzipAccepted("*"));
+        Assert.assertTrue(SoapServlet.isGzipAccepted("identity, *;q=0.1"));
+
+        Assert.assertFalse(SoapServlet.isGzipAccepted(null));
+        Assert.assertFalse(SoapServlet.isGzipAccepted(""));
+        Assert.assertFalse(SoapServlet.isGzipAccepted("identity"));
+        Assert.assertFalse(SoapServlet.isGzipAccepted("gzip;q=0"));
+        Assert.assertFalse(SoapServlet.isGzipAccepted("gzip;q=0.000, deflate"));
+        Assert.assertFalse(SoapServlet.isGzipAccepted("gzip;q=0, *"));
+        Assert.assertFalse(SoapServlet.isGzipAccepted("*;q=0"));
+        Assert.assertFalse(SoapServlet.isGzipAccepted("gzip;q=junk"));
+        Assert.assertFalse(SoapServlet.isGzipAccepted("gzipx, compress"));
+    }
+}
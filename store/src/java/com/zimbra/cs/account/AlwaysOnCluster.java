@@ -50,6 +50,8 @@ public class AlwaysOnCluster extends ZAttrAlwaysOnCluster {
         } catch (ServiceException e) {
             ZimbraLog.account.warn("error while calculating server overrides", e);
         }
+        // servers in this cluster take serverOverrides as their override defaults
+        AttributeSnapshot.invalidateInherited(serverOverrides);
     }
 
     public Map<String, Object> getServerOverrides() {
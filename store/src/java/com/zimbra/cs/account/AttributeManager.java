@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -28,6 +29,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.dom4j.Attribute;
 import org.dom4j.Document;
@@ -37,6 +39,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.Sets;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.W3cDomUtil;
@@ -136,6 +139,16 @@ public class AttributeManager {
     private final Set<String> mEphemeralAttrsSet = new HashSet<String>(); // not lowercased
     private final Map<EntryType, Map<String, AttributeInfo>> mNonDynamicEphemeralAttrs = new HashMap<EntryType, Map<String, AttributeInfo>>(); // ephemeral attributes that can be retrieved as part of Entry.getAttrs()
 
+    // AttributeSnapshot support: dense ordinals for attrs that have AttributeInfo, keyed by every spelling
+    // looked up so far, and compiled inherited values shared by entries with the same defaults maps (least recently
+    // used combinations dropped first)
+    private static final int MAX_INHERITED_SNAPSHOTS = 1024;
+    private final Map<String, Integer> mOrdinals = new ConcurrentHashMap<String, Integer>();
+    private int mNextOrdinal = 0; // guarded by mOrdinals
+    private final Map<InheritedKey, AttributeSnapshot> mInheritedSnapshots =
+            new ConcurrentLinkedHashMap.Builder<InheritedKey, AttributeSnapshot>().maximumWeightedCapacity(
+                    MAX_INHERITED_SNAPSHOTS).build();
+
     /*
      * Notes on certificate attributes
      *
@@ -1371,6 +1384,84 @@ public class AttributeManager {
     }
 
 
+    /**
+     * Returns the dense ordinal of the named attribute for {@link AttributeSnapshot}, or -1 if the attribute
+     * isn't defined in the zimbra attrs files.
+     */
+    int getOrdinal(String name) {
+        Integer ordinal = mOrdinals.get(name);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        AttributeInfo info = getAttributeInfo(name);
+        if (info == null) {
+            return -1;
+        }
+        synchronized (mOrdinals) {
+            String canonical = info.getName().toLowerCase();
+            ordinal = mOrdinals.get(canonical);
+            if (ordinal == null) {
+                ordinal = mNextOrdinal++;
+                mOrdinals.put(canonical, ordinal);
+            }
+            mOrdinals.put(name, ordinal);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Compiles the values an entry with the given attribute maps resolves to.  The inherited part, i.e. the
+     * override/defaults/secondary defaults chain, is shared by every entry that has the same default maps,
+     * such as all accounts in one COS and domain.
+     */
+    AttributeSnapshot compileSnapshot(Map<String, Object> attrs, Map<String, Object> overrideDefaults,
+            Map<String, Object> defaults, Map<String, Object> secondaryDefaults) {
+        AttributeSnapshot inherited = null;
+        if (overrideDefaults != null || defaults != null || secondaryDefaults != null) {
+            InheritedKey key = new InheritedKey(overrideDefaults, defaults, secondaryDefaults);
+            inherited = mInheritedSnapshots.get(key);
+            if (inherited == null || !inherited.isCurrent()) {
+                List<Map<String, Object>> layers = new ArrayList<Map<String, Object>>(3);
+                layers.add(overrideDefaults);
+                layers.add(defaults);
+                layers.add(secondaryDefaults);
+                inherited = AttributeSnapshot.compile(this, layers, true, null);
+                mInheritedSnapshots.put(key, inherited);
+            }
+        }
+        return AttributeSnapshot.compile(this, Collections.singletonList(attrs), false, inherited);
+    }
+
+    /** Identity of an inherited defaults chain; default maps are owned and updated in place by their entries. */
+    private static final class InheritedKey {
+        private final Map<String, Object> overrideDefaults;
+        private final Map<String, Object> defaults;
+        private final Map<String, Object> secondaryDefaults;
+
+        InheritedKey(Map<String, Object> overrideDefaults, Map<String, Object> defaults,
+                Map<String, Object> secondaryDefaults) {
+            this.overrideDefaults = overrideDefaults;
+            this.defaults = defaults;
+            this.secondaryDefaults = secondaryDefaults;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof InheritedKey)) {
+                return false;
+            }
+            InheritedKey other = (InheritedKey) obj;
+            return overrideDefaults == other.overrideDefaults && defaults == other.defaults &&
+                    secondaryDefaults == other.secondaryDefaults;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(overrideDefaults) + System.identityHashCode(defaults)) +
+                    System.identityHashCode(secondaryDefaults);
+        }
+    }
+
     public AttributeInfo getAttributeInfo(String name) {
         if (name == null)
             return null;
@@ -0,0 +1,293 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.MapMaker;
+import com.zimbra.common.account.ProvisioningConstants;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.DateUtil;
+import com.zimbra.cs.util.MemoryUnitUtil;
+
+/**
+ * Immutable, compiled view of the attribute values an {@link Entry} resolves to.
+ * <p>
+ * Values are indexed by the ordinal {@link AttributeManager#getOrdinal(String)} hands out, and are pre-parsed
+ * according to the attribute's declared type, so the generated <tt>ZAttr*</tt> getters neither walk the
+ * attrs/override/defaults/secondary-defaults chain nor re-parse the same string on every call.  An entry's own
+ * attributes are compiled per entry; its inherited values (COS, domain, global config) are compiled once by
+ * {@link AttributeManager#compileSnapshot} and shared by every entry inheriting from the same maps.
+ * <p>
+ * Entries drop their snapshot whenever their attributes are replaced (see {@link Entry#resetData()}) or handed out
+ * for modification.  Default maps are filled in place when their owning COS, domain or config changes, so those
+ * entries call {@link #invalidateInherited(Map)}, and only the snapshots compiled from that map are rebuilt on next
+ * use.
+ */
+final class AttributeSnapshot {
+
+    /**
+     * Version of each default map an inherited snapshot has been compiled from, bumped whenever the map is changed in
+     * place.  Keys are weak and compared by identity, so maps of discarded entries don't linger.
+     */
+    private static final ConcurrentMap<Map<String, Object>, AtomicInteger> DEFAULTS_VERSIONS =
+            new MapMaker().weakKeys().makeMap();
+
+    /** Parsed {@link AttributeType#TYPE_DURATION} value, kept apart from <tt>Long</tt> so getLongAttr() can't mix them up. */
+    private static final class Millis {
+        final long value;
+
+        Millis(long value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicInteger[] sources; // versions of the default maps compiled, if any
+    private final int[] sourceVersions;
+    private final int[] ordinals; // sorted
+    private final String[] values;
+    private final Object[] typed;
+    private final AttributeSnapshot inherited;
+
+    private AttributeSnapshot(AtomicInteger[] sources, int[] sourceVersions, int[] ordinals, String[] values,
+            Object[] typed, AttributeSnapshot inherited) {
+        this.sources = sources;
+        this.sourceVersions = sourceVersions;
+        this.ordinals = ordinals;
+        this.values = values;
+        this.typed = typed;
+        this.inherited = inherited;
+    }
+
+    static boolean isEnabled() {
+        return LC.ldap_entry_attr_snapshot_enabled.booleanValue();
+    }
+
+    /** Marks every snapshot compiled from {@code defaults} stale, after its owner refilled it in place. */
+    static void invalidateInherited(Map<String, Object> defaults) {
+        AtomicInteger version = DEFAULTS_VERSIONS.get(defaults);
+        if (version != null) {
+            version.incrementAndGet();
+        }
+    }
+
+    private static AtomicInteger getVersion(Map<String, Object> defaults) {
+        AtomicInteger version = DEFAULTS_VERSIONS.get(defaults);
+        if (version == null) {
+            AtomicInteger existing = DEFAULTS_VERSIONS.putIfAbsent(defaults, version = new AtomicInteger());
+            if (existing != null) {
+                version = existing;
+            }
+        }
+        return version;
+    }
+
+    /** Returns false once any default map this snapshot, or the one it inherits from, was compiled from changes. */
+    boolean isCurrent() {
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i].get() != sourceVersions[i]) {
+                return false;
+            }
+        }
+        return inherited == null || inherited.isCurrent();
+    }
+
+    /**
+     * Compiles {@code layers}, highest precedence first, on top of {@code inherited}.  As in
+     * {@link Entry#getAttr(String)}, the first layer holding an attribute wins even if its value is empty.
+     * {@code defaults} says whether the layers are default maps, whose in-place changes the snapshot has to notice.
+     */
+    static AttributeSnapshot compile(AttributeManager attrMgr, List<Map<String, Object>> layers, boolean defaults,
+            AttributeSnapshot inherited) {
+        // read the versions before the contents, so a change made while compiling leaves the snapshot stale
+        List<AtomicInteger> sources = new ArrayList<AtomicInteger>(defaults ? layers.size() : 0);
+        if (defaults) {
+            for (Map<String, Object> layer : layers) {
+                if (layer != null) {
+                    sources.add(getVersion(layer));
+                }
+            }
+        }
+        int[] sourceVersions = new int[sources.size()];
+        for (int i = 0; i < sourceVersions.length; i++) {
+            sourceVersions[i] = sources.get(i).get();
+        }
+
+        TreeMap<Integer, Object> resolved = new TreeMap<Integer, Object>();
+        Map<Integer, AttributeType> types = new HashMap<Integer, AttributeType>();
+        for (Map<String, Object> layer : layers) {
+            if (layer == null) {
+                continue;
+            }
+            for (Map.Entry<String, Object> entry : layer.entrySet()) {
+                int ordinal = attrMgr.getOrdinal(entry.getKey());
+                if (ordinal >= 0 && !resolved.containsKey(ordinal)) {
+                    resolved.put(ordinal, entry.getValue());
+                    types.put(ordinal, attrMgr.getAttributeInfo(entry.getKey()).getType());
+                }
+            }
+        }
+
+        int size = resolved.size();
+        int[] ordinals = new int[size];
+        String[] values = new String[size];
+        Object[] typed = new Object[size];
+        int i = 0;
+        for (Map.Entry<Integer, Object> entry : resolved.entrySet()) {
+            ordinals[i] = entry.getKey();
+            values[i] = toSingleValue(entry.getValue());
+            typed[i] = parse(types.get(entry.getKey()), values[i]);
+            i++;
+        }
+        return new AttributeSnapshot(sources.toArray(new AtomicInteger[sources.size()]), sourceVersions, ordinals,
+                values, typed, inherited);
+    }
+
+    /** Same conversion as {@link Entry#getAttr(String)} applies to a raw attribute value. */
+    private static String toSingleValue(Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof String[]) {
+            String[] a = (String[]) value;
+            return a.length > 0 ? a[0] : null;
+        } else {
+            return null;
+        }
+    }
+
+    private static Object parse(AttributeType type, String value) {
+        if (type == null || value == null) {
+            return null;
+        }
+        switch (type) {
+            case TYPE_BOOLEAN:
+                return Boolean.valueOf(ProvisioningConstants.TRUE.equals(value));
+            case TYPE_INTEGER:
+            case TYPE_PORT:
+                try {
+                    return Integer.valueOf(Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            case TYPE_LONG:
+                try {
+                    return Long.valueOf(parseLong(value));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            case TYPE_DURATION:
+                long millis = DateUtil.getTimeInterval(value, Long.MIN_VALUE);
+                return millis == Long.MIN_VALUE ? null : new Millis(millis);
+            default:
+                return null;
+        }
+    }
+
+    /** Parses a long the way {@link Entry#getLongAttr(String, long)} does, accepting memory units. */
+    static long parseLong(String value) throws NumberFormatException {
+        if (MemoryUnitUtil.isMemoryUnit(value)) {
+            return new MemoryUnitUtil(1024).convertToBytes(value);
+        }
+        return Long.parseLong(value);
+    }
+
+    /** Returns the snapshot in the inheritance chain that resolves {@code ordinal}, or null. */
+    private AttributeSnapshot owner(int ordinal) {
+        for (AttributeSnapshot snapshot = this; snapshot != null; snapshot = snapshot.inherited) {
+            if (Arrays.binarySearch(snapshot.ordinals, ordinal) >= 0) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    String getString(int ordinal) {
+        AttributeSnapshot owner = owner(ordinal);
+        return owner == null ? null : owner.values[Arrays.binarySearch(owner.ordinals, ordinal)];
+    }
+
+    /*
+     * Typed values are only cached for the attribute's declared type.  Any other getter, or a value that didn't
+     * parse, falls back to parsing the string exactly as the untyped Entry getters do.
+     */
+
+    boolean getBoolean(int ordinal, boolean defaultValue) {
+        AttributeSnapshot owner = owner(ordinal);
+        if (owner == null) {
+            return defaultValue;
+        }
+        int i = Arrays.binarySearch(owner.ordinals, ordinal);
+        if (owner.typed[i] instanceof Boolean) {
+            return (Boolean) owner.typed[i];
+        }
+        String v = owner.values[i];
+        return v == null ? defaultValue : ProvisioningConstants.TRUE.equals(v);
+    }
+
+    int getInt(int ordinal, int defaultValue) {
+        AttributeSnapshot owner = owner(ordinal);
+        if (owner == null) {
+            return defaultValue;
+        }
+        int i = Arrays.binarySearch(owner.ordinals, ordinal);
+        if (owner.typed[i] instanceof Integer) {
+            return (Integer) owner.typed[i];
+        }
+        String v = owner.values[i];
+        try {
+            return v == null ? defaultValue : Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    long getLong(int ordinal, long defaultValue) {
+        AttributeSnapshot owner = owner(ordinal);
+        if (owner == null) {
+            return defaultValue;
+        }
+        int i = Arrays.binarySearch(owner.ordinals, ordinal);
+        if (owner.typed[i] instanceof Long) {
+            return (Long) owner.typed[i];
+        }
+        String v = owner.values[i];
+        try {
+            return v == null ? defaultValue : parseLong(v);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    long getTimeInterval(int ordinal, long defaultValue) {
+        AttributeSnapshot owner = owner(ordinal);
+        if (owner == null) {
+            return defaultValue;
+        }
+        int i = Arrays.binarySearch(owner.ordinals, ordinal);
+        if (owner.typed[i] instanceof Millis) {
+            return ((Millis) owner.typed[i]).value;
+        }
+        return DateUtil.getTimeInterval(owner.values[i], defaultValue);
+    }
+}
@@ -65,6 +65,9 @@ public class Config extends ZAttrConfig {
         } catch (ServiceException e) {
             // TODO log?
         }
+        // domains and servers inherit from the maps just refilled in place
+        AttributeSnapshot.invalidateInherited(mDomainDefaults);
+        AttributeSnapshot.invalidateInherited(mServerDefaults);
     }
     
     @SuppressWarnings("unchecked")
@@ -70,6 +70,8 @@ public class Cos extends ZAttrCos {
         } catch (ServiceException e) {
             // TODO log
         }
+        // accounts inherit from mAccountDefaults, which was just refilled in place
+        AttributeSnapshot.invalidateInherited(mAccountDefaults);
     }
 
     public Map<String, Object> getAccountDefaults() {
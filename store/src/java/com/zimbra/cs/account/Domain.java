@@ -106,6 +106,8 @@ public class Domain extends ZAttrDomain {
         } catch (ServiceException e) {
             // TODO log
         }
+        // accounts inherit from mAccountDefaults, which was just refilled in place
+        AttributeSnapshot.invalidateInherited(mAccountDefaults);
     }
     
     public Map<String, Object> getAccountDefaults() {
@@ -57,7 +57,6 @@ import com.zimbra.cs.ephemeral.EphemeralStore.FailureMode;
 import com.zimbra.cs.ephemeral.LdapEntryLocation;
 import com.zimbra.cs.ephemeral.LdapEphemeralStore;
 import com.zimbra.cs.ldap.LdapDateUtil;
-import com.zimbra.cs.util.MemoryUnitUtil;
 
 public abstract class Entry implements ToZJSONObject {
 
@@ -99,6 +98,7 @@ public abstract class Entry implements ToZJSONObject {
     private Locale mLocale;
     private final Provisioning mProvisioning;
     private AttributeManager mAttrMgr;
+    private volatile AttributeSnapshot mSnapshot;
 
     protected static String[] sEmptyMulti = new String[0];
     protected static List<byte[]> sEmptyListMulti = new ArrayList<byte[]>();
@@ -198,6 +198,33 @@ public abstract class Entry implements ToZJSONObject {
         if (mData != null)
             mData.clear();
         mLocale = null;
+        mSnapshot = null;
+    }
+
+    /**
+     * Returns the ordinal to read {@code name} from {@link #getSnapshot()} with, or -1 if the value has to be
+     * looked up in the attribute maps (or the ephemeral store).
+     */
+    private int getSnapshotOrdinal(String name, boolean skipEphemeralCheck) {
+        AttributeManager attrMgr = getAttributeManager();
+        if (attrMgr == null || !AttributeSnapshot.isEnabled() ||
+                (!skipEphemeralCheck && attrMgr.isEphemeral(name))) {
+            return -1;
+        }
+        return attrMgr.getOrdinal(name);
+    }
+
+    /** Returns the compiled, defaults-applied view of this entry's attributes, rebuilding it if stale. */
+    private AttributeSnapshot getSnapshot() {
+        AttributeSnapshot snapshot = mSnapshot;
+        if (snapshot != null && snapshot.isCurrent()) {
+            return snapshot;
+        }
+        synchronized (this) {
+            snapshot = getAttributeManager().compileSnapshot(mAttrs, overrideDefaults, mDefaults, mSecondaryDefaults);
+            mSnapshot = snapshot;
+            return snapshot;
+        }
     }
 
     /**
@@ -329,11 +356,17 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected String getAttr(String name, String defaultValue, boolean skipEphemeralCheck) {
+        int ordinal = getSnapshotOrdinal(name, skipEphemeralCheck);
+        if (ordinal >= 0) {
+            String v = getSnapshot().getString(ordinal);
+            return v == null ? defaultValue : v;
+        }
         String v = getAttr(name, true, skipEphemeralCheck);
         return v == null ? defaultValue : v;
     }
 
     protected Map<String, Object> getRawAttrs() {
+        mSnapshot = null; // the caller may modify the map
         return mAttrs;
     }
 
@@ -378,6 +411,7 @@ public abstract class Entry implements ToZJSONObject {
             attrs.putAll(mAttrs);
             return attrs;
         } else {
+            mSnapshot = null; // the caller may modify the map
             return mAttrs;
         }
     }
@@ -446,6 +480,10 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected boolean getBooleanAttr(String name, boolean defaultValue, boolean skipEphemeralCheck) {
+        int ordinal = getSnapshotOrdinal(name, skipEphemeralCheck);
+        if (ordinal >= 0) {
+            return getSnapshot().getBoolean(ordinal, defaultValue);
+        }
         String v = getAttr(name, true, skipEphemeralCheck);
         return v == null ? defaultValue : ProvisioningConstants.TRUE.equals(v);
     }
@@ -488,6 +526,10 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected int getIntAttr(String name, int defaultValue, boolean skipEphemeralCheck) {
+        int ordinal = getSnapshotOrdinal(name, skipEphemeralCheck);
+        if (ordinal >= 0) {
+            return getSnapshot().getInt(ordinal, defaultValue);
+        }
         String v = getAttr(name, true, skipEphemeralCheck);
         try {
             return v == null ? defaultValue : Integer.parseInt(v);
@@ -523,12 +565,13 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected long getLongAttr(String name, long defaultValue, boolean skipEphemeralCheck) {
+        int ordinal = getSnapshotOrdinal(name, skipEphemeralCheck);
+        if (ordinal >= 0) {
+            return getSnapshot().getLong(ordinal, defaultValue);
+        }
         String v = getAttr(name, true, skipEphemeralCheck);
         try {
-            if (MemoryUnitUtil.isMemoryUnit(v))
-                return new MemoryUnitUtil(1024).convertToBytes(v);
-            else
-                return v == null ? defaultValue : Long.parseLong(v);
+            return v == null ? defaultValue : AttributeSnapshot.parseLong(v);
         } catch (NumberFormatException e) {
             return defaultValue;
         }
@@ -684,6 +727,10 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected long getTimeInterval(String name, long defaultValue, boolean skipEphemeralCheck) {
+        int ordinal = getSnapshotOrdinal(name, skipEphemeralCheck);
+        if (ordinal >= 0) {
+            return getSnapshot().getTimeInterval(ordinal, defaultValue);
+        }
         String v = getAttr(name, true, skipEphemeralCheck);
         return DateUtil.getTimeInterval(v, defaultValue);
     }
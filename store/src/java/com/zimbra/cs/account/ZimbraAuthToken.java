@@ -20,6 +20,11 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -32,6 +37,7 @@ import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.cookie.CookiePolicy;
 
 import com.google.common.base.Objects;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.auth.ZAuthToken;
 import com.zimbra.common.localconfig.LC;
@@ -42,7 +48,6 @@ import com.zimbra.common.soap.Element;
 import com.zimbra.common.util.BlobMetaData;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
-import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.util.ZimbraCookie;
 import com.zimbra.cs.account.auth.AuthMechanism.AuthMech;
 import com.zimbra.cs.ephemeral.EphemeralInput;
@@ -79,7 +84,12 @@ public class ZimbraAuthToken extends AuthToken implements Cloneable {
     //mailbox server version where this account resides
     private static final String C_SERVER_VERSION = "version";
     private static final String C_CSRF = "csrf";
-    private static final Map<String, ZimbraAuthToken> CACHE = MapUtil.newLruMap(LC.zimbra_authtoken_cache_size.intValue());
+    private static final ConcurrentMap<String, ZimbraAuthToken> CACHE =
+            new ConcurrentLinkedHashMap.Builder<String, ZimbraAuthToken>()
+            .maximumWeightedCapacity(LC.zimbra_authtoken_cache_size.intValue()).build();
+    /** Decodes in progress, so that concurrent lookups of the same uncached token verify its HMAC only once. */
+    private static final ConcurrentMap<String, FutureTask<ZimbraAuthToken>> DECODING =
+            new ConcurrentHashMap<String, FutureTask<ZimbraAuthToken>>();
     private static final Log LOG = LogFactory.getLog(AuthToken.class);
 
     private String accountId;
@@ -126,20 +136,58 @@ public class ZimbraAuthToken extends AuthToken implements Cloneable {
      * Return an AuthToken object using an encoded authtoken. Caller should call isExpired on returned
      * authToken before using it.
      */
-    public synchronized static AuthToken getAuthToken(String encoded) throws AuthTokenException {
+    public static AuthToken getAuthToken(final String encoded) throws AuthTokenException {
         ZimbraAuthToken at = CACHE.get(encoded);
-        if (at == null) {
-            at = new ZimbraAuthToken(encoded);
-            if (!at.isExpired()) {
-                CACHE.put(encoded, at);
-            }
-        } else {
+        if (at != null) {
             // remove it if expired
             if (at.isExpired()) {
-                CACHE.remove(encoded);
+                CACHE.remove(encoded, at);
+            }
+            return at;
+        }
+
+        FutureTask<ZimbraAuthToken> task = new FutureTask<ZimbraAuthToken>(new Callable<ZimbraAuthToken>() {
+            @Override
+            public ZimbraAuthToken call() throws AuthTokenException {
+                ZimbraAuthToken decoded = new ZimbraAuthToken(encoded);
+                if (!decoded.isExpired()) {
+                    CACHE.put(encoded, decoded);
+                }
+                return decoded;
+            }
+        });
+        FutureTask<ZimbraAuthToken> inflight = DECODING.putIfAbsent(encoded, task);
+        if (inflight == null) {
+            inflight = task;
+            try {
+                task.run();
+            } finally {
+                DECODING.remove(encoded, task);
             }
         }
-        return at;
+        try {
+            return inflight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AuthTokenException) {
+                throw (AuthTokenException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AuthTokenException("unable to decode authtoken", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthTokenException("interrupted while decoding authtoken", e);
+        }
+    }
+
+    /** Drops this token's current encoding from the token cache, e.g. before a change that re-encodes it. */
+    private void uncache() {
+        if (encoded != null) {
+            CACHE.remove(encoded);
+        }
     }
 
     protected ZimbraAuthToken() {
@@ -635,11 +683,7 @@ public class ZimbraAuthToken extends AuthToken implements Cloneable {
     @Override
     public void setCsrfTokenEnabled(boolean csrfEnabled) {
         if (csrfEnabled != csrfTokenEnabled) {
-            synchronized (ZimbraAuthToken.class) {
-                if (encoded != null) {
-                    CACHE.remove(encoded);
-                }
-            }
+            uncache();
             csrfTokenEnabled = csrfEnabled;
             // force re-encoding of the token
             encoded = null;
@@ -659,6 +703,7 @@ public class ZimbraAuthToken extends AuthToken implements Cloneable {
      * Cached encoded string is also reset as the due to change in TokenID.
      */
     public void resetTokenId() {
+         uncache();
          tokenID = new Random().nextInt(Integer.MAX_VALUE-1) + 1;
          encoded = null;
          this.register();
@@ -25,6 +25,7 @@ package com.zimbra.cs.account.cache;
 
 import java.util.Map;
 
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
@@ -40,9 +41,26 @@ public class AccountCache implements IAccountCache {
     private Counter mHitRate = new HitRateCounter();
 
     private long mRefreshTTL;
+    private final boolean mRefreshAhead;
+    private final EntryRefresher<Account> mRefresher = new EntryRefresher<Account>();
+    private final EntryRefresher.Listener<Account> mLoadListener = new EntryRefresher.Listener<Account>() {
+        @Override
+        public void loaded(Account stale, Account fresh, long loadStarted) {
+            synchronized (AccountCache.this) {
+                if (putSince(stale, loadStarted) || putSince(fresh, loadStarted)) {
+                    return; // someone else put a copy after this load started
+                }
+                if (stale != null) {
+                    remove(stale);
+                }
+                put(fresh);
+            }
+        }
+    };
 
     static class CacheEntry {
         long mLifetime;
+        final long mPutTime = System.nanoTime();
         Account mEntry;
         CacheEntry(Account entry, long expires) {
             mEntry = entry;
@@ -59,6 +77,15 @@ public class AccountCache implements IAccountCache {
  * @param refreshTTL
  */
     public AccountCache(int maxItems, long refreshTTL) {
+        this(maxItems, refreshTTL, false);
+    }
+
+    /**
+     * @param refreshAhead if true, loader-based lookups keep returning a stale account
+     *        while it is reloaded in the background, instead of blocking on the reload
+     */
+    public AccountCache(int maxItems, long refreshTTL, boolean refreshAhead) {
+        mRefreshAhead = refreshAhead;
         mNameCache = MapUtil.newLruMap(maxItems);
         mIdCache = MapUtil.newLruMap(maxItems);
         mAliasCache = MapUtil.newLruMap(maxItems); 
@@ -150,6 +177,63 @@ public class AccountCache implements IAccountCache {
         }
     }
     
+    @Override
+    public Account getById(String key, EntryLoader<Account> loader) throws ServiceException {
+        return get(key, mIdCache, null, "id:" + key, key, loader);
+    }
+
+    @Override
+    public Account getByName(String key, EntryLoader<Account> loader) throws ServiceException {
+        String lowerKey = key.toLowerCase();
+        return get(lowerKey, mNameCache, mAliasCache, "name:" + lowerKey, key, loader);
+    }
+
+    private Account get(String key, Map<String, CacheEntry> cache, Map<String, CacheEntry> altCache,
+            String flightKey, String loadKey, EntryLoader<Account> loader) throws ServiceException {
+        CacheEntry ce;
+        synchronized (this) {
+            ce = cache.get(key);
+            if (ce == null && altCache != null) {
+                ce = altCache.get(key);
+            }
+            if (ce != null && (mRefreshTTL == 0 || !ce.isStale())) {
+                mHitRate.increment(100);
+                return ce.mEntry;
+            } else if (ce != null && mRefreshAhead) {
+                mHitRate.increment(100);
+            } else {
+                if (ce != null) {
+                    remove(ce.mEntry);
+                }
+                mHitRate.increment(0);
+            }
+        }
+        if (ce != null && mRefreshAhead) {
+            mRefresher.refresh(flightKey, loadKey, loader, ce.mEntry, mLoadListener);
+            return ce.mEntry;
+        }
+        return mRefresher.load(flightKey, loadKey, loader, mLoadListener);
+    }
+
+    /** Returns true if the cached copy of the entry was put after the given {@link System#nanoTime()}. */
+    private boolean putSince(Account entry, long time) {
+        if (entry == null) {
+            return false;
+        }
+        CacheEntry ce = mIdCache.get(entry.getId());
+        return ce != null && ce.mPutTime - time > 0;
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return mRefresher.getRefreshCount();
+    }
+
+    @Override
+    public long getCollapsedLoadCount() {
+        return mRefresher.getCollapseCount();
+    }
+
     @Override
     public synchronized Account getByForeignPrincipal(String key) {
         return get(key, mForeignPrincipalCache);
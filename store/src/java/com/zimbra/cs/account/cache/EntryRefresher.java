@@ -0,0 +1,149 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.NamedEntry;
+
+/**
+ * Coordinates directory loads for an entry cache: concurrent misses for the same
+ * key are collapsed into one load, and stale entries can be reloaded in the
+ * background while callers keep being served the stale copy.
+ */
+class EntryRefresher<E extends NamedEntry> {
+
+    private static final ExecutorService REFRESH_EXECUTOR = new ThreadPoolExecutor(
+            LC.ldap_cache_refresh_threads.intValue(), LC.ldap_cache_refresh_threads.intValue(),
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("LdapCacheRefresh-%d").setDaemon(true).build());
+
+    /** Receives the result of a load so the owning cache can store it. */
+    interface Listener<E extends NamedEntry> {
+        /**
+         * @param loadStarted the {@link System#nanoTime()} at which the load started, so that
+         *        the cache can keep an entry that was put after it
+         */
+        void loaded(E stale, E fresh, long loadStarted);
+    }
+
+    private final ConcurrentMap<String, FutureTask<E>> inflight = new ConcurrentHashMap<String, FutureTask<E>>();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong collapseCount = new AtomicLong();
+
+    /**
+     * Loads the entry on the calling thread, or waits for a load of the same key
+     * that is already in progress.
+     */
+    E load(String flightKey, String key, EntryLoader<E> loader, Listener<E> listener) throws ServiceException {
+        FutureTask<E> task = newTask(key, loader, null, listener);
+        FutureTask<E> running = inflight.putIfAbsent(flightKey, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inflight.remove(flightKey, task);
+            }
+        } else {
+            collapseCount.incrementAndGet();
+        }
+        return await(running);
+    }
+
+    /**
+     * Schedules a background reload of a stale entry unless one is already running.
+     */
+    void refresh(String flightKey, String key, EntryLoader<E> loader, E stale, Listener<E> listener) {
+        final FutureTask<E> task = newTask(key, loader, stale, listener);
+        if (inflight.putIfAbsent(flightKey, task) != null) {
+            collapseCount.incrementAndGet();
+            return;
+        }
+        refreshCount.incrementAndGet();
+        final String fk = flightKey;
+        try {
+            REFRESH_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        inflight.remove(fk, task);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inflight.remove(flightKey, task);
+            ZimbraLog.account.warn("unable to schedule cache refresh for %s", key, e);
+        }
+    }
+
+    long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    long getCollapseCount() {
+        return collapseCount.get();
+    }
+
+    private FutureTask<E> newTask(final String key, final EntryLoader<E> loader, final E stale,
+            final Listener<E> listener) {
+        return new FutureTask<E>(new Callable<E>() {
+            @Override
+            public E call() throws ServiceException {
+                long started = System.nanoTime();
+                E fresh = loader.load(key);
+                listener.loaded(stale, fresh, started);
+                return fresh;
+            }
+        });
+    }
+
+    private E await(FutureTask<E> task) throws ServiceException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ServiceException.FAILURE("unable to load entry", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.FAILURE("interrupted while loading entry", e);
+        }
+    }
+}
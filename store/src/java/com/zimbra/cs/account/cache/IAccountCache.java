@@ -16,6 +16,7 @@
  */
 package com.zimbra.cs.account.cache;
 
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Account;
 
 public interface IAccountCache extends IEntryCache {
@@ -26,4 +27,16 @@ public interface IAccountCache extends IEntryCache {
     public Account getById(String key);
     public Account getByName(String key);
     public Account getByForeignPrincipal(String key);
+
+    /**
+     * Returns the cached account, loading it through the given loader on a miss.  Concurrent
+     * misses for the same key share a single load.
+     */
+    public Account getById(String key, EntryLoader<Account> loader) throws ServiceException;
+    public Account getByName(String key, EntryLoader<Account> loader) throws ServiceException;
+
+    /** Number of background refreshes of stale accounts started by this cache. */
+    public long getRefreshCount();
+    /** Number of loads avoided because a load of the same key was already in progress. */
+    public long getCollapsedLoadCount();
 }
@@ -18,6 +18,7 @@ package com.zimbra.cs.account.cache;
 
 import java.util.List;
 
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.NamedEntry;
 
 public interface INamedEntryCache<E extends NamedEntry> extends IEntryCache {
@@ -29,4 +30,16 @@ public interface INamedEntryCache<E extends NamedEntry> extends IEntryCache {
     public void put(List<E> entries, boolean clear);
     public E getById(String key);
     public E getByName(String key);
+
+    /**
+     * Returns the cached entry, loading it through the given loader on a miss.  Concurrent
+     * misses for the same key share a single load.
+     */
+    public E getById(String key, EntryLoader<E> loader) throws ServiceException;
+    public E getByName(String key, EntryLoader<E> loader) throws ServiceException;
+
+    /** Number of background refreshes of stale entries started by this cache. */
+    public long getRefreshCount();
+    /** Number of loads avoided because a load of the same key was already in progress. */
+    public long getCollapsedLoadCount();
 }
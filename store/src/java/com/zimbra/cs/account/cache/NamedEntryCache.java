@@ -26,6 +26,7 @@ package com.zimbra.cs.account.cache;
 import java.util.List;
 import java.util.Map;
 
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
@@ -41,10 +42,26 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
     
     private long mRefreshTTL;
     private Counter mHitRate = new HitRateCounter();
-   
+    private final boolean mRefreshAhead;
+    private final EntryRefresher<E> mRefresher = new EntryRefresher<E>();
+    private final EntryRefresher.Listener<E> mLoadListener = new EntryRefresher.Listener<E>() {
+        @Override
+        public void loaded(E stale, E fresh, long loadStarted) {
+            synchronized (NamedEntryCache.this) {
+                if (putSince(stale, loadStarted) || putSince(fresh, loadStarted)) {
+                    return; // someone else put a copy after this load started
+                }
+                if (stale != null) {
+                    remove(stale);
+                }
+                put(fresh);
+            }
+        }
+    };
 
     static class CacheEntry<E extends NamedEntry> {
         long mLifetime;
+        final long mPutTime = System.nanoTime();
         E mEntry;
         CacheEntry(E entry, long expires) {
             mEntry = entry;
@@ -61,9 +78,18 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
  * @param refreshTTL
  */
     public NamedEntryCache(int maxItems, long refreshTTL) {
+        this(maxItems, refreshTTL, false);
+    }
+
+    /**
+     * @param refreshAhead if true, loader-based lookups keep returning a stale entry
+     *        while it is reloaded in the background, instead of blocking on the reload
+     */
+    public NamedEntryCache(int maxItems, long refreshTTL, boolean refreshAhead) {
         mNameCache = MapUtil.newLruMap(maxItems);
         mIdCache = MapUtil.newLruMap(maxItems);
         mRefreshTTL = refreshTTL;
+        mRefreshAhead = refreshAhead;
     }
 
     @Override
@@ -138,6 +164,62 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
         return get(key.toLowerCase(), mNameCache);
     }
     
+    @Override
+    public E getById(String key, EntryLoader<E> loader) throws ServiceException {
+        return get(key, mIdCache, "id:" + key, key, loader);
+    }
+
+    @Override
+    public E getByName(String key, EntryLoader<E> loader) throws ServiceException {
+        String lowerKey = key.toLowerCase();
+        return get(lowerKey, mNameCache, "name:" + lowerKey, key, loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E get(String key, Map cache, String flightKey, String loadKey, EntryLoader<E> loader)
+    throws ServiceException {
+        CacheEntry<E> ce;
+        synchronized (this) {
+            ce = (CacheEntry<E>) cache.get(key);
+            if (ce != null && (mRefreshTTL == 0 || !ce.isStale())) {
+                mHitRate.increment(100);
+                return ce.mEntry;
+            } else if (ce != null && mRefreshAhead) {
+                mHitRate.increment(100);
+            } else {
+                if (ce != null) {
+                    remove(ce.mEntry);
+                }
+                mHitRate.increment(0);
+            }
+        }
+        if (ce != null && mRefreshAhead) {
+            mRefresher.refresh(flightKey, loadKey, loader, ce.mEntry, mLoadListener);
+            return ce.mEntry;
+        }
+        return mRefresher.load(flightKey, loadKey, loader, mLoadListener);
+    }
+
+    /** Returns true if the cached copy of the entry was put after the given {@link System#nanoTime()}. */
+    @SuppressWarnings("unchecked")
+    private boolean putSince(E entry, long time) {
+        if (entry == null) {
+            return false;
+        }
+        CacheEntry<E> ce = (CacheEntry<E>) mIdCache.get(entry.getId());
+        return ce != null && ce.mPutTime - time > 0;
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return mRefresher.getRefreshCount();
+    }
+
+    @Override
+    public long getCollapsedLoadCount() {
+        return mRefresher.getCollapseCount();
+    }
+
     @Override
     public synchronized int getSize() {
         return mIdCache.size();
@@ -37,6 +37,7 @@ import com.zimbra.cs.account.XMPPComponent;
 import com.zimbra.cs.account.cache.AccountCache;
 import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
+import com.zimbra.cs.account.cache.EntryLoader;
 import com.zimbra.cs.account.cache.IAccountCache;
 import com.zimbra.cs.account.cache.IDomainCache;
 import com.zimbra.cs.account.cache.IMimeTypeCache;
@@ -72,12 +73,14 @@ abstract class LdapCache {
         private final IAccountCache accountCache =
             new AccountCache(
                     LC.ldap_cache_account_maxsize.intValue(),
-                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_account_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    LC.ldap_cache_refresh_ahead.booleanValue());
 
         private final INamedEntryCache<LdapCos> cosCache =
             new NamedEntryCache<LdapCos>(
                     LC.ldap_cache_cos_maxsize.intValue(),
-                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_cos_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    LC.ldap_cache_refresh_ahead.booleanValue());
 
         private final INamedEntryCache<ShareLocator> shareLocatorCache =
                 new NamedEntryCache<ShareLocator>(
@@ -96,7 +99,8 @@ abstract class LdapCache {
         private final INamedEntryCache<Server> serverCache =
             new NamedEntryCache<Server>(
                     LC.ldap_cache_server_maxsize.intValue(),
-                    LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE);
+                    LC.ldap_cache_server_maxage.intValue() * Constants.MILLIS_PER_MINUTE,
+                    LC.ldap_cache_refresh_ahead.booleanValue());
 
         private final INamedEntryCache<UCService> ucServiceCache =
             new NamedEntryCache<UCService>(
@@ -223,6 +227,22 @@ abstract class LdapCache {
             @Override
             public Account getByForeignPrincipal(String key) { return null; }
 
+            @Override
+            public Account getById(String key, EntryLoader<Account> loader) throws ServiceException {
+                return loader.load(key);
+            }
+
+            @Override
+            public Account getByName(String key, EntryLoader<Account> loader) throws ServiceException {
+                return loader.load(key);
+            }
+
+            @Override
+            public long getRefreshCount() { return 0; }
+
+            @Override
+            public long getCollapsedLoadCount() { return 0; }
+
             @Override
             public int getSize() { return 0; }
 
@@ -281,6 +301,22 @@ abstract class LdapCache {
             @Override
             public E getByName(String key) { return null; }
 
+            @Override
+            public E getById(String key, EntryLoader<E> loader) throws ServiceException {
+                return loader.load(key);
+            }
+
+            @Override
+            public E getByName(String key, EntryLoader<E> loader) throws ServiceException {
+                return loader.load(key);
+            }
+
+            @Override
+            public long getRefreshCount() { return 0; }
+
+            @Override
+            public long getCollapsedLoadCount() { return 0; }
+
             @Override
             public double getHitRate() { return 0; }
 
@@ -75,12 +75,18 @@ public abstract class LdapProv extends Provisioning {
 
     public abstract int getAccountCacheSize();
     public abstract double getAccountCacheHitRate();
+    public abstract long getAccountCacheRefreshCount();
+    public abstract long getAccountCacheCollapsedLoadCount();
     public abstract int getCosCacheSize();
     public abstract double getCosCacheHitRate();
+    public abstract long getCosCacheRefreshCount();
+    public abstract long getCosCacheCollapsedLoadCount();
     public abstract int getDomainCacheSize();
     public abstract double getDomainCacheHitRate();
     public abstract int getServerCacheSize();
     public abstract double getServerCacheHitRate();
+    public abstract long getServerCacheRefreshCount();
+    public abstract long getServerCacheCollapsedLoadCount();
     public abstract int getUCServiceCacheSize();
     public abstract double getUCServiceCacheHitRate();
     public abstract int getZimletCacheSize();
@@ -122,6 +122,7 @@ import com.zimbra.cs.account.auth.AuthMechanism.AuthMech;
 import com.zimbra.cs.account.auth.PasswordUtil;
 import com.zimbra.cs.account.cache.DomainCache;
 import com.zimbra.cs.account.cache.DomainCache.GetFromDomainCacheOption;
+import com.zimbra.cs.account.cache.EntryLoader;
 import com.zimbra.cs.account.cache.IAccountCache;
 import com.zimbra.cs.account.cache.IDomainCache;
 import com.zimbra.cs.account.cache.IMimeTypeCache;
@@ -327,9 +328,21 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     @Override
     public double getAccountCacheHitRate() { return accountCache.getHitRate(); }
 
+    @Override
+    public long getAccountCacheRefreshCount() { return accountCache.getRefreshCount(); }
+
+    @Override
+    public long getAccountCacheCollapsedLoadCount() { return accountCache.getCollapsedLoadCount(); }
+
     @Override
     public int getCosCacheSize() { return cosCache.getSize(); }
 
+    @Override
+    public long getCosCacheRefreshCount() { return cosCache.getRefreshCount(); }
+
+    @Override
+    public long getCosCacheCollapsedLoadCount() { return cosCache.getCollapsedLoadCount(); }
+
     @Override
     public double getCosCacheHitRate() { return cosCache.getHitRate(); }
 
@@ -345,6 +358,12 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     @Override
     public double getServerCacheHitRate() { return serverCache.getHitRate(); }
 
+    @Override
+    public long getServerCacheRefreshCount() { return serverCache.getRefreshCount(); }
+
+    @Override
+    public long getServerCacheCollapsedLoadCount() { return serverCache.getCollapsedLoadCount(); }
+
     @Override
     public int getUCServiceCacheSize() { return ucServiceCache.getSize(); }
 
@@ -939,21 +958,38 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     throws ServiceException {
         if (zimbraId == null)
             return null;
+        if (zlc == null && !loadFromMaster) {
+            // no caller context to honor, so let the cache collapse concurrent loads of this id;
+            //   master loads follow a write, so they never share a replica load or get a stale copy
+            return accountCache.getById(zimbraId, accountByIdLoader);
+        }
         Account a = accountCache.getById(zimbraId);
         if (a == null) {
-            ZLdapFilter filter = filterFactory.accountById(zimbraId);
+            a = loadAccountById(zimbraId, zlc, loadFromMaster);
+            accountCache.put(a);
+        }
+        return a;
+    }
 
-            a = getAccountByQuery(mDIT.mailBranchBaseDN(), filter, zlc, loadFromMaster);
+    private Account loadAccountById(String zimbraId, ZLdapContext zlc, boolean loadFromMaster)
+    throws ServiceException {
+        ZLdapFilter filter = filterFactory.accountById(zimbraId);
 
-            // search again under the admin base if not found and admin base is not under mail base
-            if (a == null && !mDIT.isUnder(mDIT.mailBranchBaseDN(), mDIT.adminBaseDN()))
-                a = getAccountByQuery(mDIT.adminBaseDN(), filter, zlc, loadFromMaster);
+        Account a = getAccountByQuery(mDIT.mailBranchBaseDN(), filter, zlc, loadFromMaster);
 
-            accountCache.put(a);
-        }
+        // search again under the admin base if not found and admin base is not under mail base
+        if (a == null && !mDIT.isUnder(mDIT.mailBranchBaseDN(), mDIT.adminBaseDN()))
+            a = getAccountByQuery(mDIT.adminBaseDN(), filter, zlc, loadFromMaster);
         return a;
     }
 
+    private final EntryLoader<Account> accountByIdLoader = new EntryLoader<Account>() {
+        @Override
+        public Account load(String zimbraId) throws ServiceException {
+            return loadAccountById(zimbraId, null, false);
+        }
+    };
+
     public String getDNforAccount(Account acct, ZLdapContext zlc, boolean loadFromMaster) {
         if (acct == null) {
             return null;
@@ -3174,6 +3210,9 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         if (zimbraId == null)
             return null;
 
+        if (zlc == null) {
+            return cosCache.getById(zimbraId, cosByIdLoader);
+        }
         LdapCos cos = cosCache.getById(zimbraId);
         if (cos == null) {
             cos = getCOSByQuery(filterFactory.cosById(zimbraId), zlc);
@@ -3182,6 +3221,13 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         return cos;
     }
 
+    private final EntryLoader<LdapCos> cosByIdLoader = new EntryLoader<LdapCos>() {
+        @Override
+        public LdapCos load(String zimbraId) throws ServiceException {
+            return getCOSByQuery(filterFactory.cosById(zimbraId), null);
+        }
+    };
+
     @Override
     public Cos get(Key.CosBy keyType, String key) throws ServiceException {
         switch(keyType) {
@@ -3206,17 +3252,31 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     }
 
     private Cos getCosByName(String name, ZLdapContext initZlc) throws ServiceException {
+        if (initZlc == null) {
+            return cosCache.getByName(name, cosByNameLoader);
+        }
         LdapCos cos = cosCache.getByName(name);
         if (cos != null)
             return cos;
 
+        cos = loadCosByName(name, initZlc);
+        cosCache.put(cos);
+        return cos;
+    }
+
+    private final EntryLoader<LdapCos> cosByNameLoader = new EntryLoader<LdapCos>() {
+        @Override
+        public LdapCos load(String name) throws ServiceException {
+            return loadCosByName(name, null);
+        }
+    };
+
+    private LdapCos loadCosByName(String name, ZLdapContext initZlc) throws ServiceException {
         try {
             String dn = mDIT.cosNametoDN(name);
             ZAttributes attrs = helper.getAttributes(
                     initZlc, LdapServerType.REPLICA, LdapUsage.GET_COS, dn, null);
-            cos = new LdapCos(dn, attrs, this);
-            cosCache.put(cos);
-            return cos;
+            return new LdapCos(dn, attrs, this);
         } catch (LdapEntryNotFoundException e) {
             return null;
         } catch (ServiceException e) {
@@ -4054,6 +4114,9 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     throws ServiceException {
         if (zimbraId == null)
             return null;
+        if (!nocache && zlc == null) {
+            return serverCache.getById(zimbraId, serverByIdLoader);
+        }
         Server s = null;
         if (!nocache)
             s = serverCache.getById(zimbraId);
@@ -4064,6 +4127,13 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
         return s;
     }
 
+    private final EntryLoader<Server> serverByIdLoader = new EntryLoader<Server>() {
+        @Override
+        public Server load(String zimbraId) throws ServiceException {
+            return getServerByQuery(filterFactory.serverById(zimbraId), null);
+        }
+    };
+
     private AlwaysOnCluster getAlwaysOnClusterByQuery(ZLdapFilter filter, ZLdapContext initZlc)
     throws ServiceException {
         try {
@@ -4155,17 +4225,26 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
 
     private Server getServerByName(String name, boolean nocache) throws ServiceException {
         if (!nocache) {
-            Server s = serverCache.getByName(name);
-            if (s != null)
-                return s;
+            return serverCache.getByName(name, serverByNameLoader);
+        }
+
+        Server s = loadServerByName(name);
+        serverCache.put(s);
+        return s;
+    }
+
+    private final EntryLoader<Server> serverByNameLoader = new EntryLoader<Server>() {
+        @Override
+        public Server load(String name) throws ServiceException {
+            return loadServerByName(name);
         }
+    };
 
+    private Server loadServerByName(String name) throws ServiceException {
         try {
             String dn = mDIT.serverNameToDN(name);
             ZAttributes attrs = helper.getAttributes(LdapUsage.GET_SERVER, dn);
-            LdapServer s = new LdapServer(dn, attrs, getConfig().getServerDefaults(), this);
-            serverCache.put(s);
-            return s;
+            return new LdapServer(dn, attrs, getConfig().getServerDefaults(), this);
         } catch (LdapEntryNotFoundException e) {
             return null;
         } catch (ServiceException e) {
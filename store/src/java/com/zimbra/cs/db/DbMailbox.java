@@ -36,6 +36,7 @@ import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbPool.DbConnection;
@@ -865,6 +866,36 @@ public final class DbMailbox {
         }
     }
 
+    /**
+     * Returns the inputs of the purge scheduler's work estimate for every mailbox on this host.
+     *
+     * @param conn An open database connection.
+     * @return mailbox ID -> (size checkpoint in bytes, last purge time in milliseconds, 0 if never purged)
+     * @throws ServiceException
+     */
+    public static Map<Integer, Pair<Long, Long>> getPurgeStats(DbConnection conn) throws ServiceException {
+        Map<Integer, Pair<Long, Long>> result = new HashMap<Integer, Pair<Long, Long>>();
+        if (DebugConfig.externalMailboxDirectory || DebugConfig.disableMailboxGroups) {
+            return result;
+        }
+
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT id, size_checkpoint, last_purge_at FROM mailbox");
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                result.put(rs.getInt(1), new Pair<Long, Long>(rs.getLong(2), rs.getLong(3) * 1000));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("fetching mailbox purge stats", e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static final int CHANGE_CHECKPOINT_INCREMENT = Zimbra.isAlwaysOn() ? 1 : Math.max(1, LC.zimbra_mailbox_change_checkpoint_frequency.intValue());
     public static final int ITEM_CHECKPOINT_INCREMENT   = Zimbra.isAlwaysOn() ? 1 : 20;
 
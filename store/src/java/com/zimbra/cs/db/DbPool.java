@@ -527,6 +527,13 @@ public class DbPool {
         return sConnectionPool.getNumActive();
     }
 
+    /**
+     * Returns the maximum number of connections the pool hands out.
+     */
+    public static int getMaxSize() {
+        return sConnectionPool.getMaxActive();
+    }
+
     /**
      * This is only to be used by DbOfflineMigration to completely close connection to Derby.
      * Note that this doesn't permanently shutdown.  A new getPool() call will restart connections.
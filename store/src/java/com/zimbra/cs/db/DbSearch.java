@@ -173,8 +173,33 @@ public final class DbSearch {
         if (sort.getKey() == SortBy.Key.NONE) { // no ORDER BY for NONE
             return "";
         }
-        return " ORDER BY " + (alias ? SORT_COLUMN_ALIAS : toSortField(sort)) +
-            (sort.getDirection() == SortBy.Direction.DESC ? " DESC" : "");
+        String direction = sort.getDirection() == SortBy.Direction.DESC ? " DESC" : "";
+        String order = " ORDER BY " + (alias ? SORT_COLUMN_ALIAS : toSortField(sort)) + direction;
+        if (!isUniqueSortField(sort)) {
+            // break ties by item ID so that the order is total and a seek position is well defined
+            order += ", " + (alias ? "id" : "mi.id") + direction;
+        }
+        return order;
+    }
+
+    /**
+     * Returns true if the sort column never has duplicates, i.e. it either is the item ID or has the item ID appended.
+     */
+    private static boolean isUniqueSortField(SortBy sort) {
+        switch (sort.getKey()) {
+            case ID:
+            case SENDER:
+            case RCPT:
+            case SUBJECT:
+            case NAME:
+            case NAME_NATURAL_ORDER:
+            case ATTACHMENT:
+            case FLAG:
+            case PRIORITY:
+                return true;
+            default:
+                return false;
+        }
     }
 
     public int countResults(DbConnection conn, DbSearchConstraints node) throws ServiceException {
@@ -386,6 +411,9 @@ public final class DbSearch {
         if (constraint.cursorRange != null) {
             needAnd = needAnd | encodeCursorRange(constraint.cursorRange, needAnd);
         }
+        if (constraint.seek != null) {
+            needAnd = needAnd | encodeSeek(constraint.seek, needAnd);
+        }
 
         for (Map.Entry<DbSearchConstraints.RangeType, DbSearchConstraints.Range> entry : constraint.ranges.entries()) {
             switch (entry.getKey()) {
@@ -1138,6 +1166,51 @@ public final class DbSearch {
         return true;
     }
 
+    /**
+     * Encodes {@code (sort_col, id) > (?, ?)} (or {@code <} for descending sorts) so that the database seeks straight
+     * to the position instead of scanning and discarding an offset's worth of rows. Row value comparison isn't
+     * portable, so it is expanded into {@code sort_col > ? OR (sort_col = ? AND id > ?)}; sort columns that already
+     * embed the item ID only need the first term.
+     */
+    private boolean encodeSeek(DbSearchConstraints.Seek seek, boolean and) {
+        if (seek.sortBy.getKey() == SortBy.Key.NONE) { // no order, nothing to seek in
+            return false;
+        }
+        String op = seek.sortBy.getDirection() == SortBy.Direction.DESC ? " < ?" : " > ?";
+        if (and) {sql.append(" AND "); }
+        if (seek.sortBy.getKey() == SortBy.Key.ID) {
+            sql.append("mi.id").append(op);
+            params.add(seek.itemId);
+        } else if (isUniqueSortField(seek.sortBy)) {
+            // Can't use SORT_COLUMN_ALIAS because column aliases in SELECT are illegal to use in WHERE
+            String col = toSortField(seek.sortBy);
+            if (seek.sortBy.getDirection() == SortBy.Direction.DESC) { // a NULL column sorts last
+                sql.append("(").append(col).append(op).append(" OR ").append(col).append(" IS NULL)");
+            } else {
+                sql.append(col).append(op);
+            }
+            params.add(seek.sortValue.toString());
+        } else {
+            String col = toSortField(seek.sortBy);
+            Object value;
+            if (seek.sortBy.getKey() == SortBy.Key.SIZE) {
+                value = toLong(seek.sortValue);
+            } else { // mi.date is in seconds, the sort value in milliseconds
+                value = (int) Math.min(toLong(seek.sortValue) / 1000, Integer.MAX_VALUE);
+            }
+            sql.append("(").append(col).append(op).append(" OR (").append(col).append(" = ? AND mi.id").append(op)
+                .append("))");
+            params.add(value);
+            params.add(value);
+            params.add(seek.itemId);
+        }
+        return true;
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+    }
+
     private void setParameters(PreparedStatement stmt) throws SQLException {
         int pos = 0;
         for (Object param : params) {
@@ -16,12 +16,12 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Comparator;
 
@@ -90,18 +90,17 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
             return;
         }
         FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(fos = new FileOutputStream(pagefile));
+            byte[] data;
             synchronized (folder) {
-                oos.writeObject(folder);
+                data = ImapFolderCodec.encode(folder);
             }
+            fos = new FileOutputStream(pagefile);
+            fos.write(data);
         } catch (IOException e) {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
             pagefile.delete();
         } finally {
-            ByteUtil.closeStream(oos);
             ByteUtil.closeStream(fos);
         }
     }
@@ -112,20 +111,17 @@ final class DiskImapCache implements ImapSessionManager.Cache<String, ImapFolder
         if (!pagefile.exists()) {
             return null;
         }
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
+        InputStream is = null;
         try {
-            // read serialized ImapFolder from cache
-            ois = new ObjectInputStream(fis = new FileInputStream(pagefile));
-            return (ImapFolder) ois.readObject();
+            // read serialized ImapFolder from cache; files written by older versions are Java-serialized
+            is = new BufferedInputStream(new FileInputStream(pagefile));
+            return ImapFolderCodec.read(is);
         } catch (Exception e) {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
+            ByteUtil.closeStream(is);
             pagefile.delete();
             return null;
         } finally {
-            ByteUtil.closeStream(ois);
-            ByteUtil.closeStream(fis);
+            ByteUtil.closeStream(is);
         }
     }
 
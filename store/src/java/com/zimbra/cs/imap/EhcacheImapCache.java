@@ -33,7 +33,8 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.util.EhcacheManager;
 
 /**
- * IMAP cache using Ehcache's DiskStore.
+ * IMAP cache using Ehcache's DiskStore.  Folders are Java-serialized by Ehcache, which
+ * {@link ImapFolder} delegates to the compact {@link ImapFolderCodec} format.
  *
  * @author ysasaki
  */
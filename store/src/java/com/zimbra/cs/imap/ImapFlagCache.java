@@ -89,6 +89,14 @@ public class ImapFlagCache implements Iterable<ImapFlagCache.ImapFlag>, java.io.
             mListed = listed;
         }
 
+        /** Reconstitutes a flag from its cached form; see {@link ImapFolderCodec}. */
+        ImapFlag(String name, String imapName, int id, long bitmask, boolean positive, boolean permanent, boolean listed) {
+            mId   = id;         mBitmask   = bitmask;
+            mName = name;       mImapName  = imapName;
+            mPositive = positive;  mPermanent = permanent;
+            mListed = listed;
+        }
+
         ImapFlag(String name, FlagInfo flagInfo, boolean positive) {
             mId   = flagInfo.toId();      mBitmask   = flagInfo.toBitmask();
             mName = flagInfo.toString();  mImapName  = normalize(name, mId);
@@ -113,8 +121,11 @@ public class ImapFlagCache implements Iterable<ImapFlagCache.ImapFlag>, java.io.
         }
 
         boolean matches(ImapMessage i4msg) {
+            return matches(i4msg.flags, i4msg.sflags, i4msg.tags);
+        }
+
+        boolean matches(int flags, short sflags, String[] tags) {
             if (mId > 0) {
-                String[] tags = i4msg.tags;
                 if (!ArrayUtil.isEmpty(tags)) {
                     for (String tag : tags) {
                         if (mName.equals(tag)) {
@@ -124,7 +135,7 @@ public class ImapFlagCache implements Iterable<ImapFlagCache.ImapFlag>, java.io.
                 }
                 return false;
             } else {
-                long mask = mId == 0 ? i4msg.sflags : i4msg.flags;
+                long mask = mId == 0 ? sflags : flags;
                 return (mask & mBitmask) != 0;
             }
         }
@@ -23,17 +23,17 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.zimbra.common.mailbox.BaseFolderInfo;
 import com.zimbra.common.mailbox.BaseItemInfo;
 import com.zimbra.common.mailbox.FolderStore;
@@ -63,19 +63,33 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     private static final long serialVersionUID = 3845968507901145794L;
     public static final byte SELECT_READONLY  = 0x01;
     public static final byte SELECT_CONDSTORE = 0x02;
+    private static final int INITIAL_CAPACITY = 16;
 
     // attributes of the folder itself, irrespective of the session state
     private transient ImapMailboxStore mailboxStore;
     private transient ImapListener session;
     private transient ImapPath path;
     private transient SessionData sessionData;
-    private transient Map<Integer, ImapMessage> messageIds;
+    private transient Map<Integer, Integer> messageIds;
+
+    // the folder's messages in sequence order, one array per attribute: row i holds the message with
+    //   sequence number i + 1.  ImapMessage objects are only created on demand; see view(int).
+    private transient int size;
+    private transient int[] msgIds;
+    private transient int[] uids;
+    private transient int[] flagBits;
+    private transient short[] sessionFlags;
+    private transient String[][] tagSets;   // interned, see ImapMessage.internTags()
+    // the ImapMessage handed out for each row, by UID, for as long as anyone holds on to it, so that
+    //   a message is represented by the same object throughout (see DirtyMessage and ImapMessageSet)
+    private transient ConcurrentMap<Integer, ImapMessage> views;
 
     private final ItemIdentifier folderIdentifier;
     private final int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
+    // only set in folders read back from the default serialized form that predates ImapFolderCodec
+    private List<ImapMessage> sequence;
     private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
 
     // below this point are session-specific attributes of the folder SELECT state
@@ -122,12 +136,164 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         this.mailboxStore = ImapMailboxStore.get(folder.getMailboxStore());
         this.folderIdentifier = this.mailboxStore.getTargetItemIdentifier(folder);
         this.tags = new ImapFlagCache();
+        initMessages(INITIAL_CAPACITY);
+    }
+
+    /** Reconstitutes a cached ImapFolder without any session state; see {@link ImapFolderCodec}.
+     *  Messages are then appended in sequence order via {@link #restoreMessage}. */
+    ImapFolder(ItemIdentifier folderIdentifier, int uidValidity, String query, Set<MailItem.Type> typeConstraint,
+            ImapFlagCache tags) {
+        this.folderIdentifier = folderIdentifier;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.tags = tags;
+        initMessages(INITIAL_CAPACITY);
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        List<ImapMessage> legacy = sequence;
+        sequence = null;
+        initMessages(legacy == null ? INITIAL_CAPACITY : Math.max(legacy.size(), INITIAL_CAPACITY));
+        if (legacy != null) {
+            for (ImapMessage i4msg : legacy) {
+                restoreMessage(i4msg);
+            }
+        }
+    }
+
+    private void initMessages(int capacity) {
+        msgIds = new int[capacity];
+        uids = new int[capacity];
+        flagBits = new int[capacity];
+        sessionFlags = new short[capacity];
+        tagSets = new String[capacity][];
+        views = new MapMaker().weakValues().makeMap();
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        int capacity = uids.length;
+        if (minCapacity > capacity) {
+            capacity = Math.max(minCapacity, capacity + (capacity >> 1));
+            msgIds = Arrays.copyOf(msgIds, capacity);
+            uids = Arrays.copyOf(uids, capacity);
+            flagBits = Arrays.copyOf(flagBits, capacity);
+            sessionFlags = Arrays.copyOf(sessionFlags, capacity);
+            tagSets = Arrays.copyOf(tagSets, capacity);
+        }
+    }
+
+    private void setRow(int row, int msgId, int uid, int flags, short sflags, String[] tagset) {
+        msgIds[row] = msgId;
+        uids[row] = uid;
+        flagBits[row] = flags;
+        sessionFlags[row] = sflags;
+        tagSets[row] = tagset;
+    }
+
+    private void setRow(int row, ImapMessage i4msg) {
+        setRow(row, i4msg.msgId, i4msg.imapUid, i4msg.flags, i4msg.sflags, i4msg.tags);
+    }
+
+    private void moveRows(int from, int to, int count) {
+        System.arraycopy(msgIds, from, msgIds, to, count);
+        System.arraycopy(uids, from, uids, to, count);
+        System.arraycopy(flagBits, from, flagBits, to, count);
+        System.arraycopy(sessionFlags, from, sessionFlags, to, count);
+        System.arraycopy(tagSets, from, tagSets, to, count);
+    }
+
+    /** Drops all rows from <tt>newSize</tt> on. */
+    private void truncate(int newSize) {
+        Arrays.fill(tagSets, newSize, size, null);
+        size = newSize;
+    }
+
+    /** Appends a message read back from the cache to the end of the sequence. */
+    void restoreMessage(int msgId, int uid, int flags, short sflags, String[] tagset) {
+        ensureCapacity(size + 1);
+        setRow(size++, msgId, uid, flags, sflags, tagset);
+        mapMessageId(msgId, uid);
+    }
+
+    /** Appends a message read back from the cache to the end of the sequence. */
+    void restoreMessage(ImapMessage i4msg) {
+        restoreMessage(i4msg.msgId, i4msg.imapUid, i4msg.flags, i4msg.sflags, i4msg.tags);
+        i4msg.sequence = size;
+    }
+
+    private boolean isExpunged(int row) {
+        return (sessionFlags[row] & ImapMessage.FLAG_EXPUNGED) != 0;
+    }
+
+    /** Returns the ImapMessage for the given row, which is the same object for as long as the caller
+     *  (or anyone else) keeps a reference to it.  Changes made through its mutators are written back
+     *  to the row; see {@link #update(ImapMessage)}. */
+    private ImapMessage view(int row) {
+        Integer uid = uids[row];
+        ImapMessage i4msg = views.get(uid);
+        if (i4msg == null) {
+            i4msg = snapshot(row);
+            i4msg.owner = this;
+            ImapMessage existing = views.putIfAbsent(uid, i4msg);
+            if (existing != null) {
+                i4msg = existing;
+            }
+        }
+        return i4msg;
+    }
+
+    /** Returns a copy of the given row that is not tied to the folder. */
+    private ImapMessage snapshot(int row) {
+        ImapMessage i4msg = new ImapMessage(msgIds[row], uids[row], flagBits[row], sessionFlags[row], tagSets[row]);
+        i4msg.sequence = row + 1;
+        return i4msg;
+    }
+
+    /** Writes the flags and tags of an ImapMessage handed out by {@link #view(int)} back to its row.
+     *  Synchronized like the methods that compact and resequence the rows. */
+    synchronized void update(ImapMessage i4msg) {
+        int row = i4msg.sequence - 1;
+        if (row < 0 || row >= size || uids[row] != i4msg.imapUid) {
+            if ((row = uidSearch(i4msg.imapUid)) < 0) {
+                return;
+            }
+        }
+        flagBits[row] = i4msg.flags;
+        sessionFlags[row] = i4msg.sflags;
+        tagSets[row] = i4msg.tags;
+    }
+
+    /** Cuts the tie between a message's row and the ImapMessage handed out for it, if any. */
+    private void detach(int uid) {
+        ImapMessage i4msg = views.remove(uid);
+        if (i4msg != null) {
+            i4msg.owner = null;
+        }
+    }
+
+    /** Brings the sequence numbers of the ImapMessages handed out up to date after rows moved. */
+    private void resequenceViews() {
+        for (ImapMessage i4msg : views.values()) {
+            int row = uidSearch(i4msg.imapUid);
+            if (row >= 0) {
+                i4msg.sequence = row + 1;
+            }
+        }
+    }
+
+    /** Java serialization (used by the Ehcache-backed cache) goes through the compact
+     *  {@link ImapFolderCodec} format.  Streams written before the codec existed still
+     *  contain the default serialized form and continue to deserialize normally. */
+    private Object writeReplace() throws java.io.ObjectStreamException {
+        return new ImapFolderCodec.SerializedForm(this);
     }
 
     protected void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
-            sdata.lastSize = sequence.size();
+            sdata.lastSize = size;
         }
     }
 
@@ -195,7 +361,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
      *  included in this count. */
     @Override
     public int getSize() {
-        return sequence.size();
+        return size;
     }
 
     /** Returns the number of messages in the folder that are considered
@@ -286,17 +452,27 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return sdata == null ? false : sdata.writable;
     }
 
+    /** Hands each message in the folder, in sequence order, to <tt>func</tt> as a copy that is not
+     *  tied to the folder. */
     public synchronized void traverse(Function<ImapMessage, Void> func) {
         int prevUid = -1;
-        for (Iterator<ImapMessage> it = sequence.iterator(); it.hasNext();) {
-            ImapMessage i4msg = it.next();
-            if (i4msg.imapUid == prevUid) {
+        int kept = 0;
+        for (int row = 0; row < size; row++) {
+            if (uids[row] == prevUid) {
                 ZimbraLog.imap.warn("duplicate UID %d in cached folder %s", prevUid, this.folderIdentifier);
-                it.remove();
-            } else {
-                prevUid = i4msg.imapUid;
-                func.apply(i4msg);
+                continue;
+            }
+            if (kept != row) {
+                moveRows(row, kept, 1);
             }
+            prevUid = uids[kept];
+            func.apply(snapshot(kept));
+            kept++;
+        }
+        if (kept < size) {
+            truncate(kept);
+            messageIds = null;
+            resequenceViews();
         }
     }
 
@@ -324,8 +500,8 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         return folder.getUIDValidity();
     }
 
-    /** Retrieves the index of the ImapMessage with the given IMAP UID in the
-     *  folder's {@link #sequence} message list.  This retrieval is done via
+    /** Retrieves the index of the message with the given IMAP UID in the
+     *  folder's sequence.  This retrieval is done via
      *  binary search rather than direct lookup.
      * @return index of the search key, if it is contained in the list;
      *         otherwise, <tt>(-(<i>insertion point</i>) - 1)</tt>.  The
@@ -341,7 +517,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         int high = getSize() - 1;
         while (low <= high) {
             int mid = (low + high) >> 1;
-            int targetUid = sequence.get(mid).imapUid;
+            int targetUid = uids[mid];
             if (targetUid < uid) {
                 low = mid + 1;
             } else if (targetUid > uid) {
@@ -354,71 +530,77 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     /** Returns the ImapMessage with the given Zimbra item ID from the
-     *  folder's {@link #sequence} message list. */
+     *  folder's sequence. */
     protected synchronized ImapMessage getById(int id) {
         if (id <= 0 || getSize() == 0) {
             return null;
         }
         // leverage the fact that by default, the message's item id and its IMAP uid are identical
-        int seq = uidSearch(id);
-        if (seq >= 0 && seq < sequence.size()) {
-            ImapMessage i4msg = sequence.get(seq);
-            // slightly tricky: must check if message is expunged in order to catch the case of
-            //   using the web client to move the message out of the folder and back in before
-            //   the IMAP server can tell the client about the EXPUNGE from the first move
-            if (i4msg != null && i4msg.msgId == id && !i4msg.isExpunged()) {
-                return checkRemoved(i4msg);
-            }
+        int row = uidSearch(id);
+        // slightly tricky: must check if message is expunged in order to catch the case of
+        //   using the web client to move the message out of the folder and back in before
+        //   the IMAP server can tell the client about the EXPUNGE from the first move
+        if (row >= 0 && msgIds[row] == id && !isExpunged(row)) {
+            return view(row);
         }
 
-        // if item id and IMAP uid differ, the message goes in the "mMessageIds" map
+        // if item id and IMAP uid differ, the message's UID goes in the "messageIds" map
         if (messageIds == null) {
-            // lookup miss means we need to generate the item-id-to-imap-message mapping
-            messageIds = new HashMap<Integer, ImapMessage>();
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
-                    messageIds.put(i4msg.msgId, i4msg);
-                }
+            // lookup miss means we need to generate the item-id-to-imap-uid mapping
+            messageIds = new HashMap<Integer, Integer>();
+            for (row = 0; row < size; row++) {
+                mapMessageId(msgIds[row], uids[row]);
+            }
+        }
+        Integer uid = messageIds.get(id);
+        row = uid == null ? -1 : uidSearch(uid);
+        return row < 0 || isExpunged(row) ? null : view(row);
+    }
+
+    /** Records the item-id-to-imap-uid mapping for a message whose UID differs from its item ID.
+     *  When a message appears more than once, the mapping is to its highest UID. */
+    private void mapMessageId(int msgId, int uid) {
+        if (messageIds != null && msgId != uid) {
+            Integer mapped = messageIds.get(msgId);
+            if (mapped == null || mapped < uid) {
+                messageIds.put(msgId, uid);
             }
         }
-        return checkRemoved(messageIds.get(Integer.valueOf(id)));
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
-     *  {@link #sequence} message list. */
+     *  sequence. */
     protected ImapMessage getByImapId(int uid) {
         return uid > 0 ? getBySequence(uidSearch(uid) + 1) : null;
     }
 
     /** Returns the ImapMessage with the given 1-based sequence number in the
-     *  folder's {@link #sequence} message list. */
+     *  folder's sequence. */
     protected ImapMessage getBySequence(int seq) {
         return getBySequence(seq, false);
     }
 
     /** Returns the ImapMessage with the given 1-based sequence number in the
-     *  folder's {@link #sequence} message list. */
+     *  folder's sequence. */
     protected ImapMessage getBySequence(int seq, boolean includeExpunged) {
-        ImapMessage i4msg = seq > 0 && seq <= getSize() ? sequence.get(seq - 1) : null;
-        return includeExpunged ? i4msg : checkRemoved(i4msg);
+        if (seq <= 0 || seq > getSize() || (!includeExpunged && isExpunged(seq - 1))) {
+            return null;
+        }
+        return view(seq - 1);
     }
 
-    /** Returns the last ImapMessage in the folder's {@link #sequence}
-     *  message list.  This message corresponds to the "*" IMAP UID. */
+    /** Returns the last ImapMessage in the folder's sequence.
+     *  This message corresponds to the "*" IMAP UID. */
     private ImapMessage getLastMessage() {
         return getBySequence(getSize());
     }
 
-    /** Returns the passed-in ImapMessage, or <tt>null</tt> if the message has
-     *  already been expunged.*/
-    private ImapMessage checkRemoved(ImapMessage i4msg) {
-        return (i4msg == null || i4msg.isExpunged() ? null : i4msg);
-    }
-
     /** Adds the message to the folder.  Messages <b>must</b> be added in
      *  increasing IMAP UID order.  Added messages are appended to the end of
-     *  the folder's {@link #sequence} message list and inserted into the
-     *  {@link #mMessageIds} hash (if the latter hash has been instantiated).
+     *  the folder's sequence and inserted into the {@link #messageIds} hash
+     *  (if the latter hash has been instantiated).  The message's state is
+     *  copied into the folder, which does not keep the passed-in object; use
+     *  {@link #getByImapId(int)} to get at the cached message afterwards.
      * @return true if message cached successfully without modification false if a renumber was required. */
     protected synchronized boolean cache(ImapMessage i4msg, boolean recent) {
         // provide the information missing from the DB search
@@ -433,21 +615,23 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             }
         }
         // update the folder information
-        ImapMessage last = null;
-        if (sequence.size() > 0 && (last = sequence.get(sequence.size() - 1)).imapUid > i4msg.imapUid) {
-            ZimbraLog.imap.debug("adding out of order UID. prev: %s current: %s", last, i4msg);
+        int lastUid = size > 0 ? uids[size - 1] : -1;
+        if (size > 0 && lastUid > i4msg.imapUid) {
+            ZimbraLog.imap.debug("adding out of order UID. prev: %s current: %s", snapshot(size - 1), i4msg);
             if (!insertOutOfOrder(i4msg)) {
                 return false;
             }
-        } else if (last != null && last.imapUid == i4msg.imapUid) {
+        } else if (size > 0 && lastUid == i4msg.imapUid) {
             //should never occur, log so we can learn more if it does
-            ZimbraLog.imap.warn("duplicate UID %s %s added to sequence", i4msg, last, new Exception());
-            sequence.set(sequence.size() - 1, i4msg);
-            setIndex(i4msg, sequence.size());
+            ZimbraLog.imap.warn("duplicate UID %s %s added to sequence", i4msg, snapshot(size - 1), new Exception());
+            detach(lastUid);
+            setRow(size - 1, i4msg);
+            setIndex(i4msg, size);
         } else {
             //normal case, last item has lower UID so just add to the end
-            sequence.add(i4msg);
-            setIndex(i4msg, sequence.size());
+            ensureCapacity(size + 1);
+            setRow(size++, i4msg);
+            setIndex(i4msg, size);
         }
         // update the tag cache to include only the tags in the folder
         updateTagCache(i4msg);
@@ -455,16 +639,11 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     private boolean insertOutOfOrder(ImapMessage i4msg) {
-        LinkedList<ImapMessage> shifted = new LinkedList<ImapMessage>();
-        int idx  = sequence.size() - 1;
+        int idx  = size - 1;
         while (idx > -1) {
-            ImapMessage prev = sequence.get(idx);
-            if (prev.imapUid <= i4msg.imapUid) {
+            if (uids[idx] <= i4msg.imapUid) {
                 break;
-            } else if (prev.isAdded()) {
-                shifted.addFirst(prev);
-                //add to beginning so iteration below starts with lowest UID
-                //this is necessary to ensure that messageIds map holds the highest UID for a given msgId
+            } else if ((sessionFlags[idx] & ImapMessage.FLAG_ADDED) != 0) {
                 idx--;
             } else {
                 ZimbraLog.imap.warn("message added out of order occurs before message which is already visible to client. Must renumber %s", i4msg);
@@ -478,11 +657,12 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             }
         }
         idx++;
-        sequence.add(idx, i4msg);
+        ensureCapacity(size + 1);
+        moveRows(idx, idx + 1, size - idx);
+        setRow(idx, i4msg);
+        size++;
         setIndex(i4msg, idx + 1);
-        for (ImapMessage shiftedMsg : shifted) {
-            setIndex(shiftedMsg, shiftedMsg.sequence + 1);
-        }
+        resequenceViews();
         return true;
     }
 
@@ -507,29 +687,29 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     private void setIndex(ImapMessage i4msg, int position) {
         i4msg.sequence = position;
-        if (messageIds != null) {
-            if (i4msg.msgId != i4msg.imapUid) {
-                messageIds.put(Integer.valueOf(i4msg.msgId), i4msg);
-            } else {
-                messageIds.remove(Integer.valueOf(i4msg.msgId));
-            }
-        }
+        mapMessageId(i4msg.msgId, i4msg.imapUid);
     }
 
-    /** Cleans up all references to an ImapMessage from all the folder's data
-     *  structures other than {@link #sequence}.  The {@link #sequence}
-     *  cleanup must be done separately. */
-    private void uncache(ImapMessage i4msg) {
+    /** Cleans up all references to a row from all the folder's data
+     *  structures other than the row itself.  Removing the row must be
+     *  done separately. */
+    private void uncache(int row) {
+        int msgId = msgIds[row];
+        int uid = uids[row];
         if (messageIds != null) {
-            messageIds.remove(i4msg.msgId);
+            Integer mapped = messageIds.get(msgId);
+            if (mapped != null && mapped == uid) {
+                messageIds.remove(msgId);
+            }
         }
+        detach(uid);
         SessionData sdata = sessionData;
         if (sdata != null) {
-            sdata.dirtyMessages.remove(Integer.valueOf(i4msg.imapUid));
-            if ((i4msg.sflags & ImapMessage.FLAG_RECENT) != 0) {
+            sdata.dirtyMessages.remove(Integer.valueOf(uid));
+            if ((sessionFlags[row] & ImapMessage.FLAG_RECENT) != 0) {
                 sdata.recentCount--;
             }
-            if ((i4msg.sflags & ImapMessage.FLAG_EXPUNGED) != 0) {
+            if ((sessionFlags[row] & ImapMessage.FLAG_EXPUNGED) != 0) {
                 sdata.expungedCount--;
             }
         }
@@ -562,8 +742,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             return;
         }
 
-        for (ImapMessage i4msg : sequence) {
-            if (i4msg != null && i4flag.matches(i4msg)) {
+        for (int row = 0; row < size; row++) {
+            if (i4flag.matches(flagBits[row], sessionFlags[row], tagSets[row])) {
+                ImapMessage i4msg = view(row);
                 dirtyMessage(i4msg, modseq);
 
                 List<String> tags = Lists.newArrayList(i4msg.tags);
@@ -571,7 +752,8 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 if (newName != null) {
                     tags.add(newName);
                 }
-                i4msg.tags = tags.isEmpty() ? null : tags.toArray(new String[tags.size()]);
+                tagSets[row] = i4msg.tags =
+                        tags.isEmpty() ? null : ImapMessage.internTags(tags.toArray(new String[tags.size()]));
             }
         }
     }
@@ -714,19 +896,18 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     protected synchronized ImapMessageSet getAllMessages() {
         ImapMessageSet result = new ImapMessageSet();
-        if (getSize() > 0) {
-            result.addAll(sequence);
-            result.remove(null);
+        for (int row = 0; row < size; row++) {
+            result.add(view(row));
         }
         return result;
     }
 
     protected synchronized ImapMessageSet getFlaggedMessages(ImapFlag i4flag) {
         ImapMessageSet result = new ImapMessageSet();
-        if (i4flag != null && getSize() > 0) {
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4flag.matches(i4msg)) {
-                    result.add(i4msg);
+        if (i4flag != null) {
+            for (int row = 0; row < size; row++) {
+                if (i4flag.matches(flagBits[row], sessionFlags[row], tagSets[row])) {
+                    result.add(view(row));
                 }
             }
         }
@@ -1080,28 +1261,31 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
         ZimbraLog.imap.debug("  ** iterating (collapseExpunged)");
 
-        boolean trimmed = false;
-        int seq = 1;
+        // compact the surviving rows toward the front of the arrays in a single pass rather than
+        //   removing expunged messages one at a time, which is quadratic for large folders
+        int kept = 0;
         List<Integer> removed = new ArrayList<Integer>();
-        for (ListIterator<ImapMessage> lit = sequence.listIterator(); lit.hasNext(); seq++) {
-            ImapMessage i4msg = lit.next();
-            if (i4msg.isExpunged()) {
-                ZimbraLog.imap.debug("  ** removing: %s", i4msg);
-                // uncache() removes pointers to the message from mMessageIds;
-                //   if the message appears again in sequence, it *must* be later and the
-                //   subsequent call to setIndex() will correctly update the mMessageIds mapping
-                uncache(i4msg);
-                lit.remove();
+        for (int row = 0; row < size; row++) {
+            if (isExpunged(row)) {
+                ZimbraLog.imap.debug("  ** removing: {m=%d, u=%d}", msgIds[row], uids[row]);
+                // uncache() only drops the messageIds entry pointing at this row's UID, so
+                //   a later copy of the same message keeps its mapping
+                uncache(row);
                 // note that we can't send expunge notifications for messages the client doesn't know about yet...
-                if (!i4msg.isAdded()) {
-                    removed.add(byUID ? i4msg.imapUid : seq);
+                if ((sessionFlags[row] & ImapMessage.FLAG_ADDED) == 0) {
+                    removed.add(byUID ? uids[row] : kept + 1);
+                }
+            } else {
+                if (kept != row) {
+                    moveRows(row, kept, 1);
                 }
-                seq--;
-                trimmed = true;
-            } else if (trimmed) {
-                setIndex(i4msg, seq);
+                kept++;
             }
         }
+        if (kept < size) {
+            truncate(kept);
+            resequenceViews();
+        }
         return removed;
     }
 
@@ -1239,8 +1423,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                     if (debug) {
                         addlog.append(i4msg).append(' ');
                     }
-                    i4msg.setAdded(true);
-                    dirtyMessage(i4msg, changeId);
+                    ImapMessage cached = getByImapId(i4msg.imapUid);
+                    cached.setAdded(true);
+                    dirtyMessage(cached, changeId);
                 } else {
                     renumber.add(i4msg.msgId);
                 }
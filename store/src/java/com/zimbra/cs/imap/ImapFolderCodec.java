@@ -0,0 +1,383 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact binary encoding of {@link ImapFolder} snapshots for the IMAP session caches.
+ * <p>
+ * Messages are written in sequence order as a zigzag-varint UID delta from the previous message,
+ * the (usually zero) difference between item ID and UID, and an index into a dictionary of the
+ * distinct flags/session flags/tags combinations in the folder.  A folder whose messages share a
+ * handful of flag states thus costs around three bytes per message, versus well over a hundred
+ * with Java serialization.
+ * <p>
+ * Encoded data starts with {@link #MAGIC}, which can never begin a Java serialization stream
+ * ({@code 0xACED}), so {@link #read(byte[])} transparently falls back to {@link ObjectInputStream}
+ * for folders cached before this format was introduced.
+ */
+final class ImapFolderCodec {
+
+    static final int MAGIC = 0x49344643; // "I4FC"
+    static final byte VERSION = 1;
+
+    private static final int FLAG_POSITIVE  = 0x01;
+    private static final int FLAG_PERMANENT = 0x02;
+    private static final int FLAG_LISTED    = 0x04;
+
+    private ImapFolderCodec() {
+    }
+
+    /** One entry of the per-folder dictionary of message states. */
+    private static final class MessageState {
+        final int flags;
+        final short sflags;
+        final String[] tags;
+
+        MessageState(int flags, short sflags, String[] tags) {
+            this.flags = flags;
+            this.sflags = sflags;
+            this.tags = tags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MessageState)) {
+                return false;
+            }
+            MessageState other = (MessageState) o;
+            return flags == other.flags && sflags == other.sflags && Arrays.equals(tags, other.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return (flags * 31 + sflags) * 31 + Arrays.hashCode(tags);
+        }
+    }
+
+    /** Encodes the folder.  The caller should hold the folder's monitor if it may be in use by a session. */
+    static byte[] encode(ImapFolder i4folder) throws IOException {
+        final List<ImapMessage> messages = new ArrayList<ImapMessage>(i4folder.getSize());
+        i4folder.traverse(new Function<ImapMessage, Void>() {
+            @Override
+            public Void apply(ImapMessage i4msg) {
+                messages.add(i4msg);
+                return null;
+            }
+        });
+
+        Map<MessageState, Integer> stateIndex = new HashMap<MessageState, Integer>();
+        List<MessageState> states = new ArrayList<MessageState>();
+        int[] stateOf = new int[messages.size()];
+        for (int i = 0; i < stateOf.length; i++) {
+            ImapMessage i4msg = messages.get(i);
+            MessageState state = new MessageState(i4msg.flags, i4msg.sflags, i4msg.tags);
+            Integer index = stateIndex.get(state);
+            if (index == null) {
+                stateIndex.put(state, index = states.size());
+                states.add(state);
+            }
+            stateOf[i] = index;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(64 + messages.size() * 4);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        ItemIdentifier iid = i4folder.getItemIdentifier();
+        writeString(out, iid.accountId);
+        writeSignedVarint(out, iid.id);
+        writeSignedVarint(out, iid.subPartId);
+        out.writeInt(i4folder.getUIDValidity());
+        writeString(out, i4folder.isVirtual() ? i4folder.getQuery() : null);
+
+        Set<MailItem.Type> types = i4folder.getTypeConstraint();
+        if (types == null) {
+            writeVarint(out, 0);
+        } else {
+            writeVarint(out, types.size() + 1);
+            for (MailItem.Type type : types) {
+                out.writeByte(type.toByte());
+            }
+        }
+
+        List<ImapFlag> flags = new ArrayList<ImapFlag>();
+        for (ImapFlag i4flag : i4folder.getTagset()) {
+            flags.add(i4flag);
+        }
+        writeVarint(out, flags.size());
+        for (ImapFlag i4flag : flags) {
+            writeString(out, i4flag.mName);
+            writeString(out, i4flag.mImapName);
+            writeSignedVarint(out, i4flag.mId);
+            writeVarlong(out, i4flag.mBitmask);
+            out.writeByte((i4flag.mPositive ? FLAG_POSITIVE : 0) | (i4flag.mPermanent ? FLAG_PERMANENT : 0) |
+                    (i4flag.mListed ? FLAG_LISTED : 0));
+        }
+
+        writeVarint(out, states.size());
+        for (MessageState state : states) {
+            writeVarint(out, state.flags);
+            writeVarint(out, state.sflags & 0xFFFF);
+            writeTags(out, state.tags);
+        }
+
+        writeVarint(out, messages.size());
+        int prevUid = 0;
+        for (int i = 0; i < stateOf.length; i++) {
+            ImapMessage i4msg = messages.get(i);
+            writeSignedVarint(out, i4msg.imapUid - prevUid);
+            writeSignedVarint(out, i4msg.msgId - i4msg.imapUid);
+            writeVarint(out, stateOf[i]);
+            prevUid = i4msg.imapUid;
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /** Decodes a folder written by {@link #encode(ImapFolder)}, or by Java serialization. */
+    static ImapFolder read(byte[] data) throws IOException, ClassNotFoundException {
+        return read(new ByteArrayInputStream(data));
+    }
+
+    /** Decodes a folder written by {@link #encode(ImapFolder)}, or by Java serialization. */
+    static ImapFolder read(InputStream is) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(is.markSupported() ? is : new BufferedInputStream(is));
+        in.mark(4);
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            throw new IOException("truncated IMAP folder cache entry", e);
+        }
+        if (magic != MAGIC) {
+            // legacy entry written with ObjectOutputStream
+            in.reset();
+            return (ImapFolder) new ObjectInputStream(in).readObject();
+        }
+        return decode(in);
+    }
+
+    private static ImapFolder decode(DataInputStream in) throws IOException {
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported IMAP folder cache version " + version);
+        }
+
+        String accountId = readString(in);
+        int id = readSignedVarint(in);
+        int subPartId = readSignedVarint(in);
+        ItemIdentifier iid = new ItemIdentifier(accountId, id, subPartId);
+        int uidValidity = in.readInt();
+        String query = readString(in);
+
+        Set<MailItem.Type> types = null;
+        int typeCount = readVarint(in);
+        if (typeCount > 0) {
+            types = EnumSet.noneOf(MailItem.Type.class);
+            for (int i = 1; i < typeCount; i++) {
+                types.add(MailItem.Type.of(in.readByte()));
+            }
+        }
+
+        ImapFlagCache tags = new ImapFlagCache();
+        for (int i = readVarint(in); i > 0; i--) {
+            String name = readString(in);
+            String imapName = readString(in);
+            int flagId = readSignedVarint(in);
+            long bitmask = readVarlong(in);
+            int bits = in.readByte();
+            tags.cache(new ImapFlag(name, imapName, flagId, bitmask, (bits & FLAG_POSITIVE) != 0,
+                    (bits & FLAG_PERMANENT) != 0, (bits & FLAG_LISTED) != 0));
+        }
+
+        MessageState[] states = new MessageState[readVarint(in)];
+        for (int i = 0; i < states.length; i++) {
+            int flags = readVarint(in);
+            short sflags = (short) readVarint(in);
+            states[i] = new MessageState(flags, sflags, ImapMessage.internTags(readTags(in)));
+        }
+
+        ImapFolder i4folder = new ImapFolder(iid, uidValidity, query, types, tags);
+        int prevUid = 0;
+        for (int i = readVarint(in); i > 0; i--) {
+            int uid = prevUid + readSignedVarint(in);
+            int msgId = uid + readSignedVarint(in);
+            int stateIndex = readVarint(in);
+            if (stateIndex >= states.length) {
+                throw new IOException("corrupt IMAP folder cache entry: bad state index " + stateIndex);
+            }
+            MessageState state = states[stateIndex];
+            i4folder.restoreMessage(msgId, uid, state.flags, state.sflags, state.tags);
+            prevUid = uid;
+        }
+        return i4folder;
+    }
+
+    private static void writeTags(DataOutputStream out, String[] tags) throws IOException {
+        if (tags == null) {
+            writeVarint(out, 0);
+        } else {
+            writeVarint(out, tags.length + 1);
+            for (String tag : tags) {
+                writeString(out, tag);
+            }
+        }
+    }
+
+    private static String[] readTags(DataInputStream in) throws IOException {
+        int count = readVarint(in);
+        if (count == 0) {
+            return null;
+        }
+        String[] tags = new String[count - 1];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = readString(in);
+        }
+        return tags;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+        } else {
+            byte[] raw = value.getBytes(Charsets.UTF_8);
+            writeVarint(out, raw.length + 1);
+            out.write(raw);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] raw = new byte[length - 1];
+        in.readFully(raw);
+        return new String(raw, Charsets.UTF_8);
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in IMAP folder cache entry");
+    }
+
+    private static void writeSignedVarint(DataOutputStream out, int value) throws IOException {
+        writeVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    private static int readSignedVarint(DataInputStream in) throws IOException {
+        int value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarlong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarlong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varlong in IMAP folder cache entry");
+    }
+
+    /**
+     * Serialized stand-in for an {@link ImapFolder}, so that caches which only know Java
+     * serialization (i.e. Ehcache) store the compact encoding.
+     */
+    static final class SerializedForm implements java.io.Serializable {
+        private static final long serialVersionUID = -2709514871238655377L;
+
+        private transient ImapFolder folder;
+
+        SerializedForm(ImapFolder folder) {
+            this.folder = folder;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            byte[] data;
+            synchronized (folder) {
+                data = encode(folder);
+            }
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(data));
+            if (din.readInt() != MAGIC) {
+                throw new IOException("bad IMAP folder cache entry");
+            }
+            folder = decode(din);
+        }
+
+        private Object readResolve() {
+            return folder;
+        }
+    }
+}
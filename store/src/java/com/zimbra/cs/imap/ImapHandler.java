@@ -107,6 +107,7 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.mailbox.Tag;
 import com.zimbra.cs.mailclient.imap.IDInfo;
@@ -3753,6 +3754,34 @@ public abstract class ImapHandler {
         return fetch(tag, sequenceSet, attributes, parts, byUID, changedSince, true);
     }
 
+    /**
+     * Loads the next batch of messages from the cursor with a single multi-row query, so that the
+     * per-message lookups in {@link #fetch} hit the mailbox's item cache instead of the database.
+     *
+     * @return the number of messages consumed from the cursor
+     */
+    private int prefetchItems(Mailbox mbox, Iterator<ImapMessage> cursor) {
+        int batchSize = LC.imap_fetch_prefetch_batch_size.intValue();
+        List<Integer> ids = new ArrayList<Integer>(batchSize);
+        int consumed = 0;
+        while (consumed < batchSize && cursor.hasNext()) {
+            ImapMessage i4msg = cursor.next();
+            consumed++;
+            if (!i4msg.isExpunged()) {
+                ids.add(i4msg.msgId);
+            }
+        }
+        if (ids.size() > 1) {
+            try {
+                mbox.getItemById(getContext(), ids, MailItem.Type.UNKNOWN);
+            } catch (ServiceException e) {
+                // items that were found are cached anyway; the per-message path reports the rest
+                ZimbraLog.imap.debug("ignoring error while prefetching %d items for FETCH", ids.size(), e);
+            }
+        }
+        return consumed;
+    }
+
     private boolean fetch(String tag, String sequenceSet, int attributes, List<ImapPartSpecifier> parts,
             boolean byUID, int changedSince, boolean standalone) throws IOException, ImapException {
         return fetch(tag, sequenceSet, attributes, parts, byUID, changedSince, standalone,
@@ -3885,8 +3914,16 @@ public abstract class ImapHandler {
             mbox.unlock();
         }
         ReentrantLock lock = null;
+        boolean needItems = !fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) ||
+                (attributes & ~FETCH_FROM_CACHE) != 0;
+        Iterator<ImapMessage> prefetchCursor = needItems && mbox instanceof Mailbox &&
+                LC.imap_fetch_prefetch_batch_size.intValue() > 0 ? i4set.iterator() : null;
+        int prefetched = 0, visited = 0;
         try {
             for (ImapMessage i4msg : i4set) {
+                if (prefetchCursor != null && visited++ == prefetched) {
+                    prefetched += prefetchItems((Mailbox) mbox, prefetchCursor);
+                }
                 PrintStream result = new PrintStream(output, false, Charsets.UTF_8.name());
                 try {
                     result.print("* " + i4msg.sequence + " FETCH (");
@@ -3899,8 +3936,8 @@ public abstract class ImapHandler {
                     boolean markMessage = markRead && (i4msg.flags & Flag.BITMASK_UNREAD) != 0;
                     boolean empty = true;
                     ZimbraMailItem item = null;
-                    MimeMessage mm;
-                    if (!fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) || (attributes & ~FETCH_FROM_CACHE) != 0) {
+                    MimeMessage mm = null;
+                    if (needItems) {
                         if (lock == null && LC.imap_throttle_fetch.booleanValue()) {
                             lock = commandThrottle.lock(credentials.getAccountId());
                         }
@@ -3943,24 +3980,54 @@ public abstract class ImapHandler {
                         }
                     }
 
-                    if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
+                    // BODY, BODYSTRUCTURE and ENVELOPE are answered from the message metadata when
+                    // they were precomputed at delivery; only fall back to parsing the blob otherwise
+                    Message precomputed = item instanceof Message && ((Message) item).getImapEnvelope() != null ?
+                            (Message) item : null;
+                    if ((parts != null && !parts.isEmpty()) ||
+                            (precomputed == null && (attributes & FETCH_FROM_MIME) != 0)) {
                         mm = ImapMessage.getMimeMessage(item);
+                    }
+                    if ((attributes & FETCH_FROM_MIME) != 0 || (parts != null && !parts.isEmpty())) {
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODY ");
-                            ImapMessage.serializeStructure(result, mm, false);
+                            String body = null;
+                            if (precomputed != null) {
+                                try {
+                                    body = ImapMessage.bodyStructureToBody(precomputed.getImapBodyStructure());
+                                } catch (IllegalArgumentException e) {
+                                    ZimbraLog.imap.debug("unable to derive BODY for message %d", i4msg.msgId, e);
+                                    if (mm == null) {
+                                        mm = ImapMessage.getMimeMessage(item);
+                                    }
+                                }
+                            }
+                            if (body != null) {
+                                ImapMessage.writeSerialized(result, body);
+                            } else {
+                                ImapMessage.serializeStructure(result, mm, false);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
+                            if (precomputed != null) {
+                                ImapMessage.writeSerialized(result, precomputed.getImapBodyStructure());
+                            } else {
+                                ImapMessage.serializeStructure(result, mm, true);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_ENVELOPE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
+                            if (precomputed != null) {
+                                ImapMessage.writeSerialized(result, precomputed.getImapEnvelope());
+                            } else {
+                                ImapMessage.serializeEnvelope(result, mm);
+                            }
                             empty = false;
                         }
                         if (parts != null) {
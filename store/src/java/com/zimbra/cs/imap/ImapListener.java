@@ -208,7 +208,7 @@ public abstract class ImapListener extends Session {
                 for (int i = 0; i < sflags.length; i += 2) {
                     ImapMessage i4msg = i4folder.getByImapId(sflags[i]);
                     if (i4msg != null) {
-                        i4msg.sflags = (short) sflags[i + 1];
+                        i4msg.restoreSessionFlags((short) sflags[i + 1]);
                     }
                 }
             }
@@ -19,10 +19,12 @@ package com.zimbra.cs.imap;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
@@ -34,6 +36,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
@@ -48,7 +51,9 @@ import org.apache.commons.codec.net.BCodec;
 import org.apache.commons.codec.net.QCodec;
 import org.apache.commons.io.IOUtils;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
+import com.google.common.collect.MapMaker;
 import com.zimbra.client.ZContact;
 import com.zimbra.client.ZMessage;
 import com.zimbra.common.mailbox.BaseItemInfo;
@@ -122,13 +127,55 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
     short sflags;
     int   flags;
     String[] tags;
+    /** The folder whose row this message is a view of (see {@link ImapFolder#update}), or
+     *  <tt>null</tt> for a message that is not (or no longer) part of a folder's sequence. */
+    transient ImapFolder owner;
+
+    private static final String[] NO_TAGS = new String[0];
+
+    /** Canonical tag arrays, shared by every cached message carrying the same set of tags.  A
+     *  folder typically has only a handful of distinct tag combinations, so interning them keeps
+     *  large selected folders from holding one copy of the tag list per message.  Values are
+     *  weakly held so that tag sets no longer referenced by any ImapMessage get dropped. */
+    private static final ConcurrentMap<TagSet, String[]> TAG_SETS = new MapMaker().weakValues().makeMap();
+
+    private static final class TagSet {
+        private final String[] tags;
+
+        TagSet(String[] tags) {
+            this.tags = tags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TagSet && Arrays.equals(tags, ((TagSet) o).tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tags);
+        }
+    }
+
+    /** Returns the canonical instance of the given tag array.  Tag arrays held by an ImapMessage
+     *  are shared and must therefore never be modified in place. */
+    static String[] internTags(String[] tags) {
+        if (tags == null) {
+            return null;
+        } else if (tags.length == 0) {
+            return NO_TAGS;
+        }
+        // the key must not reference the value, or the weakly-held value would never be collected
+        String[] interned = TAG_SETS.putIfAbsent(new TagSet(tags.clone()), tags);
+        return interned == null ? tags : interned;
+    }
 
     public ImapMessage(int id, MailItem.Type type, int imapId, int flags, String[] tags) {
         this.msgId   = id;
         this.imapUid = imapId;
         this.sflags  = (type == MailItem.Type.CONTACT ? FLAG_IS_CONTACT : 0);
         this.flags   = flags & IMAP_FLAGS;
-        this.tags    = tags;
+        this.tags    = internTags(tags);
     }
 
     public ImapMessage(int id, MailItemType type, int imapId, int flags, String[] tags) {
@@ -136,7 +183,7 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         this.imapUid = imapId;
         this.sflags  = (type == MailItemType.CONTACT ? FLAG_IS_CONTACT : 0);
         this.flags   = flags & IMAP_FLAGS;
-        this.tags    = tags;
+        this.tags    = internTags(tags);
     }
 
     public ImapMessage(BaseItemInfo item) throws ServiceException {
@@ -159,16 +206,40 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         this.tags    = i4msg.tags;
     }
 
+    /** Creates a message from a row of an {@link ImapFolder}, whose flags and tags are already
+     *  masked and interned. */
+    ImapMessage(int id, int imapId, int flags, short sflags, String[] tags) {
+        this.msgId   = id;
+        this.imapUid = imapId;
+        this.sflags  = sflags;
+        this.flags   = flags;
+        this.tags    = tags;
+    }
+
     ImapMessage(ImapMessageInfo msgInfo) {
         this.msgId   = msgInfo.getId();
         this.imapUid = msgInfo.getImapUid();
         this.flags   = msgInfo.getFlags();
-        this.tags    = msgInfo.getTags() == null ? null : msgInfo.getTags().split(",");
+        this.tags    = msgInfo.getTags() == null ? null : internTags(msgInfo.getTags().split(","));
         this.sflags  = msgInfo.getType().equalsIgnoreCase(MailItem.Type.CONTACT.name()) ? FLAG_IS_CONTACT : 0;
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        tags = internTags(tags);
+    }
+
+    /** Writes changes to this message back to the folder it was handed out by, if any. */
+    private void writeThrough() {
+        ImapFolder folder = owner;
+        if (folder != null) {
+            folder.update(this);
+        }
+    }
+
     ImapMessage reset() {
         sflags &= FLAG_IS_CONTACT;
+        writeThrough();
         return this;
     }
 
@@ -194,11 +265,20 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
 
     ImapMessage setExpunged(boolean expunged) {
         this.sflags = (short) (expunged ? sflags | FLAG_EXPUNGED : sflags & ~FLAG_EXPUNGED);
+        writeThrough();
         return this;
     }
 
     ImapMessage setAdded(boolean added) {
         this.sflags = (short) (added ? sflags | FLAG_ADDED : sflags & ~FLAG_ADDED);
+        writeThrough();
+        return this;
+    }
+
+    /** Replaces all of the message's session flags, as when a paged-out session is restored. */
+    ImapMessage restoreSessionFlags(short s) {
+        this.sflags = s;
+        writeThrough();
         return this;
     }
 
@@ -321,7 +401,8 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
             return;
 
         this.flags = f & IMAP_FLAGS;
-        this.tags  = t;
+        this.tags  = internTags(t);
+        writeThrough();
         if (parent != null) {
             parent.updateTagCache(this);
             parent.dirtyMessage(this, changeId);
@@ -333,6 +414,7 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
             return;
 
         this.sflags = (short) ((s & MUTABLE_SESSION_FLAGS) | (sflags & ~MUTABLE_SESSION_FLAGS));
+        writeThrough();
         if (parent != null) {
             parent.dirtyMessage(this, -1);
         }
@@ -724,6 +806,171 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         }
     }
 
+    /**
+     * Returns the FETCH <tt>ENVELOPE</tt> data for the message in the form stored in {@link Message}
+     * metadata: the serialized bytes, each mapped onto a single ISO-8859-1 character.
+     */
+    public static String serializeEnvelope(MimeMessage mm) throws MessagingException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializeEnvelope(newResponseStream(baos), mm);
+        return new String(baos.toByteArray(), Charsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the FETCH <tt>BODY</tt> (or, with <tt>extensions</tt>, <tt>BODYSTRUCTURE</tt>) data for the
+     * message in the same form as {@link #serializeEnvelope(MimeMessage)}.
+     */
+    public static String serializeStructure(MimeMessage mm, boolean extensions) throws IOException, MessagingException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializeStructure(newResponseStream(baos), mm, extensions);
+        return new String(baos.toByteArray(), Charsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the FETCH <tt>BODY</tt> data for the <tt>BODYSTRUCTURE</tt> data returned by
+     * {@link #serializeStructure(MimeMessage, boolean)}: the same structure without the extension data.
+     *
+     * @throws IllegalArgumentException if {@code bodyStructure} is not a serialized body structure
+     */
+    public static String bodyStructureToBody(String bodyStructure) {
+        StringBuilder body = new StringBuilder(bodyStructure.length());
+        int end;
+        try {
+            end = stripExtensions(bodyStructure, 0, body);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated body structure", e);
+        }
+        if (end != bodyStructure.length()) {
+            throw new IllegalArgumentException("trailing data after body structure");
+        }
+        return body.toString();
+    }
+
+    /**
+     * Appends the body part at {@code pos} without its extension data to {@code body}, and returns the position
+     * following it.  See {@link #serializeStructure(PrintStream, MimeMessage, boolean)} for the layout.
+     */
+    private static int stripExtensions(String structure, int pos, StringBuilder body) {
+        expect(structure, pos, '(');
+        body.append('(');
+        pos++;
+        if (structure.charAt(pos) == '(' || structure.startsWith("NIL ", pos)) {
+            // multipart: the nested body parts (or NIL), then the subtype
+            if (structure.charAt(pos) == '(') {
+                while (structure.charAt(pos) == '(') {
+                    pos = stripExtensions(structure, pos, body);
+                }
+            } else {
+                body.append("NIL");
+                pos += 3;
+            }
+            pos = copyElement(structure, pos, body);
+        } else {
+            // type, subtype, parameters, id, description, encoding and size
+            int typeStart = pos;
+            pos = skipElement(structure, pos);
+            String type = structure.substring(typeStart, pos).toUpperCase();
+            int subtypeStart = pos + 1;
+            pos = skipElement(structure, subtypeStart);
+            String subtype = structure.substring(subtypeStart, pos).toUpperCase();
+            body.append(structure, typeStart, pos);
+            for (int i = 0; i < 5; i++) {
+                pos = copyElement(structure, pos, body);
+            }
+            if (type.equals("\"MESSAGE\"") && subtype.equals("\"RFC822\"")) {
+                // envelope, body structure and line count of the encapsulated message
+                pos = copyElement(structure, pos, body);
+                expect(structure, pos, ' ');
+                body.append(' ');
+                if (structure.charAt(pos + 1) == '(') {
+                    pos = stripExtensions(structure, pos + 1, body);
+                } else {
+                    pos = skipElement(structure, pos + 1);
+                    body.append("NIL");
+                }
+                pos = copyElement(structure, pos, body);
+            } else if (type.equals("\"TEXT\"")) {
+                // line count
+                pos = copyElement(structure, pos, body);
+            }
+        }
+        // drop the extension data
+        while (structure.charAt(pos) == ' ') {
+            pos = skipElement(structure, pos + 1);
+        }
+        expect(structure, pos, ')');
+        body.append(')');
+        return pos + 1;
+    }
+
+    /** Appends the separator at {@code pos} and the element following it, and returns the position after both. */
+    private static int copyElement(String structure, int pos, StringBuilder body) {
+        expect(structure, pos, ' ');
+        int end = skipElement(structure, pos + 1);
+        body.append(structure, pos, end);
+        return end;
+    }
+
+    /** Returns the position following the atom, string, literal or parenthesized list at {@code pos}. */
+    private static int skipElement(String structure, int pos) {
+        char c = structure.charAt(pos);
+        if (c == '(') {
+            pos++;
+            while (structure.charAt(pos) != ')') {
+                if (structure.charAt(pos) == ' ') {
+                    pos++;
+                } else {
+                    pos = skipElement(structure, pos);
+                }
+            }
+            return pos + 1;
+        } else if (c == '"') {
+            for (pos++; structure.charAt(pos) != '"'; pos++) {
+                if (structure.charAt(pos) == '\\') {
+                    pos++;
+                }
+            }
+            return pos + 1;
+        } else if (c == '{') {
+            int close = structure.indexOf('}', pos);
+            int length = Integer.parseInt(structure.substring(pos + 1, close));
+            expect(structure, close + 1, '\r');
+            expect(structure, close + 2, '\n');
+            return close + 3 + length;
+        } else {
+            int end = pos;
+            while (end < structure.length() && " ()".indexOf(structure.charAt(end)) < 0) {
+                end++;
+            }
+            if (end == pos) {
+                throw new IllegalArgumentException("unexpected '" + c + "' at " + pos);
+            }
+            return end;
+        }
+    }
+
+    private static void expect(String structure, int pos, char c) {
+        if (pos >= structure.length() || structure.charAt(pos) != c) {
+            throw new IllegalArgumentException("expected '" + c + "' at " + pos);
+        }
+    }
+
+    /** Writes data returned by {@link #serializeStructure(MimeMessage, boolean)} or
+     *  {@link #serializeEnvelope(MimeMessage)} to a FETCH response. */
+    static void writeSerialized(PrintStream ps, String serialized) {
+        byte[] raw = serialized.getBytes(Charsets.ISO_8859_1);
+        ps.write(raw, 0, raw.length);
+    }
+
+    private static PrintStream newResponseStream(ByteArrayOutputStream baos) {
+        try {
+            // must match the encoding of the FETCH response stream in ImapHandler
+            return new PrintStream(baos, false, Charsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private static int getLineCount(MimePart mp) {
         // if the MimePart implementation counts lines, use its count
         try {
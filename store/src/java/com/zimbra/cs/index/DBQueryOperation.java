@@ -33,6 +33,7 @@ import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -62,6 +63,9 @@ public class DBQueryOperation extends QueryOperation {
     private int hitsOffset = 0; // this is the logical offset of the end of the mDBHits buffer
     private int dbOffset = 0; // this is the offset IN THE DATABASE when we're doing a DB-FIRST iteration
     private int cursorOffset = -1; // calculated cursor offset
+    private DbSearchConstraints.Seek cursorSeek = null; // seek position of the request cursor, if any
+    private DbSearch.Result lastDbResult = null; // last row read from the DB, where the next chunk seeks to
+    private boolean chunkSeek = false; // whether the top leaf currently seeks to lastDbResult rather than cursorSeek
 
     /**
      * this gets set to FALSE if we have any real work to do this lets us optimize away queries that might match
@@ -247,6 +251,21 @@ public class DBQueryOperation extends QueryOperation {
         return allResultsQuery;
     }
 
+    @Override
+    int estimateSelectivity() {
+        if (hasNoResults() || hasAllResults() || !(constraints instanceof DbSearchConstraints.Leaf)) {
+            return super.estimateSelectivity();
+        }
+        DbSearchConstraints.Leaf leaf = (DbSearchConstraints.Leaf) constraints;
+        if (!leaf.itemIds.isEmpty()) {
+            return leaf.itemIds.size();
+        } else if (leaf.convId > 0) {
+            return (int) Math.ceil(MESSAGES_PER_CONV_ESTIMATE);
+        }
+        // a text clause on top of the DB constraints only narrows the result further
+        return luceneOp != null ? SELECTIVITY_UNKNOWN / 2 : SELECTIVITY_UNKNOWN;
+    }
+
     @Override
     Set<QueryTarget> getQueryTargets() {
         return ImmutableSet.of(queryTarget);
@@ -273,6 +292,48 @@ public class DBQueryOperation extends QueryOperation {
         }
     }
 
+    /**
+     * Returns the IDs of the folders the constraints are restricted to, or null if they may match items in any folder.
+     */
+    Set<Integer> getFolderScope() {
+        return getFolderScope(constraints);
+    }
+
+    private static Set<Integer> getFolderScope(DbSearchConstraints node) {
+        if (node instanceof DbSearchConstraints.Leaf) {
+            DbSearchConstraints.Leaf leaf = (DbSearchConstraints.Leaf) node;
+            if (leaf.noResults) {
+                return new HashSet<Integer>();
+            } else if (leaf.folders.isEmpty()) {
+                return null;
+            }
+            Set<Integer> result = new HashSet<Integer>();
+            for (Folder folder : leaf.folders) {
+                result.add(folder.getId());
+            }
+            return result;
+        } else if (node instanceof DbSearchConstraints.Intersection) {
+            Set<Integer> result = null;
+            for (DbSearchConstraints child : node.getChildren()) {
+                Set<Integer> scope = getFolderScope(child);
+                if (scope != null && (result == null || scope.size() < result.size())) {
+                    result = scope;
+                }
+            }
+            return result;
+        } else {
+            Set<Integer> result = new HashSet<Integer>();
+            for (DbSearchConstraints child : node.getChildren()) {
+                Set<Integer> scope = getFolderScope(child);
+                if (scope == null) {
+                    return null;
+                }
+                result.addAll(scope);
+            }
+            return result;
+        }
+    }
+
     /**
      * In an INTERSECTION, we can gain some efficiencies by using the output of
      * the Lucene op as parameters to our SearchConstraints....we do that by
@@ -455,6 +516,7 @@ public class DBQueryOperation extends QueryOperation {
             dbOffset = 0;
             dbHitsIter = null;
             hitsOffset = 0;
+            lastDbResult = null;
             endOfHits = false;
             atStart = true;
         } else {
@@ -679,8 +741,40 @@ public class DBQueryOperation extends QueryOperation {
         return constraints.tryDbFirst(context.getMailbox());
     }
 
+    /**
+     * Returns true if chunks can be fetched by seeking past the last row of the previous chunk rather than by
+     * skipping an ever growing LIMIT offset.
+     */
+    private boolean useSeek(SortBy sort) {
+        return LC.search_keyset_pagination_enabled.booleanValue() && sort.getKey() != SortBy.Key.NONE;
+    }
+
+    /**
+     * Positions the next DB query right after {@link #lastDbResult} and returns the LIMIT offset to use with it: 0
+     * when seeking, otherwise {@code offset}, the number of rows already consumed since the start of the iteration.
+     */
+    private int seekToNextChunk(SortBy sort, int offset) {
+        // An empty sort value can stand for a NULL column which a comparison wouldn't match, so rows sharing it
+        // have to be skipped by offset.
+        if (lastDbResult != null && useSeek(sort) && lastDbResult.getSortValue() != null &&
+                !"".equals(lastDbResult.getSortValue())) {
+            getTopLeafConstraint().setSeek(
+                    new DbSearchConstraints.Seek(sort, lastDbResult.getSortValue(), lastDbResult.getId()));
+            chunkSeek = true;
+            return 0;
+        }
+        if (chunkSeek) {
+            getTopLeafConstraint().setSeek(cursorSeek);
+            chunkSeek = false;
+        }
+        return offset;
+    }
+
     private void noLuceneGetNextChunk(SortBy sort) throws ServiceException {
-        dbSearch(dbHits, sort, hitsOffset, hitsPerChunk);
+        dbSearch(dbHits, sort, seekToNextChunk(sort, hitsOffset), hitsPerChunk);
+        if (!dbHits.isEmpty()) {
+            lastDbResult = dbHits.get(dbHits.size() - 1);
+        }
 
         if (dbHits.size() < hitsPerChunk) {
             endOfHits = true;
@@ -700,7 +794,7 @@ public class DBQueryOperation extends QueryOperation {
         do {
             // (1) Get the next chunk of results from the DB
             List<DbSearch.Result> dbResults = new ArrayList<DbSearch.Result>();
-            dbSearch(dbResults, sort, dbOffset, MAX_HITS_PER_CHUNK);
+            dbSearch(dbResults, sort, seekToNextChunk(sort, dbOffset), MAX_HITS_PER_CHUNK);
 
             if (dbResults.size() < MAX_HITS_PER_CHUNK) {
                 endOfHits = true;
@@ -708,6 +802,7 @@ public class DBQueryOperation extends QueryOperation {
 
             if (dbResults.size() > 0) {
                 dbOffset += dbResults.size();
+                lastDbResult = dbResults.get(dbResults.size() - 1);
 
                 // (2) for each of the results returned in (1), do a lucene search
                 //    for "ORIGINAL-LUCENE-PART AND id:(RESULTS-FROM-1-ABOVE)"
@@ -784,10 +879,11 @@ public class DBQueryOperation extends QueryOperation {
                 // we know we got all the index-id's from lucene.  since we don't have a
                 // LIMIT clause, we can be assured that this query will get all the remaining results.
                 endOfHits = true;
-            } else {
+            } else if (context.getParams().inDumpster() || context.getMailbox().index.getMembershipFilterCache()
+                    .retainCandidates(sc.indexIds, sc.folders, sc.tags)) {
                 // must not ask for offset,limit here b/c of indexId constraints!,
                 dbSearch(dbHits, sort, -1, -1);
-            }
+            } // else none of the Lucene hits in this chunk can be in the folders or have the tags, try the next chunk
         } while (dbHits.size() == 0 && !endOfHits);
     }
 
@@ -989,6 +1085,17 @@ public class DBQueryOperation extends QueryOperation {
                 break;
         }
 
+        // Date and size aren't unique, so the range above starts at the first row sharing the cursor's sort value and
+        // ResultsPager skips ahead to the cursor item. Seek directly past it instead, unless the offset is wanted:
+        // ResultsPager counts those skipped rows into it.
+        if (!calcOffset && (sort.getKey() == SortBy.Key.DATE || sort.getKey() == SortBy.Key.SIZE)) {
+            ItemId cursorId = cursor.getItemId();
+            if (useSeek(sort) && cursorId != null && cursorId.getId() > 0 && cursorId.belongsTo(context.getMailbox())) {
+                cursorSeek = new DbSearchConstraints.Seek(sort, Long.parseLong(cursor.getSortValue()), cursorId.getId());
+                getTopLeafConstraint().setSeek(cursorSeek);
+            }
+        }
+
         if (offsetConstraints != null) {
             assert cursorOffset < 0 : cursorOffset;
             Mailbox mbox = context.getMailbox();
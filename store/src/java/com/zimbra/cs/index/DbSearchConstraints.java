@@ -158,7 +158,8 @@ public interface DbSearchConstraints extends Cloneable {
             hasIndexId == null &&
             excludeHasRecipients == false &&
             ranges.isEmpty() &&
-            cursorRange == null) {
+            cursorRange == null &&
+            seek == null) {
                 return true;
             } else {
                 return false;
@@ -255,6 +256,7 @@ public interface DbSearchConstraints extends Cloneable {
                 }
         );
         public CursorRange cursorRange; // optional
+        public Seek seek; // optional, only rows strictly after this position in the sort order
 
         public boolean typesFactoredOut = false;
         public boolean excludeHasRecipients = false;
@@ -353,6 +355,7 @@ public interface DbSearchConstraints extends Cloneable {
             for (Map.Entry<RangeType, Range> entry : ranges.entries()) {
                 result.ranges.put(entry.getKey(), entry.getValue().clone());
             }
+            result.seek = seek;
             return result;
         }
 
@@ -616,6 +619,9 @@ public interface DbSearchConstraints extends Cloneable {
 
             excludeTypes.addAll(other.excludeTypes);
             ranges.putAll(other.ranges);
+            if (seek == null) {
+                seek = other.seek;
+            }
         }
 
         /**
@@ -809,6 +815,14 @@ public interface DbSearchConstraints extends Cloneable {
             cursorRange = new CursorRange(min, minInclusive, max, maxInclusive, sort);
         }
 
+        /**
+         * Restricts the results to the rows that sort strictly after {@code value}, replacing any previous seek
+         * position. Pass null to clear it.
+         */
+        void setSeek(Seek value) {
+            seek = value;
+        }
+
         void addConvId(int cid, boolean truth) {
 
             if (truth) {
@@ -1133,7 +1147,8 @@ public interface DbSearchConstraints extends Cloneable {
                 leaf.hasIndexId == null &&
                 leaf.excludeHasRecipients == false &&
                 leaf.ranges.isEmpty() &&
-                leaf.cursorRange == null) {
+                leaf.cursorRange == null &&
+                leaf.seek == null) {
                     onlyFolderConstraints.add(leaf);
                 } else {
                     otherConstraints.add(leaf);
@@ -1532,6 +1547,28 @@ public interface DbSearchConstraints extends Cloneable {
         }
     }
 
+    /**
+     * Keyset pagination position: the sort value and item ID of the last row already consumed. Unlike an offset, the
+     * database can jump straight to it through the sort index, so the cost of a page doesn't depend on its depth.
+     * The sort value is the one {@link com.zimbra.cs.db.DbSearch.Result#getSortValue()} returns for that row.
+     */
+    public static final class Seek {
+        public final SortBy sortBy;
+        public final Object sortValue;
+        public final int itemId;
+
+        public Seek(SortBy sort, Object sortValue, int itemId) {
+            this.sortBy = sort;
+            this.sortValue = sortValue;
+            this.itemId = itemId;
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).add("sort", sortBy).add("value", sortValue).add("id", itemId).toString();
+        }
+    }
+
     public static final class RemoteFolderDescriptor {
         private final ItemId folderId;
         private String subfolderPath;
@@ -17,9 +17,15 @@
 package com.zimbra.cs.index;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.Sets;
@@ -31,12 +37,25 @@ import com.zimbra.common.util.ZimbraLog;
 
 /**
  * Set of query results ANDed together.
+ * <p>
+ * All sub-operations return hits in the same sort order, so they are intersected like sorted lists: the
+ * sub-operations leapfrog each other forward to the next sort value they all share, then the hits sharing that value
+ * are matched up by item id through hash lookups. Each sub-operation is read once, so the cost grows linearly with
+ * the number of hits, also when many hits share a sort value or when the results are unsorted (in which case all
+ * hits form a single group).
  */
 public final class IntersectionQueryOperation extends CombiningQueryOperation {
     private boolean noHits = false;
-    private List<ZimbraHit> bufferedNext = new ArrayList<ZimbraHit>(1);
+    private ArrayDeque<ZimbraHit> bufferedNext = new ArrayDeque<ZimbraHit>();
     private HitGrouper messageGrouper[] = null;
 
+    private static final Comparator<QueryOperation> SELECTIVITY_ORDER = new Comparator<QueryOperation>() {
+        @Override
+        public int compare(QueryOperation lhs, QueryOperation rhs) {
+            return Long.signum((long) lhs.estimateSelectivity() - rhs.estimateSelectivity());
+        }
+    };
+
     @Override
     public long getCursorOffset() {
         return -1;
@@ -55,87 +74,97 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         if (noHits || !hasNext()) {
             return null;
         }
-        return bufferedNext.remove(0);
+        return bufferedNext.pollFirst();
     }
 
     /**
-     * There can be multiple Hits with the same exact sort-field. This function does a complete N^2 intersection of all
-     * of the hits for a particular sort field.
-     *
-     * FIXME: this function is hideous, do _something_ with it.
+     * Buffers the hits of the next sort value for which every sub-operation has at least one hit in common.
      */
     void bufferNextHits() throws ServiceException {
-        if (bufferedNext.size() > 0) {
-            return;
-        }
-        TryAgain: while (true) {
-            if (!messageGrouper[0].bufferNextHits()) {
+        while (bufferedNext.isEmpty()) {
+            if (!alignGroups()) {
                 return;
             }
-            ZimbraLog.search.debug("MsgGrp0: %s", messageGrouper[0]);
-            ZimbraHit curHit = messageGrouper[0].getGroupHit();
-            int msgId = messageGrouper[0].getCurMsgId();
-
-            // for every other op, buffer all the hits for this
-            // step....
-            for (int i = 1; i < messageGrouper.length; i++) {
-                // TODO check if this group is FINISHED and if so, quick return out
-                if (!(messageGrouper[i].bufferNextHits(curHit))) {
-                    // no matches this grouper for that timestamp...go to top and try again
-                    continue TryAgain;
+            intersectGroups();
+        }
+        if (ZimbraLog.search.isDebugEnabled()) {
+            for (ZimbraHit hit : bufferedNext) {
+                ZimbraLog.search.debug("BUFFERED: %s", hit);
+            }
+        }
+    }
+
+    /**
+     * Advances the sub-operations until the next hit of each of them has the same sort value, then buffers the group
+     * of hits sharing that value in every grouper. Every time a sub-operation is found to be ahead of the others, its
+     * sort value becomes the new target the others skip forward to.
+     *
+     * @return false if any of the sub-operations ran out of hits, so there is nothing left to intersect
+     */
+    private boolean alignGroups() throws ServiceException {
+        ZimbraHit target = messageGrouper[0].peekNext();
+        if (target == null) {
+            return false;
+        }
+        int agreed = 1;
+        for (int i = 1 % messageGrouper.length; agreed < messageGrouper.length; i = (i + 1) % messageGrouper.length) {
+            ZimbraHit hit = messageGrouper[i].skipTo(target);
+            if (hit == null) {
+                return false;
+            }
+            if (messageGrouper[i].compare(hit, target) == 0) {
+                agreed++;
+            } else {
+                target = hit;
+                agreed = 1;
+            }
+        }
+        for (int i = 0; i < messageGrouper.length; i++) {
+            messageGrouper[i].bufferNextHits();
+            ZimbraLog.search.debug("MsgGrp[%d]: %s", i, messageGrouper[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Intersects the buffered groups by item id. A hit is kept if every other group has a hit for the same item; a
+     * {@link MessagePartHit} additionally needs either the very same part or the whole message in the other groups.
+     * Hits are returned item by item in the order of the first group, and each hit is only returned once even if
+     * several sub-operations produced it.
+     */
+    private void intersectGroups() throws ServiceException {
+        Set<ZimbraHit> seen = Collections.newSetFromMap(new IdentityHashMap<ZimbraHit, Boolean>());
+        for (Integer itemId : messageGrouper[0].bufferedItemIds()) {
+            if (!allGroupsContain(itemId)) {
+                continue;
+            }
+            for (int i = 0; i < messageGrouper.length; i++) {
+                for (ZimbraHit hit : messageGrouper[i].getBufferedHits(itemId)) {
+                    if (!seen.contains(hit) && intersectsOtherGroups(hit, i)) {
+                        seen.add(hit);
+                        bufferedNext.add(hit);
+                    }
                 }
-                ZimbraLog.search.debug("MsgGrp[%d]: %s", i, messageGrouper[i]);
             }
+        }
+    }
 
-            List<Integer> seenMsgs = new ArrayList<Integer>();
-
-            do {
-                if (curHit != null && msgId > 0) {
-
-                    // okay, do the big intersection
-                    for (int i = 0; i < messageGrouper.length; i++) {
-                        messageGrouper[i].setMsgId(msgId);
-                        ZimbraHit hit = messageGrouper[i].getNextHit();
-                        while (hit != null) {
-                            if (!bufferedNext.contains(hit)) {
-                                boolean ok = true;
-                                for (int j = 0; ok && j < messageGrouper.length; j++) {
-                                    if (j != i) {
-                                        if (hit instanceof MessageHit) {
-                                            if (!messageGrouper[j].intersectWithBuffer((MessageHit) hit)) {
-                                                ok = false;
-                                            }
-                                        } else if (hit instanceof MessagePartHit) {
-                                            if (!messageGrouper[j].intersectWithBuffer((MessagePartHit) hit)) {
-                                                ok = false;
-                                            }
-                                        }
-                                    }
-                                } // intersect against every other group
-                                if (ok) {
-                                    bufferedNext.add(hit);
-                                }
-                            } // contained in mBufferedNext?
-                            hit = messageGrouper[i].getNextHit();
-                        } // for each hit within group
-                    } // for each group
-                } // assuming the first one isn't empty
-
-                seenMsgs.add(Integer.valueOf(msgId));
-                msgId = messageGrouper[0].getNextMessageId(seenMsgs);
-            } while (msgId > 0);
-
-            if (bufferedNext.size() > 0) {
-                // we've got some hits -- so we can leave now...
-                break TryAgain;
+    private boolean allGroupsContain(Integer itemId) {
+        for (int i = 1; i < messageGrouper.length; i++) {
+            if (messageGrouper[i].getBufferedHits(itemId).isEmpty()) {
+                return false;
             }
-            // no hits -- go back to the top and try again.
-        } // while true (for easy retry)
+        }
+        return true;
+    }
 
-        for (int i = 0; i < bufferedNext.size(); i++) {
-            ZimbraHit hit = bufferedNext.get(i);
-            ZimbraLog.search.debug("BUFFERED: %s", hit);
+    private boolean intersectsOtherGroups(ZimbraHit hit, int group) {
+        for (int i = 0; i < messageGrouper.length; i++) {
+            if (i != group && !messageGrouper[i].intersectWithBuffer(hit)) {
+                return false;
+            }
         }
+        return true;
     }
 
     @Override
@@ -144,11 +173,7 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
             return null;
         } else {
             bufferNextHits();
-            if (bufferedNext.size() > 0) {
-                return bufferedNext.get(0);
-            } else {
-                return null;
-            }
+            return bufferedNext.peekFirst();
         }
     }
 
@@ -168,38 +193,22 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
     }
 
     /**
-     * Responsible for grouping sub-results with the same sort value into a chunk
-     * so that they can then be combined
-     *
-     * 1) Call buffer() to buffer the next timestamp, or buffer(timestamp) to
-     * buffer a particular timestamp
-     *
-     * 2) Iterate through all the messageId's in the current timestamp
-     *
-     * 3) call getNextHit() to iterate the hits within the current message OR
-     * call intersectWithBuffer() to tell you if the a particular hit intersects
-     * with something within our buffer
-     *
-     * Note: this class is somewhat confusing because there are really two completely
-     * different paths through it: the first Grouper which gathers a bunch of hits and
-     * then is iterated using getNextHit() and then the other groupers which gather hits
-     * and then use intersectWithBuffer.....this is because we're using an N^2
-     * intersection instead of an insertion intersection.....this should be fixed.
+     * Reads one sub-operation a group at a time, where a group is the run of hits sharing the same sort value (the
+     * whole result when it is unsorted). The hits of the current group are indexed by item id so that the other
+     * groupers can test for a common item in constant time.
      */
     private static final class HitGrouper {
         private final QueryOperation subOp;
         private final SortBy sortOrder;
-        private final List<ZimbraHit> bufferedHit = new ArrayList<ZimbraHit>();
-        private int curMsgId = -1;
-        private ZimbraHit groupHit = null;
-        private int curBufPos = 0; // for iterating the current buffer
+        private final Map<Integer, List<ZimbraHit>> bufferedHits = new LinkedHashMap<Integer, List<ZimbraHit>>();
 
         @Override
         public String toString() {
-            StringBuffer toRet = new StringBuffer(subOp.toString()).append("\n\t");
-            for (int i = 0; i < bufferedHit.size(); i++) {
-                ZimbraHit hit = bufferedHit.get(i);
-                toRet.append(hit.toString()).append("\n\t");
+            StringBuilder toRet = new StringBuilder(subOp.toString()).append("\n\t");
+            for (List<ZimbraHit> hits : bufferedHits.values()) {
+                for (ZimbraHit hit : hits) {
+                    toRet.append(hit.toString()).append("\n\t");
+                }
             }
             return toRet.toString();
         }
@@ -210,150 +219,86 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         }
 
         void resetIterator() throws ServiceException {
-            bufferedHit.clear();
+            bufferedHits.clear();
             subOp.resetIterator();
-            curMsgId = -1;
-            groupHit = null;
-            curBufPos = 0;
-
-        }
-
-        int getNextMessageId(List<Integer> seenMsgs) throws ServiceException {
-            for (int i = 1; i < bufferedHit.size(); i++) {
-                Integer checkId = Integer.valueOf(bufferedHit.get(i).getItemId());
-                if (!seenMsgs.contains(checkId)) {
-                    return checkId.intValue();
-                }
-            }
-            return -1;
         }
 
         /**
-         * Advance to the next timestamp and buffer one or more hits for that timestamp.
+         * Compares the sort values of two hits. Without a sort order every hit belongs to the same group.
          */
-        boolean bufferNextHits() throws ServiceException {
-            bufferedHit.clear();
-
-            // step 1: establish the current stamp
-            if (!subOp.hasNext()) {
-                return false;
-            }
-            groupHit = subOp.getNext();
-            setMsgId(groupHit.getItemId());
-            bufferedHit.add(groupHit);
-
-            // step 2: buffer all hits with the current stamp
-            while (subOp.hasNext()) {
-                ZimbraHit hit = subOp.peekNext();
-
-                if (hit.compareTo(sortOrder, groupHit) == 0) {
-                    bufferedHit.add(hit);
-                    // go to next one:
-                    ZimbraHit check = subOp.getNext();
-                    assert (check == hit);
-                } else {
-                    return !bufferedHit.isEmpty();
-                }
-            }
-            return !bufferedHit.isEmpty();
+        int compare(ZimbraHit lhs, ZimbraHit rhs) throws ServiceException {
+            return sortOrder.getKey() == SortBy.Key.NONE ? 0 : lhs.compareTo(sortOrder, rhs);
         }
 
-        int getCurMsgId() {
-            return curMsgId;
+        ZimbraHit peekNext() throws ServiceException {
+            return subOp.hasNext() ? subOp.peekNext() : null;
         }
 
         /**
-         * Returns a hit from the current message group. This is useful because
-         * the hit's SORT FIELD is guaranteed to be the same as the sort field
-         * in every other hit in this group (that's what the Message Grouper
-         * does, after all)
+         * Discards the hits that sort before {@code target}.
          *
-         * @return current hit
+         * @return the first hit that doesn't sort before {@code target}, or null if the sub-operation is exhausted
          */
-        ZimbraHit getGroupHit() {
-            return groupHit;
+        ZimbraHit skipTo(ZimbraHit target) throws ServiceException {
+            ZimbraHit hit;
+            while ((hit = peekNext()) != null && compare(hit, target) < 0) {
+                subOp.getNext();
+            }
+            return hit;
         }
 
-        void setMsgId(int msgId) {
-            curMsgId = msgId;
-            curBufPos = 0;
+        /**
+         * Buffers the next hit and all the hits following it with the same sort value.
+         */
+        void bufferNextHits() throws ServiceException {
+            bufferedHits.clear();
+            ZimbraHit groupHit = subOp.getNext();
+            buffer(groupHit);
+            ZimbraHit hit;
+            while ((hit = peekNext()) != null && compare(hit, groupHit) == 0) {
+                ZimbraHit check = subOp.getNext();
+                assert (check == hit);
+                buffer(hit);
+            }
         }
 
-        ZimbraHit getNextHit() throws ServiceException {
-            while (curBufPos < bufferedHit.size()) {
-                if (bufferedHit.get(curBufPos).getItemId() == curMsgId) {
-                    curBufPos++;
-                    return bufferedHit.get(curBufPos - 1);
-                }
-                curBufPos++;
+        private void buffer(ZimbraHit hit) {
+            Integer itemId = hit.getItemId();
+            List<ZimbraHit> hits = bufferedHits.get(itemId);
+            if (hits == null) {
+                hits = new ArrayList<ZimbraHit>(1);
+                bufferedHits.put(itemId, hits);
             }
-            return null;
+            hits.add(hit);
         }
 
-        boolean intersectWithBuffer(MessageHit hit) throws ServiceException {
-            int hitMsgId = hit.getItemId();
-            for (int i = 0; i < bufferedHit.size(); i++) {
-                if (bufferedHit.get(i).getItemId() == hitMsgId) {
-                    return true;
-                }
-            }
-            return false;
+        Set<Integer> bufferedItemIds() {
+            return bufferedHits.keySet();
         }
 
-        /**
-         * Return TRUE if passed-in Hit intersects with something within my group.
-         */
-        boolean intersectWithBuffer(MessagePartHit hit) throws ServiceException {
-            int hitMsgId = hit.getItemId();
-            for (int i = 0; i < bufferedHit.size(); i++) {
-                ZimbraHit bufHit = bufferedHit.get(i);
-                if (bufHit.getItemId() == hitMsgId) {
-                    if (bufHit instanceof MessagePartHit) {
-                        MessagePartHit mph = (MessagePartHit) bufHit;
-                        if (mph == hit) {
-                            return true;
-                        }
-                    } else {
-                        // msgID's must be equal
-                        return true;
-                    }
-                }
-            }
-            return false;
+        List<ZimbraHit> getBufferedHits(Integer itemId) {
+            List<ZimbraHit> hits = bufferedHits.get(itemId);
+            return hits != null ? hits : Collections.<ZimbraHit>emptyList();
         }
 
         /**
-         * Buffer a bunch of hits from SubOp, all hits must have a SortField EQUAL TO curHit's SortField
+         * Return TRUE if passed-in Hit intersects with something within my group.
          */
-        boolean bufferNextHits(ZimbraHit curHit) throws ServiceException {
-            groupHit = curHit;
-            bufferedHit.clear();
-
-            if (!subOp.hasNext()) {
+        boolean intersectWithBuffer(ZimbraHit hit) {
+            List<ZimbraHit> hits = bufferedHits.get(hit.getItemId());
+            if (hits == null) {
                 return false;
             }
-
-            ZimbraHit newStamp = null;
-            while ((newStamp = subOp.peekNext()) != null) {
-                int result = newStamp.compareTo(sortOrder, groupHit);
-                if (result == 0) {
-                    bufferedHit.add(newStamp);
-                    // go to nex thit
-                    ZimbraHit check = subOp.getNext();
-                    assert (check == newStamp);
-                } else if (result < 0) {
-                    // newstamp is logically "Before" current...skip it
-                    // mNextHit = null;
-                    subOp.getNext(); // skip next hit
-                } else {
-                    // newstamp is after us. Current doesn't match, but don't
-                    // skip newStamp,
-                    // we might still get to it.
-                    //mNextHit = newStamp;
-                    return bufferedHit.size() > 0;
+            if (!(hit instanceof MessagePartHit)) {
+                return true;
+            }
+            for (ZimbraHit bufHit : hits) {
+                // either the same part, or the whole message
+                if (bufHit == hit || !(bufHit instanceof MessagePartHit)) {
+                    return true;
                 }
             }
-            return bufferedHit.size() > 0;
+            return false;
         }
     }
 
@@ -413,6 +358,15 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         return false;
     }
 
+    @Override
+    int estimateSelectivity() {
+        int result = SELECTIVITY_UNKNOWN;
+        for (QueryOperation op : operations) {
+            result = Math.min(result, op.estimateSelectivity());
+        }
+        return result;
+    }
+
     @Override
     boolean hasAllResults() {
         return false;
@@ -682,7 +636,7 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
     public Object clone() {
         assert(messageGrouper == null);
         IntersectionQueryOperation result = (IntersectionQueryOperation) super.clone();
-        result.bufferedNext = new ArrayList<ZimbraHit>(1);
+        result.bufferedNext = new ArrayDeque<ZimbraHit>();
         result.operations = new ArrayList<QueryOperation>(operations.size());
         for (QueryOperation op : operations) {
             result.operations.add((QueryOperation) op.clone());
@@ -706,6 +660,9 @@ public final class IntersectionQueryOperation extends CombiningQueryOperation {
         context = new QueryContext(ctx.getMailbox(), ctx.getResults(), ctx.getParams(), (ctx.getChunkSize() + 1) * 3);
         messageGrouper = new HitGrouper[operations.size()];
 
+        // begin the most selective operations first: if one of them comes up empty the others are never run, and the
+        // first grouper drives the intersection
+        Collections.sort(operations, SELECTIVITY_ORDER);
         for (int i = 0; i < operations.size(); i++) {
             QueryOperation op = operations.get(i);
             op.begin(ctx);
@@ -19,6 +19,7 @@ package com.zimbra.cs.index;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentMap;
@@ -43,11 +44,17 @@ import org.apache.lucene.index.SerialMergeScheduler;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.Version;
 
@@ -1003,6 +1010,126 @@ public final class LuceneIndex extends IndexStore {
             TermsFilter luceneFilter = (filter == null) ? null : new TermsFilter(filter.getTerms());
             return ZimbraTopFieldDocs.create(luceneSearcher.search(query, luceneFilter, n, sort));
         }
+
+        @Override
+        public ZimbraTopDocs searchAfter(ZimbraScoreDoc after, int skip, Query query, ZimbraTermsFilter filter, int n,
+                Sort sort) throws IOException {
+            TermsFilter luceneFilter = (filter == null) ? null : new TermsFilter(filter.getTerms());
+            int afterDoc = ((ZimbraLuceneDocumentID) after.getDocumentID()).getLuceneDocID();
+            if (sort == null) {
+                return ZimbraTopDocs.create(luceneSearcher.searchAfter(
+                        new ScoreDoc(afterDoc, after.getScore()), query, luceneFilter, n));
+            }
+            if (!SearchAfterCollector.supports(sort, after)) {
+                // re-run the search from the top and drop the hits we already have
+                ZimbraTopFieldDocs top = search(query, filter, skip + n, sort);
+                List<ZimbraScoreDoc> docs = top.getScoreDocs();
+                return ZimbraTopFieldDocs.create(top.getTotalHits(), docs.subList(Math.min(skip, docs.size()),
+                        docs.size()), top.getMaxScore(), top.getSortFields());
+            }
+            TopFieldCollector top = TopFieldCollector.create(sort, n, true, false, false, false);
+            SearchAfterCollector collector = new SearchAfterCollector(top, sort.getSort()[0],
+                    after.getSortValues()[0], afterDoc);
+            luceneSearcher.search(query, luceneFilter, collector);
+            TopFieldDocs docs = (TopFieldDocs) top.topDocs();
+            return ZimbraTopFieldDocs.create(collector.getTotalHits(),
+                    ZimbraScoreDoc.listFromLuceneScoreDocs(docs.scoreDocs), docs.getMaxScore(),
+                    Arrays.asList(docs.fields));
+        }
+    }
+
+    /**
+     * Passes on to a {@link TopFieldCollector} the hits that sort after a hit of an earlier search, given the sort
+     * value and document number of that hit. Lucene 3.x only supports {@code searchAfter} for relevance order.
+     * <p>
+     * Only single field sorts on strings and longs are supported. The values come from the same {@link FieldCache}
+     * entries the sort itself uses. Hits with equal sort values are ordered by document number, as
+     * {@link TopFieldCollector} does.
+     */
+    private static final class SearchAfterCollector extends Collector {
+        private final Collector delegate;
+        private final SortField sortField;
+        private final Object afterValue;
+        private final int afterDoc;
+        private FieldCache.StringIndex strings;
+        private long[] longs;
+        private int docBase;
+        private int totalHits = 0;
+
+        SearchAfterCollector(Collector delegate, SortField sortField, Object afterValue, int afterDoc) {
+            this.delegate = delegate;
+            this.sortField = sortField;
+            this.afterValue = afterValue;
+            this.afterDoc = afterDoc;
+        }
+
+        static boolean supports(Sort sort, ZimbraScoreDoc after) {
+            if (sort.getSort().length != 1 || after.getSortValues() == null || after.getSortValues().length != 1) {
+                return false;
+            }
+            switch (sort.getSort()[0].getType()) {
+                case SortField.STRING:
+                    return after.getSortValues()[0] == null || after.getSortValues()[0] instanceof String;
+                case SortField.LONG:
+                    return after.getSortValues()[0] instanceof Long;
+                default:
+                    return false;
+            }
+        }
+
+        int getTotalHits() {
+            return totalHits;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) throws IOException {
+            delegate.setScorer(scorer);
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            totalHits++;
+            if (isAfter(doc)) {
+                delegate.collect(doc);
+            }
+        }
+
+        private boolean isAfter(int doc) {
+            int result;
+            if (sortField.getType() == SortField.LONG) {
+                long value = longs[doc];
+                long after = (Long) afterValue;
+                result = value < after ? -1 : (value == after ? 0 : 1);
+            } else {
+                String value = strings.lookup[strings.order[doc]];
+                String after = (String) afterValue;
+                if (value == null) {
+                    result = after == null ? 0 : -1;
+                } else {
+                    result = after == null ? 1 : value.compareTo(after);
+                }
+            }
+            if (sortField.getReverse()) {
+                result = -result;
+            }
+            return result > 0 || (result == 0 && docBase + doc > afterDoc);
+        }
+
+        @Override
+        public void setNextReader(IndexReader reader, int base) throws IOException {
+            docBase = base;
+            if (sortField.getType() == SortField.LONG) {
+                longs = FieldCache.DEFAULT.getLongs(reader, sortField.getField());
+            } else {
+                strings = FieldCache.DEFAULT.getStringIndex(reader, sortField.getField());
+            }
+            delegate.setNextReader(reader, base);
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return delegate.acceptsDocsOutOfOrder();
+        }
     }
 
     public static final class ZimbraLuceneIndexReader implements ZimbraIndexReader {
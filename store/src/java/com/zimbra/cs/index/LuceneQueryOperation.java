@@ -18,11 +18,13 @@
 package com.zimbra.cs.index;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
@@ -35,6 +37,10 @@ import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Lists;
@@ -66,6 +72,21 @@ public final class LuceneQueryOperation extends QueryOperation {
         DB_FIRST_TERM_FREQ_PERC = f;
     }
 
+    /**
+     * Hits fetched by recent searches, keyed by mailbox and query, so that the next page of the same search resumes
+     * after the last hit fetched instead of searching from the top again. Weighed by number of hits.
+     */
+    private static final Cache<String, SearchCursor> CURSOR_CACHE = CacheBuilder.newBuilder()
+        .maximumWeight(Math.max(LC.search_lucene_cursor_cache_hits.longValue(), 0L))
+        .weigher(new Weigher<String, SearchCursor>() {
+            @Override
+            public int weigh(String key, SearchCursor cursor) {
+                return cursor.size() + 1;
+            }
+        })
+        .expireAfterAccess(LC.zimbra_index_reader_cache_ttl.intValue(), TimeUnit.SECONDS)
+        .build();
+
     private int curHitNo = 0; // our offset into the hits
     private boolean haveRunSearch = false;
     private String queryString = "";
@@ -85,9 +106,9 @@ public final class LuceneQueryOperation extends QueryOperation {
     private final List<QueryInfo> queryInfo = Lists.newArrayList();
     private boolean hasSpamTrashSetting = false;
 
-    private ZimbraTopDocs hits;
-    private int topDocsLen = 0; // number of hits fetched
-    private int topDocsChunkSize = 2000; // how many hits to fetch per step in Lucene
+    private SearchCursor cursor; // hits fetched so far
+    private int topDocsLen = 0; // number of hits fetched by the first search
+    private int topDocsChunkSize = 2000; // how many more hits to fetch per step in Lucene
     private ZimbraIndexSearcher searcher;
     private Sort sort;
 
@@ -308,26 +329,25 @@ public final class LuceneQueryOperation extends QueryOperation {
 
         long start = System.currentTimeMillis();
         LuceneResultsChunk result = new LuceneResultsChunk();
-        int luceneLen = hits != null ? hits.getTotalHits() : 0;
+        int luceneLen = cursor != null ? cursor.getTotalHits() : 0;
         while ((result.size() < max) && (curHitNo < luceneLen)) {
-            if (topDocsLen <= curHitNo) {
-                topDocsLen += topDocsChunkSize;
+            if (cursor.size() <= curHitNo) {
+                if (!fetchMoreResults(Math.min(topDocsChunkSize, luceneLen - curHitNo))) {
+                    break;
+                }
                 topDocsChunkSize *= 4;
                 if (topDocsChunkSize > 1000000) {
                     topDocsChunkSize = 1000000;
                 }
-                if (topDocsLen > luceneLen) {
-                    topDocsLen = luceneLen;
-                }
-                runSearch();
             }
 
+            ZimbraScoreDoc scoreDoc = cursor.get(curHitNo);
             Document doc;
             try {
-                doc = searcher.doc(hits.getScoreDoc(curHitNo).getDocumentID());
+                doc = searcher.doc(scoreDoc.getDocumentID());
             } catch (Exception e) {
                 ZimbraLog.search.error("Failed to retrieve Lucene document: %s",
-                        hits.getScoreDoc(curHitNo).getDocumentID().toString(), e);
+                        scoreDoc.getDocumentID().toString(), e);
                 return result;
             }
             curHitNo++;
@@ -374,13 +394,14 @@ public final class LuceneQueryOperation extends QueryOperation {
     }
 
     /**
-     * Execute the actual search via Lucene
+     * Execute the actual search via Lucene, or pick up the hits of an earlier search of the same query on the same
+     * searcher.
      */
     private void runSearch() {
         haveRunSearch = true;
 
         if (searcher == null) { // this can happen if the Searcher couldn't be opened, e.g. index does not exist
-            hits = null;
+            cursor = null;
             return;
         }
 
@@ -390,11 +411,22 @@ public final class LuceneQueryOperation extends QueryOperation {
             }
             luceneQuery = expandLazyMultiPhraseQuery(luceneQuery);
             if (luceneQuery == null) { // optimized away
-                hits = null;
+                cursor = null;
                 return;
             }
-            ZimbraTermsFilter filter = (filterTerms != null) ? new ZimbraTermsFilter(filterTerms) : null;
+            String key = getCursorKey();
+            if (key != null) {
+                SearchCursor cached = CURSOR_CACHE.getIfPresent(key);
+                if (cached != null && cached.isFor(searcher)) {
+                    ZimbraLog.search.debug("LuceneSearch resume query=%s,fetched=%d,total=%d",
+                            luceneQuery, cached.size(), cached.getTotalHits());
+                    cursor = cached;
+                    return;
+                }
+            }
+            ZimbraTermsFilter filter = getFilter();
             long start = System.currentTimeMillis();
+            ZimbraTopDocs hits;
             if (sort == null) {
                 hits = searcher.search(luceneQuery, filter, topDocsLen);
             } else {
@@ -402,11 +434,72 @@ public final class LuceneQueryOperation extends QueryOperation {
             }
             ZimbraLog.search.debug("LuceneSearch query=%s,n=%d,total=%d,elapsed=%d",
                     luceneQuery, topDocsLen, hits.getTotalHits(), System.currentTimeMillis() - start);
+            cursor = new SearchCursor(searcher, hits);
+            cacheCursor();
         } catch (IOException e) {
             ZimbraLog.search.error("Failed to search query=%s", luceneQuery, e);
             Closeables.closeQuietly(searcher);
             searcher = null;
-            hits = null;
+            cursor = null;
+        }
+    }
+
+    /**
+     * Fetches up to {@code n} hits following the last hit in the cursor, so that the hits already fetched are neither
+     * scored nor sorted again. Nothing is fetched if another search sharing the cursor got there first.
+     *
+     * @return false if no more hits could be fetched
+     */
+    private boolean fetchMoreResults(int n) {
+        synchronized (cursor) {
+            int fetched = cursor.size();
+            if (fetched > curHitNo) {
+                return true;
+            }
+            ZimbraScoreDoc last = cursor.getLast();
+            if (last == null) {
+                return false;
+            }
+            try {
+                long start = System.currentTimeMillis();
+                ZimbraTopDocs page = searcher.searchAfter(last, fetched, luceneQuery, getFilter(), n, sort);
+                ZimbraLog.search.debug("LuceneSearchAfter query=%s,skip=%d,n=%d,elapsed=%d",
+                        luceneQuery, fetched, n, System.currentTimeMillis() - start);
+                if (page.getScoreDocs().isEmpty()) {
+                    return false;
+                }
+                cursor.append(page.getScoreDocs());
+            } catch (IOException e) {
+                ZimbraLog.search.error("Failed to search query=%s", luceneQuery, e);
+                return false;
+            }
+        }
+        cacheCursor();
+        return true;
+    }
+
+    private ZimbraTermsFilter getFilter() {
+        return filterTerms != null ? new ZimbraTermsFilter(filterTerms) : null;
+    }
+
+    /**
+     * Returns the {@link #CURSOR_CACHE} key of this search, or null if it shouldn't be cached: the filter terms of a
+     * DB-first join change from one chunk to the next.
+     */
+    private String getCursorKey() {
+        if (filterTerms != null || LC.search_lucene_cursor_cache_hits.intValue() <= 0 || context == null) {
+            return null;
+        }
+        return context.getMailbox().getId() + ":" + sort + ":" + luceneQuery;
+    }
+
+    /**
+     * (Re)puts the cursor so that the cache weighs it again after it grew.
+     */
+    private void cacheCursor() {
+        String key = getCursorKey();
+        if (key != null && cursor != null) {
+            CURSOR_CACHE.put(key, cursor);
         }
     }
 
@@ -513,7 +606,12 @@ public final class LuceneQueryOperation extends QueryOperation {
      * @return number of hits in this search
      */
     private long getTotalHitCount() {
-        return hits != null ? hits.getTotalHits() : 0;
+        return cursor != null ? cursor.getTotalHits() : 0;
+    }
+
+    @VisibleForTesting
+    SearchCursor getCursor() {
+        return cursor;
     }
 
     @Override
@@ -829,6 +927,48 @@ public final class LuceneQueryOperation extends QueryOperation {
         }
     }
 
+    /**
+     * The hits of a query fetched so far from one searcher, in order. Hits are only ever appended, so searches of the
+     * same query on the same searcher can share it through {@link LuceneQueryOperation#CURSOR_CACHE}. The searcher is
+     * only weakly referenced: once the index changed, the cached searcher is replaced and the cursor no longer
+     * matches it.
+     */
+    static final class SearchCursor {
+        private final WeakReference<ZimbraIndexSearcher> searcher;
+        private final int totalHits;
+        private final List<ZimbraScoreDoc> scoreDocs;
+
+        SearchCursor(ZimbraIndexSearcher searcher, ZimbraTopDocs first) {
+            this.searcher = new WeakReference<ZimbraIndexSearcher>(searcher);
+            this.totalHits = first.getTotalHits();
+            this.scoreDocs = new ArrayList<ZimbraScoreDoc>(first.getScoreDocs());
+        }
+
+        boolean isFor(ZimbraIndexSearcher value) {
+            return searcher.get() == value;
+        }
+
+        int getTotalHits() {
+            return totalHits;
+        }
+
+        synchronized int size() {
+            return scoreDocs.size();
+        }
+
+        synchronized ZimbraScoreDoc get(int index) {
+            return scoreDocs.get(index);
+        }
+
+        synchronized ZimbraScoreDoc getLast() {
+            return scoreDocs.isEmpty() ? null : scoreDocs.get(scoreDocs.size() - 1);
+        }
+
+        synchronized void append(List<ZimbraScoreDoc> docs) {
+            scoreDocs.addAll(docs);
+        }
+    }
+
     /**
      * Extended {@link MultiPhraseQuery} that defers wildcard expansion until actual Lucene search execution, rather
      * than doing so when creating a {@link MultiPhraseQuery}.
@@ -0,0 +1,275 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.BaseItemInfo;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.DbSearch;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Tag;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+
+/**
+ * Per-mailbox cache of folder and tag membership, kept as bitsets of index IDs.
+ * <p>
+ * {@link DBQueryOperation} uses it to drop Lucene hits that cannot satisfy the folder and tag constraints of the query
+ * before joining them against MAIL_ITEM. A bitset is loaded from the DB the first time its folder or tag is searched,
+ * then kept up to date from the committed changes of the mailbox. Bits are only ever set, never cleared, because copies
+ * may share an index ID; an entry is dropped (and reloaded on the next search) once too many of its bits are known to
+ * be out of date. The bitsets are therefore supersets, and the DB query remains the authority on what matches.
+ */
+public final class MembershipFilterCache {
+    private static final int MAX_ENTRIES = LC.search_membership_filter_cache_size.intValue();
+    private static final int MIN_STALE_BITS = 64;
+
+    private final Mailbox mailbox;
+    // folder or tag ID -> bitset, in access order; guarded by this
+    private final Map<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(16, 0.75F, true);
+    // bumped on every commit so that a bitset loaded concurrently with a change is not cached; guarded by this
+    private long generation = 0L;
+
+    public MembershipFilterCache(Mailbox mbox) {
+        mailbox = mbox;
+    }
+
+    /**
+     * Removes the index IDs that cannot be in any of the {@code folders} or cannot have all of the {@code tags}.
+     *
+     * @return false if no index ID is left, otherwise true
+     */
+    public boolean retainCandidates(Collection<Integer> indexIds, Collection<Folder> folders, Collection<Tag> tags)
+            throws ServiceException {
+        if (MAX_ENTRIES <= 0 || indexIds.isEmpty() || folders.size() + tags.size() > MAX_ENTRIES) {
+            return !indexIds.isEmpty();
+        }
+        List<Entry> inFolders = new ArrayList<Entry>(folders.size());
+        for (Folder folder : folders) {
+            inFolders.add(get(new Entry(folder)));
+        }
+        List<Entry> withTags = new ArrayList<Entry>(tags.size());
+        for (Tag tag : tags) {
+            withTags.add(get(new Entry(tag)));
+        }
+        synchronized (this) {
+            for (Iterator<Integer> itr = indexIds.iterator(); itr.hasNext();) {
+                if (!isCandidate(itr.next(), inFolders, withTags)) {
+                    itr.remove();
+                }
+            }
+        }
+        return !indexIds.isEmpty();
+    }
+
+    private static boolean isCandidate(int indexId, List<Entry> inFolders, List<Entry> withTags) {
+        boolean candidate = inFolders.isEmpty();
+        for (Entry entry : inFolders) {
+            if (entry.bits.get(indexId)) {
+                candidate = true;
+                break;
+            }
+        }
+        for (int i = 0; candidate && i < withTags.size(); i++) {
+            candidate = withTags.get(i).bits.get(indexId);
+        }
+        return candidate;
+    }
+
+    /**
+     * Returns the cached entry for the folder or tag, or loads the given one from the DB.
+     */
+    private Entry get(Entry key) throws ServiceException {
+        long gen;
+        synchronized (this) {
+            Entry entry = entries.get(key.id);
+            if (entry != null) {
+                return entry;
+            }
+            gen = generation;
+        }
+
+        DbSearchConstraints.Leaf leaf = new DbSearchConstraints.Leaf();
+        if (key.folder != null) {
+            leaf.folders.add(key.folder);
+        } else {
+            leaf.tags.add(key.tag);
+        }
+        leaf.hasIndexId = Boolean.TRUE;
+        for (DbSearch.Result result : mailbox.index.search(leaf, DbSearch.FetchMode.ID, SortBy.NONE, -1, -1, false)) {
+            int indexId = result.getIndexId();
+            key.bits.set(indexId > MailItem.IndexStatus.STALE.id() ? indexId : result.getId());
+        }
+
+        synchronized (this) {
+            if (gen == generation) {
+                entries.put(key.id, key);
+                if (entries.size() > MAX_ENTRIES) {
+                    Iterator<Integer> itr = entries.keySet().iterator();
+                    itr.next();
+                    itr.remove();
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Applies the changes of a committed transaction. The caller must hold the mailbox write lock.
+     */
+    public synchronized void commit(PendingModifications<MailItem> dirty) {
+        generation++;
+        if (entries.isEmpty() || dirty == null) {
+            return;
+        }
+        if (dirty.created != null) {
+            for (BaseItemInfo info : dirty.created.values()) {
+                if (info instanceof MailItem) {
+                    update((MailItem) info);
+                }
+            }
+        }
+        if (dirty.modified != null) {
+            for (Change chg : dirty.modified.values()) {
+                if (chg.what instanceof Tag && !(chg.what instanceof Flag) && (chg.why & Change.NAME) != 0) {
+                    // tagged items are matched by tag name
+                    entries.remove(((Tag) chg.what).getId());
+                } else if (chg.what instanceof MailItem) {
+                    update((MailItem) chg.what);
+                }
+            }
+        }
+        if (dirty.deleted != null) {
+            for (Change chg : dirty.deleted.values()) {
+                if (chg.preModifyObj instanceof MailItem) {
+                    MailItem item = (MailItem) chg.preModifyObj;
+                    entries.remove(item.getId());
+                    int indexId = getIndexId(item);
+                    if (indexId >= 0) {
+                        for (Iterator<Entry> itr = entries.values().iterator(); itr.hasNext();) {
+                            Entry entry = itr.next();
+                            if (entry.bits.get(indexId) && entry.markStale()) {
+                                itr.remove();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records an item whose index ID was assigned without a change notification, e.g. by deferred indexing.
+     */
+    public synchronized void indexed(MailItem item) {
+        generation++;
+        update(item);
+    }
+
+    /**
+     * Drops all the bitsets, e.g. because every index ID of the mailbox has been reset.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    private void update(MailItem item) {
+        int indexId = getIndexId(item);
+        if (indexId < 0) {
+            return;
+        }
+        for (Iterator<Entry> itr = entries.values().iterator(); itr.hasNext();) {
+            Entry entry = itr.next();
+            if (entry.matches(item)) {
+                entry.bits.set(indexId);
+            } else if (entry.bits.get(indexId) && entry.markStale()) {
+                itr.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the index ID the item is (or will be) indexed under, or -1 if it's not indexable.
+     */
+    private static int getIndexId(MailItem item) {
+        switch (item.getIndexStatus()) {
+            case NO:
+                return -1;
+            case DONE:
+                return item.getIndexId();
+            default: // deferred and stale items are indexed under their own ID
+                return item.getId();
+        }
+    }
+
+    private static final class Entry {
+        final int id;
+        final Folder folder;
+        final Tag tag;
+        final BitSet bits = new BitSet();
+        int stale = 0;
+
+        Entry(Folder folder) {
+            this.id = folder.getId();
+            this.folder = folder;
+            this.tag = null;
+        }
+
+        Entry(Tag tag) {
+            this.id = tag.getId();
+            this.folder = null;
+            this.tag = tag;
+        }
+
+        boolean matches(MailItem item) {
+            if (folder != null) {
+                return item.getFolderId() == id;
+            } else if (tag instanceof Flag) {
+                return (item.getFlagBitmask() & ((Flag) tag).toBitmask()) != 0;
+            } else {
+                return item.isTagged(tag);
+            }
+        }
+
+        /**
+         * Returns true if the bitset has too many stale bits to be worth keeping.
+         */
+        boolean markStale() {
+            if (++stale <= MIN_STALE_BITS) {
+                return false;
+            }
+            boolean drop = stale > bits.cardinality() / 8;
+            if (drop) {
+                ZimbraLog.search.debug("Dropping membership filter id=%d,stale=%d", id, stale);
+            }
+            return drop;
+        }
+    }
+}
@@ -67,7 +67,7 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
     //
     // MSGS_PER_CONV = TOT_MSGS / (TOT_CONVS + TOT_VIRT_CONVS);
     //
-    private static final float MESSAGES_PER_CONV_ESTIMATE = 2.25f;
+    static final float MESSAGES_PER_CONV_ESTIMATE = 2.25f;
 
     // What level of result grouping do we want?  ConversationResult, MessageResult, or DocumentResult?
     private static enum Grouping {
@@ -247,6 +247,23 @@ public abstract class QueryOperation implements Cloneable, ZimbraQueryResults {
      */
     abstract boolean hasAllResults();
 
+    /**
+     * Selectivity estimate of an operation we know nothing about.
+     */
+    static final int SELECTIVITY_UNKNOWN = 1 << 20;
+
+    /**
+     * @return a cheap guess at the number of hits of this QueryOperation, made without running it. Only meaningful
+     * relative to other operations: {@link IntersectionQueryOperation} uses it to run the most selective of its
+     * sub-operations first.
+     */
+    int estimateSelectivity() {
+        if (hasNoResults()) {
+            return 0;
+        }
+        return hasAllResults() ? Integer.MAX_VALUE : SELECTIVITY_UNKNOWN;
+    }
+
     /**
      * Expand "is:local" and "is:remote" queries into in:(folder OR folder OR folder) as appropriate
      *
@@ -0,0 +1,600 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.Closeables;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.BaseItemInfo;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mailbox.Tag;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Per-mailbox cache of search results, for clients re-issuing the same search (e.g. every time the user goes back to a
+ * folder) while nothing has changed.
+ * <p>
+ * The hits a search returned are recorded as item IDs and sort values, keyed by the normalized {@link SearchParams}.
+ * An entry is valid as long as no change committed after the {@code lastChangeId} it was searched at may affect it:
+ * a change to an item in one of the folders the query is restricted to, or to an item of a searched type if the query
+ * isn't restricted to folders, or to the folder and tag hierarchy itself. A valid entry is replayed without touching
+ * Lucene or the DB; the items themselves are fetched lazily through the item cache as usual.
+ * <p>
+ * Only searches whose hits depend on nothing but the local items are cached, i.e. no text, date or remote terms.
+ */
+public final class SearchResultCache {
+    private static final int MAX_ENTRIES = LC.search_result_cache_size.intValue();
+    private static final int MAX_HITS = LC.search_result_cache_max_hits.intValue();
+    private static final int ALL_FOLDER_CHANGES = Change.NAME | Change.FOLDER | Change.PARENT | Change.QUERY |
+            Change.ACL | Change.URL;
+    private static final AtomicLong MEMORY_USAGE = new AtomicLong();
+
+    private final Mailbox mailbox;
+    // normalized search parameters -> results, in access order; guarded by this
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75F, true);
+    // change ID of the last change to the folder and tag hierarchy; guarded by this
+    private int lastHierarchyChange = 0;
+    // folder ID -> change ID of the last change to an item in it; guarded by this
+    private final Map<Integer, Integer> lastFolderChange = new HashMap<Integer, Integer>();
+    // item type -> change ID of the last change to an item of that type; guarded by this
+    private final Map<MailItem.Type, Integer> lastTypeChange = new EnumMap<MailItem.Type, Integer>(MailItem.Type.class);
+
+    public SearchResultCache(Mailbox mbox) {
+        mailbox = mbox;
+    }
+
+    /**
+     * Returns the estimated memory used by the cached results of all the mailboxes.
+     */
+    public static long getMemoryUsage() {
+        return MEMORY_USAGE.get();
+    }
+
+    /**
+     * Returns the normalized search parameters to cache the results of the query under, or null if they may not be
+     * cached.
+     */
+    public String getKey(OperationContext octxt, ZimbraQuery query) {
+        SearchParams params = query.getParams();
+        if (MAX_ENTRIES <= 0 || params.inDumpster() || params.getHopCount() > 0 ||
+                params.getCalItemExpandStart() > 0 || params.getCalItemExpandEnd() > 0 ||
+                params.getOffset() + params.getLimit() > MAX_HITS || !query.dependsOnItemsOnly()) {
+            return null;
+        }
+        switch (params.getFetchMode()) {
+            case NORMAL:
+            case IDS:
+                break;
+            default: // the hits carry data other than the item
+                return null;
+        }
+        switch (params.getSortBy()) {
+            case TASK_DUE_ASC:
+            case TASK_DUE_DESC:
+            case TASK_STATUS_ASC:
+            case TASK_STATUS_DESC:
+            case TASK_PERCENT_COMPLETE_ASC:
+            case TASK_PERCENT_COMPLETE_DESC:
+            case NAME_LOCALIZED_ASC:
+            case NAME_LOCALIZED_DESC:
+                return null;
+            default:
+                break;
+        }
+        Account authAcct = octxt != null ? octxt.getAuthenticatedUser() : null;
+        if (authAcct == null) {
+            try {
+                authAcct = mailbox.getAccount();
+            } catch (ServiceException e) {
+                return null;
+            }
+        }
+        SearchParams.Cursor cursor = params.getCursor();
+        return Joiner.on('\n').useForNull("").join(authAcct.getId(),
+                octxt != null && octxt.isUsingAdminPrivileges(),
+                authAcct.isPrefIncludeTrashInSearch(), authAcct.isPrefIncludeSpamInSearch(),
+                params.getQueryString().trim(), params.getDefaultField(), params.getTypes(), params.getSortBy(),
+                params.getOffset(), params.getLimit(), params.getFetchMode(),
+                params.getIncludeTagDeleted(), params.getIncludeTagMuted(), params.getAllowableTaskStatuses(),
+                params.getTimeZone() == null ? null : params.getTimeZone().getID(), params.getLocale(),
+                cursor == null ? null : cursor.getItemId(), cursor == null ? null : cursor.getSortValue(),
+                cursor == null ? null : cursor.getEndSortValue(), cursor == null ? null : cursor.isIncludeOffset());
+    }
+
+    /**
+     * Returns the cached results for the key, or null if there are none or they may be out of date.
+     *
+     * @param query not yet executed query to fall back to if the cached hits don't cover what the caller asks for
+     */
+    public ZimbraQueryResults get(String key, ZimbraQuery query) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && !isValid(entry)) {
+                remove(key);
+                entry = null;
+            }
+        }
+        ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE.increment(entry == null ? 0 : 100);
+        if (entry == null) {
+            return null;
+        }
+        ZimbraLog.search.debug("Cached results key=%s,hits=%d", key.replace('\n', ','), entry.hits.size());
+        return new CachedQueryResults(entry, query);
+    }
+
+    /**
+     * Wraps the results of the executed query so that the hits the caller goes through are cached when it closes them.
+     *
+     * @param changeId last change ID of the mailbox before the query was executed
+     */
+    public ZimbraQueryResults record(String key, ZimbraQuery query, int changeId, ZimbraQueryResults results) {
+        if (query.hasRemoteTarget()) {
+            return results;
+        }
+        Set<Integer> scope = query.getFolderScope();
+        Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        types.addAll(query.getParams().getTypes());
+        if (types.contains(MailItem.Type.CONVERSATION)) {
+            types.add(MailItem.Type.MESSAGE);
+        }
+        return new RecordingQueryResults(key, new Entry(changeId, scope, types), results);
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        if (!isValid(entry)) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        MEMORY_USAGE.addAndGet(entry.estimateSize(key));
+        if (entries.size() > MAX_ENTRIES) {
+            remove(entries.keySet().iterator().next());
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            MEMORY_USAGE.addAndGet(-entry.estimateSize(key));
+        }
+    }
+
+    private boolean isValid(Entry entry) {
+        if (lastHierarchyChange > entry.changeId) {
+            return false;
+        }
+        if (entry.folderScope != null) {
+            for (Integer folderId : entry.folderScope) {
+                Integer changeId = lastFolderChange.get(folderId);
+                if (changeId != null && changeId > entry.changeId) {
+                    return false;
+                }
+            }
+        } else {
+            for (MailItem.Type type : entry.types) {
+                Integer changeId = lastTypeChange.get(type);
+                if (changeId != null && changeId > entry.changeId) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the folders and types touched by a committed transaction. The caller must hold the mailbox write lock.
+     *
+     * @param changeId last change ID of the mailbox after the transaction
+     */
+    public synchronized void commit(PendingModifications<MailItem> dirty, int changeId) {
+        if (dirty == null) {
+            return;
+        }
+        if (dirty.created != null) {
+            for (BaseItemInfo info : dirty.created.values()) {
+                if (info instanceof Folder || info instanceof Tag) {
+                    lastHierarchyChange = changeId;
+                } else if (info instanceof MailItem) {
+                    touch((MailItem) info, changeId);
+                }
+            }
+        }
+        if (dirty.modified != null) {
+            for (Change chg : dirty.modified.values()) {
+                if (chg.what instanceof Folder || chg.what instanceof Tag) {
+                    // unread counts and such don't matter, names and places do
+                    if ((chg.why & ALL_FOLDER_CHANGES) != 0) {
+                        lastHierarchyChange = changeId;
+                    }
+                } else if (chg.what instanceof MailItem) {
+                    touch((MailItem) chg.what, changeId);
+                    if (chg.preModifyObj instanceof MailItem) {
+                        touch((MailItem) chg.preModifyObj, changeId);
+                    }
+                }
+            }
+        }
+        if (dirty.deleted != null) {
+            for (Change chg : dirty.deleted.values()) {
+                if (chg.preModifyObj instanceof Folder || chg.preModifyObj instanceof Tag) {
+                    lastHierarchyChange = changeId;
+                } else if (chg.preModifyObj instanceof MailItem) {
+                    touch((MailItem) chg.preModifyObj, changeId);
+                } else if (chg.what instanceof MailItem.Type && chg.getFolderId() > 0) {
+                    lastFolderChange.put(chg.getFolderId(), changeId);
+                    lastTypeChange.put((MailItem.Type) chg.what, changeId);
+                } else {
+                    lastHierarchyChange = changeId; // don't know where it was
+                }
+            }
+        }
+    }
+
+    private void touch(MailItem item, int changeId) {
+        lastFolderChange.put(item.getFolderId(), changeId);
+        lastTypeChange.put(item.getType(), changeId);
+    }
+
+    /**
+     * Drops all the cached results, e.g. because the mailbox is evicted from the cache.
+     */
+    public synchronized void clear() {
+        for (Iterator<String> itr = entries.keySet().iterator(); itr.hasNext();) {
+            String key = itr.next();
+            MEMORY_USAGE.addAndGet(-entries.get(key).estimateSize(key));
+            itr.remove();
+        }
+    }
+
+    /**
+     * A hit, as recorded from a {@link MessageHit}, {@link ConversationHit} or {@link ContactHit}.
+     */
+    private static final class CachedHit {
+        final MailItem.Type type;
+        final int id;
+        final Object sortValue;
+        final List<CachedHit> messages; // matching messages of a conversation
+
+        CachedHit(MailItem.Type type, int id, Object sortValue, List<CachedHit> messages) {
+            this.type = type;
+            this.id = id;
+            this.sortValue = sortValue;
+            this.messages = messages;
+        }
+
+        /**
+         * Returns the recorded hit, or null if the hit can't be rebuilt from the item alone.
+         */
+        static CachedHit of(ZimbraHit hit) throws ServiceException {
+            if (hit.getClass() == MessageHit.class) {
+                MessageHit msgHit = (MessageHit) hit;
+                if (msgHit.getMatchedMimePartNames() != null && !msgHit.getMatchedMimePartNames().isEmpty()) {
+                    return null;
+                }
+                return new CachedHit(MailItem.Type.MESSAGE, msgHit.getItemId(), hit.sortValue, null);
+            } else if (hit.getClass() == ConversationHit.class) {
+                List<CachedHit> messages = new ArrayList<CachedHit>();
+                for (MessageHit msgHit : ((ConversationHit) hit).getMessageHits()) {
+                    CachedHit msg = of(msgHit);
+                    if (msg == null) {
+                        return null;
+                    }
+                    messages.add(msg);
+                }
+                return new CachedHit(MailItem.Type.CONVERSATION, hit.getItemId(), hit.sortValue, messages);
+            } else if (hit.getClass() == ContactHit.class) {
+                return new CachedHit(MailItem.Type.CONTACT, hit.getItemId(), hit.sortValue, null);
+            } else {
+                return null;
+            }
+        }
+
+        int estimateSize() {
+            int size = 48 + (sortValue instanceof String ? 40 + ((String) sortValue).length() * 2 : 16);
+            if (messages != null) {
+                for (CachedHit msg : messages) {
+                    size += msg.estimateSize();
+                }
+            }
+            return size;
+        }
+    }
+
+    private static final class Entry {
+        final int changeId;
+        final Set<Integer> folderScope; // null if the query isn't restricted to folders
+        final Set<MailItem.Type> types;
+        // hits [first, first + hits.size()) of the results
+        final List<CachedHit> hits = new ArrayList<CachedHit>();
+        int first = -1;
+        // whether the last hit is the last one of the results
+        boolean exhausted = false;
+        SortBy sortBy;
+        List<QueryInfo> resultInfo;
+        long cursorOffset;
+        boolean preSorted;
+
+        Entry(int changeId, Set<Integer> folderScope, Set<MailItem.Type> types) {
+            this.changeId = changeId;
+            this.folderScope = folderScope;
+            this.types = types;
+        }
+
+        int end() {
+            return first + hits.size();
+        }
+
+        long estimateSize(String key) {
+            long size = 200 + key.length() * 2;
+            for (CachedHit hit : hits) {
+                size += hit.estimateSize();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Records the contiguous window of hits the caller goes through, and caches it on close.
+     */
+    private final class RecordingQueryResults implements ZimbraQueryResults {
+        private final String key;
+        private final Entry entry;
+        private final ZimbraQueryResults results;
+        // hits [entry.first, entry.first + hits.size()); converted on close as conversations gather message hits
+        private final List<ZimbraHit> hits = new ArrayList<ZimbraHit>();
+        private int position = 0; // position of the next hit
+        private boolean recording = true;
+
+        RecordingQueryResults(String key, Entry entry, ZimbraQueryResults results) {
+            this.key = key;
+            this.entry = entry;
+            this.results = results;
+        }
+
+        private ZimbraHit record(int pos, ZimbraHit hit) {
+            if (!recording) {
+                return hit;
+            }
+            if (entry.first < 0) {
+                entry.first = pos;
+            }
+            int end = entry.first + hits.size();
+            if (pos == end) {
+                if (hit == null) {
+                    entry.exhausted = true;
+                } else if (entry.exhausted || hits.size() > MAX_HITS) {
+                    recording = false;
+                } else {
+                    hits.add(hit);
+                }
+            } else if (pos < entry.first || pos > end) {
+                recording = false; // not contiguous
+            }
+            return hit;
+        }
+
+        @Override
+        public void resetIterator() throws ServiceException {
+            results.resetIterator();
+            position = 0;
+        }
+
+        @Override
+        public ZimbraHit getNext() throws ServiceException {
+            ZimbraHit hit = record(position, results.getNext());
+            if (hit != null) {
+                position++;
+            }
+            return hit;
+        }
+
+        @Override
+        public ZimbraHit peekNext() throws ServiceException {
+            return record(position, results.peekNext());
+        }
+
+        @Override
+        public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+            ZimbraHit hit = record(hitNo, results.skipToHit(hitNo));
+            position = hitNo + 1;
+            return hit;
+        }
+
+        @Override
+        public boolean hasNext() throws ServiceException {
+            return peekNext() != null;
+        }
+
+        @Override
+        public SortBy getSortBy() {
+            return results.getSortBy();
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return results.getResultInfo();
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return results.getCursorOffset();
+        }
+
+        @Override
+        public boolean isPreSorted() {
+            return results.isPreSorted();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (recording && entry.first >= 0 && toCachedHits()) {
+                entry.sortBy = results.getSortBy();
+                entry.resultInfo = results.getResultInfo();
+                entry.cursorOffset = results.getCursorOffset();
+                entry.preSorted = results.isPreSorted();
+                put(key, entry);
+            }
+            results.close();
+        }
+
+        private boolean toCachedHits() {
+            try {
+                for (ZimbraHit hit : hits) {
+                    CachedHit cached = CachedHit.of(hit);
+                    if (cached == null) {
+                        return false;
+                    }
+                    entry.hits.add(cached);
+                }
+                return true;
+            } catch (ServiceException e) {
+                ZimbraLog.search.debug("Failed to record hits", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Replays the cached window of hits, and falls back to executing the query if the caller goes outside of it.
+     */
+    private final class CachedQueryResults extends ZimbraQueryResultsImpl {
+        private final Entry entry;
+        private final ZimbraQuery query;
+        private final List<ZimbraHit> hits;
+        private ZimbraQueryResults fallback;
+        private int position = 0; // position of the next hit
+
+        CachedQueryResults(Entry entry, ZimbraQuery query) {
+            super(query.getParams().getTypes(), entry.sortBy, query.getParams().getFetchMode());
+            this.entry = entry;
+            this.query = query;
+            hits = new ArrayList<ZimbraHit>(entry.hits.size());
+            for (CachedHit hit : entry.hits) {
+                hits.add(toHit(hit));
+            }
+        }
+
+        private ZimbraHit toHit(CachedHit hit) {
+            switch (hit.type) {
+                case CONVERSATION:
+                    ConversationHit convHit = getConversationHit(mailbox, hit.id, hit.sortValue);
+                    for (CachedHit msg : hit.messages) {
+                        convHit.addMessageHit((MessageHit) toHit(msg));
+                    }
+                    return convHit;
+                case CONTACT:
+                    return getContactHit(mailbox, hit.id, null, hit.sortValue);
+                default:
+                    return getMessageHit(mailbox, hit.id, null, null, hit.sortValue);
+            }
+        }
+
+        /**
+         * Returns the hit at the position, or switches to the fallback results if it's not cached.
+         */
+        private ZimbraHit hitAt(int pos, boolean advance) throws ServiceException {
+            if (fallback == null) {
+                if (pos >= entry.first && pos < entry.end()) {
+                    return hits.get(pos - entry.first);
+                } else if (pos >= entry.end() && entry.exhausted) {
+                    return null;
+                }
+                ZimbraLog.search.debug("Cached results miss position=%d", pos);
+                fallback = query.execute();
+                if (pos == 0) {
+                    fallback.resetIterator();
+                    return advance ? fallback.getNext() : fallback.peekNext();
+                }
+                fallback.skipToHit(pos - 1);
+            }
+            return advance ? fallback.getNext() : fallback.peekNext();
+        }
+
+        @Override
+        public void resetIterator() throws ServiceException {
+            position = 0;
+            if (fallback != null) {
+                fallback.resetIterator();
+            }
+        }
+
+        @Override
+        public ZimbraHit getNext() throws ServiceException {
+            ZimbraHit hit = hitAt(position, true);
+            if (hit != null) {
+                position++;
+            }
+            return hit;
+        }
+
+        @Override
+        public ZimbraHit peekNext() throws ServiceException {
+            return hitAt(position, false);
+        }
+
+        @Override
+        public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+            if (fallback != null) {
+                position = hitNo + 1;
+                return fallback.skipToHit(hitNo);
+            }
+            position = hitNo;
+            return getNext();
+        }
+
+        @Override
+        public List<QueryInfo> getResultInfo() {
+            return fallback != null ? fallback.getResultInfo() : entry.resultInfo;
+        }
+
+        @Override
+        public long getCursorOffset() {
+            return fallback != null ? fallback.getCursorOffset() : entry.cursorOffset;
+        }
+
+        @Override
+        public boolean isPreSorted() {
+            return entry.preSorted;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Closeables.closeQuietly(fallback);
+        }
+    }
+}
@@ -161,6 +161,15 @@ public final class UnionQueryOperation extends CombiningQueryOperation {
         return false;
     }
 
+    @Override
+    int estimateSelectivity() {
+        long result = 0;
+        for (QueryOperation op : operations) {
+            result += op.estimateSelectivity();
+        }
+        return (int) Math.min(result, Integer.MAX_VALUE);
+    }
+
     @Override
     QueryOperation expandLocalRemotePart(Mailbox mbox) throws ServiceException {
         List<QueryOperation> newList = new ArrayList<QueryOperation>();
@@ -61,4 +61,13 @@ public interface ZimbraIndexSearcher extends Closeable {
      * setDefaultFieldSortScoring(boolean, boolean) to enable scoring.
      */
     public ZimbraTopFieldDocs search(Query query, ZimbraTermsFilter filter, int n, Sort sort) throws IOException;
+
+    /**
+     * Finds the next n hits for query that follow {@code after}, a hit returned by an earlier search of the same query,
+     * filter and sort on this searcher. Sorts by relevance if sort is null.
+     *
+     * @param skip number of hits up to and including {@code after}, for index stores that can only page by offset
+     */
+    public ZimbraTopDocs searchAfter(ZimbraScoreDoc after, int skip, Query query, ZimbraTermsFilter filter, int n,
+            Sort sort) throws IOException;
 }
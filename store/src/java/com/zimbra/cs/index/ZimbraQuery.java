@@ -34,6 +34,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.AccessManager;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.index.query.ConjQuery;
+import com.zimbra.cs.index.query.DateQuery;
 import com.zimbra.cs.index.query.InQuery;
 import com.zimbra.cs.index.query.Query;
 import com.zimbra.cs.index.query.Query.Modifier;
@@ -333,6 +334,70 @@ public final class ZimbraQuery {
         return false;
     }
 
+    /**
+     * Returns true if the hits only depend on the items of the mailbox, i.e. there is no text query, whose hits also
+     * depend on indexing, and no date query, whose hits may also depend on the current time.
+     */
+    boolean dependsOnItemsOnly() {
+        return !hasTextOperation() && !hasDateQuery(clauses);
+    }
+
+    private static boolean hasDateQuery(List<Query> queries) {
+        for (Query query : queries) {
+            if (query instanceof DateQuery) {
+                return true;
+            } else if (query instanceof SubQuery && hasDateQuery(((SubQuery) query).getSubClauses())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the compiled query has any remote part, e.g. a search in a mountpoint.
+     */
+    boolean hasRemoteTarget() {
+        assert operation != null : "not compiled";
+        return QueryTarget.hasExternalTarget(operation.getQueryTargets());
+    }
+
+    /**
+     * Returns the IDs of the folders the compiled query is restricted to, or null if it may match items in any folder.
+     */
+    Set<Integer> getFolderScope() {
+        assert operation != null : "not compiled";
+        return getFolderScope(operation);
+    }
+
+    private static Set<Integer> getFolderScope(QueryOperation op) {
+        if (op instanceof NoResultsQueryOperation) {
+            return new HashSet<Integer>();
+        } else if (op instanceof DBQueryOperation) {
+            return ((DBQueryOperation) op).getFolderScope();
+        } else if (op instanceof UnionQueryOperation) {
+            Set<Integer> result = new HashSet<Integer>();
+            for (QueryOperation sub : ((UnionQueryOperation) op).operations) {
+                Set<Integer> scope = getFolderScope(sub);
+                if (scope == null) {
+                    return null;
+                }
+                result.addAll(scope);
+            }
+            return result;
+        } else if (op instanceof IntersectionQueryOperation) {
+            Set<Integer> result = null;
+            for (QueryOperation sub : ((IntersectionQueryOperation) op).operations) {
+                Set<Integer> scope = getFolderScope(sub);
+                if (scope != null && (result == null || scope.size() < result.size())) {
+                    result = scope;
+                }
+            }
+            return result;
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Returns number of text parts of this query.
      */
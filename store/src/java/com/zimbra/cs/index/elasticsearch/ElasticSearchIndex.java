@@ -27,6 +27,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
@@ -62,6 +67,7 @@ import org.json.JSONObject;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.util.ZimbraLog;
@@ -96,10 +102,26 @@ import com.zimbra.cs.mailbox.Mailbox;
 public final class ElasticSearchIndex extends IndexStore {
 
     private final static String indexType = "zimbra";
+    private final static String BULK_INDEX_ACTION = String.format("{\"index\":{\"_type\":\"%s\"}}", indexType);
     private final Mailbox mailbox;
     private final String key;
     private final String indexUrl;
     private boolean haveMappingInfo = false;
+    private final Object refreshLock = new Object();
+    // number of writes sent to the index, and how many of them the last refresh covered
+    private final AtomicLong writes = new AtomicLong();
+    private volatile long refreshedWrites = 0L;
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+    /**
+     * Runs background refreshes.  They block on HTTP calls, so they get their own small pool rather than a shared
+     * timer; each index has at most one refresh queued at a time.
+     */
+    private static final class RefreshExecutorHolder {
+        static final ScheduledExecutorService EXECUTOR = new ScheduledThreadPoolExecutor(
+                Math.max(1, LC.zimbra_index_elasticsearch_refresh_threads.intValue()),
+                new ThreadFactoryBuilder().setNameFormat("ElasticSearchRefresh-%d").setDaemon(true).build());
+    }
 
     private ElasticSearchIndex(Mailbox mbox) {
         this.mailbox = mbox;
@@ -111,7 +133,9 @@ public final class ElasticSearchIndex extends IndexStore {
         if (haveMappingInfo) {
             return;
         }
-        if (!refreshIndexIfNecessary()) {
+        if (refresh()) {
+            haveMappingInfo = true; // the index already exists
+        } else {
             try {
                 ElasticSearchConnector connector = new ElasticSearchConnector();
                 JSONObject mappingInfo = createMappingInfo();
@@ -121,7 +145,7 @@ public final class ElasticSearchIndex extends IndexStore {
                 int statusCode = connector.executeMethod(putMethod);
                 if (statusCode == HttpStatus.SC_OK) {
                     haveMappingInfo = true;
-                    refreshIndexIfNecessary(); // Sometimes searches don't seem to honor mapping info.  Try to force it
+                    refresh(); // Sometimes searches don't seem to honor mapping info.  Try to force it
                 } else {
                     ZimbraLog.index.error("Problem Setting mapping information for index with key=%s httpstatus=%d",
                             key, statusCode);
@@ -137,10 +161,54 @@ public final class ElasticSearchIndex extends IndexStore {
     }
 
     /**
-     * By default, ElasticSearch refreshes every second (configurable?).  Can force it using this.
-     * TODO: Perhaps only do this if we've written something in the last second?
+     * Makes the writes of this mailbox visible to searches.  ElasticSearch refreshes every second by default, so this
+     * returns at once if nothing has been written since the last refresh we know of.  Otherwise it refreshes the
+     * index, unless a refresh that covers our writes completes while we wait for it.
+     */
+    private void awaitRefresh() {
+        long target = writes.get();
+        if (refreshedWrites >= target) {
+            return;
+        }
+        synchronized (refreshLock) {
+            if (refreshedWrites >= target) {
+                return; // a concurrent refresh covered our writes
+            }
+            long covered = writes.get();
+            if (refresh()) {
+                refreshedWrites = covered;
+            }
+        }
+    }
+
+    /**
+     * Records a write to the index and schedules a background refresh, shared by all the writes made before it runs,
+     * so that searches rarely have to wait for one.
+     */
+    private void wrote() {
+        writes.incrementAndGet();
+        long delay = LC.zimbra_index_elasticsearch_refresh_delay_ms.longValue();
+        if (delay > 0 && refreshScheduled.compareAndSet(false, true)) {
+            RefreshExecutorHolder.EXECUTOR.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refreshScheduled.set(false);
+                    try {
+                        awaitRefresh();
+                    } catch (RuntimeException e) {
+                        ZimbraLog.index.error("Problem refreshing index with key=%s", key, e);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Forces a refresh of the index.
+     *
+     * @return false if the index doesn't exist or couldn't be refreshed
      */
-    private boolean refreshIndexIfNecessary() {
+    private boolean refresh() {
         String url = String.format("%s_refresh", indexUrl);
         GetMethod method = new GetMethod(ElasticSearchConnector.actualUrl(url));
         try {
@@ -373,7 +441,7 @@ public final class ElasticSearchIndex extends IndexStore {
     }
 
     public int getDocCount() {
-        refreshIndexIfNecessary();
+        awaitRefresh();
         String url = String.format("%s%s/docs/", indexUrl, "_stats");
         GetMethod method = new GetMethod(ElasticSearchConnector.actualUrl(url));
         try {
@@ -440,10 +508,25 @@ public final class ElasticSearchIndex extends IndexStore {
         }
     }
 
+    /**
+     * Buffers the documents it is given and sends them to the index in _bulk requests.  A request is sent once the
+     * buffer reaches {@code zimbra_index_elasticsearch_bulk_max_docs} documents or roughly
+     * {@code zimbra_index_elasticsearch_bulk_max_bytes} of JSON, or holds a document older than
+     * {@code zimbra_index_elasticsearch_bulk_max_delay_ms}.  Whatever is still buffered is sent on {@link #close()}.
+     */
     private final class ElasticSearchIndexer implements Indexer {
+        private final int maxBulkDocs = LC.zimbra_index_elasticsearch_bulk_max_docs.intValue();
+        private final int maxBulkBytes = LC.zimbra_index_elasticsearch_bulk_max_bytes.intValue();
+        private final long maxBulkDelay = LC.zimbra_index_elasticsearch_bulk_max_delay_ms.longValue();
+        // an action line followed by a source line for each pending document
+        private final StringBuilder bulk = new StringBuilder();
+        // item ID of each pending document, for logging
+        private final List<Integer> bulkIds = Lists.newArrayList();
+        private long bulkStart;
 
         @Override
         public void close() {
+            flush();
         }
 
         @Override
@@ -456,6 +539,7 @@ public final class ElasticSearchIndex extends IndexStore {
          */
         @Override
         public int maxDocs() {
+            flush();
             return getDocCount();
         }
 
@@ -576,9 +660,6 @@ public final class ElasticSearchIndex extends IndexStore {
             }
 
             for (IndexDocument doc : docs) {
-                // Note: using automatic ID generation
-                String url = String.format("%s%s/", indexUrl, indexType);
-                PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(url));
                 JSONObject jsonObj = new JSONObject();
                 // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
                 synchronized (doc) {
@@ -588,19 +669,66 @@ public final class ElasticSearchIndex extends IndexStore {
                         addFieldToDocument(jsonObj, field);
                     }
                 }
-                try {
-                    method.setRequestEntity(new StringRequestEntity(jsonObj.toString(),
-                            MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
-                    ElasticSearchConnector connector = new ElasticSearchConnector();
-                    int statusCode = connector.executeMethod(method);
-                    if (statusCode != HttpStatus.SC_CREATED) {
-                        ZimbraLog.index.error("Problem indexing document with id=%d httpstatus=%d",
-                                item.getId(), statusCode);
-                    }
-                } catch (HttpException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
-                } catch (IOException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
+                if (bulkIds.isEmpty()) {
+                    bulkStart = System.currentTimeMillis();
+                }
+                // Note: using automatic ID generation
+                bulk.append(BULK_INDEX_ACTION).append('\n').append(jsonObj.toString()).append('\n');
+                bulkIds.add(item.getId());
+                if (bulkIds.size() >= maxBulkDocs || bulk.length() >= maxBulkBytes ||
+                        System.currentTimeMillis() - bulkStart >= maxBulkDelay) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Sends the pending documents to the index in a single _bulk request.
+         */
+        private void flush() {
+            if (bulkIds.isEmpty()) {
+                return;
+            }
+            String url = String.format("%s_bulk", indexUrl);
+            PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(url));
+            try {
+                method.setRequestEntity(new StringRequestEntity(bulk.toString(),
+                        MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
+                ElasticSearchConnector connector = new ElasticSearchConnector();
+                int statusCode = connector.executeMethod(method);
+                if (statusCode == HttpStatus.SC_OK) {
+                    logBulkErrors(connector.getJSONBody());
+                } else {
+                    ZimbraLog.index.error("Problem indexing %d documents httpstatus=%d", bulkIds.size(), statusCode);
+                }
+            } catch (HttpException e) {
+                ZimbraLog.index.error("Problem indexing %d documents", bulkIds.size(), e);
+            } catch (IOException e) {
+                ZimbraLog.index.error("Problem indexing %d documents", bulkIds.size(), e);
+            } catch (JSONException e) {
+                ZimbraLog.index.debug("Problem processing JSON _bulk response against index %s", url, e);
+            } finally {
+                wrote();
+                bulk.setLength(0);
+                bulkIds.clear();
+            }
+        }
+
+        /**
+         * Logs the documents of a _bulk request that failed to index; the response holds one result per document,
+         * in request order.
+         */
+        private void logBulkErrors(JSONObject response) {
+            if (!response.optBoolean("errors", true)) {
+                return;
+            }
+            JSONArray items = response.optJSONArray("items");
+            for (int index = 0; items != null && index < items.length() && index < bulkIds.size(); index++) {
+                JSONObject result = items.optJSONObject(index);
+                JSONObject action = result == null ? null : result.optJSONObject("index");
+                if (action != null && action.has("error")) {
+                    ZimbraLog.index.error("Problem indexing document with id=%d httpstatus=%d error=%s",
+                            bulkIds.get(index), action.optInt("status"), action.optString("error"));
                 }
             }
         }
@@ -610,7 +738,12 @@ public final class ElasticSearchIndex extends IndexStore {
          */
         @Override
         public void deleteDocument(List<Integer> ids) {
-            refreshIndexIfNecessary();
+            if (ids.isEmpty()) {
+                return;
+            }
+            // delete-by-query only sees the documents that have been sent and refreshed
+            flush();
+            awaitRefresh();
             String url = String.format("%s%s/_query", indexUrl, indexType);
             for (Integer id : ids) {
                 DeleteMethod method = new DeleteMethod(ElasticSearchConnector.actualUrl(url));
@@ -632,6 +765,7 @@ public final class ElasticSearchIndex extends IndexStore {
                     ZimbraLog.index.error("Problem deleting documents with id=%d", id);
                 }
             }
+            wrote();
         }
     }
 
@@ -655,7 +789,7 @@ public final class ElasticSearchIndex extends IndexStore {
          */
         @Override
         public int numDeletedDocs() {
-            refreshIndexIfNecessary();
+            awaitRefresh();
             String url = String.format("%s%s/docs/", indexUrl, "_stats");
             GetMethod method = new GetMethod(ElasticSearchConnector.actualUrl(url));
             try {
@@ -692,7 +826,7 @@ public final class ElasticSearchIndex extends IndexStore {
             private final Queue<BrowseTerm> termValues = Lists.newLinkedList();
             private ElasticSearchTermValueEnumeration(String field, String firstTermValue) {
                 List<BrowseTerm> allValues = Lists.newArrayList();
-                refreshIndexIfNecessary();
+                awaitRefresh();
                 String url = String.format("%s_termlist/%s", indexUrl, field);
                 GetMethod method = new GetMethod(ElasticSearchConnector.actualUrl(url));
                 try {
@@ -831,7 +965,7 @@ public final class ElasticSearchIndex extends IndexStore {
                     method.setRequestEntity(new StringRequestEntity(jsonobj.toString(),
                                 MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
                     ElasticSearchConnector connector = new ElasticSearchConnector();
-                    refreshIndexIfNecessary();
+                    awaitRefresh();
                     int statusCode = connector.executeMethod(method);
                     if (statusCode == HttpStatus.SC_OK) {
                         return connector.getIntAtJsonPath(new String[] {"count"}, 0);
@@ -880,7 +1014,7 @@ public final class ElasticSearchIndex extends IndexStore {
                 // Can also specify timeout, from and search_type
                 String url = String.format("%s%s/_search?size=%d", indexUrl, indexType, n);
                 try {
-                    refreshIndexIfNecessary();
+                    awaitRefresh();
                     // Both HTTP GET and HTTP POST can be used to execute search with body.
                     // Since not all clients support GET with body, POST is allowed as well.
                     PostMethod method = new PostMethod(ElasticSearchConnector.actualUrl(url));
@@ -919,6 +1053,20 @@ public final class ElasticSearchIndex extends IndexStore {
          */
         @Override
         public ZimbraTopFieldDocs search(Query query, ZimbraTermsFilter filter, int n, Sort sort) throws IOException {
+            return search(query, filter, 0, n, sort);
+        }
+
+        /**
+         * Pages by offset, skipping the hits up to and including {@code after}.
+         */
+        @Override
+        public ZimbraTopDocs searchAfter(ZimbraScoreDoc after, int skip, Query query, ZimbraTermsFilter filter, int n,
+                Sort sort) throws IOException {
+            return search(query, filter, skip, n, sort);
+        }
+
+        private ZimbraTopFieldDocs search(Query query, ZimbraTermsFilter filter, int from, int n, Sort sort)
+                throws IOException {
             List<ZimbraScoreDoc> scoreDocs = Lists.newArrayList();
             List<SortField> sortFields = Lists.newArrayList();
             if (sort != null) {
@@ -939,8 +1087,8 @@ public final class ElasticSearchIndex extends IndexStore {
             }
             if (requestJson != null) {
                 // Can also specify timeout, from and search_type
-                String url = String.format("%s%s/_search?size=%d", indexUrl, indexType, n);
-                refreshIndexIfNecessary();
+                String url = String.format("%s%s/_search?from=%d&size=%d", indexUrl, indexType, from, n);
+                awaitRefresh();
                 try {
                     // Both HTTP GET and HTTP POST can be used to execute search with body.
                     // Since not all clients support GET with body, POST is allowed as well.
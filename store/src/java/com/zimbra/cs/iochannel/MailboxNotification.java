@@ -27,6 +27,8 @@ import java.util.concurrent.ExecutorService;
 import com.zimbra.common.mailbox.MailboxStore;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxManager.FetchMode;
 import com.zimbra.cs.session.PendingModifications;
 import com.zimbra.cs.session.PendingLocalModifications;
 
@@ -120,6 +122,17 @@ public class MailboxNotification extends Message {
         executor.submit(new Runnable() {
             @Override
             public void run() {
+                // the change was committed on another node, so any items held on the heap are suspect
+                try {
+                    Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(
+                            message.getRecipientAccountId(), FetchMode.ONLY_IF_CACHED);
+                    if (mbox != null) {
+                        mbox.invalidateNearItemCache();
+                    }
+                } catch (ServiceException e) {
+                    log.warn("could not invalidate item cache for account %s", message.getRecipientAccountId(), e);
+                }
+
                 Collection<Session> sessions = SessionCache.getAllSessions(message.getRecipientAccountId());
                 if (sessions == null || sessions.isEmpty()) {
                     log.warn("no active sessions for account %s", message.getRecipientAccountId());
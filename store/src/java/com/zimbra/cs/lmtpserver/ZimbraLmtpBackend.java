@@ -24,21 +24,33 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -87,6 +99,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     private static final Map<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
 
     private final LmtpConfig config;
+    private volatile ExecutorService deliveryExecutor;
 
     public ZimbraLmtpBackend(LmtpConfig lmtpConfig) {
         config = lmtpConfig;
@@ -531,176 +544,15 @@ public class ZimbraLmtpBackend implements LmtpBackend {
 
             // We now know which addresses are valid and which ParsedMessage
             // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd.account != null)
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                if (rd.mbox != null)
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-
-                boolean success = false;
-                try {
-                    if (rd != null) {
-                        switch (rd.action) {
-                        case discard:
-                            ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
-                                    envSender, rcptEmail);
-                            if (rd.account.getPrefMailForwardingAddress() != null) {
-                                // mail forwarding is set up
-                                for (LmtpCallback callback : callbacks) {
-                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                    callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                                }
-                            }
-                            reply = LmtpReply.DELIVERY_OK;
-                            break;
-                        case deliver:
-                            Account account = rd.account;
-                            Mailbox mbox = rd.mbox;
-                            ParsedMessage pm = rd.pm;
-                            List<ItemId> addedMessageIds = null;
-                            ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                            boolean acquiredLock;
-                            try {
-                                // Wait for the lock, up to the timeout
-                                acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                            } catch (InterruptedException e) {
-                                acquiredLock = false;
-                            }
-                            if (!acquiredLock) {
-                                ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                        envSender, rcptEmail);
-                                reply = LmtpReply.TEMPORARY_FAILURE;
-                                break;
-                            }
-                            try {
-                                if (dedupe(pm, mbox)) {
-                                    // message was already delivered to this mailbox
-                                    ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                                } else if (mbox.dedupeForSelfMsg(pm)) {
-                                    ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                                } else if (recipient.getSkipFilters()) {
-                                    msgId = pm.getMessageID();
-                                    int folderId = Mailbox.ID_FOLDER_INBOX;
-                                    if (recipient.getFolder() != null) {
-                                        try {
-                                            Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                            folderId = folder.getId();
-                                        } catch (ServiceException se) {
-                                            if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                                Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                        new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                                folderId = folder.getId();
-                                            } else {
-                                                throw se;
-                                            }
-                                        }
-                                    }
-                                    int flags = Flag.BITMASK_UNREAD;
-                                    if (recipient.getFlags() != null) {
-                                        flags = Flag.toBitmask(recipient.getFlags());
-                                    }
-                                    DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                    dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                    Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                    addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                                } else if (!DebugConfig.disableIncomingFilter) {
-                                    // Get msgid first, to avoid having to reopen and reparse the blob
-                                    // file if Mailbox.addMessageInternal() closes it.
-                                    pm.getMessageID();
-                                    addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                            null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
-                                            Mailbox.ID_FOLDER_INBOX, false, true);
-                                } else {
-                                    pm.getMessageID();
-                                    DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                    dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                    Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                    addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                                }
-                                success = true;
-                                if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                    addToDedupeCache(pm, mbox);
-                                }
-                            } finally {
-                                lock.unlock();
-                            }
-
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                // Execute callbacks
-                                for (LmtpCallback callback : callbacks) {
-                                    for (ItemId id : addedMessageIds) {
-                                        if (id.belongsTo(mbox)) {
-                                            // Message was added to the local mailbox, as opposed to a mountpoint.
-                                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                            try {
-                                                Message msg = mbox.getMessageById(null, id.getId());
-                                                callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                            } catch (Throwable t) {
-                                                if (t instanceof OutOfMemoryError) {
-                                                    Zimbra.halt("LMTP callback failed", t);
-                                                } else {
-                                                    ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            reply = LmtpReply.DELIVERY_OK;
-                            break;
-                        case defer:
-                            // Delivery to mailbox skipped.  Let MTA retry again later.
-                            // This case happens for shared delivery to a mailbox in
-                            // backup mode.
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
-                        }
-                    } else {
-                        // Account or mailbox not found.
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (DeliveryServiceException e) {
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
-                    reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
-                } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                    } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
-                    }
+            int parallelThreads = LC.zimbra_lmtp_parallel_delivery_threads.intValue();
+            if (!shared || mm != null || parallelThreads <= 0 ||
+                    recipients.size() < LC.zimbra_lmtp_parallel_delivery_min_recipients.intValue()) {
+                for (LmtpAddress recipient : recipients) {
+                    deliverMessageToRecipient(recipient, rcptMap.get(recipient), env, blob, sharedDeliveryCtxt, shared, msgId);
                 }
+            } else {
+                deliverMessageInParallel(recipients, rcptMap, env, blob, data, pmAttachIndex, pmNoAttachIndex,
+                        sharedDeliveryCtxt, msgId);
             }
 
             // If this message is being streamed from disk, cache it
@@ -735,6 +587,334 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    /**
+     * Delivers a multi-recipient message to its local recipients on the shared delivery pool.
+     * <p>
+     * Recipients are delivered one at a time until the first successful delivery has stored the blob
+     * and logged it to the redolog (see {@link DeliveryContext#isFirst()}), since every later delivery
+     * links to that copy.  The rest are then grouped by target mailbox and each mailbox is handed to a
+     * worker, so recipients sharing a mailbox are still delivered to in envelope order under the
+     * mailbox delivery lock, while distinct mailboxes are delivered to concurrently.
+     */
+    private void deliverMessageInParallel(List<LmtpAddress> recipients, final Map<LmtpAddress, RecipientDetail> rcptMap,
+            final LmtpEnvelope env, final Blob blob, byte[] data, ParsedMessage pmAttachIndex,
+            ParsedMessage pmNoAttachIndex, final DeliveryContext sharedDeliveryCtxt, final String msgId) {
+        Iterator<LmtpAddress> it = recipients.iterator();
+        while (it.hasNext() && sharedDeliveryCtxt.isFirst()) {
+            LmtpAddress recipient = it.next();
+            deliverMessageToRecipient(recipient, rcptMap.get(recipient), env, blob, sharedDeliveryCtxt, true, msgId);
+        }
+
+        Map<Integer, List<LmtpAddress>> mailboxRecipients = new LinkedHashMap<Integer, List<LmtpAddress>>();
+        while (it.hasNext()) {
+            LmtpAddress recipient = it.next();
+            RecipientDetail rd = rcptMap.get(recipient);
+            if (rd == null || rd.mbox == null) {
+                // nothing to deliver; just record the reply
+                deliverMessageToRecipient(recipient, rd, env, blob, sharedDeliveryCtxt, true, msgId);
+                continue;
+            }
+            List<LmtpAddress> group = mailboxRecipients.get(rd.mbox.getId());
+            if (group == null) {
+                mailboxRecipients.put(rd.mbox.getId(), group = new ArrayList<LmtpAddress>());
+            }
+            group.add(recipient);
+        }
+        if (mailboxRecipients.isEmpty()) {
+            return;
+        }
+
+        ParsedMessagePool attachIndexPool = new ParsedMessagePool(pmAttachIndex, blob, data, true);
+        ParsedMessagePool noAttachIndexPool = new ParsedMessagePool(pmNoAttachIndex, blob, data, false);
+        final Map<String, String> logContext = ZimbraLog.getContextMap();
+        final Thread caller = Thread.currentThread();
+        List<Future<?>> tasks = new ArrayList<Future<?>>(mailboxRecipients.size());
+        for (final List<LmtpAddress> group : mailboxRecipients.values()) {
+            final ParsedMessagePool pool =
+                    rcptMap.get(group.get(0)).pm == pmAttachIndex ? attachIndexPool : noAttachIndexPool;
+            tasks.add(getDeliveryExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    boolean handedOff = Thread.currentThread() != caller;
+                    if (handedOff) {
+                        for (Map.Entry<String, String> entry : logContext.entrySet()) {
+                            ZimbraLog.addToContext(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    ParsedMessage pm = null;
+                    try {
+                        pm = pool.borrow();
+                        for (LmtpAddress recipient : group) {
+                            RecipientDetail rd = rcptMap.get(recipient);
+                            rd.pm = pm;
+                            deliverMessageToRecipient(recipient, rd, env, blob, sharedDeliveryCtxt, true, msgId);
+                        }
+                    } catch (ServiceException e) {
+                        ZimbraLog.lmtp.warn("unable to parse message for parallel delivery (temporary failure)", e);
+                    } finally {
+                        if (pm != null) {
+                            pool.release(pm);
+                        }
+                        if (handedOff) {
+                            ZimbraLog.clearContext();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            try {
+                Uninterruptibles.getUninterruptibly(task);
+            } catch (ExecutionException e) {
+                ZimbraLog.lmtp.warn("parallel delivery task failed", e.getCause());
+            }
+        }
+        for (List<LmtpAddress> group : mailboxRecipients.values()) {
+            for (LmtpAddress recipient : group) {
+                if (recipient.getDeliveryStatus() == null) {
+                    recipient.setDeliveryStatus(LmtpReply.TEMPORARY_FAILURE);
+                }
+            }
+        }
+    }
+
+    private static final class DeliveryExecutorHolder {
+        static final ExecutorService EXECUTOR = new ThreadPoolExecutor(
+                Math.max(1, LC.zimbra_lmtp_parallel_delivery_threads.intValue()),
+                Math.max(1, LC.zimbra_lmtp_parallel_delivery_threads.intValue()),
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build());
+    }
+
+    /** Runs parallel deliveries on the shared pool, unless a test supplied its own. */
+    @VisibleForTesting
+    void setDeliveryExecutor(ExecutorService executor) {
+        deliveryExecutor = executor;
+    }
+
+    private ExecutorService getDeliveryExecutor() {
+        ExecutorService executor = deliveryExecutor;
+        return executor != null ? executor : DeliveryExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Hands out {@link ParsedMessage}s to parallel delivery tasks.  A ParsedMessage is not thread-safe
+     * (and sieve {@code editheader} actions modify it), so each task borrows one for its mailbox.  The
+     * instance parsed up front is handed out first and further copies are only parsed from the staged
+     * blob when more tasks run at once, so a delivery parses the message at most once per worker.
+     */
+    private static final class ParsedMessagePool {
+        private final Queue<ParsedMessage> idle = new ConcurrentLinkedQueue<ParsedMessage>();
+        private final Blob blob;
+        private final byte[] data;
+        private final boolean attachmentIndexing;
+
+        ParsedMessagePool(ParsedMessage parsed, Blob blob, byte[] data, boolean attachmentIndexing) {
+            if (parsed != null) {
+                idle.add(parsed);
+            }
+            this.blob = blob;
+            this.data = data;
+            this.attachmentIndexing = attachmentIndexing;
+        }
+
+        ParsedMessage borrow() throws ServiceException {
+            ParsedMessage pm = idle.poll();
+            if (pm != null) {
+                return pm;
+            }
+            try {
+                return new ParsedMessage(new ParsedMessageOptions(blob, data).setAttachmentIndexing(attachmentIndexing));
+            } catch (IOException e) {
+                throw ServiceException.FAILURE("error parsing incoming message", e);
+            }
+        }
+
+        void release(ParsedMessage pm) {
+            idle.add(pm);
+        }
+    }
+
+    /**
+     * Delivers the message to a single local recipient and records the LMTP reply on the
+     * {@link LmtpAddress}.  Called from the LMTP thread, or from a delivery worker in parallel mode,
+     * in which case {@code rd.pm} is owned by the calling task.
+     */
+    private void deliverMessageToRecipient(LmtpAddress recipient, RecipientDetail rd, LmtpEnvelope env, Blob blob,
+            DeliveryContext sharedDeliveryCtxt, boolean shared, String msgId) {
+        String envSender = env.getSender().getEmailAddress();
+        String rcptEmail = recipient.getEmailAddress();
+        LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+        if (rd != null && rd.account != null)
+            ZimbraLog.addAccountNameToContext(rd.account.getName());
+        if (rd != null && rd.mbox != null)
+            ZimbraLog.addMboxToContext(rd.mbox.getId());
+
+        boolean success = false;
+        try {
+            if (rd != null) {
+                switch (rd.action) {
+                case discard:
+                    ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                            envSender, rcptEmail);
+                    if (rd.account.getPrefMailForwardingAddress() != null) {
+                        // mail forwarding is set up
+                        for (LmtpCallback callback : callbacks) {
+                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                            callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case deliver:
+                    Account account = rd.account;
+                    Mailbox mbox = rd.mbox;
+                    ParsedMessage pm = rd.pm;
+                    List<ItemId> addedMessageIds = null;
+                    ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+                    boolean acquiredLock;
+                    try {
+                        // Wait for the lock, up to the timeout
+                        acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        acquiredLock = false;
+                    }
+                    if (!acquiredLock) {
+                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                                envSender, rcptEmail);
+                        reply = LmtpReply.TEMPORARY_FAILURE;
+                        break;
+                    }
+                    try {
+                        if (dedupe(pm, mbox)) {
+                            // message was already delivered to this mailbox
+                            ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+                        } else if (mbox.dedupeForSelfMsg(pm)) {
+                            ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                                pm.getMessageID());
+
+                        } else if (recipient.getSkipFilters()) {
+                            msgId = pm.getMessageID();
+                            int folderId = Mailbox.ID_FOLDER_INBOX;
+                            if (recipient.getFolder() != null) {
+                                try {
+                                    Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                                    folderId = folder.getId();
+                                } catch (ServiceException se) {
+                                    if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                                        Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                                new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                                        folderId = folder.getId();
+                                    } else {
+                                        throw se;
+                                    }
+                                }
+                            }
+                            int flags = Flag.BITMASK_UNREAD;
+                            if (recipient.getFlags() != null) {
+                                flags = Flag.toBitmask(recipient.getFlags());
+                            }
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+                            dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        } else if (!DebugConfig.disableIncomingFilter) {
+                            // Get msgid first, to avoid having to reopen and reparse the blob
+                            // file if Mailbox.addMessageInternal() closes it.
+                            pm.getMessageID();
+                            addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                                    null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
+                                    Mailbox.ID_FOLDER_INBOX, false, true);
+                        } else {
+                            pm.getMessageID();
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+                            dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        }
+                        success = true;
+                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                            addToDedupeCache(pm, mbox);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                        // Execute callbacks
+                        for (LmtpCallback callback : callbacks) {
+                            for (ItemId id : addedMessageIds) {
+                                if (id.belongsTo(mbox)) {
+                                    // Message was added to the local mailbox, as opposed to a mountpoint.
+                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                    try {
+                                        Message msg = mbox.getMessageById(null, id.getId());
+                                        callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                    } catch (Throwable t) {
+                                        if (t instanceof OutOfMemoryError) {
+                                            Zimbra.halt("LMTP callback failed", t);
+                                        } else {
+                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case defer:
+                    // Delivery to mailbox skipped.  Let MTA retry again later.
+                    // This case happens for shared delivery to a mailbox in
+                    // backup mode.
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+            } else {
+                // Account or mailbox not found, or the lookup failed.  The whole
+                // envelope used to be deferred in this case, so keep deferring
+                // this recipient rather than bouncing it.
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s: account or mailbox not found",
+                        envSender, rcptEmail);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+            }
+        } catch (DeliveryServiceException e) {
+            ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
+            reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
+        } catch (ServiceException e) {
+            if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                if (config.isPermanentFailureWhenOverQuota()) {
+                    reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
+                } else {
+                    reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+                }
+            } else if (e.isReceiversFault()) {
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+            } else {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (Exception e) {
+            reply = LmtpReply.TEMPORARY_FAILURE;
+            ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+        } finally {
+            if (rd != null && rd.action == DeliveryAction.deliver && !success) {
+                // Message was not delivered.  Remove it from the dedupe
+                // cache so we don't dedupe it on LMTP retry.
+                removeFromDedupeCache(msgId, rd.mbox);
+            }
+            recipient.setDeliveryStatus(reply);
+            if (shared && rd != null && rd.esd) {
+                rd.mbox.endSharedDelivery();
+                rd.esd = false;
+            }
+        }
+    }
+
     private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
         Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
         for (String server : serverToRecipientsMap.keySet()) {
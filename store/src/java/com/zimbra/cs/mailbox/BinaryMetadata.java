@@ -0,0 +1,361 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Compact binary encoding of {@link Metadata}, laid out so that a single key can be read without decoding
+ * the rest of the structure.
+ * <p>
+ * The first byte is the format version; the rest is one value:
+ * <pre>
+ *   dict:   'd' varint(content length) varint(count) { varint(key length) key-utf8 value }*
+ *   list:   'l' varint(content length) varint(count) value*
+ *   long:   'i' zigzag-varint
+ *   string: 's' varint(length) utf8
+ * </pre>
+ * Like <tt>BEncoding</tt>, dictionary keys are written in sorted order, null keys and values are dropped, and
+ * anything that isn't a map, a list or an integral number is written as its <tt>toString()</tt>.  Where a
+ * <tt>String</tt> is needed (e.g. the <tt>mail_item.metadata</tt> column) the bytes are Base64 encoded behind
+ * a {@link #STRING_PREFIX} that can't start a BEncoded dictionary or a legacy <tt>BlobMetaData</tt> string.
+ */
+final class BinaryMetadata {
+
+    static final byte VERSION = 1;
+    static final char STRING_PREFIX = '~';
+
+    private static final byte TYPE_DICT = 'd';
+    private static final byte TYPE_LIST = 'l';
+    private static final byte TYPE_LONG = 'i';
+    private static final byte TYPE_STRING = 's';
+
+    private BinaryMetadata() {
+    }
+
+    /** Returns whether newly written metadata should use this encoding rather than BEncoding. */
+    static boolean isEnabled() {
+        return LC.zimbra_metadata_binary_encoding.booleanValue();
+    }
+
+    static boolean isEncoded(String encoded) {
+        return encoded != null && !encoded.isEmpty() && encoded.charAt(0) == STRING_PREFIX;
+    }
+
+    static boolean isEncoded(byte[] encoded) {
+        return encoded != null && encoded.length > 1 && encoded[0] == VERSION && encoded[1] == TYPE_DICT;
+    }
+
+    static String encodeToString(Map<?, ?> map) {
+        return STRING_PREFIX + Base64.getEncoder().encodeToString(encode(map));
+    }
+
+    /**
+     * Returns the bytes behind a string produced by {@link #encodeToString}.  The root dictionary starts at
+     * offset 1.
+     */
+    static byte[] decodeString(String encoded) throws MailServiceException {
+        byte[] buf;
+        try {
+            buf = Base64.getDecoder().decode(encoded.substring(1));
+        } catch (IllegalArgumentException e) {
+            throw MailServiceException.INVALID_METADATA(encoded, e);
+        }
+        checkHeader(buf, encoded);
+        return buf;
+    }
+
+    static void checkHeader(byte[] buf, String forError) throws MailServiceException {
+        if (!isEncoded(buf)) {
+            throw MailServiceException.INVALID_METADATA(forError,
+                    new IllegalArgumentException("unsupported binary metadata version"));
+        }
+    }
+
+    static byte[] encode(Map<?, ?> map) {
+        Buffer out = new Buffer(256);
+        out.write(VERSION);
+        writeValue(out, map);
+        return out.toByteArray();
+    }
+
+    private static void writeValue(Buffer out, Object value) {
+        if (value instanceof Map) {
+            SortedMap<?, ?> tree = value instanceof SortedMap ?
+                    (SortedMap<?, ?>) value : new TreeMap<Object, Object>((Map<?, ?>) value);
+            Buffer content = new Buffer(64);
+            int count = 0;
+            for (Map.Entry<?, ?> entry : tree.entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    writeBytes(content, entry.getKey().toString().getBytes(Charsets.UTF_8));
+                    writeValue(content, entry.getValue());
+                    count++;
+                }
+            }
+            writeContainer(out, TYPE_DICT, count, content);
+        } else if (value instanceof List) {
+            Buffer content = new Buffer(64);
+            int count = 0;
+            for (Object elt : (List<?>) value) {
+                if (elt != null) {
+                    writeValue(content, elt);
+                    count++;
+                }
+            }
+            writeContainer(out, TYPE_LIST, count, content);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            out.write(TYPE_LONG);
+            writeVarint(out, (l << 1) ^ (l >> 63));
+        } else {
+            out.write(TYPE_STRING);
+            writeBytes(out, value.toString().getBytes(Charsets.UTF_8));
+        }
+    }
+
+    private static void writeContainer(Buffer out, byte type, int count, Buffer content) {
+        Buffer counted = new Buffer(5 + content.size());
+        writeVarint(counted, count);
+        counted.write(content.buf, 0, content.size());
+        out.write(type);
+        writeVarint(out, counted.size());
+        out.write(counted.buf, 0, counted.size());
+    }
+
+    private static void writeBytes(Buffer out, byte[] bytes) {
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(Buffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((byte) value);
+    }
+
+    /** Minimal growable byte buffer; unlike <tt>ByteArrayOutputStream</tt> it isn't synchronized. */
+    private static final class Buffer {
+        byte[] buf;
+        int count;
+
+        Buffer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void write(byte b) {
+            ensure(1);
+            buf[count++] = b;
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        private void ensure(int len) {
+            if (count + len > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+            }
+        }
+
+        int size() {
+            return count;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    /** Cursor over an encoded buffer. */
+    private static final class Reader {
+        final byte[] buf;
+        int pos;
+
+        Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        long readVarint() {
+            long result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+        }
+
+        int readLength() {
+            return (int) readVarint();
+        }
+
+        String readString() {
+            int len = readLength();
+            String s = new String(buf, pos, len, Charsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        void skipValue() {
+            byte type = buf[pos++];
+            switch (type) {
+                case TYPE_LONG:
+                    readVarint();
+                    break;
+                default: {  // dicts, lists and strings are all length-prefixed
+                    int len = readLength();
+                    pos += len;
+                    break;
+                }
+            }
+        }
+
+        Object readValue() {
+            byte type = buf[pos++];
+            switch (type) {
+                case TYPE_DICT: {
+                    readLength();
+                    int count = readLength();
+                    Map<Object, Object> map = new HashMap<Object, Object>(count * 4 / 3 + 1);
+                    for (int i = 0; i < count; i++) {
+                        String key = readString();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                }
+                case TYPE_LIST: {
+                    readLength();
+                    int count = readLength();
+                    List<Object> list = new ArrayList<Object>(count);
+                    for (int i = 0; i < count; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                }
+                case TYPE_LONG: {
+                    long zigzag = readVarint();
+                    return Long.valueOf((zigzag >>> 1) ^ -(zigzag & 1));
+                }
+                case TYPE_STRING:
+                    return readString();
+                default:
+                    throw new IllegalStateException("unknown binary metadata type " + type + " at offset " + (pos - 1));
+            }
+        }
+
+        /** Positions the cursor at the count of the dictionary starting at the cursor. */
+        void enterDict() {
+            if (buf[pos++] != TYPE_DICT) {
+                throw new IllegalStateException("no binary metadata dictionary at offset " + (pos - 1));
+            }
+            readLength();
+        }
+
+        boolean keyEquals(int len, String key) {
+            if (len < key.length()) {
+                return false;
+            }
+            for (int i = 0; i < key.length(); i++) {
+                char c = key.charAt(i);
+                if (c >= 0x80) {
+                    return Arrays.equals(Arrays.copyOfRange(buf, pos, pos + len), key.getBytes(Charsets.UTF_8));
+                }
+                if (buf[pos + i] != (byte) c) {
+                    return false;
+                }
+            }
+            return len == key.length();
+        }
+    }
+
+    /** Decodes the whole dictionary at {@code dictPos}. */
+    @SuppressWarnings("unchecked")
+    static Map<Object, Object> decodeDict(byte[] buf, int dictPos) {
+        return (Map<Object, Object>) new Reader(buf, dictPos).readValue();
+    }
+
+    /** Returns the number of entries in the dictionary at {@code dictPos}. */
+    static int dictSize(byte[] buf, int dictPos) {
+        Reader in = new Reader(buf, dictPos);
+        in.enterDict();
+        return in.readLength();
+    }
+
+    /**
+     * Returns the offset of the value stored under {@code key} in the dictionary at {@code dictPos}, or -1.
+     * Other entries are skipped over without being decoded.
+     */
+    static int find(byte[] buf, int dictPos, String key) {
+        Reader in = new Reader(buf, dictPos);
+        in.enterDict();
+        int count = in.readLength();
+        for (int i = 0; i < count; i++) {
+            int keyLen = in.readLength();
+            boolean match = in.keyEquals(keyLen, key);
+            in.pos += keyLen;
+            if (match) {
+                return in.pos;
+            }
+            in.skipValue();
+        }
+        return -1;
+    }
+
+    static boolean isDict(byte[] buf, int pos) {
+        return buf[pos] == TYPE_DICT;
+    }
+
+    /** Decodes the (scalar or container) value at {@code pos}. */
+    static Object decodeValue(byte[] buf, int pos) {
+        return new Reader(buf, pos).readValue();
+    }
+
+    /**
+     * Returns the value at {@code pos} the way {@link Metadata#get(String, String)} would print it, without
+     * building a <tt>Long</tt> for integers.
+     */
+    static String decodeScalarAsString(byte[] buf, int pos) {
+        Reader in = new Reader(buf, pos);
+        switch (buf[pos]) {
+            case TYPE_STRING:
+                in.pos++;
+                return in.readString();
+            case TYPE_LONG:
+                in.pos++;
+                long zigzag = in.readVarint();
+                return Long.toString((zigzag >>> 1) ^ -(zigzag & 1));
+            default:
+                return in.readValue().toString();
+        }
+    }
+}
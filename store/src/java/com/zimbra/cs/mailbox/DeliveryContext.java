@@ -20,6 +20,7 @@
  */
 package com.zimbra.cs.mailbox;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -37,11 +38,12 @@ import com.zimbra.cs.store.MailboxBlob;
  */
 public class DeliveryContext {
 
+    // the context is shared by concurrent deliveries when LMTP delivers to several mailboxes in parallel
     private boolean mShared;
-    private Blob mIncomingBlob;
-    private MailboxBlob mMailboxBlob;
+    private volatile Blob mIncomingBlob;
+    private volatile MailboxBlob mMailboxBlob;
     private List<Integer> mMailboxIdList;
-    private boolean mIsFirst = true;
+    private volatile boolean mIsFirst = true;
     private Map <Integer,Blob> mailBoxBlobMap;
 
     /**
@@ -63,7 +65,7 @@ public class DeliveryContext {
         mMailboxBlob = null;
         mMailboxIdList = mboxIdList;
         if (mShared) {
-            mailBoxBlobMap =  new HashMap<Integer,Blob>();
+            mailBoxBlobMap = Collections.synchronizedMap(new HashMap<Integer,Blob>());
         }
     }
 
@@ -40,6 +40,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -48,6 +49,7 @@ import java.util.regex.Pattern;
 import javax.mail.Address;
 import javax.mail.internet.MimeMessage;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
@@ -57,6 +59,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 import com.zimbra.client.ZMailbox.Options;
@@ -597,18 +600,102 @@ public class Mailbox implements MailboxStore {
         }
     }
 
-    private static class ItemCache {
-        private final Map<Integer /* id */, MailItem> mapById;
-        private final Map<String /* uuid */, Integer /* id */> uuid2id;
+    @VisibleForTesting
+    static class ItemCache {
+        private final ConcurrentLinkedHashMap<Integer /* id */, MailItem> mapById;
+        private final ConcurrentMap<String /* uuid */, Integer /* id */> uuid2id;
         private final Mailbox mbox;
         private boolean isAlwaysOn = false;
+        /** In always-on mode, keep recently used items on the heap in front of memcached. */
+        private boolean nearCache = false;
+        /** Mailbox change id and item cache checkpoint that the near-cache contents are valid for. */
+        private volatile int nearChangeId = -1;
+        private volatile int nearCheckpoint = -1;
 
         public ItemCache(Mailbox mbox) {
-            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
+            this(mbox, Zimbra.isAlwaysOn(), LC.zimbra_mailbox_memcached_near_cache.booleanValue());
+        }
+
+        @VisibleForTesting
+        ItemCache(Mailbox mbox, boolean isAlwaysOn, boolean nearCache) {
             uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
+            // keep uuid2id no larger than mapById
+            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
+                            MAX_ITEM_CACHE_WITH_LISTENERS).listener(new EvictionListener<Integer, MailItem>() {
+                                @Override
+                                public void onEviction(Integer id, MailItem item) {
+                                    String uuid = item.getUuid();
+                                    if (uuid != null) {
+                                        uuid2id.remove(uuid, id);
+                                    }
+                                }
+                            }).build();
             this.mbox = mbox;
-            this.isAlwaysOn = Zimbra.isAlwaysOn();
+            this.isAlwaysOn = isAlwaysOn;
+            this.nearCache = isAlwaysOn && nearCache;
+        }
+
+        /**
+         * Drops the near-cache contents if the mailbox has moved past the change id they were
+         * cached at, i.e. if another cluster node has committed a change since.
+         */
+        private void validateNearCache() {
+            int changeId = mbox.mData.lastChangeId;
+            int checkpoint = mbox.mData.itemcacheCheckpoint;
+            if (changeId != nearChangeId || checkpoint != nearCheckpoint) {
+                mapById.clear();
+                uuid2id.clear();
+                nearChangeId = changeId;
+                nearCheckpoint = checkpoint;
+            }
+        }
+
+        /**
+         * Called once a local change has been committed.  Every item it touched went through
+         * {@link #put} or {@link #remove}, so near-cache contents that were current before the
+         * change are still current after it.
+         */
+        void advanceNearCache(int priorChangeId, int newChangeId) {
+            if (nearCache && nearChangeId == priorChangeId && nearCheckpoint == mbox.mData.itemcacheCheckpoint) {
+                nearChangeId = newChangeId;
+            }
+        }
+
+        /** Forces the near-cache to be dropped on its next access. */
+        void invalidateNearCache() {
+            nearChangeId = -1;
+        }
+
+        boolean isNearCache() {
+            return nearCache;
+        }
+
+        /**
+         * Evicts the least recently used items from the near-cache until no more than {@code sizeTarget} remain.
+         * Unlike {@link Mailbox#uncache}, this leaves memcached alone.
+         */
+        void trimNearCache(int sizeTarget) {
+            mapById.setCapacity(sizeTarget);
+        }
+
+        private void putNear(MailItem item) {
+            int id = item.getId();
+            mapById.put(id, item);
+            String uuid = item.getUuid();
+            if (uuid != null) {
+                uuid2id.put(uuid, id);
+            }
+        }
+
+        private MailItem removeNear(int id) {
+            MailItem removed = mapById.remove(id);
+            if (removed != null) {
+                String uuid = removed.getUuid();
+                if (uuid != null) {
+                    uuid2id.remove(uuid);
+                }
+            }
+            return removed;
         }
 
         public void put(MailItem item) {
@@ -618,24 +705,33 @@ public class Mailbox implements MailboxStore {
                 } catch (ServiceException e) {
                     ZimbraLog.mailbox.error("error while writing item to cache", e);
                 }
-            } else {
-                int id = item.getId();
-                mapById.put(id, item);
-                String uuid = item.getUuid();
-                if (uuid != null) {
-                    uuid2id.put(uuid, id);
+                if (nearCache) {
+                    validateNearCache();
+                    putNear(item);
                 }
+            } else {
+                putNear(item);
             }
         }
 
         public MailItem get(int id) {
             if (isAlwaysOn) {
                 MailItem item = null;
+                if (nearCache) {
+                    validateNearCache();
+                    item = mapById.get(id);
+                    if (item != null) {
+                        return item;
+                    }
+                }
                 try {
                     item = MemcachedItemCache.getInstance().get(mbox, id);
                 } catch (ServiceException e) {
                     ZimbraLog.mailbox.error("error while fetching item from cache", e);
                 }
+                if (item != null && nearCache) {
+                    putNear(item);
+                }
                 return item;
             } else {
                 return mapById.get(id);
@@ -645,11 +741,22 @@ public class Mailbox implements MailboxStore {
         public MailItem get(String uuid) {
             if (isAlwaysOn) {
                 MailItem item = null;
+                if (nearCache) {
+                    validateNearCache();
+                    Integer id = uuid2id.get(uuid);
+                    item = id != null ? mapById.get(id) : null;
+                    if (item != null) {
+                        return item;
+                    }
+                }
                 try {
                     item = MemcachedItemCache.getInstance().get(mbox, uuid);
                 } catch (ServiceException e) {
                     ZimbraLog.mailbox.error("error while fetching item from cache", e);
                 }
+                if (item != null && nearCache) {
+                    putNear(item);
+                }
                 return item;
             } else {
                 // Always fetch item from mapById map to preserve LRU's access time ordering.
@@ -664,6 +771,9 @@ public class Mailbox implements MailboxStore {
 
         public MailItem remove(int id) {
             if (isAlwaysOn) {
+                if (nearCache) {
+                    removeNear(id);
+                }
                 MailItem removed = null;
                 try {
                     removed = MemcachedItemCache.getInstance().remove(mbox, id);
@@ -672,19 +782,18 @@ public class Mailbox implements MailboxStore {
                 }
                 return removed;
             } else {
-                MailItem removed = mapById.remove(id);
-                if (removed != null) {
-                    String uuid = removed.getUuid();
-                    if (uuid != null) {
-                        uuid2id.remove(uuid);
-                    }
-                }
-                return removed;
+                return removeNear(id);
             }
         }
 
         public boolean contains(MailItem item) {
             if (isAlwaysOn) {
+                if (nearCache) {
+                    validateNearCache();
+                    if (mapById.containsKey(item.getId())) {
+                        return true;
+                    }
+                }
                 try {
                     return MemcachedItemCache.getInstance().get(mbox, item.getId()) != null;
                 } catch (ServiceException e) {
@@ -697,7 +806,7 @@ public class Mailbox implements MailboxStore {
         }
 
         public Collection<MailItem> values() {
-            if (isAlwaysOn) {
+            if (isAlwaysOn && !nearCache) {
                 // return empty list
                 return Collections.emptyList();
             } else {
@@ -706,7 +815,7 @@ public class Mailbox implements MailboxStore {
         }
 
         public int size() {
-            if (isAlwaysOn) {
+            if (isAlwaysOn && !nearCache) {
                 return 0;
             } else {
                 return mapById.size();
@@ -740,6 +849,8 @@ public class Mailbox implements MailboxStore {
     private MailboxData mData;
     private final ThreadLocal<MailboxChange> threadChange = new ThreadLocal<MailboxChange>();
     private final List<Session> mListeners = new CopyOnWriteArrayList<Session>();
+    private final MailboxNotificationDispatcher notificationDispatcher =
+            new MailboxNotificationDispatcher(this, mListeners);
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
@@ -1208,6 +1319,17 @@ public class Mailbox implements MailboxStore {
         return mData.itemcacheCheckpoint;
     }
 
+    /**
+     * Drops any items held on the heap in front of the shared memcached item cache.  Used when
+     * another cluster node reports a change to this mailbox.
+     */
+    public void invalidateNearItemCache() {
+        ItemCache cache = mItemCache.get();
+        if (cache != null) {
+            cache.invalidateNearCache();
+        }
+    }
+
     /**
      * Returns the change sequence number for the most recent transaction.  This will be either the change number
      * for the current transaction or, if no database changes have yet been made in this transaction, the sequence
@@ -6632,6 +6754,7 @@ public class Mailbox implements MailboxStore {
         try {
             beginTransaction("resetIndex", null);
             DbMailItem.resetIndexId(getOperationConnection(), this);
+            index.getMembershipFilterCache().clear();
             success = true;
         } finally {
             endTransaction(success);
@@ -9830,9 +9953,17 @@ public class Mailbox implements MailboxStore {
                 mData.contacts = change.contacts;
             }
             if (change.changeId != MailboxChange.NO_CHANGE && change.changeId > mData.lastChangeId) {
+                if (change.itemCache != null) {
+                    change.itemCache.advanceNearCache(mData.lastChangeId, change.changeId);
+                }
                 mData.lastChangeId = change.changeId;
                 mData.lastChangeDate = change.timestamp;
             }
+            if (dirty != null || change.hasChanges()) {
+                // keep the search membership filters and cached results in step with what was just committed
+                index.getMembershipFilterCache().commit(dirty);
+                index.getSearchResultCache().commit(dirty, mData.lastChangeId);
+            }
             if (change.accessed != MailboxChange.NO_CHANGE) {
                 mData.lastWriteDate = change.accessed;
             }
@@ -9883,7 +10014,10 @@ public class Mailbox implements MailboxStore {
             change.reset();
         }
 
-        if (notification != null) {
+        if (notification != null && MailboxNotificationDispatcher.isEnabled()) {
+            // hand off in commit order; delivery happens on the notification pool
+            notificationDispatcher.enqueue(notification, source);
+        } else if (notification != null) {
             for (Session session : mListeners) {
                 try {
                     session.notifyPendingChanges(notification.mods, notification.lastChangeId, source);
@@ -9950,6 +10084,9 @@ public class Mailbox implements MailboxStore {
             ItemCache cache = currentChange().itemCache;
             if (cache == null) {
                 return;
+            } else if (cache.isNearCache()) {
+                cache.trimNearCache(sizeTarget);
+                return;
             }
 
             int excess = cache.size() - sizeTarget;
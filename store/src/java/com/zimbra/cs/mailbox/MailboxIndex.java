@@ -64,8 +64,10 @@ import com.zimbra.cs.index.IndexStore;
 import com.zimbra.cs.index.Indexer;
 import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.LuceneIndex;
+import com.zimbra.cs.index.MembershipFilterCache;
 import com.zimbra.cs.index.ReSortingQueryResults;
 import com.zimbra.cs.index.SearchParams;
+import com.zimbra.cs.index.SearchResultCache;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraAnalyzer;
 import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
@@ -102,6 +104,8 @@ public final class MailboxIndex {
     private final Semaphore indexLock = new Semaphore(1);
     private final Mailbox mailbox;
     private final Analyzer analyzer;
+    private final MembershipFilterCache membershipFilters;
+    private final SearchResultCache searchResults;
     private IndexStore indexStore;
     // current re-indexing operation for this mailbox, or NULL if a re-index is not in progress.
     private volatile ReIndexTask reIndex;
@@ -120,6 +124,8 @@ public final class MailboxIndex {
             analyzerName = null;
         }
         analyzer = ZimbraAnalyzer.getAnalyzer(analyzerName);
+        membershipFilters = new MembershipFilterCache(mbox);
+        searchResults = new SearchResultCache(mbox);
     }
 
     /**
@@ -146,6 +152,14 @@ public final class MailboxIndex {
         return indexStore;
     }
 
+    public MembershipFilterCache getMembershipFilterCache() {
+        return membershipFilters;
+    }
+
+    public SearchResultCache getSearchResultCache() {
+        return searchResults;
+    }
+
     /**
      * This is the preferred form of the API call.
      *
@@ -164,6 +178,13 @@ public final class MailboxIndex {
         assert(octx != null);
 
         ZimbraQuery query = new ZimbraQuery(octx, proto, mailbox, params);
+        String cacheKey = searchResults.getKey(octx, query);
+        if (cacheKey != null) {
+            ZimbraQueryResults cached = searchResults.get(cacheKey, query);
+            if (cached != null) {
+                return cached;
+            }
+        }
         Set<MailItem.Type> types = toIndexTypes(params.getTypes());
         // no need to index if the search doesn't involve Lucene
         if (!params.isQuick() && query.hasTextOperation() && getDeferredCount(types) > 0) {
@@ -174,6 +195,10 @@ public final class MailboxIndex {
                 ZimbraLog.index.error("Failed to index deferred items", e);
             }
         }
+        if (cacheKey != null) {
+            int changeId = mailbox.getLastChangeID();
+            return searchResults.record(cacheKey, query, changeId, search(query));
+        }
         return search(query);
     }
 
@@ -311,6 +336,7 @@ public final class MailboxIndex {
     }
 
     void evict() {
+        searchResults.clear();
         indexStore.evict();
     }
 
@@ -963,6 +989,7 @@ public final class MailboxIndex {
         DbMailItem.setIndexIds(mailbox.getOperationConnection(), mailbox, ids);
         for (MailItem item : indexed) {
             item.mData.indexId = item.getId();
+            membershipFilters.indexed(item);
             removeDeferredId(item.getId());
         }
     }
@@ -0,0 +1,143 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailboxListener.ChangeNotification;
+import com.zimbra.cs.session.Session;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Delivers committed change notifications to a mailbox's sessions and
+ * {@link MailboxListener}s on a shared worker pool, so that the committing
+ * thread does not serialize notifications while holding the mailbox lock.
+ * <p>
+ * Notifications are enqueued by {@link Mailbox#commitCache} in commit order,
+ * and at most one worker drains a given mailbox's queue at a time, so every
+ * session still sees changes in change-id order.
+ */
+public final class MailboxNotificationDispatcher {
+
+    private static final ExecutorService NOTIFY_EXECUTOR = new ThreadPoolExecutor(
+            LC.zimbra_mailbox_notification_threads.intValue(), LC.zimbra_mailbox_notification_threads.intValue(),
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("MailboxNotify-%d").setDaemon(true).build());
+
+    /** Number of notifications enqueued across all mailboxes but not yet delivered. */
+    private static final AtomicInteger QUEUE_DEPTH = new AtomicInteger();
+
+    private final Mailbox mailbox;
+    private final List<Session> listeners;
+    private final Queue<PendingNotification> pending = new ConcurrentLinkedQueue<PendingNotification>();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    private static final class PendingNotification {
+        final ChangeNotification notification;
+        final Session source;
+        final long enqueued = System.currentTimeMillis();
+
+        PendingNotification(ChangeNotification notification, Session source) {
+            this.notification = notification;
+            this.source = source;
+        }
+    }
+
+    MailboxNotificationDispatcher(Mailbox mailbox, List<Session> listeners) {
+        this.mailbox = mailbox;
+        this.listeners = listeners;
+    }
+
+    static boolean isEnabled() {
+        return LC.zimbra_mailbox_async_notifications.booleanValue();
+    }
+
+    /** Returns the number of notifications waiting to be delivered across all mailboxes. */
+    public static int getQueueDepth() {
+        return QUEUE_DEPTH.get();
+    }
+
+    /** Queues a notification for delivery.  Must be called in commit order, i.e. under the mailbox write lock. */
+    void enqueue(ChangeNotification notification, Session source) {
+        pending.add(new PendingNotification(notification, source));
+        QUEUE_DEPTH.incrementAndGet();
+        schedule();
+    }
+
+    private void schedule() {
+        if (!draining.compareAndSet(false, true)) {
+            return; // a worker is already draining this mailbox
+        }
+        try {
+            NOTIFY_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ZimbraLog.mailbox.warn("notification pool rejected task; delivering inline for mailbox %d",
+                    mailbox.getId());
+            drain();
+        }
+    }
+
+    private void drain() {
+        try {
+            PendingNotification pn;
+            while ((pn = pending.poll()) != null) {
+                QUEUE_DEPTH.decrementAndGet();
+                deliver(pn);
+            }
+        } finally {
+            draining.set(false);
+        }
+        // an enqueue may have raced with the end of the loop above
+        if (!pending.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void deliver(PendingNotification pn) {
+        ChangeNotification notification = pn.notification;
+        for (Session session : listeners) {
+            try {
+                session.notifyPendingChanges(notification.mods, notification.lastChangeId, pn.source);
+            } catch (RuntimeException e) {
+                ZimbraLog.mailbox.error("ignoring error during notification", e);
+            }
+        }
+        try {
+            MailboxListener.notifyListeners(notification);
+        } catch (RuntimeException e) {
+            ZimbraLog.mailbox.error("ignoring error during listener notification", e);
+        }
+        ZimbraPerf.STOPWATCH_MBOX_NOTIFY_LAG.stop(pn.enqueued);
+    }
+}
@@ -98,11 +98,17 @@ public class MemcachedItemCache {
 
         @Override
         public Object serialize(Metadata value) {
+            if (BinaryMetadata.isEnabled()) {
+                return value.toBinary();
+            }
             return value.toString();
         }
 
         @Override
         public Metadata deserialize(Object obj) throws ServiceException {
+            if (obj instanceof byte[]) {
+                return Metadata.fromBinary((byte[]) obj);
+            }
             return new Metadata((String) obj);
         }
     }
@@ -37,6 +37,7 @@ import com.zimbra.common.calendar.ZCalendar.ICalTok;
 import com.zimbra.common.calendar.ZCalendar.ZProperty;
 import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.Color;
 import com.zimbra.common.mime.InternetAddress;
 import com.zimbra.common.service.ServiceException;
@@ -51,6 +52,7 @@ import com.zimbra.cs.account.CalendarResource;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.User;
 import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata.CustomMetadataList;
@@ -202,6 +204,61 @@ public class Message extends MailItem {
         }
     }
 
+    /**
+     * Precomputed IMAP FETCH <tt>BODYSTRUCTURE</tt> and <tt>ENVELOPE</tt> data, stored in the message
+     * metadata so that IMAP clients resyncing a folder don't force a MIME parse of every blob.  FETCH
+     * <tt>BODY</tt> is derived from the body structure.  The strings are in the form returned by
+     * {@link ImapMessage#serializeEnvelope(MimeMessage)}.
+     */
+    static final class ImapStructure {
+        final String bodyStructure;
+        final String envelope;
+
+        private ImapStructure(String bodyStructure, String envelope) {
+            this.bodyStructure = bodyStructure;
+            this.envelope = envelope;
+        }
+
+        /**
+         * Serializes the structure of the message as stored.  Returns null if the cache is disabled,
+         * if the account can't use IMAP, if the serialized values together exceed
+         * <tt>imap_structure_cache_max_size</tt>, or if the message cannot be serialized; IMAP then
+         * falls back to parsing the blob on FETCH.
+         */
+        static ImapStructure compute(Account acct, ParsedMessage pm) {
+            int maxSize = LC.imap_structure_cache_max_size.intValue();
+            MimeMessage mm = pm.getOriginalMessage();
+            if (maxSize <= 0 || mm == null || !acct.isImapEnabled()) {
+                return null;
+            }
+            try {
+                String bodyStructure = ImapMessage.serializeStructure(mm, true);
+                String envelope = ImapMessage.serializeEnvelope(mm);
+                if (bodyStructure.length() + envelope.length() > maxSize) {
+                    return null;
+                }
+                return new ImapStructure(bodyStructure, envelope);
+            } catch (Exception e) {
+                ZimbraLog.mailbox.debug("unable to precompute IMAP structure for message %s", pm.getMessageID(), e);
+                return null;
+            }
+        }
+
+        static ImapStructure decode(Metadata meta) {
+            String bodyStructure = meta.get(Metadata.FN_IMAP_BODYSTRUCTURE, null);
+            String envelope = meta.get(Metadata.FN_IMAP_ENVELOPE, null);
+            if (bodyStructure == null || envelope == null) {
+                return null;
+            }
+            return new ImapStructure(bodyStructure, envelope);
+        }
+
+        void encode(Metadata meta) {
+            meta.put(Metadata.FN_IMAP_BODYSTRUCTURE, bodyStructure);
+            meta.put(Metadata.FN_IMAP_ENVELOPE, envelope);
+        }
+    }
+
     private static final Log LOG = LogFactory.getLog(Message.class);
 
     private String sender;
@@ -212,6 +269,7 @@ public class Message extends MailItem {
     private DraftInfo draftInfo;
     private ArrayList<CalendarItemInfo> calendarItemInfos;
     private String calendarIntendedFor;
+    private ImapStructure imapStructure;
 
     Message(Mailbox mbox, UnderlyingData ud) throws ServiceException {
         this(mbox, ud, false);
@@ -253,6 +311,16 @@ public class Message extends MailItem {
         return Strings.nullToEmpty(fragment);
     }
 
+    /** Returns the precomputed IMAP FETCH <tt>BODYSTRUCTURE</tt> data, or {@code null} if it was not stored. */
+    public String getImapBodyStructure() {
+        return imapStructure == null ? null : imapStructure.bodyStructure;
+    }
+
+    /** Returns the precomputed IMAP FETCH <tt>ENVELOPE</tt> data, or {@code null} if it was not stored. */
+    public String getImapEnvelope() {
+        return imapStructure == null ? null : imapStructure.envelope;
+    }
+
     /**
      * Returns the normalized subject of the message.  This is done by taking the {@code Subject:} header and removing
      * prefixes (e.g. {@code "Re:"}) and suffixes (e.g. {@code "(fwd)"}) and the like.
@@ -592,7 +660,8 @@ public class Message extends MailItem {
         data.setFlags(flags & (Flag.FLAGS_MESSAGE | Flag.FLAGS_GENERIC));
         data.setTags(ntags);
         data.setSubject(pm.getNormalizedSubject());
-        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null).toString();
+        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null,
+                ImapStructure.compute(acct, pm)).toString();
         data.unreadCount = unread ? 1 : 0;
         data.contentChanged(mbox);
 
@@ -1435,6 +1504,9 @@ public class Message extends MailItem {
         // the fragment may have changed
         fragment = pm.getFragment(acct.getLocale());
 
+        // and so may the precomputed IMAP structure
+        imapStructure = ImapStructure.compute(acct, pm);
+
         // make sure the "attachments" FLAG is correct
         boolean hadAttachment = mData.isSet(Flag.FlagInfo.ATTACHED);
         mData.unsetFlag(Flag.FlagInfo.ATTACHED);
@@ -1472,7 +1544,7 @@ public class Message extends MailItem {
 
         // rewrite the DB row to reflect our new view
         saveData(new DbMailItem(mMailbox), encodeMetadata(mRGBColor, mMetaVersion, mVersion, mExtendedData, pm, fragment,
-                draftInfo, calendarItemInfos, calendarIntendedFor));
+                draftInfo, calendarItemInfos, calendarIntendedFor, imapStructure));
 
         if (parent instanceof VirtualConversation) {
             ((VirtualConversation) parent).recalculateMetadata(Collections.singletonList(this));
@@ -1526,6 +1598,7 @@ public class Message extends MailItem {
             }
         }
         calendarIntendedFor = meta.get(Metadata.FN_CAL_INTENDED_FOR, null);
+        imapStructure = ImapStructure.decode(meta);
 
         Metadata draftMeta = meta.getMap(Metadata.FN_DRAFT, true);
         if (draftMeta != null) {
@@ -1547,19 +1620,20 @@ public class Message extends MailItem {
     @Override
     Metadata encodeMetadata(Metadata meta) {
         return encodeMetadata(meta, mRGBColor, mMetaVersion, mVersion, mExtendedData, sender, recipients, fragment,
-                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor);
+                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor, imapStructure);
     }
 
     private static Metadata encodeMetadata(Color color, int metaVersion, int version, CustomMetadataList extended, ParsedMessage pm,
-            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor,
+            ImapStructure imapStructure) {
         return encodeMetadata(new Metadata(), color, metaVersion, version, extended, pm.getSender(), pm.getRecipients(),
                 fragment, pm.getNormalizedSubject(), pm.getSubject(), dinfo,
-                calItemInfos, calIntendedFor);
+                calItemInfos, calIntendedFor, imapStructure);
     }
 
     static Metadata encodeMetadata(Metadata meta, Color color, int metaVersion, int version, CustomMetadataList extended, String sender,
             String recipients, String fragment, String subject, String rawSubj, DraftInfo dinfo,
-            List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            List<CalendarItemInfo> calItemInfos, String calIntendedFor, ImapStructure imapStructure) {
         // try to figure out a simple way to make the raw subject from the normalized one
         String prefix = null;
         if (rawSubj == null || rawSubj.equals(subject)) {
@@ -1583,6 +1657,9 @@ public class Message extends MailItem {
             meta.put(Metadata.FN_CALITEM_IDS, mdList);
         }
         meta.put(Metadata.FN_CAL_INTENDED_FOR, calIntendedFor);
+        if (imapStructure != null) {
+            imapStructure.encode(meta);
+        }
 
         if (dinfo != null) {
             Metadata dmeta = new Metadata();
@@ -18,10 +18,12 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
@@ -48,19 +50,41 @@ public class MessageCache {
 
     private static final class CacheNode {
         CacheNode()  { }
-        MimeMessage message;
-        MimeMessage expanded;
-        Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
-        long size = 0;
+        volatile MimeMessage message;
+        volatile MimeMessage expanded;
+        Map<Integer, String> smimeAccessInfo = Collections.synchronizedMap(new HashMap<Integer, String>());
+        volatile long size = 0;
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
+    /**
+     * One segment of the cache.  Each shard is an access-ordered LRU guarded by
+     * its own monitor, so lookups for unrelated digests never contend with each
+     * other.
+     */
+    private static final class Shard {
+        final Map<String, CacheNode> map = new LinkedHashMap<String, CacheNode>(16, (float) 0.75, true);
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+
+        Shard()  { }
+    }
+
+    /** Number of independently locked segments in the cache.  Must be a power of two. */
+    public static final int SHARD_COUNT = 16;
+
+    /** Cache mapping message digest to the corresponding message structure, split by digest hash. */
+    private static final Shard[] sShards = new Shard[SHARD_COUNT];
+    static {
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            sShards[i] = new Shard();
+        }
+    }
+    /** Maximum number of items in the cache, summed across all shards. */
+    private static volatile int sMaxCacheSize;
     /** Number of bytes of message data stored in the cache.  This value includes only
      * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    private static final AtomicLong sDataSize = new AtomicLong();
 
     static {
         try {
@@ -75,21 +99,55 @@ public class MessageCache {
         ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
     }
 
+    private static Shard getShard(String digest) {
+        int h = digest.hashCode();
+        h ^= (h >>> 16);
+        return sShards[h & (SHARD_COUNT - 1)];
+    }
+
+    /** Returns the maximum number of entries a single shard may hold before it is trimmed. */
+    private static int getMaxShardSize() {
+        return Math.max(1, (sMaxCacheSize + SHARD_COUNT - 1) / SHARD_COUNT);
+    }
+
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
+        int size = 0;
+        for (Shard shard : sShards) {
+            synchronized (shard) {
+                size += shard.map.size();
+            }
         }
+        return size;
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
+        if (digest == null) {
+            return false;
+        }
+        Shard shard = getShard(digest);
+        synchronized (shard) {
+            return shard.map.containsKey(digest);
         }
     }
 
     public static long getDataSize() {
-        return sDataSize;
+        return sDataSize.get();
+    }
+
+    /** Returns the number of cache hits recorded by the given shard since startup. */
+    public static long getShardHitCount(int shard) {
+        return sShards[shard].hits.get();
+    }
+
+    /** Returns the number of cache misses recorded by the given shard since startup. */
+    public static long getShardMissCount(int shard) {
+        return sShards[shard].misses.get();
+    }
+
+    /** Returns the number of entries pruned from the given shard since startup. */
+    public static long getShardEvictionCount(int shard) {
+        return sShards[shard].evictions.get();
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +182,14 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            Shard shard = getShard(digest);
+            CacheNode node;
+            synchronized (shard) {
+                node = shard.map.remove(digest);
+            }
+            if (node != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
+                sDataSize.addAndGet(-node.size);
             }
         }
     }
@@ -156,13 +216,14 @@ public class MessageCache {
         InputStream in = null;
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
+        Shard shard = getShard(digest);
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
+        synchronized (shard) {
+            cnode = shard.map.get(digest);
+        }
+        if (cnode == null) {
+            newNode = true;
+            cnode = new CacheNode();
         }
 
         try {
@@ -177,7 +238,7 @@ public class MessageCache {
                         // Not the best place to increment the data size, but cacheItem()
                         // won't get called if we're expanding a message for an existing
                         // node.
-                        sDataSize += cnode.size;
+                        sDataSize.addAndGet(cnode.size);
                     }
                 } finally {
                     ByteUtil.closeStream(in);
@@ -232,9 +293,11 @@ public class MessageCache {
         if (cacheHit) {
             sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
+            shard.hits.incrementAndGet();
         } else {
             sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
             ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
+            shard.misses.incrementAndGet();
         }
 
         if (expand) {
@@ -286,7 +349,7 @@ public class MessageCache {
         expander.expand();
         cnode.expanded = expander.getExpanded();
         if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
+            sDataSize.addAndGet(cnode.size);
             cnode.size *= 2;
         }
     }
@@ -362,38 +425,51 @@ public class MessageCache {
 
     private static void cacheItem(String digest, CacheNode cnode) {
         sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
+        Shard shard = getShard(digest);
+        long released = 0;
+        synchronized (shard) {
+            CacheNode previous = shard.map.put(digest, cnode);
+            if (previous != null && previous != cnode) {
+                // a concurrent loader cached the same digest first
+                released += previous.size;
+            }
             // Cache data size was incremented in getMimeMessage().
 
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
+            // trim the shard if needed
+            int maxShardSize = getMaxShardSize();
+            if (shard.map.size() > maxShardSize) {
+                Iterator<Map.Entry<String, CacheNode>> it = shard.map.entrySet().iterator();
+                while (shard.map.size() > maxShardSize && it.hasNext()) {
                     Map.Entry<String, CacheNode> entry = it.next();
                     sLog.debug("Pruning digest %s from the cache.", entry.getKey());
                     it.remove();
-                    sDataSize -= entry.getValue().size;
+                    released += entry.getValue().size;
+                    shard.evictions.incrementAndGet();
                 }
             }
         }
+        if (released != 0) {
+            sDataSize.addAndGet(-released);
+        }
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
-                try {
-                    if (Mime.isEncrypted(cacheNode.message.getContentType())
-                        && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
-                        cacheNode.smimeAccessInfo.remove(mboxId);
+        for (Shard shard : sShards) {
+            synchronized (shard) {
+                Iterator<Map.Entry<String, CacheNode>> it = shard.map.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, CacheNode> entry = it.next();
+                    CacheNode cacheNode = entry.getValue();
+                    try {
+                        if (Mime.isEncrypted(cacheNode.message.getContentType())
+                            && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
+                            cacheNode.smimeAccessInfo.remove(mboxId);
+                        }
+                    } catch (MessagingException e) {
+                        sLog.warn("MessagingException while checking content type for cache node with digest = %s",
+                            entry.getKey(), e);
                     }
-                } catch (MessagingException e) {
-                    sLog.warn("MessagingException while checking content type for cache node with digest = %s",
-                        entry.getKey(), e);
                 }
             }
         }
@@ -402,11 +478,13 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
-                    return node.smimeAccessInfo.get(id);
-                }
+            Shard shard = getShard(digest);
+            CacheNode node;
+            synchronized (shard) {
+                node = shard.map.get(digest);
+            }
+            if (node != null) {
+                return node.smimeAccessInfo.get(id);
             }
         }
         return null;
@@ -17,6 +17,7 @@
 
 package com.zimbra.cs.mailbox;
 
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -74,6 +75,8 @@ public final class Metadata {
     public static final String FN_FIELDS           = "fld";
     public static final String FN_DELETED          = "i4d";
     public static final String FN_DELETED_UNREAD   = "i4du";
+    public static final String FN_IMAP_BODYSTRUCTURE = "i4bs";
+    public static final String FN_IMAP_ENVELOPE    = "i4e";
     public static final String FN_RECENT           = "i4l";
     public static final String FN_RECENT_CUTOFF    = "i4r";
     public static final String FN_REMOTE_ID        = "id";
@@ -125,7 +128,11 @@ public final class Metadata {
 
     private final Integer associatedItemId;
 
-    Map<Object, Object> map;
+    /** Decoded form; null while this is a lazy view of {@link #encoded}, see {@link #map()}. */
+    private Map<Object, Object> map;
+    /** {@link BinaryMetadata} form, read key by key until something needs the whole map. */
+    private byte[] encoded;
+    private int encodedPos;
 
     public Metadata() {
         associatedItemId = null;
@@ -147,6 +154,11 @@ public final class Metadata {
             map = new HashMap<Object, Object>();
             return;
         }
+        if (BinaryMetadata.isEncoded(encoded)) {
+            this.encoded = BinaryMetadata.decodeString(encoded);
+            this.encodedPos = 1;
+            return;
+        }
         try {
             try {
                 map = (Map) BEncoding.decode(encoded);
@@ -183,28 +195,64 @@ public final class Metadata {
         }
     }
 
+    /** Lazy view of the dictionary at {@code pos} in a {@link BinaryMetadata} buffer. */
+    private Metadata(byte[] encoded, int pos) {
+        this.associatedItemId = null;
+        this.encoded = encoded;
+        this.encodedPos = pos;
+    }
+
+    /** Reads metadata produced by {@link #toBinary()}. */
+    static Metadata fromBinary(byte[] encoded) throws MailServiceException {
+        BinaryMetadata.checkHeader(encoded, "(binary)");
+        return new Metadata(encoded, 1);
+    }
+
+    /** Returns the {@link BinaryMetadata} encoding of this metadata, e.g. for caching. */
+    byte[] toBinary() {
+        if (map == null && encodedPos == 1) {
+            return encoded;
+        }
+        return BinaryMetadata.encode(map());
+    }
+
+    /** Returns the decoded map, decoding the binary form in full the first time it's needed. */
+    Map<Object, Object> map() {
+        if (map == null) {
+            map = BinaryMetadata.decodeDict(encoded, encodedPos);
+            encoded = null;
+        }
+        return map;
+    }
+
     public boolean containsKey(String key) {
+        if (map == null) {
+            return BinaryMetadata.find(encoded, encodedPos, key) >= 0;
+        }
         return map.containsKey(key);
     }
 
     public int size() {
+        if (map == null) {
+            return BinaryMetadata.dictSize(encoded, encodedPos);
+        }
         return map.size();
     }
 
     public boolean isEmpty() {
-        return map.isEmpty();
+        return size() == 0;
     }
 
     public Metadata copy(Metadata source) {
         if (source != null) {
-            map.putAll(source.map);
+            map().putAll(source.map());
         }
         return this;
     }
 
     public Map<String, ?> asMap()  {
         Map<String, Object> result = new HashMap<String, Object>();
-        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        for (Map.Entry<Object, Object> entry : map().entrySet()) {
             Object key = entry.getKey();
             Object value = entry.getValue();
             if (key == null || value == null) {
@@ -221,48 +269,48 @@ public final class Metadata {
     }
 
     public Metadata remove(String key) {
-        map.remove(key);
+        map().remove(key);
         return this;
     }
 
     public Metadata put(String key, Object value) {
         if (key != null && value != null) {
-            map.put(key, value);
+            map().put(key, value);
         }
         return this;
     }
 
     public Metadata put(String key, long value) {
         if (key != null) {
-            map.put(key, Long.valueOf(value));
+            map().put(key, Long.valueOf(value));
         }
         return this;
     }
 
     public Metadata put(String key, double value) {
         if (key != null) {
-            map.put(key, new Double(value));
+            map().put(key, new Double(value));
         }
         return this;
     }
 
     public Metadata put(String key, boolean value) {
         if (key != null) {
-            map.put(key, new Boolean(value));
+            map().put(key, new Boolean(value));
         }
         return this;
     }
 
     public Metadata put(String key, Metadata value) {
         if (key != null && value != null) {
-            map.put(key, value.map);
+            map().put(key, value.map());
         }
         return this;
     }
 
     public Metadata put(String key, MetadataList value) {
         if (key != null && value != null) {
-            map.put(key, value.list);
+            map().put(key, value.list);
         }
         return this;
     }
@@ -284,6 +332,10 @@ public final class Metadata {
     }
 
     public String get(String key, String defaultValue) {
+        if (map == null) {
+            int pos = BinaryMetadata.find(encoded, encodedPos, key);
+            return pos < 0 ? defaultValue : BinaryMetadata.decodeScalarAsString(encoded, pos);
+        }
         Object value = map.get(key);
         return value == null ? defaultValue : value.toString();
     }
@@ -318,7 +370,7 @@ public final class Metadata {
     }
 
     public MetadataList getList(String key, boolean nullOK) throws ServiceException {
-        Object value = map.get(key);
+        Object value = lookup(key);
         if (nullOK && value == null) {
             return null;
         }
@@ -335,7 +387,13 @@ public final class Metadata {
     }
 
     public Metadata getMap(String key, boolean nullable) throws ServiceException {
-        Object value = map.get(key);
+        if (map == null) {
+            int pos = BinaryMetadata.find(encoded, encodedPos, key);
+            if (pos >= 0 && BinaryMetadata.isDict(encoded, pos)) {
+                return new Metadata(encoded, pos);
+            }
+        }
+        Object value = lookup(key);
         if (nullable && value == null) {
             return null;
         }
@@ -347,17 +405,36 @@ public final class Metadata {
         throw ServiceException.INVALID_REQUEST("invalid/missing value for attribute: " + key, null);
     }
 
+    private Object lookup(String key) {
+        if (map == null) {
+            int pos = BinaryMetadata.find(encoded, encodedPos, key);
+            return pos < 0 ? null : BinaryMetadata.decodeValue(encoded, pos);
+        }
+        return map.get(key);
+    }
+
+    /**
+     * Returns the encoded form of this metadata.  This is BEncoding unless binary metadata is enabled, in which
+     * case rows get upgraded to the binary format as they are rewritten.  {@link #Metadata(String)} reads both.
+     */
     @Override
     public String toString() {
-        put(FN_MD_VERSION, LEGACY_METADATA_VERSION);
-        String result = BEncoding.encode(map);
-        map.remove(FN_MD_VERSION);
+        if (BinaryMetadata.isEnabled()) {
+            if (map == null && encodedPos == 1) {
+                return BinaryMetadata.STRING_PREFIX + Base64.getEncoder().encodeToString(encoded);
+            }
+            return BinaryMetadata.encodeToString(map());
+        }
+        Map<Object, Object> m = map();
+        m.put(FN_MD_VERSION, LEGACY_METADATA_VERSION);
+        String result = BEncoding.encode(m);
+        m.remove(FN_MD_VERSION);
         return result;
     }
 
     public String prettyPrint() {
         StringBuilder sb = new StringBuilder(2048);
-        prettyEncode(sb, map, 0);
+        prettyEncode(sb, map(), 0);
         sb.setLength(sb.length() - 1);  // Remove the last newline.
         return sb.toString();
     }
@@ -16,25 +16,40 @@
  */
 package com.zimbra.cs.mailbox;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
-import com.zimbra.cs.util.Config;
+import com.zimbra.cs.db.DbMailbox;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.util.Zimbra;
 
 /**
- * Iterates all the mailboxes in the system, purges them one at a time
- * and sleeps between purges for a time interval specified by
- * {@link Provisioning#A_zimbraMailPurgeSleepInterval}.
+ * Schedules mailbox purges.  Each pass orders all the mailboxes in the system by estimated purge work
+ * (see {@link PurgeCandidate}) and hands them to a pool of {@link LC#purge_threads} workers, bounded by
+ * {@link LC#purge_max_db_connections}.  Every worker sleeps for the time interval specified by
+ * {@link Provisioning#A_zimbraMailPurgeSleepInterval} after each purge, so one worker paces itself
+ * the way the old single purge thread did.
+ * <p>
+ * New purges are held back while the DB pool is busy, and a mailbox whose lock already has waiters is put
+ * back at the end of the queue rather than adding to the contention.
  *
  * @author bburtin
  */
@@ -43,10 +58,57 @@ extends Thread {
 
     private static volatile PurgeThread sPurgeThread = null;
     private static Object THREAD_CONTROL_LOCK = new Object();
-    private boolean mShutdownRequested = false;
+    private volatile boolean mShutdownRequested = false;
+
+    /** How often a mailbox is put back because of lock contention before waiting for the next pass. */
+    private static final int MAX_DEFERRALS = 3;
+
+    private final int mConcurrency;
+    private final Semaphore mPermits;
+    private final ExecutorService mWorkers;
 
     private PurgeThread() {
         setName("MailboxPurge");
+        mConcurrency = Math.max(1, Math.min(LC.purge_threads.intValue(), LC.purge_max_db_connections.intValue()));
+        mPermits = new Semaphore(mConcurrency);
+        mWorkers = new ThreadPoolExecutor(mConcurrency, mConcurrency, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("MailboxPurge-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Estimated purge work for one mailbox.  Mailboxes that went longest without a purge come first, weighted
+     * by the log of their size: under concurrency, starting the longest jobs first keeps a few large mailboxes
+     * from becoming the tail of a pass, while the other workers keep getting through the small ones.
+     */
+    static final class PurgeCandidate implements Comparable<PurgeCandidate> {
+        final int mailboxId;
+        final long size;
+        final long lastPurgeAt;
+        final double score;
+        int deferrals;
+
+        PurgeCandidate(int mailboxId, long size, long lastPurgeAt, long now) {
+            this.mailboxId = mailboxId;
+            this.size = size;
+            this.lastPurgeAt = lastPurgeAt;
+            double sinceLastPurge = Math.max(1, now - lastPurgeAt) / 1000.0;
+            double sizeWeight = Math.log(2 + size / (1024.0 * 1024.0)) / Math.log(2);
+            this.score = sinceLastPurge * sizeWeight;
+        }
+
+        /** Returns this mailbox rescheduled behind everything that hasn't been purged since {@code now}. */
+        PurgeCandidate requeue(long now) {
+            PurgeCandidate next = new PurgeCandidate(mailboxId, size, now, now);
+            next.deferrals = deferrals;
+            return next;
+        }
+
+        @Override
+        public int compareTo(PurgeCandidate other) {
+            int cmp = Double.compare(other.score, score);
+            return cmp != 0 ? cmp : Integer.compare(mailboxId, other.mailboxId);
+        }
     }
 
     /**
@@ -103,6 +165,7 @@ extends Thread {
             if (sPurgeThread != null) {
                 sPurgeThread.requestShutdown();
                 sPurgeThread.interrupt();
+                sPurgeThread.mWorkers.shutdownNow();
                 sPurgeThread = null;
             } else {
                 ZimbraLog.purge.debug("shutdown() called, but purge thread is not running.");
@@ -111,14 +174,13 @@ extends Thread {
     }
 
     /**
-     * Iterates all mailboxes, purging one at a time and sleeping
-     * between purges.
+     * Repeatedly builds the purge queue and dispatches it to the workers.
      */
     @Override public void run() {
-        // Sleep before doing work, to give the server time to warm up.  Also limits the amount
-        // of random effect when determining the next mailbox id.
+        // Sleep before doing work, to give the server time to warm up.
         long sleepTime = LC.purge_initial_sleep_ms.longValue();
-        ZimbraLog.purge.info("Purge thread sleeping for %dms before doing work.", sleepTime);
+        ZimbraLog.purge.info("Purge thread sleeping for %dms before doing work; %d concurrent purges.",
+                sleepTime, mConcurrency);
 
         try {
             Thread.sleep(sleepTime);
@@ -129,79 +191,166 @@ extends Thread {
         }
 
         Set<Integer> purgePendingMailboxes = new HashSet<Integer>();
-        while (true) {
-            List<Integer> mailboxIds = getMailboxIds();
-            boolean slept = false;
-
-            for (int i = 0; i < mailboxIds.size(); i++) {
-                int mailboxId = mailboxIds.get(i);
-                if (mShutdownRequested) {
-                    ZimbraLog.purge.info("Shutting down purge thread.");
-                    sPurgeThread = null;
-                    return;
+        try {
+            while (!mShutdownRequested) {
+                PriorityQueue<PurgeCandidate> queue = getPurgeQueue();
+                boolean attempted = runPass(queue, purgePendingMailboxes);
+
+                // If nothing's getting purged, sleep to avoid a tight loop
+                if (!attempted) {
+                    sleep();
                 }
-                ZimbraLog.addMboxToContext(mailboxId);
 
-                // Purge the next mailbox
-                boolean attemptedPurge = false;
                 try {
-                    MailboxManager mm = MailboxManager.getInstance();
-                    if (mm.isMailboxLoadedAndAvailable(mailboxId) || purgePendingMailboxes.contains(mailboxId)) {
-                        attemptedPurge = true;
-                        Mailbox mbox = mm.getMailboxById(mailboxId);
-                        Account account = mbox.getAccount();
-                        Provisioning prov = Provisioning.getInstance();
-                        if (!Provisioning.ACCOUNT_STATUS_MAINTENANCE.equals(account.getAccountStatus(prov)) &&
-                                !account.isIsExternalVirtualAccount()) {
-                            ZimbraLog.addAccountNameToContext(account.getName());
-                            boolean purgedAll = mbox.purgeMessages(null);
-                            if (!purgedAll) {
-                                ZimbraLog.purge.info("Not all messages were purged.  Scheduling mailbox to be purged again.");
-                                mailboxIds.add(mailboxId);
-                            }
-                            Config.setInt(Config.KEY_PURGE_LAST_MAILBOX_ID, mbox.getId());
-                        } else {
-                            ZimbraLog.purge.debug("Skipping mailbox %d because the account is in maintenance status or is an external virtual account.", mailboxId);
-                        }
-                    } else {
-                        ZimbraLog.purge.debug("Skipping mailbox %d because it is not loaded into memory.", mailboxId);
-                    }
-                } catch (ServiceException se) {
-                    if (ServiceException.WRONG_HOST.equals(se.getCode())) {
-                        if (ZimbraLog.purge.isDebugEnabled()) {
-                            ZimbraLog.purge.debug("not purging mailbox moved to other host ", se);
-                        } else {
-                            ZimbraLog.purge.info("not purging mailbox %d; account moved to another host", mailboxId);
-                        }
-                    } else {
-                        ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, se);
-                    }
-                } catch (OutOfMemoryError oome) {
-                    Zimbra.halt("Ran out of memory while purging mailboxes", oome);
-                } catch (Throwable t) {
-                    ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, t);
+                    long lastPurgeMaxDuration = Provisioning.getInstance().getLocalServer().getLastPurgeMaxDuration();
+                    purgePendingMailboxes = MailboxManager.getInstance().getPurgePendingMailboxes(System.currentTimeMillis() - lastPurgeMaxDuration);
+                } catch (ServiceException e) {
+                    ZimbraLog.purge.warn("Unable to get purge pending mailboxes ", e);
                 }
+            }
+        } catch (InterruptedException e) {
+            ZimbraLog.purge.debug("Purge thread was interrupted.");
+        }
+        ZimbraLog.purge.info("Shutting down purge thread.");
+        mWorkers.shutdownNow();
+        sPurgeThread = null;
+    }
 
-                ZimbraLog.clearContext();
-                if (attemptedPurge) {
-                    // Sleep after every purge attempt.
-                    sleep();
-                    slept = true;
+    /**
+     * Purges every eligible mailbox in {@code queue}, returning once they have all finished.  Workers put
+     * mailboxes they couldn't finish back into the queue.  Returns whether any purge was attempted.
+     */
+    private boolean runPass(final PriorityQueue<PurgeCandidate> queue, Set<Integer> purgePendingMailboxes)
+    throws InterruptedException {
+        MailboxManager mm;
+        try {
+            mm = MailboxManager.getInstance();
+        } catch (ServiceException e) {
+            ZimbraLog.purge.warn("Unable to get mailbox manager", e);
+            return false;
+        }
+        boolean attempted = false;
+        while (!mShutdownRequested) {
+            PurgeCandidate candidate;
+            synchronized (queue) {
+                candidate = queue.poll();
+            }
+            if (candidate == null) {
+                // wait for the running purges, which may requeue their mailbox
+                mPermits.acquire(mConcurrency);
+                mPermits.release(mConcurrency);
+                synchronized (queue) {
+                    candidate = queue.poll();
                 }
-           }
-
-            // If nothing's getting purged, sleep to avoid a tight loop
-            if (!slept) {
-                sleep();
+                if (candidate == null) {
+                    break;
+                }
+            }
+            int mailboxId = candidate.mailboxId;
+            if (!mm.isMailboxLoadedAndAvailable(mailboxId) && !purgePendingMailboxes.contains(mailboxId)) {
+                ZimbraLog.purge.debug("Skipping mailbox %d because it is not loaded into memory.", mailboxId);
+                continue;
             }
 
+            mPermits.acquire();
+            waitForDbPool();
+            attempted = true;
+            final PurgeCandidate toPurge = candidate;
             try {
-                long lastPurgeMaxDuration = Provisioning.getInstance().getLocalServer().getLastPurgeMaxDuration();
-                purgePendingMailboxes = MailboxManager.getInstance().getPurgePendingMailboxes(System.currentTimeMillis() - lastPurgeMaxDuration);
-            } catch (ServiceException e) {
-                ZimbraLog.purge.warn("Unable to get purge pending mailboxes ", e);
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            PurgeCandidate next = purge(toPurge);
+                            if (next != null) {
+                                synchronized (queue) {
+                                    queue.add(next);
+                                }
+                            }
+                            boolean deferred = next != null && next.deferrals > toPurge.deferrals;
+                            if (!deferred) {
+                                // Sleep after every purge attempt.
+                                sleep();
+                            }
+                        } finally {
+                            mPermits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mPermits.release();
+                break; // shutting down
+            }
+        }
+        return attempted;
+    }
+
+    /**
+     * Holds off starting another purge while more than {@link LC#purge_db_pool_busy_ratio} of the DB pool is
+     * in use, unless this is the only purge that would be running.
+     */
+    private void waitForDbPool() throws InterruptedException {
+        while (!mShutdownRequested && mPermits.availablePermits() < mConcurrency - 1) {
+            int max = DbPool.getMaxSize();
+            if (max <= 0 || DbPool.getSize() <= max * LC.purge_db_pool_busy_ratio.floatValue()) {
+                return;
+            }
+            ZimbraLog.purge.debug("DB pool busy (%d of %d connections in use); delaying purge.", DbPool.getSize(), max);
+            Thread.sleep(LC.purge_backoff_ms.longValue());
+        }
+    }
+
+    /**
+     * Purges one mailbox.  Returns the candidate to put back into the queue if the mailbox needs another
+     * purge, or <tt>null</tt>.
+     */
+    private PurgeCandidate purge(PurgeCandidate candidate) {
+        int mailboxId = candidate.mailboxId;
+        ZimbraLog.addMboxToContext(mailboxId);
+        try {
+            MailboxManager mm = MailboxManager.getInstance();
+            Mailbox mbox = mm.getMailboxById(mailboxId);
+            if (mbox.lock.getQueueLength() >= LC.purge_lock_waiters_threshold.intValue()) {
+                if (candidate.deferrals >= MAX_DEFERRALS) {
+                    ZimbraLog.purge.info("Mailbox lock is busy; leaving mailbox %d for the next pass.", mailboxId);
+                    return null;
+                }
+                ZimbraLog.purge.debug("Mailbox lock is busy; putting mailbox %d back in the queue.", mailboxId);
+                PurgeCandidate next = candidate.requeue(System.currentTimeMillis());
+                next.deferrals++;
+                return next;
             }
+            Account account = mbox.getAccount();
+            Provisioning prov = Provisioning.getInstance();
+            if (!Provisioning.ACCOUNT_STATUS_MAINTENANCE.equals(account.getAccountStatus(prov)) &&
+                    !account.isIsExternalVirtualAccount()) {
+                ZimbraLog.addAccountNameToContext(account.getName());
+                boolean purgedAll = mbox.purgeMessages(null);
+                if (!purgedAll) {
+                    ZimbraLog.purge.info("Not all messages were purged.  Scheduling mailbox to be purged again.");
+                    return candidate.requeue(System.currentTimeMillis());
+                }
+            } else {
+                ZimbraLog.purge.debug("Skipping mailbox %d because the account is in maintenance status or is an external virtual account.", mailboxId);
+            }
+        } catch (ServiceException se) {
+            if (ServiceException.WRONG_HOST.equals(se.getCode())) {
+                if (ZimbraLog.purge.isDebugEnabled()) {
+                    ZimbraLog.purge.debug("not purging mailbox moved to other host ", se);
+                } else {
+                    ZimbraLog.purge.info("not purging mailbox %d; account moved to another host", mailboxId);
+                }
+            } else {
+                ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, se);
+            }
+        } catch (OutOfMemoryError oome) {
+            Zimbra.halt("Ran out of memory while purging mailboxes", oome);
+        } catch (Throwable t) {
+            ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, t);
+        } finally {
+            ZimbraLog.clearContext();
         }
+        return null;
     }
 
     /**
@@ -252,33 +401,34 @@ extends Thread {
     }
 
     /**
-     * Returns all the mailbox id's in purge order, starting with the one
-     * after {@link Config#KEY_PURGE_LAST_MAILBOX_ID}.
+     * Returns all the mailboxes on this host ordered by estimated purge work.  Mailboxes without stats
+     * (e.g. created since the query ran) are treated as empty and never purged before, so they sort ahead of
+     * every mailbox that has been purged.
      */
-    private List<Integer> getMailboxIds() {
-        List<Integer> mailboxIds = new ArrayList<Integer>();
-
+    private PriorityQueue<PurgeCandidate> getPurgeQueue() {
+        PriorityQueue<PurgeCandidate> queue = new PriorityQueue<PurgeCandidate>();
         try {
-            // Get sorted list of id's
-            for (int id : MailboxManager.getInstance().getMailboxIds()) {
-                mailboxIds.add(id);
+            int[] mailboxIds = MailboxManager.getInstance().getMailboxIds();
+            Map<Integer, Pair<Long, Long>> stats = Collections.emptyMap();
+            DbConnection conn = null;
+            try {
+                conn = DbPool.getConnection();
+                stats = DbMailbox.getPurgeStats(conn);
+            } catch (ServiceException e) {
+                ZimbraLog.purge.warn("Unable to get mailbox purge stats; purging in mailbox id order", e);
+            } finally {
+                DbPool.quietClose(conn);
             }
-            Collections.sort(mailboxIds);
 
-            // Reorder id's so that we start with the one after the last purged
-            int lastId = Config.getInt(Config.KEY_PURGE_LAST_MAILBOX_ID, 0);
-            for (int i = 0; i < mailboxIds.size(); i++) {
-                if (mailboxIds.get(i) > lastId) {
-                    Collections.rotate(mailboxIds, -i);
-                    break;
-                }
+            long now = System.currentTimeMillis();
+            for (int id : mailboxIds) {
+                Pair<Long, Long> stat = stats.get(id);
+                queue.add(stat == null ? new PurgeCandidate(id, 0, 0, now) :
+                    new PurgeCandidate(id, stat.getFirst(), stat.getSecond(), now));
             }
-
         } catch (ServiceException e) {
             ZimbraLog.purge.warn("Unable to get mailbox id's", e);
-            return Collections.emptyList();
         }
-
-        return mailboxIds;
+        return queue;
     }
 }
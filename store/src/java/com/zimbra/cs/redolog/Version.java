@@ -30,7 +30,12 @@ public class Version {
 
     // These should be incremented with changes to serialization format.
     private static final short CURRENT_MAJOR = 1;   // range: 0 - Short.MAX_VALUE
-    private static final short CURRENT_MINOR = 42;  // range: 0 - Short.MAX_VALUE
+    private static final short CURRENT_MINOR = 43;  // range: 0 - Short.MAX_VALUE
+
+    // 1.43 only added compressed records to the log file; ops themselves still
+    // serialize as in 1.42, so anything without compressed records is written
+    // as 1.42 and stays readable by servers that don't know about them.
+    private static final short UNCOMPRESSED_MINOR = 42;
 
     /**
      * Returns a version object with latest major and minor version
@@ -41,6 +46,14 @@ public class Version {
         return new Version(CURRENT_MAJOR, CURRENT_MINOR);
     }
 
+    /**
+     * Returns the version ops are serialized with, and the version of log
+     * files that contain no compressed records.
+     */
+    public static Version uncompressed() {
+        return new Version(CURRENT_MAJOR, UNCOMPRESSED_MINOR);
+    }
+
     private short mMajorVer;
     private short mMinorVer;
 
@@ -0,0 +1,152 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.RedoLogOutput;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Deflate-compressed envelope around a serialized redo op.  The fields are:
+ *
+ *   MAGIC          6 bytes containing "ZMREDZ"
+ *   rawLength      4 bytes; length of the serialized op
+ *   length         4 bytes; length of the compressed data
+ *   data           the serialized op (starting with "ZMREDO") in zlib format
+ *
+ * The magic shares its first five bytes with {@link RedoableOp#REDO_MAGIC}, so
+ * {@link FileLogReader} resynchronizes on either kind of record after bad bytes.
+ * Ops are only compressed when they are no larger than
+ * <tt>zimbra_redolog_compression_max_kb</tt>, since reading a compressed op inflates it
+ * into memory; larger ops (typically inline message bodies over the disk streaming
+ * threshold) are logged as is and their data is still read directly from the log file.
+ */
+final class CompressedRecord {
+
+    static final String MAGIC = "ZMREDZ";
+    static final byte[] RESYNC_PATTERN = RedoableOp.REDO_MAGIC.substring(0, 5).getBytes();
+    static final int ENVELOPE_LEN = MAGIC.length() + 4 + 4;
+
+    private CompressedRecord() {
+    }
+
+    static boolean isEnabled() {
+        return LC.zimbra_redolog_compression.booleanValue();
+    }
+
+    /**
+     * Returns the bytes to log for the serialized op in <tt>data</tt>: a compressed record if
+     * the op is within the configured size range and compresses, otherwise the op unchanged.
+     * Called by the logging thread before it takes the log writer lock.
+     */
+    static InputStream compress(InputStream data) throws IOException {
+        int min = LC.zimbra_redolog_compression_min_bytes.intValue();
+        int max = LC.zimbra_redolog_compression_max_kb.intValue() * 1024;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(max, 4096) + 1);
+        byte[] buf = new byte[4096];
+        int numRead;
+        while (baos.size() <= max && (numRead = data.read(buf, 0, Math.min(buf.length, max + 1 - baos.size()))) >= 0) {
+            baos.write(buf, 0, numRead);
+        }
+        byte[] raw = baos.toByteArray();
+        if (raw.length > max) {
+            // too big to inflate into memory on replay; log the op as is
+            return new SequenceInputStream(new ByteArrayInputStream(raw), data);
+        }
+        data.close();
+        if (raw.length < min) {
+            return new ByteArrayInputStream(raw);
+        }
+
+        Deflater deflater = new Deflater(LC.zimbra_redolog_compression_level.intValue());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(ENVELOPE_LEN + raw.length / 2);
+        try {
+            RedoLogOutput header = new RedoLogOutput(out);
+            header.write(MAGIC.getBytes());
+            header.writeInt(raw.length);
+            header.writeInt(0); // filled in below
+            deflater.setInput(raw);
+            deflater.finish();
+            while (!deflater.finished()) {
+                numRead = deflater.deflate(buf);
+                out.write(buf, 0, numRead);
+            }
+        } finally {
+            deflater.end();
+        }
+        byte[] record = out.toByteArray();
+        int length = record.length - ENVELOPE_LEN;
+        if (record.length >= raw.length) {
+            return new ByteArrayInputStream(raw);
+        }
+        int pos = MAGIC.length() + 4;
+        record[pos] = (byte) (length >>> 24);
+        record[pos + 1] = (byte) (length >>> 16);
+        record[pos + 2] = (byte) (length >>> 8);
+        record[pos + 3] = (byte) length;
+        return new ByteArrayInputStream(record);
+    }
+
+    /**
+     * Reads the rest of a compressed record whose magic has already been consumed and
+     * deserializes the op it contains.
+     */
+    static RedoableOp read(RedoLogInput in) throws IOException {
+        int rawLength = in.readInt();
+        int length = in.readInt();
+        int max = Math.max(LC.zimbra_redolog_compression_max_kb.intValue() * 1024, 16 * 1024 * 1024);
+        if (rawLength < 0 || length < 0 || rawLength > max || length > max) {
+            throw new IOException("Invalid compressed redo record length: raw=" + rawLength + ", compressed=" + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data, 0, length);
+
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            int pos = 0;
+            byte[] extra = new byte[1];
+            while (!inflater.finished()) {
+                // once the output is full, keep going only to consume the zlib trailer
+                int n = pos < rawLength ? inflater.inflate(raw, pos, rawLength - pos) : inflater.inflate(extra);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                pos += n;
+            }
+            if (pos != rawLength || !inflater.finished()) {
+                throw new IOException("Compressed redo record inflated to " + pos + " bytes; expected " + rawLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed redo record", e);
+        } finally {
+            inflater.end();
+        }
+        return RedoableOp.deserializeOp(new RedoLogInput(new ByteArrayInputStream(raw)));
+    }
+}
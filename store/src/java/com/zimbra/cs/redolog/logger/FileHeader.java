@@ -61,6 +61,7 @@ import com.zimbra.cs.redolog.Version;
  *   version        4 bytes; serialization version number
  *                  (2-byte major, 2-byte minor)
  *   createTime     4 bytes; time this log file was created
+ *   flags          4 bytes; FLAG_* bits (version 1.43 and later)
  *   padding        0-value bytes to bring total header size to 512
  */
 public class FileHeader {
@@ -69,6 +70,9 @@ public class FileHeader {
     private static final int SERVER_ID_FIELD_LEN = 127;
     private static final byte[] MAGIC = "ZM_REDO".getBytes();
 
+    /** The log may contain {@link CompressedRecord}s. */
+    public static final int FLAG_COMPRESSED_RECORDS = 0x01;
+
     private byte mOpen;                 // logfile is open or closed
     private long mFileSize;             // filesize
     private long mSeq;                  // log file sequence number
@@ -77,6 +81,7 @@ public class FileHeader {
     private long mFirstOpTstamp;        // time of first op in log file
     private long mLastOpTstamp;         // time of last op in log file
     private long mCreateTime;           // create time of log file
+    private int mFlags;                 // FLAG_* bits
 
     private Version mVersion;			// redo log version
 
@@ -92,14 +97,14 @@ public class FileHeader {
         mFirstOpTstamp = 0;
         mLastOpTstamp = 0;
         mCreateTime = 0;
-        mVersion = Version.latest();
+        mFlags = 0;
+        mVersion = Version.uncompressed();
     }
 
     void write(RandomAccessFile raf) throws IOException {
-    	// Update header redolog version to latest code version.
-    	if (!mVersion.isLatest()) {
-    		mVersion = Version.latest();
-      }
+    	// Update header redolog version to latest code version; only logs
+    	// with compressed records need the version that introduced them.
+    	mVersion = hasFlag(FLAG_COMPRESSED_RECORDS) ? Version.latest() : Version.uncompressed();
       byte[] buf = serialize();
       raf.seek(0);
       raf.write(buf);
@@ -143,6 +148,10 @@ public class FileHeader {
         mCreateTime = t;
     }
 
+    void setFlag(int flag) {
+        mFlags |= flag;
+    }
+
     public boolean getOpen() {
     	return mOpen != 0;
     }
@@ -171,6 +180,14 @@ public class FileHeader {
         return mCreateTime;
     }
 
+    public boolean hasFlag(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    public Version getVersion() {
+        return mVersion;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (!(o instanceof FileHeader) || o == null) {
@@ -184,6 +201,7 @@ public class FileHeader {
           mFirstOpTstamp == oHdr.mFirstOpTstamp &&
           mLastOpTstamp == oHdr.mLastOpTstamp &&
           mCreateTime == oHdr.mCreateTime &&
+          mFlags == oHdr.mFlags &&
           mVersion.equals(oHdr.mVersion);
     }
 
@@ -246,6 +264,7 @@ public class FileHeader {
         out.writeLong(mLastOpTstamp);
         mVersion.serialize(out);
         out.writeLong(mCreateTime);
+        out.writeInt(mFlags);
 
         int currentLen = baos.size();
         if (currentLen < HEADER_LEN) {
@@ -300,6 +319,8 @@ public class FileHeader {
             	mVersion = new Version(1, 0);
 
             mCreateTime = in.readLong();
+            // older headers have zero padding here
+            mFlags = in.readInt();
         } finally {
             bais.close();
         }
@@ -327,6 +348,8 @@ public class FileHeader {
 
         sb.append("\n");
         sb.append("version:  ").append(mVersion).append("\n");
+        if (hasFlag(FLAG_COMPRESSED_RECORDS))
+            sb.append("records:  compressed\n");
     	return sb.toString();
     }
 }
@@ -105,7 +105,7 @@ public class FileLogReader {
         long currPos = pos;
         while (true) {
             try {
-                RedoableOp op = RedoableOp.deserializeOp(mIN);
+                RedoableOp op = readOp();
                 mLastOpStartOffset = currPos;
                 if (!first) {
                     String msg = String.format(
@@ -125,9 +125,10 @@ public class FileLogReader {
                 }
             }
             first = false;
-            // Skip over bad bytes by looking for the next occurrence of "ZMREDO" redo op marker.
+            // Skip over bad bytes by looking for the next occurrence of the "ZMREDO" redo op marker
+            // or the "ZMREDZ" compressed record marker.
             mRAF.seek(currPos + 1);
-            if (searchInRAF(RedoableOp.REDO_MAGIC.getBytes()))  {
+            if (searchInRAF(CompressedRecord.RESYNC_PATTERN))  {
                 currPos = mRAF.getFilePointer();
             } else {
                 String msg = String.format(
@@ -138,6 +139,17 @@ public class FileLogReader {
         }
     }
 
+    private RedoableOp readOp() throws IOException {
+        long pos = mRAF.getFilePointer();
+        byte[] magic = new byte[CompressedRecord.MAGIC.length()];
+        mIN.readFully(magic, 0, magic.length);
+        if (CompressedRecord.MAGIC.equals(new String(magic))) {
+            return CompressedRecord.read(mIN);
+        }
+        mRAF.seek(pos);
+        return RedoableOp.deserializeOp(mIN);
+    }
+
     public synchronized long getSize() throws IOException {
         return mRAF.length();
     }
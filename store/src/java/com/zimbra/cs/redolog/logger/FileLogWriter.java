@@ -96,6 +96,8 @@ public class FileLogWriter implements LogWriter {
 
     private CommitNotifyQueue mCommitNotifyQueue;
 
+    private final boolean mCompress;    // deflate records; see CompressedRecord
+
     public FileLogWriter(RedoLogManager redoLogMgr,
                          File logfile,
                          long fsyncIntervalMS) {
@@ -108,6 +110,7 @@ public class FileLogWriter implements LogWriter {
 
         mFsyncIntervalMS = fsyncIntervalMS;
         mFsyncDisabled = DebugConfig.disableRedoLogFsync;
+        mCompress = CompressedRecord.isEnabled();
 
         mFsyncCount = mLogCount = 0;
 
@@ -206,6 +209,8 @@ public class FileLogWriter implements LogWriter {
                 mHeader.setSequence(mRedoLogMgr.getCurrentLogSequence());
             }
             mHeader.setOpen(true);
+            if (mCompress)
+                mHeader.setFlag(FileHeader.FLAG_COMPRESSED_RECORDS);
             mHeader.write(mRAF);
 
             // go to the end of file, so we can append
@@ -273,6 +278,10 @@ public class FileLogWriter implements LogWriter {
         int seq;
         boolean sameMboxAsLastOp = false;
 
+        // Compress before taking the lock, so concurrent loggers don't deflate one at a time.
+        if (mCompress)
+            data = CompressedRecord.compress(data);
+
         synchronized (mLock) {
             if (mRAF == null)
                 throw new IOException("Redolog file closed");
@@ -151,7 +151,12 @@ public class CreateContact extends RedoableOp {
             int length = in.readInt();
             if (length > StoreIncomingBlob.MAX_BLOB_SIZE)
                 throw new IOException("deserialized message size too large (" + length + " bytes)");
-            if (length > 0) {
+            if (length > 0 && in.getPath() == null) {
+                // op from a compressed record, already inflated into memory
+                byte[] data = new byte[length];
+                in.readFully(data, 0, length);
+                mRedoLogContent = new RedoableOpData(data);
+            } else if (length > 0) {
                 mRedoLogContent = new RedoableOpData(new File(in.getPath()), in.getFilePointer(), length);
 
                 // Now that we have a stream to the data, skip to the next op.
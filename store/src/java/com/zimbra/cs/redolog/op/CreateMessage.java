@@ -441,6 +441,8 @@ implements CreateCalendarItemPlayer, CreateCalendarItemRecorder {
             try {
                 inMemory = dataLength <= StoreManager.getDiskStreamingThreshold();
             } catch (ServiceException e) {}
+            // ops from a compressed record have already been inflated into memory
+            inMemory |= in.getPath() == null;
 
             // mData must be the last thing deserialized.  See comments in serializeData()
             if (inMemory) {
@@ -123,7 +123,12 @@ public class ModifyContact extends RedoableOp {
         if (getVersion().atLeast(1, 14)) {
             in.readShort();
             int length = in.readInt();
-            if (length > 0) {
+            if (length > 0 && in.getPath() == null) {
+                // op from a compressed record, already inflated into memory
+                byte[] data = new byte[length];
+                in.readFully(data, 0, length);
+                mRedoLogContent = new RedoableOpData(data);
+            } else if (length > 0) {
                 mRedoLogContent = new RedoableOpData(new File(in.getPath()), in.getFilePointer(), length);
 
                 // Now that we have a stream to the data, skip to the next op.
@@ -78,7 +78,7 @@ public abstract class RedoableOp {
     protected RedoableOp(MailboxOperation op, RedoLogManager mgr) {
         mOperation = op;
         mRedoLogMgr = mgr;
-        mVersion = new Version();
+        mVersion = Version.uncompressed();
         mTxnId = null;
         mActive = false;
         mMailboxId = UNKNOWN_ID;
@@ -150,6 +150,13 @@ public class StoreIncomingBlob extends RedoableOp {
 
         // mData must be the last thing deserialized.  See comments in
         // serializeData().
+        if (in.getPath() == null) {
+            // op from a compressed record, already inflated into memory
+            byte[] data = new byte[dataLen];
+            in.readFully(data, 0, dataLen);
+            mData = new RedoableOpData(data);
+            return;
+        }
         long pos = in.getFilePointer();
         mData = new RedoableOpData(new File(in.getPath()), pos, dataLen);
 
@@ -14,21 +14,59 @@
  * If not, see <https://www.gnu.org/licenses/>.
  * ***** END LICENSE BLOCK *****
  */
-
 package com.zimbra.cs.redolog.util;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.RedoPlayer;
 import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.StoreIncomingBlob;
 import com.zimbra.cs.util.Zimbra;
 
+/**
+ * Replays redo ops on a pool of threads.
+ * <p>
+ * Ops are queued per mailbox, in log order.  A mailbox queue with pending ops sits in a
+ * shared ready queue; an idle player thread takes the whole mailbox queue and plays its ops
+ * until it is empty (or until {@link #MAX_BATCH} ops, to stay fair to other mailboxes), so a
+ * mailbox is only ever played by one thread at a time but no thread waits while another
+ * has a backlog of hot mailboxes.
+ * <p>
+ * An op that spans several known mailboxes ({@link StoreIncomingBlob} with a mailbox list)
+ * is queued as a barrier in each of those mailboxes.  It runs once every one of them has
+ * played its earlier ops, and their later ops wait for it; other mailboxes are unaffected.
+ * Only ops whose mailboxes can't be known wait for all queued ops to finish and run on the
+ * calling thread.
+ */
 public class ParallelRedoPlayer extends RedoPlayer {
 
-    private PlayerThread[] mPlayerThreads;
+    private static final int MAX_BATCH = 1000;
+
+    private final PlayerThread[] mPlayerThreads;
+
+    // Guards mQueues, all MailboxQueue and Barrier state, and mOutstanding.
+    private final Object mLock = new Object();
+    private final Map<Integer, MailboxQueue> mQueues = new HashMap<Integer, MailboxQueue>();
+    private final BlockingQueue<MailboxQueue> mReady = new LinkedBlockingQueue<MailboxQueue>();
+    private int mOutstanding;  // ops queued and not yet played
+
+    // Bounds the number of queued ops, as the per-thread queues used to.
+    private final Semaphore mCapacity;
+
+    private static final MailboxQueue SHUTDOWN = new MailboxQueue(RedoableOp.UNKNOWN_ID);
 
     public ParallelRedoPlayer(boolean writable, boolean unloggedReplay,
                               boolean ignoreReplayErrors, boolean skipDeleteOps,
@@ -36,10 +74,11 @@ public class ParallelRedoPlayer extends RedoPlayer {
         super(writable, unloggedReplay, ignoreReplayErrors, skipDeleteOps, handleMailboxConflict);
         ZimbraLog.redolog.debug("Starting ParallelRedoPlayer");
         numThreads = Math.max(numThreads, 1);
+        mCapacity = new Semaphore(Math.max(queueCapacity, 1) * numThreads);
         mPlayerThreads = new PlayerThread[numThreads];
         for (int i = 0; i < numThreads; i++) {
             String name = "RedoPlayer-" + Integer.toString(i);
-            PlayerThread player = new PlayerThread(queueCapacity);
+            PlayerThread player = new PlayerThread();
             mPlayerThreads[i] = player;
             player.setName(name);
             player.start();
@@ -51,8 +90,16 @@ public class ParallelRedoPlayer extends RedoPlayer {
         try {
             super.shutdown();
         } finally {
+            // Let the threads finish everything queued so far, then stop them.
+            awaitIdle();
             for (int i = 0; i < mPlayerThreads.length; i++) {
-                mPlayerThreads[i].shutdown();
+                mReady.add(SHUTDOWN);
+            }
+            for (PlayerThread player : mPlayerThreads) {
+                try {
+                    player.join();
+                } catch (InterruptedException e) {}
+                player.logStats();
             }
         }
         ZimbraLog.redolog.debug("ParallelRedoPlayer shutdown complete");
@@ -61,28 +108,85 @@ public class ParallelRedoPlayer extends RedoPlayer {
     @Override protected void playOp(RedoableOp op) throws Exception {
         checkError();
         int mboxId = op.getMailboxId();
-        if (mboxId == RedoableOp.MAILBOX_ID_ALL || mboxId == RedoableOp.UNKNOWN_ID) {
-            // Multi-mailbox ops are executed by the main thread to prevent later ops
-            // that depend on this op's result aren't run out of order.
+        if (mboxId != RedoableOp.MAILBOX_ID_ALL && mboxId != RedoableOp.UNKNOWN_ID) {
             if (ZimbraLog.redolog.isDebugEnabled())
-                ZimbraLog.redolog.info("Executing: " + op.toString());
-            op.redo();
+                ZimbraLog.redolog.info("Enqueuing: " + op.toString());
+            enqueue(new Task(op), mboxId);
+            return;
+        }
+
+        List<Integer> mboxIds = op instanceof StoreIncomingBlob ? ((StoreIncomingBlob) op).getMailboxIdList() : null;
+        if (mboxIds != null && !mboxIds.isEmpty()) {
+            // Barrier across just the mailboxes this op is for.
+            if (ZimbraLog.redolog.isDebugEnabled())
+                ZimbraLog.redolog.info("Enqueuing barrier: " + op.toString());
+            enqueue(new Barrier(op, new LinkedHashSet<Integer>(mboxIds)));
         } else {
-            // Ops for the same mailbox must be played back in order.  To ensure that,
-            // all ops for the same mailbox are sent to the same player thread.  The
-            // ops are added to the thread's internal queue and played back in order.
-            // This assignment of ops to threads will result in uneven distribution.
-            int index = Math.abs(mboxId % mPlayerThreads.length);
-            PlayerThread player = mPlayerThreads[index];
-            RedoTask task = new RedoTask(op);
+            // Any mailbox may depend on this op, so let all queued ops finish and run
+            // it here, before later ops are queued.
+            awaitIdle();
+            checkError();
             if (ZimbraLog.redolog.isDebugEnabled())
-                ZimbraLog.redolog.info("Enqueuing: " + op.toString());
-            try {
-                player.enqueue(task);
-            } catch (InterruptedException e) {}
+                ZimbraLog.redolog.info("Executing: " + op.toString());
+            op.redo();
         }
     }
 
+    private void enqueue(Task task, int mboxId) throws InterruptedException {
+        mCapacity.acquire();
+        synchronized (mLock) {
+            mOutstanding++;
+            add(mboxId, task);
+        }
+    }
+
+    private void enqueue(Barrier barrier) throws InterruptedException {
+        mCapacity.acquire();
+        synchronized (mLock) {
+            mOutstanding++;
+            barrier.remaining = barrier.mboxIds.size();
+            Task task = new Task(barrier);
+            for (int mboxId : barrier.mboxIds) {
+                add(mboxId, task);
+            }
+        }
+    }
+
+    // Called with mLock held.
+    private void add(int mboxId, Task task) {
+        MailboxQueue queue = mQueues.get(mboxId);
+        if (queue == null) {
+            queue = new MailboxQueue(mboxId);
+            mQueues.put(mboxId, queue);
+        }
+        queue.tasks.add(task);
+        if (!queue.scheduled) {
+            queue.scheduled = true;
+            mReady.add(queue);
+        }
+    }
+
+    /** Blocks until every queued op has been played. */
+    private void awaitIdle() {
+        synchronized (mLock) {
+            while (mOutstanding > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void played() {
+        synchronized (mLock) {
+            if (--mOutstanding == 0)
+                mLock.notifyAll();
+        }
+        mCapacity.release();
+    }
+
     private Throwable mError = null;
     private final Object mErrorLock = new Object();
 
@@ -106,83 +210,142 @@ public class ParallelRedoPlayer extends RedoPlayer {
         }
     }
 
-    private static class RedoTask {
-        private RedoableOp mOp;
-        public RedoTask(RedoableOp op)  { mOp = op; }
-        public RedoableOp getOp()       { return mOp; }
-        public boolean isShutdownTask() { return false; }
-    }
-
     /**
-     * Special task to tell the queue drain thread to go away.
+     * Pending ops of one mailbox.  While <tt>scheduled</tt> is set the queue is in the ready
+     * queue, being played by a thread, or parked at a barrier, so no other thread plays it.
      */
-    private static class ShutdownTask extends RedoTask {
-        public ShutdownTask() { super(null); }
-        @Override
-        public boolean isShutdownTask() { return true; }
+    private static class MailboxQueue {
+        final int mboxId;
+        final Deque<Task> tasks = new ArrayDeque<Task>();
+        boolean scheduled;
+
+        MailboxQueue(int mboxId) {
+            this.mboxId = mboxId;
+        }
     }
 
-    private class PlayerThread extends Thread {
-        private BlockingQueue<RedoTask> mQueue;
+    private static class Task {
+        final RedoableOp op;
+        final Barrier barrier;
 
-        private PlayerThread(int queueCapacity) {
-            queueCapacity = Math.max(queueCapacity, 1);
-            mQueue = new LinkedBlockingQueue<RedoTask>(queueCapacity);
+        Task(RedoableOp op) {
+            this.op = op;
+            this.barrier = null;
         }
 
-        public void enqueue(RedoTask task) throws InterruptedException {
-            mQueue.put(task);
+        Task(Barrier barrier) {
+            this.op = barrier.op;
+            this.barrier = barrier;
         }
+    }
 
-        public void shutdown() {
-            if (hadError())
-                mQueue.clear();  // Ensure mQueue.put() below will not block.
-            ShutdownTask t = new ShutdownTask();
-            try {
-                mQueue.put(t);
-            } catch (InterruptedException e) {}
-            try {
-                join();
-            } catch (InterruptedException e) {}
+    /**
+     * An op queued in several mailboxes.  Each mailbox that reaches it parks until the last
+     * one arrives; that thread plays the op and releases the others.
+     */
+    private static class Barrier {
+        final RedoableOp op;
+        final Set<Integer> mboxIds;
+        final List<MailboxQueue> parked = new ArrayList<MailboxQueue>();
+        int remaining;
+
+        Barrier(RedoableOp op, Set<Integer> mboxIds) {
+            this.op = op;
+            this.mboxIds = mboxIds;
         }
+    }
+
+    private class PlayerThread extends Thread {
+        // replay statistics; only touched by this thread until it has been joined
+        private long mOpsPlayed;
+        private long mQueuesTaken;
+        private long mBusyNanos;
+        private final long mStartTime = System.nanoTime();
 
         @Override public void run() {
             while (true) {
-                RedoTask task;
+                MailboxQueue queue;
                 try {
-                    task = mQueue.take();
+                    queue = mReady.take();
                 } catch (InterruptedException e) {
                     break;
                 }
-                if (task.isShutdownTask())
+                if (queue == SHUTDOWN)
                     break;
+                mQueuesTaken++;
+                long start = System.nanoTime();
+                play(queue);
+                mBusyNanos += System.nanoTime() - start;
+            }
+        }
 
-                if (hadError()) {
-                    // If there was an error, keep consuming from the queue without executing anything.
-                    // This thread must consume all tasks until shutdown task is received.  If this
-                    // thread stopped consuming, the producer may not be able to enqueue the shutdown
-                    // task.
-                    continue;
+        private void play(MailboxQueue queue) {
+            int batch = 0;
+            while (true) {
+                Task task;
+                synchronized (mLock) {
+                    task = queue.tasks.poll();
+                    if (task == null) {
+                        queue.scheduled = false;
+                        mQueues.remove(queue.mboxId);
+                        return;
+                    }
+                    if (task.barrier != null && --task.barrier.remaining > 0) {
+                        // Wait for the barrier's other mailboxes; the last one to arrive reschedules this one.
+                        task.barrier.parked.add(queue);
+                        return;
+                    }
+                    if (task.barrier == null && batch >= MAX_BATCH) {
+                        // Give other ready mailboxes a turn.
+                        queue.tasks.addFirst(task);
+                        mReady.add(queue);
+                        return;
+                    }
                 }
 
-                RedoableOp op = task.getOp();
-                try {
-                    if (ZimbraLog.redolog.isDebugEnabled()) {
-                        ZimbraLog.redolog.info("Executing: " + op.toString());
+                execute(task.op);
+                batch++;
+                if (task.barrier != null) {
+                    synchronized (mLock) {
+                        mReady.addAll(task.barrier.parked);
+                        task.barrier.parked.clear();
                     }
-                    if (handleMailboxConflict) {
-                        redoOpWithMboxConflict(op);
-                    } else {
-                        op.redo();
-                    }
-                } catch (OutOfMemoryError oome) {
-                    Zimbra.halt("Out of memory while executing redo op", oome);
-                } catch (Throwable e) {
-                    ZimbraLog.redolog.error("Unable to execute redo op: " + op.toString(), e);
-                    if (!ignoreReplayErrors())
-                        raiseError(e);
                 }
+                played();
             }
         }
+
+        private void execute(RedoableOp op) {
+            if (hadError()) {
+                // If there was an error, keep consuming queued ops without executing anything,
+                // so that the producer and shutdown are never blocked.
+                return;
+            }
+            try {
+                if (ZimbraLog.redolog.isDebugEnabled()) {
+                    ZimbraLog.redolog.info("Executing: " + op.toString());
+                }
+                if (handleMailboxConflict) {
+                    redoOpWithMboxConflict(op);
+                } else {
+                    op.redo();
+                }
+                mOpsPlayed++;
+            } catch (OutOfMemoryError oome) {
+                Zimbra.halt("Out of memory while executing redo op", oome);
+            } catch (Throwable e) {
+                ZimbraLog.redolog.error("Unable to execute redo op: " + op.toString(), e);
+                if (!ignoreReplayErrors())
+                    raiseError(e);
+            }
+        }
+
+        void logStats() {
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartTime);
+            long busyMs = TimeUnit.NANOSECONDS.toMillis(mBusyNanos);
+            ZimbraLog.redolog.info("%s played %d ops from %d mailbox queues; busy %dms of %dms (%.1f ops/sec)",
+                    getName(), mOpsPlayed, mQueuesTaken, busyMs, elapsedMs,
+                    busyMs > 0 ? mOpsPlayed * 1000.0 / busyMs : 0.0);
+        }
     }
 }
@@ -93,6 +93,11 @@ public class GetInfo extends AccountDocumentHandler  {
         }
     }
 
+    @Override
+    public boolean isParallelBatchSafe(Element request, Map<String, Object> context) throws ServiceException {
+        return true;
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
@@ -80,6 +80,13 @@ public class GetCalendarItemSummaries extends CalendarRequest {
         return RESPONSE_ITEM_PATH;
     }
 
+    @Override
+    public boolean isParallelBatchSafe(Element request, Map<String, Object> context) throws ServiceException {
+        // a folder that is a mountpoint is proxied
+        String folderId = request.getAttribute(MailConstants.A_FOLDER, null);
+        return folderId == null || isLocalTarget(folderId, context);
+    }
+
     private static final String DEFAULT_FOLDER = "" + Mailbox.ID_AUTO_INCREMENT;
 
     private static final long MSEC_PER_DAY = 1000*60*60*24;
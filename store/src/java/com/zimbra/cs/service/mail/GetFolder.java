@@ -61,6 +61,22 @@ public class GetFolder extends MailDocumentHandler {
         return RESPONSE_ITEM_PATH;
     }
 
+    @Override
+    public boolean isParallelBatchSafe(Element request, Map<String, Object> context) throws ServiceException {
+        // anything that may reach a mountpoint is proxied
+        if (request.getAttributeBool(MailConstants.A_TRAVERSE, false)) {
+            return false;
+        }
+        Element eFolder = request.getOptionalElement(MailConstants.E_FOLDER);
+        if (eFolder == null) {
+            return true;
+        } else if (eFolder.getAttribute(MailConstants.A_PATH, null) != null ||
+                eFolder.getAttribute(MailConstants.A_UUID, null) != null) {
+            return false;
+        }
+        return isLocalTarget(eFolder.getAttribute(MailConstants.A_FOLDER, DEFAULT_FOLDER_ID), context);
+    }
+
     static final String DEFAULT_FOLDER_ID = Integer.toString(Mailbox.ID_FOLDER_USER_ROOT);
 
     @Override
@@ -87,6 +87,14 @@ public abstract class MailDocumentHandler extends DocumentHandler {
         return ((Mountpoint) item).getTarget();
     }
 
+    /** Returns <tt>true</tt> if the item with the given id is in the requested
+     *  mailbox and isn't a mountpoint, so that a request on it is handled here
+     *  rather than proxied. */
+    protected static boolean isLocalTarget(String id, Map<String, Object> context) throws ServiceException {
+        ZimbraSoapContext zsc = getZimbraSoapContext(context);
+        return getProxyTarget(zsc, getOperationContext(zsc, context), new ItemId(id, zsc), true) == null;
+    }
+
     private void insertMountpointReferences(Element response, String[] xpath, ItemId iidMountpoint, ItemId iidLocal, ZimbraSoapContext lc) {
         int depth = 0;
         while (depth < xpath.length && response != null) {
@@ -72,6 +72,12 @@ import com.zimbra.soap.mail.message.SearchRequest;
  */
 public class Search extends MailDocumentHandler  {
 
+    @Override
+    public boolean isParallelBatchSafe(Element request, Map<String, Object> context) throws ServiceException {
+        // searches that mark the first hit read change state
+        return !request.getAttributeBool(MailConstants.A_MARK_READ, false);
+    }
+
     @Override
     public Element handle(Element request, Map<String, Object> context) throws ServiceException {
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
@@ -24,6 +24,8 @@ import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.account.ldap.LdapProv;
+import com.zimbra.cs.index.SearchResultCache;
+import com.zimbra.cs.mailbox.MailboxNotificationDispatcher;
 import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
@@ -35,6 +37,13 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MBOX_NOTIFY_QUEUE_DEPTH, MailboxNotificationDispatcher.getQueueDepth());
+        data.put(ZimbraPerf.RTS_SEARCH_RESULT_CACHE_BYTES, SearchResultCache.getMemoryUsage());
+        for (int shard = 0; shard < MessageCache.SHARD_COUNT; shard++) {
+            data.put(ZimbraPerf.getMessageCacheShardHitsName(shard), MessageCache.getShardHitCount(shard));
+            data.put(ZimbraPerf.getMessageCacheShardMissesName(shard), MessageCache.getShardMissCount(shard));
+            data.put(ZimbraPerf.getMessageCacheShardEvictionsName(shard), MessageCache.getShardEvictionCount(shard));
+        }
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
@@ -47,12 +56,18 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
             LdapProv ldap = (LdapProv) prov;
             data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_SIZE, ldap.getAccountCacheSize());
             data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_HIT_RATE, ldap.getAccountCacheHitRate());
+            data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_REFRESH, ldap.getAccountCacheRefreshCount());
+            data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_COLLAPSED, ldap.getAccountCacheCollapsedLoadCount());
             data.put(ZimbraPerf.RTS_COS_CACHE_SIZE, ldap.getCosCacheSize());
             data.put(ZimbraPerf.RTS_COS_CACHE_HIT_RATE, ldap.getCosCacheHitRate());
+            data.put(ZimbraPerf.RTS_COS_CACHE_REFRESH, ldap.getCosCacheRefreshCount());
+            data.put(ZimbraPerf.RTS_COS_CACHE_COLLAPSED, ldap.getCosCacheCollapsedLoadCount());
             data.put(ZimbraPerf.RTS_DOMAIN_CACHE_SIZE, ldap.getDomainCacheSize());
             data.put(ZimbraPerf.RTS_DOMAIN_CACHE_HIT_RATE, ldap.getDomainCacheHitRate());
             data.put(ZimbraPerf.RTS_SERVER_CACHE_SIZE, ldap.getServerCacheSize());
             data.put(ZimbraPerf.RTS_SERVER_CACHE_HIT_RATE, ldap.getServerCacheHitRate());
+            data.put(ZimbraPerf.RTS_SERVER_CACHE_REFRESH, ldap.getServerCacheRefreshCount());
+            data.put(ZimbraPerf.RTS_SERVER_CACHE_COLLAPSED, ldap.getServerCacheCollapsedLoadCount());
             data.put(ZimbraPerf.RTS_UCSERVICE_CACHE_SIZE, ldap.getUCServiceCacheSize());
             data.put(ZimbraPerf.RTS_UCSERVICE_CACHE_HIT_RATE, ldap.getUCServiceCacheHitRate());
             data.put(ZimbraPerf.RTS_ZIMLET_CACHE_SIZE, ldap.getZimletCacheSize());
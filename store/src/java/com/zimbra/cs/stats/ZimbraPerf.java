@@ -52,6 +52,7 @@ import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.util.MemoryStats;
 
 /**
@@ -112,6 +113,12 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Number of mailbox change notifications waiting for asynchronous delivery")
+    public static final String RTS_MBOX_NOTIFY_QUEUE_DEPTH = "mbox_notify_queue_depth";
+
+    @Description("Estimated memory (bytes) used by cached search results")
+    public static final String RTS_SEARCH_RESULT_CACHE_BYTES = "search_result_cache_bytes";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
@@ -128,12 +135,24 @@ public class ZimbraPerf {
     @Description("LDAP account cache hit rate")
     public static final String RTS_ACCOUNT_CACHE_HIT_RATE = "account_cache_hit_rate";
 
+    @Description("Number of background refreshes of stale LDAP account cache entries")
+    public static final String RTS_ACCOUNT_CACHE_REFRESH = "account_cache_refresh";
+
+    @Description("Number of LDAP account lookups collapsed into an in-progress load")
+    public static final String RTS_ACCOUNT_CACHE_COLLAPSED = "account_cache_collapsed";
+
     @Description("LDAP COS cache size")
     public static final String RTS_COS_CACHE_SIZE = "cos_cache_size";
 
     @Description("LDAP COS cache hit rate")
     public static final String RTS_COS_CACHE_HIT_RATE = "cos_cache_hit_rate";
 
+    @Description("Number of background refreshes of stale LDAP COS cache entries")
+    public static final String RTS_COS_CACHE_REFRESH = "cos_cache_refresh";
+
+    @Description("Number of LDAP COS lookups collapsed into an in-progress load")
+    public static final String RTS_COS_CACHE_COLLAPSED = "cos_cache_collapsed";
+
     @Description("LDAP domain cache size")
     public static final String RTS_DOMAIN_CACHE_SIZE = "domain_cache_size";
 
@@ -146,6 +165,12 @@ public class ZimbraPerf {
     @Description("LDAP server cache hit rate")
     public static final String RTS_SERVER_CACHE_HIT_RATE = "server_cache_hit_rate";
 
+    @Description("Number of background refreshes of stale LDAP server cache entries")
+    public static final String RTS_SERVER_CACHE_REFRESH = "server_cache_refresh";
+
+    @Description("Number of LDAP server lookups collapsed into an in-progress load")
+    public static final String RTS_SERVER_CACHE_COLLAPSED = "server_cache_collapsed";
+
     @Description("LDAP UC service cache size")
     public static final String RTS_UCSERVICE_CACHE_SIZE = "ucservice_cache_size";
 
@@ -181,9 +206,11 @@ public class ZimbraPerf {
     public static final StopWatch STOPWATCH_LDAP_DC = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_ADD_MSG = new StopWatch();
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
+    public static final StopWatch STOPWATCH_MBOX_NOTIFY_LAG = new StopWatch();  // commit-to-delivery notification lag
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_SEARCH_RESULT_CACHE = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -219,13 +246,13 @@ public class ZimbraPerf {
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
+            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MBOX_NOTIFY_QUEUE_DEPTH, RTS_SEARCH_RESULT_CACHE_BYTES,
             RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
             RTS_ACL_CACHE_HIT_RATE,
-            RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
-            RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
+            RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE, RTS_ACCOUNT_CACHE_REFRESH, RTS_ACCOUNT_CACHE_COLLAPSED,
+            RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE, RTS_COS_CACHE_REFRESH, RTS_COS_CACHE_COLLAPSED,
             RTS_DOMAIN_CACHE_SIZE, RTS_DOMAIN_CACHE_HIT_RATE,
-            RTS_SERVER_CACHE_SIZE, RTS_SERVER_CACHE_HIT_RATE,
+            RTS_SERVER_CACHE_SIZE, RTS_SERVER_CACHE_HIT_RATE, RTS_SERVER_CACHE_REFRESH, RTS_SERVER_CACHE_COLLAPSED,
             RTS_UCSERVICE_CACHE_SIZE, RTS_UCSERVICE_CACHE_HIT_RATE,
             RTS_ZIMLET_CACHE_SIZE, RTS_ZIMLET_CACHE_HIT_RATE,
             RTS_GROUP_CACHE_SIZE, RTS_GROUP_CACHE_HIT_RATE,
@@ -276,15 +303,27 @@ public class ZimbraPerf {
     @Description("Average latency (ms) of getting a mailbox from the cache")
     private static final String DC_MBOX_GET_MS_AVG = "mbox_get_ms_avg";
 
+    @Description("Number of mailbox change notifications delivered asynchronously")
+    private static final String DC_MBOX_NOTIFY_COUNT = "mbox_notify_count";
+
+    @Description("Average lag (ms) between committing a mailbox change and delivering its notifications")
+    private static final String DC_MBOX_NOTIFY_LAG_MS_AVG = "mbox_notify_lag_ms_avg";
+
     @Description("Mailbox cache hit rate")
     private static final String DC_MBOX_CACHE = "mbox_cache";
 
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    /** Prefix of the per-shard message cache stats, e.g. <tt>msg_cache_shard3_hits</tt>. */
+    private static final String RTS_MSG_CACHE_SHARD_PREFIX = "msg_cache_shard";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Search result cache hit rate")
+    private static final String DC_SEARCH_RESULT_CACHE = "search_result_cache";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -415,6 +454,28 @@ public class ZimbraPerf {
         descriptions.put(name, description);
     }
 
+    private static void addMessageCacheShardStatNames(int shard) {
+        realtimeStats.addName(getMessageCacheShardHitsName(shard));
+        descriptions.put(getMessageCacheShardHitsName(shard), "Number of message cache hits in shard " + shard);
+        realtimeStats.addName(getMessageCacheShardMissesName(shard));
+        descriptions.put(getMessageCacheShardMissesName(shard), "Number of message cache misses in shard " + shard);
+        realtimeStats.addName(getMessageCacheShardEvictionsName(shard));
+        descriptions.put(getMessageCacheShardEvictionsName(shard),
+                "Number of entries evicted from message cache shard " + shard);
+    }
+
+    static String getMessageCacheShardHitsName(int shard) {
+        return RTS_MSG_CACHE_SHARD_PREFIX + shard + "_hits";
+    }
+
+    static String getMessageCacheShardMissesName(int shard) {
+        return RTS_MSG_CACHE_SHARD_PREFIX + shard + "_misses";
+    }
+
+    static String getMessageCacheShardEvictionsName(int shard) {
+        return RTS_MSG_CACHE_SHARD_PREFIX + shard + "_evictions";
+    }
+
     public static JmxServerStatsMBean getMonitoringStats() {
         return jmxServerStats;
     }
@@ -454,6 +515,9 @@ public class ZimbraPerf {
         switch (serverID) {
         case ZIMBRA:
             realtimeStats = new RealtimeStats(mboxRealtimeStatsNames);
+            for (int shard = 0; shard < MessageCache.SHARD_COUNT; shard++) {
+                addMessageCacheShardStatNames(shard);
+            }
             sAccumulators = new CopyOnWriteArrayList<Accumulator>(
                     new Accumulator[] {
                             new DeltaCalculator(COUNTER_LMTP_RCVD_MSGS).setTotalName(DC_LMTP_RCVD_MSGS),
@@ -469,9 +533,13 @@ public class ZimbraPerf {
                                     .setAverageName(DC_MBOX_ADD_MSG_MS_AVG),
                             new DeltaCalculator(STOPWATCH_MBOX_GET).setCountName(DC_MBOX_GET_COUNT)
                                     .setAverageName(DC_MBOX_GET_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_MBOX_NOTIFY_LAG).setCountName(DC_MBOX_NOTIFY_COUNT)
+                                    .setAverageName(DC_MBOX_NOTIFY_LAG_MS_AVG),
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_SEARCH_RESULT_CACHE)
+                                    .setAverageName(DC_SEARCH_RESULT_CACHE),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
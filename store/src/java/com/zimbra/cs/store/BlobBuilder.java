@@ -26,6 +26,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 
 import com.zimbra.common.localconfig.DebugConfig;
@@ -159,7 +160,11 @@ public class BlobBuilder {
 
             // This call exceeded compression threshold.  Compress the stream and
             // write everything that we've read so far.
-            out = new GZIPOutputStream(out);
+            if (BlockGzipOutputStream.isEnabled()) {
+                out = new BlockGzipOutputStream(out);
+            } else {
+                out = new GZIPOutputStream(out);
+            }
             writeToFile(buf, 0, bufLen);
             blob.setCompressed(true);
             compressionThresholdExceeded = true;
@@ -218,6 +223,12 @@ public class BlobBuilder {
         }
 
         try {
+            // write the compressed trailer before syncing, not when the stream is closed
+            if (out instanceof BlockGzipOutputStream) {
+                ((BlockGzipOutputStream) out).finish();
+            } else if (out instanceof DeflaterOutputStream) {
+                ((DeflaterOutputStream) out).finish();
+            }
             if (!DebugConfig.disableMessageStoreFsync) {
                 out.flush();
                 if (fc != null) {
@@ -315,8 +315,9 @@ implements SharedInputStream, InputStreamSource {
                 if (numReadIntoBuffer <= 0) {
                     return -1;
                 }
-                System.arraycopy(mBuf, 0, b, off, len);
-                numRead = len;
+                // block-compressed blobs may return less than a full buffer at a block boundary
+                numRead = Math.min(len, numReadIntoBuffer);
+                System.arraycopy(mBuf, 0, b, off, numRead);
             }
         }
         if (numRead > 0) {
@@ -0,0 +1,252 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * Writes data as a sequence of independently compressed gzip members of at most
+ * {@link #getBlockSize()} uncompressed bytes each, followed by an empty member whose
+ * extra field holds the compressed size of every block.
+ * <p>
+ * The result is a valid multi-member gzip file, so anything that reads compressed blobs
+ * through <tt>GZIPInputStream</tt> keeps working.  That includes servers that predate this
+ * class: <tt>Blob</tt>, <tt>FileDescriptorCache</tt> and <tt>BlobConsistencyChecker</tt>
+ * inflate every member in turn, and since the file length never matches the stored raw
+ * size, which is the uncompressed size as for any compressed blob, they take the gzip path
+ * and read offsets from the inflated data.  {@link BlockGzipSharedFile} uses the trailing
+ * index to seek to the block that holds a given uncompressed offset and inflates only that
+ * block.
+ * <p>
+ * Index member layout (all integers big-endian in the extra field):
+ * <pre>
+ *   gzip header with FEXTRA, subfield 'Z' 'X':
+ *     int blockSize, long rawSize, int[count] compressedBlockSizes, int count, int INDEX_MAGIC
+ *   empty deflate block, CRC32 = 0, ISIZE = 0
+ * </pre>
+ * The gzip extra field is limited to 64KB, so if a blob has more than {@link #MAX_BLOCKS}
+ * blocks the index is omitted and readers fall back to inflating the whole file.
+ */
+public class BlockGzipOutputStream extends FilterOutputStream {
+
+    static final int INDEX_MAGIC = 0x5a424758; // "ZBGX"
+    static final byte INDEX_SI1 = 'Z';
+    static final byte INDEX_SI2 = 'X';
+
+    /** Size of the fixed gzip header written for each block. */
+    static final int HEADER_SIZE = 10;
+    /** Size of the CRC32 and ISIZE fields that end each member. */
+    static final int TRAILER_SIZE = 8;
+    /** Bytes that follow the index magic: an empty final deflate block plus the member trailer. */
+    static final int INDEX_TAIL_SIZE = 2 + TRAILER_SIZE;
+    /** Index bytes besides the block sizes: block size, raw size, count and magic. */
+    static final int INDEX_FIXED_SIZE = 4 + 8 + 4 + 4;
+    static final int MAX_BLOCKS = (0xffff - 4 - INDEX_FIXED_SIZE) / 4;
+
+    private static final byte[] BLOCK_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final byte[] block;
+    private int blockLen = 0;
+    private final byte[] deflateBuf;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private int[] blockSizes = new int[16];
+    private int numBlocks = 0;
+    private long rawSize = 0;
+    private boolean finished = false;
+
+    public BlockGzipOutputStream(OutputStream out) {
+        this(out, getDefaultBlockSize());
+    }
+
+    public BlockGzipOutputStream(OutputStream out, int blockSize) {
+        super(out);
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("invalid block size " + blockSize);
+        }
+        block = new byte[blockSize];
+        deflateBuf = new byte[Math.min(blockSize, 8192) + 64];
+    }
+
+    public static boolean isEnabled() {
+        return LC.zimbra_blob_block_compression.booleanValue();
+    }
+
+    static int getDefaultBlockSize() {
+        return Math.max(LC.zimbra_blob_compression_block_size_kb.intValue(), 1) * 1024;
+    }
+
+    public int getBlockSize() {
+        return block.length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (finished) {
+            throw new IOException("stream is finished");
+        }
+        if (blockLen == block.length) {
+            writeBlock();
+        }
+        block[blockLen++] = (byte) b;
+        rawSize++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("stream is finished");
+        }
+        while (len > 0) {
+            if (blockLen == block.length) {
+                writeBlock();
+            }
+            int n = Math.min(len, block.length - blockLen);
+            System.arraycopy(b, off, block, blockLen, n);
+            blockLen += n;
+            rawSize += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockLen == 0) {
+            return;
+        }
+        int size = HEADER_SIZE + TRAILER_SIZE;
+        out.write(BLOCK_HEADER);
+        deflater.reset();
+        deflater.setInput(block, 0, blockLen);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(deflateBuf, 0, deflateBuf.length);
+            out.write(deflateBuf, 0, n);
+            size += n;
+        }
+        crc.reset();
+        crc.update(block, 0, blockLen);
+        writeIntLE((int) crc.getValue());
+        writeIntLE(blockLen);
+
+        if (numBlocks == blockSizes.length) {
+            int[] grown = new int[numBlocks * 2];
+            System.arraycopy(blockSizes, 0, grown, 0, numBlocks);
+            blockSizes = grown;
+        }
+        blockSizes[numBlocks++] = size;
+        blockLen = 0;
+    }
+
+    /**
+     * Writes the last block and the index without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeBlock();
+        finished = true;
+        deflater.end();
+        if (numBlocks > MAX_BLOCKS) {
+            return;
+        }
+
+        int dataLen = INDEX_FIXED_SIZE + numBlocks * 4;
+        int xlen = 4 + dataLen;
+        out.write(new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0x04, 0, 0, 0, 0, 0, (byte) 0xff });
+        writeShortLE(xlen);
+        out.write(INDEX_SI1);
+        out.write(INDEX_SI2);
+        writeShortLE(dataLen);
+        writeIntBE(block.length);
+        writeIntBE((int) (rawSize >>> 32));
+        writeIntBE((int) rawSize);
+        for (int i = 0; i < numBlocks; i++) {
+            writeIntBE(blockSizes[i]);
+        }
+        writeIntBE(numBlocks);
+        writeIntBE(INDEX_MAGIC);
+        // empty final block with fixed Huffman codes, then CRC32 and ISIZE of no data
+        out.write(new byte[] { 0x03, 0x00, 0, 0, 0, 0, 0, 0, 0, 0 });
+    }
+
+    /**
+     * Block-compresses <tt>src</tt> into <tt>dest</tt>, the counterpart of
+     * {@link com.zimbra.common.util.FileUtil#compress(File, File, boolean)}.
+     */
+    public static void compress(File src, File dest, boolean sync) throws IOException {
+        FileInputStream fin = null;
+        FileOutputStream fos = null;
+        try {
+            fin = new FileInputStream(src);
+            fos = new FileOutputStream(dest);
+            BlockGzipOutputStream out = new BlockGzipOutputStream(fos);
+            ByteUtil.copy(fin, false, out, false);
+            out.finish();
+            if (sync) {
+                fos.getChannel().force(true);
+            }
+        } finally {
+            ByteUtil.closeStream(fin);
+            ByteUtil.closeStream(fos);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeShortLE(int v) throws IOException {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+    }
+
+    private void writeIntLE(int v) throws IOException {
+        writeShortLE(v & 0xffff);
+        writeShortLE((v >>> 16) & 0xffff);
+    }
+
+    private void writeIntBE(int v) throws IOException {
+        out.write((v >>> 24) & 0xff);
+        out.write((v >>> 16) & 0xff);
+        out.write((v >>> 8) & 0xff);
+        out.write(v & 0xff);
+    }
+}
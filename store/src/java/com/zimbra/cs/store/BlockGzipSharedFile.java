@@ -0,0 +1,169 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * A <tt>SharedFile</tt> over a blob written by {@link BlockGzipOutputStream}.  Offsets
+ * passed to {@link #read} are in the uncompressed data; each read inflates only the block
+ * that contains the offset, and the most recently inflated block is kept for sequential
+ * readers.
+ */
+class BlockGzipSharedFile extends SharedFile {
+
+    private final int mBlockSize;
+    private final long mRawSize;
+    /** Compressed offset of each block, plus the offset of the index member at the end. */
+    private final long[] mOffsets;
+
+    private final Inflater mInflater = new Inflater(true);
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mCompressed = new byte[0];
+    private final byte[] mBlock;
+    private int mBlockIndex = -1;
+    private int mBlockLen = 0;
+
+    private BlockGzipSharedFile(File file, int blockSize, long rawSize, long[] offsets) throws IOException {
+        super(file);
+        mBlockSize = blockSize;
+        mRawSize = rawSize;
+        mOffsets = offsets;
+        mBlock = new byte[blockSize];
+    }
+
+    /**
+     * Returns a <tt>BlockGzipSharedFile</tt> for the given file, or <tt>null</tt> if the file
+     * does not end with a block index (e.g. a blob written with plain gzip).
+     */
+    static BlockGzipSharedFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            int minIndexLen = BlockGzipOutputStream.HEADER_SIZE + 2 + 4 + BlockGzipOutputStream.INDEX_FIXED_SIZE +
+                    BlockGzipOutputStream.INDEX_TAIL_SIZE;
+            if (length < minIndexLen) {
+                return null;
+            }
+            raf.seek(length - BlockGzipOutputStream.INDEX_TAIL_SIZE - 8);
+            int count = raf.readInt();
+            if (raf.readInt() != BlockGzipOutputStream.INDEX_MAGIC ||
+                    count < 0 || count > BlockGzipOutputStream.MAX_BLOCKS) {
+                return null;
+            }
+            int dataLen = BlockGzipOutputStream.INDEX_FIXED_SIZE + count * 4;
+            long indexStart = length - BlockGzipOutputStream.INDEX_TAIL_SIZE - dataLen - 4 - 2 -
+                    BlockGzipOutputStream.HEADER_SIZE;
+            if (indexStart < 0) {
+                return null;
+            }
+            raf.seek(indexStart + BlockGzipOutputStream.HEADER_SIZE + 2);
+            if (raf.readByte() != BlockGzipOutputStream.INDEX_SI1 || raf.readByte() != BlockGzipOutputStream.INDEX_SI2) {
+                return null;
+            }
+            raf.skipBytes(2);
+            int blockSize = raf.readInt();
+            long rawSize = raf.readLong();
+            long[] offsets = new long[count + 1];
+            for (int i = 0; i < count; i++) {
+                offsets[i + 1] = offsets[i] + raf.readInt();
+            }
+            if (blockSize <= 0 || offsets[count] != indexStart ||
+                    rawSize > (long) count * blockSize || rawSize <= (long) (count - 1) * blockSize) {
+                return null;
+            }
+            return new BlockGzipSharedFile(file, blockSize, rawSize, offsets);
+        } finally {
+            ByteUtil.closeStream(raf);
+        }
+    }
+
+    @Override
+    synchronized long getLength() {
+        return mRawSize;
+    }
+
+    @Override
+    synchronized int read(long fileOffset, byte[] b, int off, int len) throws IOException {
+        if (fileOffset >= mRawSize) {
+            return -1;
+        }
+        int index = (int) (fileOffset / mBlockSize);
+        if (index != mBlockIndex) {
+            inflateBlock(index);
+        }
+        int blockOffset = (int) (fileOffset - (long) index * mBlockSize);
+        int numRead = Math.min(len, mBlockLen - blockOffset);
+        System.arraycopy(mBlock, blockOffset, b, off, numRead);
+        return numRead;
+    }
+
+    private void inflateBlock(int index) throws IOException {
+        mBlockIndex = -1;
+        int size = (int) (mOffsets[index + 1] - mOffsets[index]);
+        if (mCompressed.length < size) {
+            mCompressed = new byte[size];
+        }
+        int pos = 0;
+        while (pos < size) {
+            int n = super.read(mOffsets[index] + pos, mCompressed, pos, size - pos);
+            if (n < 0) {
+                throw new IOException("unexpected end of file reading block " + index + " of " + this);
+            }
+            pos += n;
+        }
+
+        int expectedLen = (int) Math.min(mBlockSize, mRawSize - (long) index * mBlockSize);
+        mInflater.reset();
+        // the member trailer is left in the input; raw inflation needs a byte past the deflate data
+        mInflater.setInput(mCompressed, BlockGzipOutputStream.HEADER_SIZE, size - BlockGzipOutputStream.HEADER_SIZE);
+        mBlockLen = 0;
+        try {
+            while (mBlockLen < expectedLen && !mInflater.finished()) {
+                int n = mInflater.inflate(mBlock, mBlockLen, expectedLen - mBlockLen);
+                if (n == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    break;
+                }
+                mBlockLen += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt block " + index + " in " + this, e);
+        }
+        mCrc.reset();
+        mCrc.update(mBlock, 0, mBlockLen);
+        int crcPos = size - BlockGzipOutputStream.TRAILER_SIZE;
+        int crc = (mCompressed[crcPos] & 0xff) | (mCompressed[crcPos + 1] & 0xff) << 8 |
+                (mCompressed[crcPos + 2] & 0xff) << 16 | (mCompressed[crcPos + 3] & 0xff) << 24;
+        if (mBlockLen != expectedLen || crc != (int) mCrc.getValue()) {
+            throw new IOException("corrupt block " + index + " in " + this);
+        }
+        mBlockIndex = index;
+    }
+
+    @Override
+    synchronized void close() throws IOException {
+        super.close();
+        mBlockIndex = -1;
+    }
+}
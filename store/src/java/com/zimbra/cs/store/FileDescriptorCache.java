@@ -40,8 +40,9 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
 
 /**
- * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
- * uses a {@link FileCache} to access the uncompressed data.  Cache entries
+ * Caches file descriptors to blobs in the mail store.  If the blob was written by
+ * {@link BlockGzipOutputStream}, reads inflate only the blocks they touch.  Otherwise,
+ * if the blob is compressed, uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
  */
@@ -162,7 +163,10 @@ public class FileDescriptorCache
         mHitRate.increment(0);
         File file = new File(path);
 
-        if (file.length() != rawSize && FileUtil.isGzipped(file)) {
+        boolean compressed = file.length() != rawSize && FileUtil.isGzipped(file);
+        if (compressed && (sharedFile = BlockGzipSharedFile.open(file)) != null) {
+            sLog.debug("Opening new block-compressed file descriptor for %s.", path);
+        } else if (compressed) {
             sLog.debug("Adding file descriptor cache entry for %s from the uncompressed file cache.", path);
             FileCache.Item uncompressed = mUncompressedFileCache.get(path);
             if (uncompressed == null) {
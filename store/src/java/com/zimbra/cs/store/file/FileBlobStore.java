@@ -31,6 +31,7 @@ import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobBuilder;
 import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.BlockGzipOutputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
 import com.zimbra.cs.store.IncomingDirectory;
 import com.zimbra.cs.store.MailboxBlob;
@@ -170,6 +171,9 @@ public final class FileBlobStore extends StoreManager {
             if (src.isCompressed() || srcFile.length() <= destVolume.getCompressionThreshold()) {
                 FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = src.isCompressed();
+            } else if (BlockGzipOutputStream.isEnabled()) {
+                BlockGzipOutputStream.compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                destCompressed = true;
             } else {
                 FileUtil.compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = true;
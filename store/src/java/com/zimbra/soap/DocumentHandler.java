@@ -277,6 +277,17 @@ public abstract class DocumentHandler {
         return true;
     }
 
+    /** Returns <tt>true</tt> if this request may run concurrently with its
+     *  siblings in a <tt>BatchRequest</tt> with <tt>concurrency="parallel"</tt>.
+     *  Such a request must not change backend state, depend on changes made
+     *  by other sub-requests, suspend the request's continuation, or be
+     *  proxied, since proxying updates the auth token all the sub-requests
+     *  share.  (Most handlers don't override {@link #isReadOnly()}, so it
+     *  can't be used for this.) */
+    public boolean isParallelBatchSafe(Element request, Map<String, Object> context) throws ServiceException {
+        return false;
+    }
+
     /** Returns whether the client making the SOAP request is localhost. */
     protected boolean clientIsLocal(Map<String, Object> context) {
         HttpServletRequest req = (HttpServletRequest) context.get(SoapServlet.SERVLET_REQUEST);
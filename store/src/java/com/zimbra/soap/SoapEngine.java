@@ -20,7 +20,17 @@ package com.zimbra.soap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
@@ -30,6 +40,9 @@ import javax.xml.stream.XMLStreamReader;
 
 import org.eclipse.jetty.continuation.ContinuationSupport;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
@@ -61,6 +74,7 @@ import com.zimbra.cs.service.admin.AdminAccessControl;
 import com.zimbra.cs.service.admin.AdminDocumentHandler;
 import com.zimbra.cs.servlet.CsrfFilter;
 import com.zimbra.cs.servlet.CsrfTokenException;
+import com.zimbra.cs.servlet.ZThreadLocal;
 import com.zimbra.cs.servlet.ZimbraInvalidLoginFilter;
 import com.zimbra.cs.servlet.util.CsrfUtil;
 import com.zimbra.cs.session.Session;
@@ -107,6 +121,7 @@ public class SoapEngine {
     public static final String REQUEST_PORT = "request.port";
 
     private final DocumentDispatcher dispatcher = new DocumentDispatcher();
+    private volatile ExecutorService batchExecutor;
 
     SoapEngine() {
         SoapTransport.setDefaultUserAgent(SoapTransport.DEFAULT_USER_AGENT_NAME, BuildInfo.VERSION);
@@ -429,31 +444,11 @@ public class SoapEngine {
             acknowledgeNotifications(zsc);
 
             if (doc.getQName().equals(ZimbraNamespace.E_BATCH_REQUEST)) {
-                boolean contOnError = doc.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
                 responseBody = zsc.createElement(ZimbraNamespace.E_BATCH_RESPONSE);
                 if (!isResumed) {
                     ZimbraLog.soap.info(doc.getName());
                 }
-                for (Element req : doc.listElements()) {
-                    String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
-                    long start = System.currentTimeMillis();
-                    Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
-                    if (!isResumed) {
-                        ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
-                    }
-                    if (id != null) {
-                        br.addAttribute(A_REQUEST_CORRELATOR, id);
-                    }
-                    responseBody.addNonUniqueElement(br);
-                    if (!contOnError && responseProto.isFault(br)) {
-                        break;
-                    }
-                    if (proxyAuthToken != null) {
-                        // requests will invalidate it when proxying locally;
-                        // make sure it's set for each sub-request in batch
-                        zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
-                    }
-                }
+                dispatchBatch(doc, responseBody, context, zsc, isResumed, proxyAuthToken);
             } else {
                 String id = doc.getAttribute(A_REQUEST_CORRELATOR, null);
                 long start = System.currentTimeMillis();
@@ -499,6 +494,183 @@ public class SoapEngine {
         return responseProto.soapEnvelope(responseBody, responseHeader);
     }
 
+    /**
+     * Dispatches the sub-requests of a BatchRequest and adds their responses to <code>responseBody</code>.
+     */
+    @VisibleForTesting
+    void dispatchBatch(Element batch, Element responseBody, Map<String, Object> context, ZimbraSoapContext zsc,
+            boolean isResumed, String proxyAuthToken) {
+        SoapProtocol responseProto = zsc.getResponseProtocol();
+        boolean contOnError = batch.getAttribute(ZimbraNamespace.A_ONERROR, ZimbraNamespace.DEF_ONERROR).equals("continue");
+        List<Element> requests = batch.listElements();
+        if (!isResumed && isParallelBatch(batch, requests, context, zsc)) {
+            dispatchBatchInParallel(requests, responseBody, context, zsc, contOnError);
+            if (proxyAuthToken != null) {
+                zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+            }
+            return;
+        }
+        for (Element req : requests) {
+            String id = req.getAttribute(A_REQUEST_CORRELATOR, null);
+            long start = System.currentTimeMillis();
+            Element br = dispatchRequest(dispatcher.getHandler(req), req, context, zsc);
+            if (!isResumed) {
+                ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
+            }
+            if (id != null) {
+                br.addAttribute(A_REQUEST_CORRELATOR, id);
+            }
+            responseBody.addNonUniqueElement(br);
+            if (!contOnError && responseProto.isFault(br)) {
+                break;
+            }
+            if (proxyAuthToken != null) {
+                // requests will invalidate it when proxying locally;
+                // make sure it's set for each sub-request in batch
+                zsc.getAuthToken().setProxyAuthToken(proxyAuthToken);
+            }
+        }
+    }
+
+    private static final class BatchExecutorHolder {
+        static final ExecutorService EXECUTOR = new ThreadPoolExecutor(
+                LC.soap_batch_parallel_threads.intValue(), LC.soap_batch_parallel_threads.intValue(),
+                60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(LC.soap_batch_parallel_queue_size.intValue(), 1)),
+                new ThreadFactoryBuilder().setNameFormat("SoapBatch-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /** Runs parallel batches on the shared pool, unless a test supplied its own. */
+    @VisibleForTesting
+    void setBatchExecutor(ExecutorService executor) {
+        batchExecutor = executor;
+    }
+
+    private ExecutorService getBatchExecutor() {
+        ExecutorService executor = batchExecutor;
+        return executor != null ? executor : BatchExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the client asked for <tt>concurrency="parallel"</tt> and every sub-request
+     * is safe to run concurrently with the others.  If any sub-request may change state, the whole batch
+     * runs sequentially so that later sub-requests still see the effects of earlier ones.  Batches for an
+     * account on another server, and sub-requests that would be proxied to a mountpoint, run sequentially
+     * as well, since proxying updates the shared {@link ZimbraSoapContext} and its auth token.
+     */
+    private boolean isParallelBatch(Element batch, List<Element> requests, Map<String, Object> context,
+            ZimbraSoapContext zsc) {
+        if (requests.size() < 2 || LC.soap_batch_parallel_threads.intValue() <= 0 ||
+                !ZimbraNamespace.CONCURRENCY_PARALLEL.equals(batch.getAttribute(ZimbraNamespace.A_CONCURRENCY, null))) {
+            return false;
+        }
+        try {
+            if (zsc.getRequestedAccountId() != null &&
+                    !Provisioning.onLocalServer(DocumentHandler.getRequestedAccount(zsc))) {
+                return false;
+            }
+            for (Element req : requests) {
+                DocumentHandler handler = dispatcher.getHandler(req);
+                if (handler == null || !handler.isParallelBatchSafe(req, context)) {
+                    return false;
+                }
+            }
+        } catch (ServiceException e) {
+            return false; // let the sequential path report it
+        }
+        return true;
+    }
+
+    /**
+     * Dispatches the sub-requests of a batch concurrently and adds their responses to
+     * <code>responseBody</code> in the original order, so <tt>onerror="stop"</tt> still drops
+     * everything after the first fault.
+     * <p>
+     * All tasks share <code>zsc</code>.  That is safe because, once the session has been faulted in here,
+     * dispatching a parallel-safe request on a local account only reads it: the auth token, account ids,
+     * protocols and session info are all set while the SOAP header is parsed.  The state that does change
+     * per request lives elsewhere: each task gets its own copy of the context map, the logging context and
+     * the {@link RequestContext}.  Proxying would write to <code>zsc</code> (the SOAP request id and the auth
+     * token's proxy token), which is why {@link #isParallelBatch} keeps anything that proxies sequential.
+     */
+    private void dispatchBatchInParallel(List<Element> requests, Element responseBody,
+            final Map<String, Object> context, final ZimbraSoapContext zsc, boolean contOnError) {
+        for (Element req : requests) {
+            // proxying detaches the request from its parent, which mustn't happen concurrently
+            req.detach();
+            // faulting in the session updates the shared ZimbraSoapContext, so do that here too
+            if (zsc.getAuthToken() != null) {
+                dispatcher.getHandler(req).getSession(zsc);
+            }
+        }
+
+        final Map<String, String> logContext = ZimbraLog.getContextMap();
+        final RequestContext reqCtxt = ZThreadLocal.getRequestContext();
+        final Thread caller = Thread.currentThread();
+        List<Future<Element>> futures = new ArrayList<Future<Element>>(requests.size());
+        for (final Element req : requests) {
+            futures.add(getBatchExecutor().submit(new Callable<Element>() {
+                @Override
+                public Element call() {
+                    // the pool runs tasks on the calling thread when it's saturated
+                    boolean handedOff = Thread.currentThread() != caller;
+                    if (handedOff) {
+                        for (Map.Entry<String, String> entry : logContext.entrySet()) {
+                            ZimbraLog.addToContext(entry.getKey(), entry.getValue());
+                        }
+                        ZThreadLocal.setContext(copyOf(reqCtxt));
+                    }
+                    try {
+                        long start = System.currentTimeMillis();
+                        // handlers stash per-request state (e.g. the session) in the context map
+                        Map<String, Object> subContext = new HashMap<String, Object>(context);
+                        Element br = dispatchRequest(dispatcher.getHandler(req), req, subContext, zsc);
+                        ZimbraLog.soap.info("(batch) %s elapsed=%d", req.getName(), System.currentTimeMillis() - start);
+                        return br;
+                    } finally {
+                        if (handedOff) {
+                            ZimbraLog.clearContext();
+                            ZThreadLocal.unset();
+                        }
+                    }
+                }
+            }));
+        }
+
+        SoapProtocol responseProto = zsc.getResponseProtocol();
+        boolean stopped = false;
+        for (int i = 0; i < requests.size(); i++) {
+            Element br;
+            try {
+                br = Uninterruptibles.getUninterruptibly(futures.get(i));
+            } catch (ExecutionException e) {
+                br = responseProto.soapFault(ServiceException.FAILURE(e.getCause().toString(), e.getCause()));
+                LOG.warn("handler exception", e.getCause());
+            }
+            if (stopped) {
+                continue; // still wait for it, so nothing outlives the request
+            }
+            String id = requests.get(i).getAttribute(A_REQUEST_CORRELATOR, null);
+            if (id != null) {
+                br.addAttribute(A_REQUEST_CORRELATOR, id);
+            }
+            responseBody.addNonUniqueElement(br);
+            if (!contOnError && responseProto.isFault(br)) {
+                stopped = true;
+            }
+        }
+    }
+
+    private static RequestContext copyOf(RequestContext reqCtxt) {
+        if (reqCtxt == null) {
+            return null;
+        }
+        RequestContext copy = new RequestContext();
+        copy.setVirtualHost(reqCtxt.getVirtualHost());
+        return copy;
+    }
+
     /**
      * Handles individual requests, either direct or from a batch
      */
@@ -17,12 +17,15 @@
 
 package com.zimbra.soap;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.UnavailableException;
@@ -32,6 +35,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.httpclient.HttpVersion;
 import org.apache.commons.httpclient.ProtocolException;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.collect.MapMaker;
@@ -46,7 +50,6 @@ import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.RemoteIP;
 import com.zimbra.common.util.ZimbraLog;
-import com.zimbra.common.util.ZimbraServletOutputStream;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.servlet.ZimbraServlet;
 import com.zimbra.cs.stats.ZimbraPerf;
@@ -365,18 +368,71 @@ public class SoapServlet extends ZimbraServlet {
         resp.setStatus(statusCode);
         resp.setHeader("Cache-Control", "no-store, no-cache");
 
+        boolean gzip = LC.soap_response_gzip_enabled.booleanValue() && isGzipAccepted(req.getHeader("Accept-Encoding"));
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+            resp.addHeader("Vary", "Accept-Encoding");
+        }
+
         if (chunkingEnabled) {
-            // Let jetty chunk the response if applicable.
-            ZimbraServletOutputStream out = new ZimbraServletOutputStream(resp.getOutputStream());
-            envelope.output(out);
+            // Let jetty chunk the response if applicable.  The envelope is encoded straight into
+            // the servlet output stream, so the response is never held in memory as a String.
+            OutputStream out = resp.getOutputStream();
+            GZIPOutputStream gzos = gzip ? new GZIPOutputStream(out, GZIP_BUFFER_SIZE) : null;
+            envelope.output(gzos != null ? gzos : out);
+            if (gzos != null) {
+                gzos.finish();
+            }
             out.flush();
         } else {
             // serialize the envelope to a byte array and send the response with Content-Length header.
-            byte[] soapBytes = envelope.toUTF8();
-            resp.setContentLength(soapBytes.length);
-            resp.getOutputStream().write(soapBytes);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            if (gzip) {
+                GZIPOutputStream gzos = new GZIPOutputStream(baos, GZIP_BUFFER_SIZE);
+                envelope.output(gzos);
+                gzos.finish();
+            } else {
+                envelope.output(baos);
+            }
+            resp.setContentLength(baos.size());
+            baos.writeTo(resp.getOutputStream());
             resp.getOutputStream().flush();
         }
         envelope.destroy();
     }
+
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    /**
+     * Returns whether an <tt>Accept-Encoding</tt> header allows a gzip response: gzip (or x-gzip) is listed with a
+     * non-zero q-value, or isn't listed at all and <tt>*</tt> is.
+     */
+    @VisibleForTesting
+    static boolean isGzipAccepted(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        float gzipQ = -1, anyQ = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase();
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.length() > 1 && Character.toLowerCase(param.charAt(0)) == 'q' && param.charAt(1) == '=') {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzipQ = Math.max(gzipQ, q);
+            } else if (name.equals("*")) {
+                anyQ = Math.max(anyQ, q);
+            }
+        }
+        return gzipQ >= 0 ? gzipQ > 0 : anyQ > 0;
+    }
 }